@@ -0,0 +1,414 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.xwiki.contrib.ratelimiter;
+
+import java.io.Serializable;
+
+/**
+ * An IP address or an IP network prefix in primitive form, suitable as a rate limiting consumer. Both IPv4 and IPv6
+ * are supported, IPv4 addresses being stored as IPv4-mapped IPv6 addresses. Prefixes of an address can be used to
+ * limit the consumption of a whole network, like an IPv4 /24 or an IPv6 /64. Keys are serializable, so they can be
+ * exchanged between the nodes of a cluster.
+ *
+ * @version $Id$
+ */
+public final class IpAddressKey implements Serializable
+{
+    private static final long serialVersionUID = 1L;
+
+    private static final int IPV6_LENGTH = 128;
+
+    private static final int IPV4_LENGTH = 32;
+
+    private static final int IPV4_OFFSET = IPV6_LENGTH - IPV4_LENGTH;
+
+    private static final int LONG_LENGTH = 64;
+
+    private static final long IPV4_MAPPED = 0xFFFF00000000L;
+
+    private static final int GROUPS = 8;
+
+    private static final int GROUP_LENGTH = 16;
+
+    private static final int GROUP_MASK = 0xFFFF;
+
+    private static final int BYTE_MASK = 0xFF;
+
+    private static final int HEX = 16;
+
+    private static final char COLON = ':';
+
+    private static final char DOT = '.';
+
+    private static final char SLASH = '/';
+
+    private final long high;
+
+    private final long low;
+
+    private final int length;
+
+    private IpAddressKey(long high, long low, int length)
+    {
+        // Clear the bits outside the prefix, so that all addresses of a prefix share the same key
+        this.high = high & mask(length);
+        this.low = low & mask(length - LONG_LENGTH);
+        this.length = length;
+    }
+
+    /**
+     * @param bits the number of leading bits to keep.
+     * @return a mask keeping the given number of leading bits of a long.
+     */
+    private static long mask(int bits)
+    {
+        return (bits <= 0) ? 0 : (bits >= LONG_LENGTH) ? -1L : -1L << (LONG_LENGTH - bits);
+    }
+
+    /**
+     * Parse a textual IP address, without any name resolution.
+     *
+     * @param address an IPv4 address in dotted decimal notation, or an IPv6 address in hexadecimal notation, with
+     *            optional brackets and zone index.
+     * @return the parsed address, or null if the given string is not a valid IP address.
+     */
+    public static IpAddressKey parse(String address)
+    {
+        if (address == null) {
+            return null;
+        }
+        return parse(address, 0, address.length());
+    }
+
+    /**
+     * Parse a textual IP address found in a part of a string, without any name resolution and without creating
+     * intermediate strings, like when parsing the addresses of a forwarding header.
+     *
+     * @param value the string containing the address.
+     * @param start the start of the address in the string.
+     * @param end the end of the address in the string.
+     * @return the parsed address, or null if the given part of the string is not a valid IP address.
+     * @see #parse(String)
+     */
+    public static IpAddressKey parse(String value, int start, int end)
+    {
+        int first = start;
+        int last = end;
+        while (first < last && value.charAt(first) <= ' ') {
+            first++;
+        }
+        while (last > first && value.charAt(last - 1) <= ' ') {
+            last--;
+        }
+        if (last - first > 2 && value.charAt(first) == '[' && value.charAt(last - 1) == ']') {
+            first++;
+            last--;
+        }
+        for (int i = first; i < last; i++) {
+            if (value.charAt(i) == '%') {
+                last = i;
+            }
+        }
+
+        for (int i = first; i < last; i++) {
+            if (value.charAt(i) == COLON) {
+                return parseIPv6(value, first, last);
+            }
+        }
+        long ipv4 = parseIPv4(value, first, last);
+        return (ipv4 < 0) ? null : new IpAddressKey(0, IPV4_MAPPED | ipv4, IPV6_LENGTH);
+    }
+
+    /**
+     * @param value the string to parse.
+     * @param start the start of the address in the string.
+     * @param end the end of the address in the string.
+     * @return the IPv4 address as an unsigned 32 bits value, or -1 if the address is invalid.
+     */
+    private static long parseIPv4(String value, int start, int end)
+    {
+        long result = 0;
+        int octets = 0;
+        int octet = -1;
+        for (int i = start; i < end; i++) {
+            char c = value.charAt(i);
+            if (c >= '0' && c <= '9') {
+                octet = ((octet < 0) ? 0 : octet * 10) + (c - '0');
+                if (octet > BYTE_MASK) {
+                    return -1;
+                }
+            } else if (c == DOT && octet >= 0 && octets < 3) {
+                result = (result << Byte.SIZE) | octet;
+                octets++;
+                octet = -1;
+            } else {
+                return -1;
+            }
+        }
+        if (octet < 0 || octets != 3) {
+            return -1;
+        }
+        return (result << Byte.SIZE) | octet;
+    }
+
+    /**
+     * @param value the string to parse.
+     * @param start the start of the address in the string.
+     * @param end the end of the address in the string.
+     * @return the parsed address, or null if the given string is not a valid IPv6 address.
+     */
+    private static IpAddressKey parseIPv6(String value, int start, int end)
+    {
+        int[] groups = new int[GROUPS];
+        int count = 0;
+        int compressed = -1;
+        int i = start;
+
+        if (value.startsWith("::", start)) {
+            compressed = 0;
+            i += 2;
+        }
+        while (i < end) {
+            if (count == GROUPS) {
+                return null;
+            }
+            int groupStart = i;
+            int group = 0;
+            while (i < end && i - groupStart < 4 && Character.digit(value.charAt(i), HEX) >= 0) {
+                group = (group << 4) | Character.digit(value.charAt(i), HEX);
+                i++;
+            }
+            if (i < end && value.charAt(i) == DOT) {
+                // Trailing embedded IPv4 address, taking the room of two groups
+                long ipv4 = (count <= GROUPS - 2) ? parseIPv4(value, groupStart, end) : -1;
+                if (ipv4 < 0) {
+                    return null;
+                }
+                groups[count++] = (int) (ipv4 >>> GROUP_LENGTH);
+                groups[count++] = (int) (ipv4 & GROUP_MASK);
+                i = end;
+                break;
+            }
+            if (i == groupStart) {
+                return null;
+            }
+            groups[count++] = group;
+            if (i < end) {
+                if (value.charAt(i) != COLON || ++i == end) {
+                    // Unexpected character or trailing single colon
+                    return null;
+                }
+                if (value.charAt(i) == COLON) {
+                    if (compressed >= 0) {
+                        return null;
+                    }
+                    compressed = count;
+                    i++;
+                }
+            }
+        }
+
+        if (compressed >= 0) {
+            if (count == GROUPS) {
+                return null;
+            }
+            int shift = GROUPS - count;
+            System.arraycopy(groups, compressed, groups, compressed + shift, count - compressed);
+            for (int j = compressed; j < compressed + shift; j++) {
+                groups[j] = 0;
+            }
+        } else if (count != GROUPS) {
+            return null;
+        }
+
+        long high = 0;
+        long low = 0;
+        for (int j = 0; j < GROUPS / 2; j++) {
+            high = (high << GROUP_LENGTH) | groups[j];
+            low = (low << GROUP_LENGTH) | groups[j + GROUPS / 2];
+        }
+        return new IpAddressKey(high, low, IPV6_LENGTH);
+    }
+
+    /**
+     * Rebuild a key from its raw bits, see {@link #getHighBits()}, {@link #getLowBits()} and {@link #getBitLength()}.
+     *
+     * @param high the 64 high bits of the IPv6 or IPv4-mapped address.
+     * @param low the 64 low bits of the IPv6 or IPv4-mapped address.
+     * @param length the length of the prefix in bits, in the IPv6 address space.
+     * @return the key, or null if the given length is not valid.
+     */
+    public static IpAddressKey valueOf(long high, long low, int length)
+    {
+        return (length < 0 || length > IPV6_LENGTH) ? null : new IpAddressKey(high, low, length);
+    }
+
+    /**
+     * @return the 64 high bits of the address, IPv4 addresses being mapped in the IPv6 address space.
+     */
+    public long getHighBits()
+    {
+        return high;
+    }
+
+    /**
+     * @return the 64 low bits of the address, IPv4 addresses being mapped in the IPv6 address space.
+     */
+    public long getLowBits()
+    {
+        return low;
+    }
+
+    /**
+     * @return the length of the prefix in bits, in the IPv6 address space, that is 128 for any single address.
+     */
+    public int getBitLength()
+    {
+        return length;
+    }
+
+    /**
+     * @return true if this is an IPv4 address or prefix.
+     */
+    public boolean isIPv4()
+    {
+        return high == 0 && (low & ~0xFFFFFFFFL) == IPV4_MAPPED && length >= IPV4_OFFSET;
+    }
+
+    /**
+     * @return the length of the prefix in bits, relative to the address family, that is 32 for an IPv4 address and
+     *         128 for an IPv6 address.
+     */
+    public int getPrefixLength()
+    {
+        return isIPv4() ? length - IPV4_OFFSET : length;
+    }
+
+    /**
+     * @param key an address or a prefix.
+     * @return true if the given address or prefix is part of this prefix, or is this address.
+     */
+    public boolean contains(IpAddressKey key)
+    {
+        return key.length >= length && (key.high & mask(length)) == high
+            && (key.low & mask(length - LONG_LENGTH)) == low;
+    }
+
+    /**
+     * @return true if this key represent a network prefix, and not a single address.
+     */
+    public boolean isPrefix()
+    {
+        return length < IPV6_LENGTH;
+    }
+
+    /**
+     * @param prefixLength the length of the prefix in bits, relative to the address family.
+     * @return the network prefix of the given length containing this address or prefix, or this key if the given
+     *         length is not shorter than the current one.
+     */
+    public IpAddressKey getPrefix(int prefixLength)
+    {
+        int newLength = isIPv4() ? prefixLength + IPV4_OFFSET : prefixLength;
+        if (newLength >= length) {
+            return this;
+        }
+        return new IpAddressKey(high, low, Math.max(newLength, 0));
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof IpAddressKey)) {
+            return false;
+        }
+        IpAddressKey other = (IpAddressKey) obj;
+        return high == other.high && low == other.low && length == other.length;
+    }
+
+    @Override
+    public int hashCode()
+    {
+        long hash = high * 31 + low;
+        return (int) (hash ^ (hash >>> IPV4_LENGTH)) * 31 + length;
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder builder = new StringBuilder();
+        if (isIPv4()) {
+            for (int shift = IPV4_LENGTH - Byte.SIZE; shift >= 0; shift -= Byte.SIZE) {
+                builder.append((low >>> shift) & BYTE_MASK);
+                if (shift > 0) {
+                    builder.append(DOT);
+                }
+            }
+        } else {
+            appendIPv6(builder);
+        }
+        if (isPrefix()) {
+            builder.append(SLASH).append(getPrefixLength());
+        }
+        return builder.toString();
+    }
+
+    private void appendIPv6(StringBuilder builder)
+    {
+        int[] groups = new int[GROUPS];
+        for (int j = 0; j < GROUPS / 2; j++) {
+            int shift = (GROUPS / 2 - 1 - j) * GROUP_LENGTH;
+            groups[j] = (int) (high >>> shift) & GROUP_MASK;
+            groups[j + GROUPS / 2] = (int) (low >>> shift) & GROUP_MASK;
+        }
+
+        // Compress the longest run of at least two zero groups
+        int bestStart = -1;
+        int bestLength = 1;
+        for (int j = 0; j < GROUPS; j++) {
+            int k = j;
+            while (k < GROUPS && groups[k] == 0) {
+                k++;
+            }
+            if (k - j > bestLength) {
+                bestStart = j;
+                bestLength = k - j;
+            }
+            j = k;
+        }
+
+        for (int j = 0; j < GROUPS; j++) {
+            if (j == bestStart) {
+                builder.append(COLON).append(COLON);
+                j += bestLength - 1;
+            } else {
+                if (j > 0 && j != bestStart + bestLength) {
+                    builder.append(COLON);
+                }
+                builder.append(Integer.toHexString(groups[j]));
+            }
+        }
+    }
+}
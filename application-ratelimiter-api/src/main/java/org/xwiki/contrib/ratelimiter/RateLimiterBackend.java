@@ -0,0 +1,76 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.xwiki.contrib.ratelimiter;
+
+/**
+ * The storage of the rate limiters of a {@link RateLimiterService}, one per pair of consumer and consumed entity.
+ * Backends may keep limiters locally, or in an external store shared by several nodes, in which case consumption
+ * should be atomic in that store.
+ *
+ * @version $Id$
+ */
+public interface RateLimiterBackend
+{
+    /**
+     * Get the rate limiter for the given entity, without creating it.
+     *
+     * @param consumer the entity consuming.
+     * @param consumed the entity being consumed.
+     * @return the rate limiter for the entity pair, or null if it is not tracked.
+     */
+    RateLimiter get(Object consumer, Object consumed);
+
+    /**
+     * Atomically consume the given amount on the rate limiter of the given pair, creating it from the given template
+     * if needed, and return the resulting state.
+     *
+     * @param consumer the entity consuming.
+     * @param consumed the entity being consumed.
+     * @param amount the amount being consumed.
+     * @param template the rate limiter to clone for creating a missing rate limiter.
+     * @return the state of the rate limiter after the consumption.
+     */
+    RateLimiterState consume(Object consumer, Object consumed, long amount, RateLimiter template);
+
+    /**
+     * Consume on several rate limiters of the same consumed entity at once, which remote backends may send in a
+     * single round trip. Each consumption is atomic, but the batch is not.
+     *
+     * @param consumers the entities consuming.
+     * @param consumed the entity being consumed.
+     * @param amounts the amount being consumed by each consumer.
+     * @param templates the rate limiter to clone for creating a missing rate limiter of each consumer.
+     * @return the state of each rate limiter after the consumption.
+     */
+    RateLimiterState[] consume(Object[] consumers, Object consumed, long[] amounts, RateLimiter[] templates);
+
+    /**
+     * Forget all rate limiters.
+     */
+    void clear();
+
+    /**
+     * Release the resources held by this backend, like connections or mapped files, when the service using it is
+     * disposed. The backend should not be used anymore afterward.
+     */
+    void close();
+}
@@ -37,6 +37,30 @@ public interface RateLimiterBuilder
      */
     RateLimiter build();
 
+    /**
+     * Build a single rate limiter fusing all the added leaky bucket limiters into a single structure, updated at once
+     * using a single reading of the clock. In all-or-nothing mode, a consumption is only accounted when all the
+     * limitations accept it, so rejected consumptions never drain the quota of the other limitations.
+     *
+     * @param allOrNothing when true, consumptions are only accounted if all limitations accept them, and the overflow
+     *            levels are ignored. When false, each limitation behaves like in the rate limiter returned by
+     *            {@link #build()}.
+     * @return the result of this builder.
+     * @throws IllegalArgumentException if some of the added limiters are not leaky buckets, or are lock-free leaky
+     *             buckets, which would lose their lock-free consumption once fused.
+     */
+    RateLimiter buildFused(boolean allOrNothing);
+
+    /**
+     * Set the clock used by the built rate limiter to measure time. By default, a builder looked up from the component
+     * manager uses the coarse clock, which never calls the system while consuming.
+     *
+     * @param clock the clock to be used.
+     * @return this builder for call chaining.
+     * @throws IllegalStateException if some limiters have already been added.
+     */
+    RateLimiterBuilder setClock(RateLimiterClock clock);
+
     /**
      * Add the given limiter to the built rate limiter.
      *
@@ -65,4 +89,84 @@ public interface RateLimiterBuilder
      * @return this builder for call chaining.
      */
     RateLimiterBuilder addLimiter(long limit, long overflow, long period, TimeUnit unit);
+
+    /**
+     * Add a lock-free infinite leaky bucket rate limiter with the given configuration to the built rate limiter. The
+     * limiter behaves like the one added by {@link #addLimiter(long, long, TimeUnit)}, but concurrent consumers never
+     * wait on each other, which is better suited for consumers sending many parallel requests.
+     *
+     * @param limit the maximum amount of consumption over a period of time.
+     * @param period the period of time.
+     * @param unit the unit used to express the period of time.
+     * @return this builder for call chaining.
+     */
+    RateLimiterBuilder addLockFreeLimiter(long limit, long period, TimeUnit unit);
+
+    /**
+     * Add a lock-free overflowing leaky bucket rate limiter with the given configuration to the built rate limiter.
+     * The limiter behaves like the one added by {@link #addLimiter(long, long, long, TimeUnit)}, but concurrent
+     * consumers never wait on each other, which is better suited for consumers sending many parallel requests.
+     *
+     * @param limit the maximum amount of consumption over a period of time.
+     * @param overflow the overflow level, should be higher than the limit level.
+     * @param period the period of time.
+     * @param unit the unit used to express the period of time.
+     * @return this builder for call chaining.
+     */
+    RateLimiterBuilder addLockFreeLimiter(long limit, long overflow, long period, TimeUnit unit);
+
+    /**
+     * Add a generic cell rate algorithm (GCRA) rate limiter with the given configuration to the built rate limiter.
+     * The limiter enforces a steady rate of limit / period, while allowing up to burst consumption at once. It only
+     * keeps a single timestamp per limiter and never accounts rejected consumptions.
+     *
+     * @param limit the maximum amount of consumption over a period of time.
+     * @param period the period of time.
+     * @param unit the unit used to express the period of time.
+     * @param burst the maximum amount that could be consumed at once, should be higher than 0.
+     * @return this builder for call chaining.
+     */
+    RateLimiterBuilder addCellRateLimiter(long limit, long period, TimeUnit unit, long burst);
+
+    /**
+     * Add a generic cell rate algorithm (GCRA) rate limiter with the given configuration to the built rate limiter.
+     * The limiter enforces a steady rate of limit / period, while tolerating consumptions to arrive earlier than that
+     * rate by the given burst tolerance. It only keeps a single timestamp per limiter and never accounts rejected
+     * consumptions.
+     *
+     * @param limit the maximum amount of consumption over a period of time.
+     * @param period the period of time.
+     * @param unit the unit used to express the period of time.
+     * @param tolerance the burst tolerance, how early a consumption could happen compared to the steady rate.
+     * @param toleranceUnit the unit used to express the burst tolerance.
+     * @return this builder for call chaining.
+     */
+    RateLimiterBuilder addCellRateLimiter(long limit, long period, TimeUnit unit, long tolerance,
+        TimeUnit toleranceUnit);
+
+    /**
+     * Add a sliding window counter rate limiter with the given configuration to the built rate limiter. The limiter
+     * estimates the consumption over the last period from the counts of the current and previous fixed windows, and
+     * ensures that limit is never exceeded over any sliding period, without allowing periodic bursts. Rejected
+     * consumptions are not accounted.
+     *
+     * @param limit the maximum amount of consumption over a period of time.
+     * @param period the period of time.
+     * @param unit the unit used to express the period of time.
+     * @return this builder for call chaining.
+     */
+    RateLimiterBuilder addSlidingWindowLimiter(long limit, long period, TimeUnit unit);
+
+    /**
+     * Add a sliding log rate limiter with the given configuration to the built rate limiter. The limiter keeps the
+     * time of each unit consumed during the last period, and ensures exactly that limit is never exceeded over any
+     * sliding period. Since it keeps a log of limit entries, it only supports small limits. Rejected consumptions are
+     * not accounted.
+     *
+     * @param limit the maximum amount of consumption over a period of time, should not exceed 256.
+     * @param period the period of time.
+     * @param unit the unit used to express the period of time.
+     * @return this builder for call chaining.
+     */
+    RateLimiterBuilder addSlidingLogLimiter(long limit, long period, TimeUnit unit);
 }
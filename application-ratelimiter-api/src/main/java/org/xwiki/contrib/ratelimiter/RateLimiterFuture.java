@@ -0,0 +1,45 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.xwiki.contrib.ratelimiter;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+
+/**
+ * The pending result of a consumption waiting for the rate limiter, see
+ * {@link RateLimiterService#acquire(Object, Object, long, long, java.util.concurrent.TimeUnit)}. The result is true
+ * once the amount has been consumed, and false if it could not be consumed before the timeout. Listeners allow to
+ * be notified of the result without blocking a thread.
+ *
+ * @version $Id$
+ */
+public interface RateLimiterFuture extends Future<Boolean>
+{
+    /**
+     * Register a listener to be run once this future is done, right away if it is already done.
+     *
+     * @param listener the listener to run.
+     * @param executor the executor running the listener, which should not block when the listener is run by the
+     *            thread completing the future.
+     */
+    void addListener(Runnable listener, Executor executor);
+}
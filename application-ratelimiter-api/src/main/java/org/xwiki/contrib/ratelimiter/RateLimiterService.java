@@ -20,6 +20,8 @@
 
 package org.xwiki.contrib.ratelimiter;
 
+import java.util.concurrent.TimeUnit;
+
 /**
  * A rate limiting service allows limiting consumption rate of a resource based on a configured rate limiter.
  *
@@ -37,6 +39,39 @@ public interface RateLimiterService
      */
     boolean consume(Object consumer, Object consumed, long amount);
 
+    /**
+     * Consume on several entity pairs at once, such as the user, address, wiki and document of a request, looking up
+     * all their rate limiters together. In all-or-nothing mode, nothing is consumed unless all the consumptions are
+     * under their limitation; this is checked against the state of the rate limiters before consuming, so
+     * concurrent consumptions on the same rate limiters may still cause some of the consumptions to be rejected.
+     *
+     * @param consumers the entities consuming.
+     * @param consumed the entities being consumed, one for each consumer.
+     * @param amounts the amounts that will be consumed, one for each consumer.
+     * @param allOrNothing when true, nothing is consumed unless all the consumptions are under their limitation.
+     * @return for each consumer, true if its consumption is under the limitation.
+     */
+    boolean[] consume(Object[] consumers, Object[] consumed, long[] amounts, boolean allOrNothing);
+
+    /**
+     * Consume as soon as the limitation allows it, instead of rejecting the consumption, without blocking any thread
+     * while waiting. The consumptions waiting for the same rate limiter are served in first come, first served order.
+     * Only the individual rate limiter of the consumer is waited for, which is created if needed even in approximate
+     * mode. The limitations shared with other consumers, like the global capacity and the network prefix of the
+     * consumer, are charged like by {@link #consume(Object, Object, long)}, but right away, the consumption being
+     * rejected at once when they do not allow it. Exhaustion is notified the same way, including when the individual
+     * rate limiter does not allow the consumption before the timeout.
+     *
+     * @param consumer the entity consuming.
+     * @param consumed the entity being consumed.
+     * @param amount the amount that will be consumed.
+     * @param timeout the maximum time to wait.
+     * @param unit the unit used to express the timeout.
+     * @return the future result of the consumption, true once the amount has been consumed, or false if it could not
+     *         be consumed before the timeout.
+     */
+    RateLimiterFuture acquire(Object consumer, Object consumed, long amount, long timeout, TimeUnit unit);
+
     /**
      * Retrieve the actual rate limiter for a given consumer on a given consumed entity.
      *
@@ -50,4 +85,11 @@ public interface RateLimiterService
      * Clear the cache of existing rate limiters.
      */
     void clearCache();
+
+    /**
+     * Release the resources of this service, once it is replaced or no more needed, saving the state of its rate
+     * limiters when it is persistent. Unlike {@link #clearCache()}, this never forgets rate limiters kept outside of
+     * this service. The service should not be used afterwards.
+     */
+    void dispose();
 }
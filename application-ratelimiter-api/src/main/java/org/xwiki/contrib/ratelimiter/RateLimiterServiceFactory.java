@@ -20,6 +20,8 @@
 
 package org.xwiki.contrib.ratelimiter;
 
+import java.util.concurrent.TimeUnit;
+
 import org.xwiki.component.annotation.Role;
 
 /**
@@ -30,6 +32,11 @@ import org.xwiki.component.annotation.Role;
 @Role
 public interface RateLimiterServiceFactory
 {
+    /**
+     * The default maximum number of individual rate limiters kept by a service.
+     */
+    int DEFAULT_CAPACITY = 10000;
+
     /**
      * Create a new rate limiting service based on the give rate limiter template.
      *
@@ -37,4 +44,42 @@ public interface RateLimiterServiceFactory
      * @return a rate limiting service ready for providing consumption rate limitations.
      */
     RateLimiterService create(RateLimiter rateLimiterTemplate);
+
+    /**
+     * Create a new rate limiting service based on the give rate limiter template, keeping at most the given number
+     * of individual rate limiters. Each service keeps its own rate limiters.
+     *
+     * @param rateLimiterTemplate a rate limiter to clone for creating individual rate limiter.
+     * @param capacity the maximum number of individual rate limiters kept by the service, the least recently used
+     *            ones being discarded first.
+     * @return a rate limiting service ready for providing consumption rate limitations.
+     */
+    RateLimiterService create(RateLimiter rateLimiterTemplate, int capacity);
+
+    /**
+     * Create a new rate limiting service in approximate mode. The consumption of all consumers is first accounted in
+     * a sketch of fixed size, and individual rate limiters are only created for the consumers exceeding the given
+     * threshold over the given period, so memory stays bounded whatever the number of distinct consumers. Once an
+     * individual rate limiter is created, it is charged with the consumption estimated by the sketch.
+     *
+     * @param rateLimiterTemplate a rate limiter to clone for creating individual rate limiter.
+     * @param capacity the maximum number of individual rate limiters kept by the service, also used to size the
+     *            sketch.
+     * @param threshold the consumption above which a consumer is tracked individually, should be lower than the
+     *            limits of the template.
+     * @param period the period of time over which the threshold is evaluated.
+     * @param unit the unit used to express the period of time.
+     * @return a rate limiting service ready for providing consumption rate limitations.
+     */
+    RateLimiterService create(RateLimiter rateLimiterTemplate, int capacity, long threshold, long period,
+        TimeUnit unit);
+
+    /**
+     * Create a new rate limiting service based on the give rate limiter template and the given options.
+     *
+     * @param rateLimiterTemplate a rate limiter to clone for creating individual rate limiter.
+     * @param options the options of the service.
+     * @return a rate limiting service ready for providing consumption rate limitations.
+     */
+    RateLimiterService create(RateLimiter rateLimiterTemplate, RateLimiterServiceOptions options);
 }
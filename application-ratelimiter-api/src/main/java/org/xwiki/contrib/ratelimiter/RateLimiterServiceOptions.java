@@ -0,0 +1,645 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.xwiki.contrib.ratelimiter;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.xwiki.contrib.ratelimiter.cluster.LeaseTransport;
+
+/**
+ * Options used to create a {@link RateLimiterService}, see {@link RateLimiterServiceFactory}.
+ *
+ * @version $Id$
+ */
+public class RateLimiterServiceOptions
+{
+    /**
+     * The default length of IPv4 aggregation prefixes.
+     */
+    public static final int DEFAULT_IPV4_PREFIX_LENGTH = 24;
+
+    /**
+     * The default length of IPv6 aggregation prefixes.
+     */
+    public static final int DEFAULT_IPV6_PREFIX_LENGTH = 64;
+
+    /**
+     * Decision of a request rule exempting the matching requests from rate limiting.
+     */
+    public static final String RULE_EXEMPT = "exempt";
+
+    /**
+     * Decision of a request rule charging the matching requests with the cost of their action.
+     */
+    public static final String RULE_CHARGE = "charge";
+
+    private static final List<String> RULE_CONDITIONS = Arrays.asList("action", "space", "document", "path", "agent");
+
+    private int capacity = RateLimiterServiceFactory.DEFAULT_CAPACITY;
+
+    private RateLimiterClock clock;
+
+    private long approximateThreshold;
+
+    private long approximatePeriod;
+
+    private TimeUnit approximateUnit;
+
+    private RateLimiter aggregateTemplate;
+
+    private int ipv4PrefixLength = DEFAULT_IPV4_PREFIX_LENGTH;
+
+    private int ipv6PrefixLength = DEFAULT_IPV6_PREFIX_LENGTH;
+
+    private long globalCapacity;
+
+    private long globalPeriod;
+
+    private TimeUnit globalUnit;
+
+    private final Map<Object, Long> shareWeights = new HashMap<Object, Long>();
+
+    private long leaseSize;
+
+    private LeaseTransport leaseTransport;
+
+    private RateLimiterBackend backend;
+
+    private String redisAddress;
+
+    private boolean offHeap;
+
+    private File offHeapFile;
+
+    private File snapshotFile;
+
+    private long snapshotInterval;
+
+    private TimeUnit snapshotUnit;
+
+    private long shapingDelay;
+
+    private TimeUnit shapingUnit;
+
+    private int shapingSlots;
+
+    private final Map<String, Long> actionCosts = new HashMap<String, Long>();
+
+    private final List<String> requestRules = new ArrayList<String>();
+
+    private final Set<Object> exemptions = new HashSet<Object>();
+
+    /**
+     * @return the maximum number of individual rate limiters kept by the service.
+     */
+    public int getCapacity()
+    {
+        return capacity;
+    }
+
+    /**
+     * @param capacity the maximum number of individual rate limiters kept by the service, the least recently used
+     *            ones being discarded first.
+     * @return these options.
+     */
+    public RateLimiterServiceOptions setCapacity(int capacity)
+    {
+        this.capacity = capacity;
+        return this;
+    }
+
+    /**
+     * @return the clock used by the service to expire, decay and share consumptions, or null to use the clock of the
+     *         factory.
+     */
+    public RateLimiterClock getClock()
+    {
+        return clock;
+    }
+
+    /**
+     * @param clock the clock used by the service to expire, decay and share consumptions. It should be the clock of
+     *            the rate limiter template, see {@link RateLimiterBuilder#setClock(RateLimiterClock)}.
+     * @return these options.
+     */
+    public RateLimiterServiceOptions setClock(RateLimiterClock clock)
+    {
+        this.clock = clock;
+        return this;
+    }
+
+    /**
+     * @return the consumption above which a consumer is tracked individually, or 0 when all consumers are tracked
+     *         individually.
+     */
+    public long getApproximateThreshold()
+    {
+        return approximateThreshold;
+    }
+
+    /**
+     * @return the period of time over which the approximate threshold is evaluated.
+     */
+    public long getApproximatePeriod()
+    {
+        return approximatePeriod;
+    }
+
+    /**
+     * @return the unit used to express the period of time over which the approximate threshold is evaluated.
+     */
+    public TimeUnit getApproximateUnit()
+    {
+        return approximateUnit;
+    }
+
+    /**
+     * Use the approximate mode, see {@link RateLimiterServiceFactory#create(RateLimiter, int, long, long, TimeUnit)}.
+     *
+     * @param threshold the consumption above which a consumer is tracked individually, or 0 to track all consumers
+     *            individually.
+     * @param period the period of time over which the threshold is evaluated.
+     * @param unit the unit used to express the period of time.
+     * @return these options.
+     */
+    public RateLimiterServiceOptions setApproximate(long threshold, long period, TimeUnit unit)
+    {
+        this.approximateThreshold = threshold;
+        this.approximatePeriod = period;
+        this.approximateUnit = unit;
+        return this;
+    }
+
+    /**
+     * @return the rate limiter template used for IP network prefixes, or null when consumption is not aggregated.
+     */
+    public RateLimiter getAggregateTemplate()
+    {
+        return aggregateTemplate;
+    }
+
+    /**
+     * Aggregate the consumption of {@link IpAddressKey} consumers by network prefix. Each consumption is charged to
+     * the individual limiter of the address, and to the limiter of its network prefix, so that consumers rotating
+     * their addresses inside a network are still limited. Prefix limiters are kept in the same store as individual
+     * ones.
+     *
+     * @param aggregateTemplate a rate limiter to clone for creating prefix rate limiters, usually allowing more
+     *            consumption than the individual template, or null to disable aggregation.
+     * @return these options.
+     */
+    public RateLimiterServiceOptions setAggregateTemplate(RateLimiter aggregateTemplate)
+    {
+        this.aggregateTemplate = aggregateTemplate;
+        return this;
+    }
+
+    /**
+     * @return the length in bits of the IPv4 prefixes used for aggregation, or 0 when IPv4 addresses are not
+     *         aggregated.
+     */
+    public int getIPv4PrefixLength()
+    {
+        return ipv4PrefixLength;
+    }
+
+    /**
+     * @param prefixLength the length in bits of the IPv4 prefixes used for aggregation, or 0 to not aggregate IPv4
+     *            addresses.
+     * @return these options.
+     */
+    public RateLimiterServiceOptions setIPv4PrefixLength(int prefixLength)
+    {
+        this.ipv4PrefixLength = prefixLength;
+        return this;
+    }
+
+    /**
+     * @return the length in bits of the IPv6 prefixes used for aggregation, or 0 when IPv6 addresses are not
+     *         aggregated.
+     */
+    public int getIPv6PrefixLength()
+    {
+        return ipv6PrefixLength;
+    }
+
+    /**
+     * @param prefixLength the length in bits of the IPv6 prefixes used for aggregation, or 0 to not aggregate IPv6
+     *            addresses.
+     * @return these options.
+     */
+    public RateLimiterServiceOptions setIPv6PrefixLength(int prefixLength)
+    {
+        this.ipv6PrefixLength = prefixLength;
+        return this;
+    }
+
+    /**
+     * @return the maximum total consumption of all consumers over the global period, or 0 when the total consumption
+     *         is not limited.
+     */
+    public long getGlobalCapacity()
+    {
+        return globalCapacity;
+    }
+
+    /**
+     * @return the period of time over which the global capacity is evaluated.
+     */
+    public long getGlobalPeriod()
+    {
+        return globalPeriod;
+    }
+
+    /**
+     * @return the unit used to express the period of time over which the global capacity is evaluated.
+     */
+    public TimeUnit getGlobalUnit()
+    {
+        return globalUnit;
+    }
+
+    /**
+     * Limit the total consumption of all consumers, in addition to the individual limitations. The global capacity
+     * is shared between the consumed entities, like the wikis of a farm, proportionally to their weights, see
+     * {@link #setShareWeight(Object, long)}. An entity may borrow the capacity left unused by the others, but once
+     * the capacity is reached, only entities consuming less than their share are allowed to consume.
+     *
+     * @param capacity the maximum total consumption over a period of time, or 0 to not limit the total consumption.
+     * @param period the period of time.
+     * @param unit the unit used to express the period of time.
+     * @return these options.
+     */
+    public RateLimiterServiceOptions setGlobalCapacity(long capacity, long period, TimeUnit unit)
+    {
+        this.globalCapacity = capacity;
+        this.globalPeriod = period;
+        this.globalUnit = unit;
+        return this;
+    }
+
+    /**
+     * @return the weights of the consumed entities in the sharing of the global capacity.
+     */
+    public Map<Object, Long> getShareWeights()
+    {
+        return shareWeights;
+    }
+
+    /**
+     * @param consumed the entity being consumed, like a wiki reference.
+     * @param weight the weight of the entity in the sharing of the global capacity, entities without weight having a
+     *            weight of 1.
+     * @return these options.
+     */
+    public RateLimiterServiceOptions setShareWeight(Object consumed, long weight)
+    {
+        this.shareWeights.put(consumed, weight);
+        return this;
+    }
+
+    /**
+     * @return the amount of quota leased at once by the nodes of a cluster, or 0 when limits are only enforced
+     *         locally.
+     */
+    public long getLeaseSize()
+    {
+        return leaseSize;
+    }
+
+    /**
+     * Enforce limits across the nodes of a cluster. The quota of each consumer is owned by one node, and the other
+     * nodes lease slices of that quota from the owner, in batches, so that consumption is still accounted locally.
+     * Larger leases mean less messages between nodes, but a larger possible excess of consumption, up to two leases
+     * per node. Snapshots are not supported in this mode, see {@link #setSnapshot(File, long, TimeUnit)}.
+     *
+     * @param leaseSize the amount of quota leased at once, which should be lower than the limits, or 0 to only
+     *            enforce limits locally.
+     * @return these options.
+     */
+    public RateLimiterServiceOptions setLeaseSize(long leaseSize)
+    {
+        this.leaseSize = leaseSize;
+        return this;
+    }
+
+    /**
+     * @return the transport used to communicate with the other nodes of the cluster, or null to use the default one,
+     *         based on remote observation.
+     */
+    public LeaseTransport getLeaseTransport()
+    {
+        return leaseTransport;
+    }
+
+    /**
+     * @param leaseTransport the transport used to communicate with the other nodes of the cluster, or null to use the
+     *            default one, based on remote observation.
+     * @return these options.
+     */
+    public RateLimiterServiceOptions setLeaseTransport(LeaseTransport leaseTransport)
+    {
+        this.leaseTransport = leaseTransport;
+        return this;
+    }
+
+    /**
+     * @return the backend storing the individual rate limiters, or null to use the default one.
+     */
+    public RateLimiterBackend getBackend()
+    {
+        return backend;
+    }
+
+    /**
+     * Store the individual rate limiters in the given backend instead of the local memory. Approximate mode and
+     * cluster leasing do not apply to external backends, which are expected to be shared by all nodes.
+     *
+     * @param backend the backend storing the individual rate limiters, or null to use the default one.
+     * @return these options.
+     */
+    public RateLimiterServiceOptions setBackend(RateLimiterBackend backend)
+    {
+        this.backend = backend;
+        return this;
+    }
+
+    /**
+     * @return the address of the server speaking the Redis protocol storing the individual rate limiters, or null
+     *         when they are not stored in such a server.
+     */
+    public String getRedisAddress()
+    {
+        return redisAddress;
+    }
+
+    /**
+     * Store the individual rate limiters in a server speaking the Redis protocol, shared by all the nodes of a
+     * cluster, so that limits are enforced exactly across nodes. Only leaky bucket rate limiters are supported. This
+     * is ignored when a backend is set with {@link #setBackend(RateLimiterBackend)}.
+     *
+     * @param redisAddress the address of the server, as host:port, the port defaulting to 6379, or null to not use
+     *            such a server.
+     * @return these options.
+     */
+    public RateLimiterServiceOptions setRedisAddress(String redisAddress)
+    {
+        this.redisAddress = redisAddress;
+        return this;
+    }
+
+    /**
+     * @return true if the individual rate limiters are kept outside of the heap.
+     */
+    public boolean isOffHeap()
+    {
+        return offHeap || offHeapFile != null;
+    }
+
+    /**
+     * Keep the state of the individual rate limiters outside of the heap, in a fixed size table of the configured
+     * capacity, so that tracking millions of consumers puts no pressure on the garbage collector. Only leaky bucket
+     * rate limiters are supported. This is ignored when a backend is set with {@link #setBackend(RateLimiterBackend)}
+     * or a Redis server with {@link #setRedisAddress(String)}.
+     *
+     * @param offHeap true to keep the individual rate limiters outside of the heap.
+     * @return these options.
+     */
+    public RateLimiterServiceOptions setOffHeap(boolean offHeap)
+    {
+        this.offHeap = offHeap;
+        return this;
+    }
+
+    /**
+     * @return the file holding the off-heap table of the rate limiters, or null when it is private to this process.
+     */
+    public File getOffHeapFile()
+    {
+        return offHeapFile;
+    }
+
+    /**
+     * Keep the off-heap table of the individual rate limiters in a memory-mapped file, shared by all the processes of
+     * the host using the same file and capacity, and kept across restarts. Setting a file implies
+     * {@link #setOffHeap(boolean)}.
+     *
+     * @param file the file holding the table, or null to keep it private to this process.
+     * @return these options.
+     */
+    public RateLimiterServiceOptions setOffHeapFile(File file)
+    {
+        this.offHeapFile = file;
+        return this;
+    }
+
+    /**
+     * @return the file where the state of the rate limiters is saved, or null when it is not persistent.
+     */
+    public File getSnapshotFile()
+    {
+        return snapshotFile;
+    }
+
+    /**
+     * @return the interval between periodic snapshots, or 0 when snapshots are only saved when the service is
+     *         disposed.
+     */
+    public long getSnapshotInterval()
+    {
+        return snapshotInterval;
+    }
+
+    /**
+     * @return the unit used to express the interval between periodic snapshots.
+     */
+    public TimeUnit getSnapshotUnit()
+    {
+        return snapshotUnit;
+    }
+
+    /**
+     * Persist the state of the rate limiters, so that consumers do not get a fresh quota when the wiki restarts. The
+     * rate limiters are restored from the file when the service is created, and saved periodically, when the service
+     * is disposed, and when the wiki is stopped. Only leaky bucket and generic cell rate limiters are persisted, and
+     * only when they are kept in the local memory without cluster leasing.
+     *
+     * @param file the file where the state of the rate limiters is saved, or null to not persist it.
+     * @param interval the interval between periodic snapshots, or 0 to only save snapshots when the service is
+     *            disposed.
+     * @param unit the unit used to express the interval.
+     * @return these options.
+     */
+    public RateLimiterServiceOptions setSnapshot(File file, long interval, TimeUnit unit)
+    {
+        this.snapshotFile = file;
+        this.snapshotInterval = interval;
+        this.snapshotUnit = unit;
+        return this;
+    }
+
+    /**
+     * @return the maximum time a request over the limit is delayed before being served, or 0 when such requests are
+     *         rejected.
+     */
+    public long getShapingDelay()
+    {
+        return shapingDelay;
+    }
+
+    /**
+     * @return the unit used to express the maximum delay of requests over the limit.
+     */
+    public TimeUnit getShapingUnit()
+    {
+        return shapingUnit;
+    }
+
+    /**
+     * @return the maximum number of requests delayed at the same time.
+     */
+    public int getShapingSlots()
+    {
+        return shapingSlots;
+    }
+
+    /**
+     * Delay requests slightly over the limit instead of rejecting them. A request is delayed by the waiting time
+     * computed by its rate limiter, and then served, as long as this waiting time does not exceed the given maximum
+     * delay. Since each delayed request holds its thread, only the given number of requests may be delayed at the same
+     * time, and requests are rejected once all slots are taken. This is used by the action rate limiter, and is
+     * ignored by services used directly.
+     *
+     * @param maxDelay the maximum delay of a request over the limit, or 0 to reject such requests.
+     * @param unit the unit used to express the maximum delay.
+     * @param slots the maximum number of requests delayed at the same time.
+     * @return these options.
+     */
+    public RateLimiterServiceOptions setShaping(long maxDelay, TimeUnit unit, int slots)
+    {
+        this.shapingDelay = maxDelay;
+        this.shapingUnit = unit;
+        this.shapingSlots = slots;
+        return this;
+    }
+
+    /**
+     * @return the cost of actions, see {@link #setActionCost(String, long)}.
+     */
+    public Map<String, Long> getActionCosts()
+    {
+        return actionCosts;
+    }
+
+    /**
+     * Set the amount consumed by an action, so that limits track the real cost of requests. The action may be
+     * followed by a colon and the local reference of a space or a document, like {@code view:Sandbox} or
+     * {@code export:Main.WebHome}, to override its cost for this space, including its nested spaces, or for this
+     * document. The most specific cost applies, and actions without cost consume 1. This is used by the action rate
+     * limiter, and is ignored by services used directly.
+     *
+     * @param action the name of the action, optionally followed by a colon and the local reference of a space or a
+     *            document.
+     * @param cost the amount consumed by the action, 0 for actions that are not limited.
+     * @return these options.
+     */
+    public RateLimiterServiceOptions setActionCost(String action, long cost)
+    {
+        if (cost < 0) {
+            throw new IllegalArgumentException(String.format("Cost [%d] of action [%s] should not be negative.",
+                cost, action));
+        }
+        this.actionCosts.put(action, cost);
+        return this;
+    }
+
+    /**
+     * @return the rules classifying requests, see {@link #addRequestRule(String)}.
+     */
+    public List<String> getRequestRules()
+    {
+        return requestRules;
+    }
+
+    /**
+     * Add a rule classifying requests before any rate limiting. Rules are written as
+     * {@code condition[&condition...]:decision}, where each condition is one of {@code action=name},
+     * {@code space=reference} matching the space and its nested spaces, {@code document=reference},
+     * {@code path=prefix} matching the beginning of the path of the request URL, and {@code agent=text} matching
+     * user agents containing this text regardless of case. The decision is either {@value #RULE_EXEMPT} to exempt the
+     * request from rate limiting, {@value #RULE_CHARGE} to charge the cost of its action, or the amount consumed by
+     * the request. The first matching rule applies, and requests not matching any rule are charged the cost of their
+     * action. Skin resources, served by the {@code skin}, {@code jsx} and {@code ssx} actions, are exempted unless a
+     * rule with their action decides otherwise, rules without action being ignored for them. This is used by the
+     * action rate limiter, and is ignored by services used directly.
+     *
+     * @param rule the rule.
+     * @return these options.
+     */
+    public RateLimiterServiceOptions addRequestRule(String rule)
+    {
+        int index = rule.lastIndexOf(':');
+        String decision = (index < 0) ? null : rule.substring(index + 1).trim();
+        if (decision == null || !(decision.equals(RULE_EXEMPT) || decision.equals(RULE_CHARGE)
+            || decision.matches("[0-9]+"))) {
+            throw new IllegalArgumentException(String.format("Invalid decision in request rule [%s].", rule));
+        }
+        for (String condition : rule.substring(0, index).split("&")) {
+            int separator = condition.indexOf('=');
+            if (separator < 0 || !RULE_CONDITIONS.contains(condition.substring(0, separator).trim())) {
+                throw new IllegalArgumentException(
+                    String.format("Invalid condition [%s] in request rule [%s].", condition, rule));
+            }
+        }
+        this.requestRules.add(rule);
+        return this;
+    }
+
+    /**
+     * @return the users and groups exempted from rate limiting, see {@link #addExemption(Object)}.
+     */
+    public Set<Object> getExemptions()
+    {
+        return exemptions;
+    }
+
+    /**
+     * Exempt a user, or the members of a group, from rate limiting, in addition to the administrators of the
+     * consumed wiki. This is used by the action rate limiter, and is ignored by services used directly.
+     *
+     * @param reference the reference of the user or group document.
+     * @return these options.
+     */
+    public RateLimiterServiceOptions addExemption(Object reference)
+    {
+        this.exemptions.add(reference);
+        return this;
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.xwiki.contrib.ratelimiter;
+
+/**
+ * The outcome of an atomic consumption on a {@link RateLimiterBackend}.
+ *
+ * @version $Id$
+ */
+public class RateLimiterState
+{
+    private final RateLimiter limiter;
+    private final boolean allowed;
+    private final boolean wasExhausted;
+
+    /**
+     * Constructor.
+     *
+     * @param limiter the rate limiter that has been consumed.
+     * @param allowed true if the consumption was under the limitation.
+     * @param wasExhausted true if the limiter was already exhausted before the consumption.
+     */
+    public RateLimiterState(RateLimiter limiter, boolean allowed, boolean wasExhausted)
+    {
+        this.limiter = limiter;
+        this.allowed = allowed;
+        this.wasExhausted = wasExhausted;
+    }
+
+    /**
+     * @return the rate limiter that has been consumed, reflecting its state after the consumption.
+     */
+    public RateLimiter getLimiter()
+    {
+        return limiter;
+    }
+
+    /**
+     * @return true if the consumption was under the limitation.
+     */
+    public boolean isAllowed()
+    {
+        return allowed;
+    }
+
+    /**
+     * @return true if the limiter was already exhausted before the consumption, so exhaustion has already been
+     *         reported.
+     */
+    public boolean wasExhausted()
+    {
+        return wasExhausted;
+    }
+
+    /**
+     * @return the amount that could still be consumed after the consumption.
+     */
+    public long getAvailableAmount()
+    {
+        return limiter.getAvailableAmount(false);
+    }
+}
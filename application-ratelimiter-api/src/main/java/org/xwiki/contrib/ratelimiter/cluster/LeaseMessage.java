@@ -0,0 +1,155 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.xwiki.contrib.ratelimiter.cluster;
+
+import java.io.Serializable;
+
+/**
+ * A batch of lease requests or grants exchanged between two nodes of a cluster. Each entry of the batch is a pair of
+ * consumer and consumed entity, with the index of the rate limiter template limiting them, and an amount. For requests,
+ * the amount is the quota requested from the owner node. For grants, the amount is the quota granted by the owner
+ * node, and the delay is the time to wait before requesting more when less than requested has been granted.
+ *
+ * @version $Id$
+ */
+public final class LeaseMessage implements Serializable
+{
+    private static final long serialVersionUID = 1L;
+
+    private final String source;
+
+    private final String target;
+
+    private final boolean grant;
+
+    private final Object[] consumers;
+
+    private final Object[] consumed;
+
+    private final int[] templates;
+
+    private final long[] amounts;
+
+    private final long[] delays;
+
+    /**
+     * Constructor.
+     *
+     * @param source the node sending the message.
+     * @param target the node the message is sent to.
+     * @param grant true for grants, false for requests.
+     * @param consumers the consuming entities.
+     * @param consumed the entities being consumed.
+     * @param templates the index of the template of each entry.
+     * @param amounts the amount requested or granted for each entry.
+     * @param delays for grants, the delay in nanoseconds before requesting more for each entry.
+     */
+    public LeaseMessage(String source, String target, boolean grant, Object[] consumers, Object[] consumed,
+        int[] templates, long[] amounts, long[] delays)
+    {
+        this.source = source;
+        this.target = target;
+        this.grant = grant;
+        this.consumers = consumers;
+        this.consumed = consumed;
+        this.templates = templates;
+        this.amounts = amounts;
+        this.delays = delays;
+    }
+
+    /**
+     * @return the node sending the message.
+     */
+    public String getSource()
+    {
+        return source;
+    }
+
+    /**
+     * @return the node the message is sent to.
+     */
+    public String getTarget()
+    {
+        return target;
+    }
+
+    /**
+     * @return true for grants, false for requests.
+     */
+    public boolean isGrant()
+    {
+        return grant;
+    }
+
+    /**
+     * @return the number of entries in this batch.
+     */
+    public int size()
+    {
+        return consumers.length;
+    }
+
+    /**
+     * @param index the index of an entry.
+     * @return the consuming entity of the entry.
+     */
+    public Object getConsumer(int index)
+    {
+        return consumers[index];
+    }
+
+    /**
+     * @param index the index of an entry.
+     * @return the entity being consumed of the entry.
+     */
+    public Object getConsumed(int index)
+    {
+        return consumed[index];
+    }
+
+    /**
+     * @param index the index of an entry.
+     * @return the index of the template limiting the entry.
+     */
+    public int getTemplate(int index)
+    {
+        return templates[index];
+    }
+
+    /**
+     * @param index the index of an entry.
+     * @return the amount requested or granted for the entry.
+     */
+    public long getAmount(int index)
+    {
+        return amounts[index];
+    }
+
+    /**
+     * @param index the index of an entry.
+     * @return for grants, the delay in nanoseconds before requesting more for the entry.
+     */
+    public long getDelay(int index)
+    {
+        return (delays != null) ? delays[index] : 0;
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.xwiki.contrib.ratelimiter.cluster;
+
+import java.util.Collection;
+
+import org.xwiki.component.annotation.Role;
+
+/**
+ * Transport of quota leasing messages between the nodes of a cluster. In cluster mode, the quota of each consumer is
+ * owned by a single node, chosen by consistent hashing over the nodes returned by {@link #getNodes()}, and the other
+ * nodes lease slices of that quota from the owner, in batches, so that consumption is accounted locally.
+ *
+ * @version $Id$
+ */
+@Role
+public interface LeaseTransport
+{
+    /**
+     * Receiver of the messages sent to the local node.
+     */
+    interface Receiver
+    {
+        /**
+         * @param message a message sent to the local node.
+         */
+        void receive(LeaseMessage message);
+    }
+
+    /**
+     * @return the identifier of the local node.
+     */
+    String getLocalNode();
+
+    /**
+     * @return the identifiers of the nodes currently part of the cluster, including the local node.
+     */
+    Collection<String> getNodes();
+
+    /**
+     * Send a message to its target node. Messages may be delivered asynchronously, and may be lost.
+     *
+     * @param message the message to send.
+     */
+    void send(LeaseMessage message);
+
+    /**
+     * @param receiver the receiver of the messages sent to the local node, replacing any previous receiver, or null
+     *            to ignore received messages.
+     */
+    void setReceiver(Receiver receiver);
+}
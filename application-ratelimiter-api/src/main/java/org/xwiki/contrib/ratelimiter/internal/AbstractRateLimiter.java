@@ -23,30 +23,46 @@ package org.xwiki.contrib.ratelimiter.internal;
 import java.util.concurrent.TimeUnit;
 
 import org.xwiki.contrib.ratelimiter.RateLimiter;
+import org.xwiki.contrib.ratelimiter.RateLimiterClock;
 
 /**
  * Base class for {@link RateLimiter}.
  *
  * @version $Id$
  */
-public abstract class AbstractRateLimiter implements RateLimiter
+public abstract class AbstractRateLimiter implements DrainableRateLimiter
 {
     protected final long period;
     protected final TimeUnit unit;
     protected final long limit;
+    protected final RateLimiterClock clock;
 
     /**
-     * Initializing constructor.
+     * Initializing constructor using the system clock.
      *
      * @param limit the maximum amount of consumption over a period of time.
      * @param period the period of time.
      * @param unit the unit used to express the period of time.
      */
     public AbstractRateLimiter(long limit, long period, TimeUnit unit)
+    {
+        this(limit, period, unit, RateLimiterClock.SYSTEM);
+    }
+
+    /**
+     * Initializing constructor.
+     *
+     * @param limit the maximum amount of consumption over a period of time.
+     * @param period the period of time.
+     * @param unit the unit used to express the period of time.
+     * @param clock the clock used to measure time.
+     */
+    public AbstractRateLimiter(long limit, long period, TimeUnit unit, RateLimiterClock clock)
     {
         this.period = period;
         this.unit = unit;
         this.limit = limit;
+        this.clock = clock;
     }
 
     /**
@@ -59,8 +75,33 @@ public abstract class AbstractRateLimiter implements RateLimiter
         this.period = rateLimiter.period;
         this.unit = rateLimiter.unit;
         this.limit = rateLimiter.limit;
+        this.clock = rateLimiter.clock;
+    }
+
+    /**
+     * @return the clock used by this limiter to measure time.
+     */
+    public RateLimiterClock getClock()
+    {
+        return clock;
+    }
+
+    @Override
+    public boolean consume(long amount)
+    {
+        return consume(amount, clock.nanoTime());
     }
 
+    /**
+     * Consume the given amount at the given time. This allows several limiters sharing the same clock to be updated
+     * using a single reading of that clock.
+     *
+     * @param amount the amount to be consumed.
+     * @param now the current time, read from {@link #getClock()}.
+     * @return true if the consumption is under the limitation.
+     */
+    public abstract boolean consume(long amount, long now);
+
     @Override
     public long getPeriod()
     {
@@ -70,7 +111,7 @@ public abstract class AbstractRateLimiter implements RateLimiter
     @Override
     public long getPeriod(TimeUnit unit)
     {
-        return unit.convert(period, unit);
+        return unit.convert(period, this.unit);
     }
 
     @Override
@@ -0,0 +1,437 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.xwiki.contrib.ratelimiter.internal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.xwiki.contrib.ratelimiter.RateLimiter;
+import org.xwiki.contrib.ratelimiter.RateLimiterClock;
+import org.xwiki.contrib.ratelimiter.RateLimiterState;
+import org.xwiki.contrib.ratelimiter.cluster.LeaseMessage;
+import org.xwiki.contrib.ratelimiter.cluster.LeaseTransport;
+
+/**
+ * A {@link RateLimiterCache} enforcing limits across the nodes of a cluster. The quota of each pair of consumer and
+ * consumed entity is owned by a single node, chosen by consistent hashing of the pair over the nodes of the cluster.
+ * The owner keeps the actual limiter, while the other nodes keep a {@link LeasedRateLimiter}, consuming slices of
+ * the quota leased from the owner. Lease renewals are queued and sent in batches, one message per owner, at most
+ * once per flush interval, so consumption stays local to each node. Both actual limiters and leases are kept in the
+ * same local {@link RateLimiterStore}. When the nodes of the cluster change, the ownership of some quotas moves, so
+ * the actual limiters and leases of those quotas are dropped from the local store.
+ *
+ * @version $Id$
+ */
+public class ClusterRateLimiterCache implements RateLimiterCache, LeaseTransport.Receiver
+{
+    /**
+     * Minimum time between two batches of lease renewals.
+     */
+    public static final long FLUSH_INTERVAL = TimeUnit.MILLISECONDS.toNanos(50);
+
+    private static final int VIRTUAL_NODES = 64;
+
+    private static final int MIX1 = 0x85ebca6b;
+
+    private static final int MIX2 = 0xc2b2ae35;
+
+    private static final int SHIFT1 = 16;
+
+    private static final int SHIFT2 = 13;
+
+    /**
+     * A consistent hashing ring, with several points per node to balance ownership.
+     */
+    private static final class Ring
+    {
+        private final List<String> nodes;
+
+        private final int[] points;
+
+        private final String[] owners;
+
+        Ring(List<String> nodes)
+        {
+            this.nodes = nodes;
+            long[] entries = new long[nodes.size() * VIRTUAL_NODES];
+            int i = 0;
+            for (int n = 0; n < nodes.size(); n++) {
+                for (int v = 0; v < VIRTUAL_NODES; v++) {
+                    // Sort by point, keeping the node index in the low bits
+                    long point = mix((nodes.get(n) + '#' + v).hashCode());
+                    entries[i++] = (point << Integer.SIZE) | n;
+                }
+            }
+            Arrays.sort(entries);
+            this.points = new int[entries.length];
+            this.owners = new String[entries.length];
+            for (i = 0; i < entries.length; i++) {
+                points[i] = (int) (entries[i] >> Integer.SIZE);
+                owners[i] = nodes.get((int) entries[i]);
+            }
+        }
+
+        String getOwner(int hash)
+        {
+            int index = Arrays.binarySearch(points, hash);
+            if (index < 0) {
+                index = -index - 1;
+            }
+            return owners[(index < points.length) ? index : 0];
+        }
+    }
+
+    private final RateLimiterStore store;
+
+    private final LeaseTransport transport;
+
+    private final List<RateLimiter> templates;
+
+    private final long leaseSize;
+
+    private final RateLimiterClock clock;
+
+    private final String localNode;
+
+    private final Queue<LeasedRateLimiter> renewals = new ConcurrentLinkedQueue<LeasedRateLimiter>();
+
+    private final AtomicBoolean flushing = new AtomicBoolean();
+
+    private volatile long lastFlush;
+
+    private volatile Ring ring;
+
+    /**
+     * Constructor.
+     *
+     * @param store the local store of actual limiters and leases.
+     * @param transport the transport used to communicate with the other nodes.
+     * @param templates the templates of the limiters, identified by their index in lease messages, which should be
+     *            the same on all nodes.
+     * @param leaseSize the amount of quota leased at once.
+     * @param clock the clock used to measure time.
+     */
+    public ClusterRateLimiterCache(RateLimiterStore store, LeaseTransport transport, List<RateLimiter> templates,
+        long leaseSize, RateLimiterClock clock)
+    {
+        this.store = store;
+        this.transport = transport;
+        this.templates = new ArrayList<RateLimiter>(templates);
+        this.leaseSize = leaseSize;
+        this.clock = clock;
+        this.localNode = transport.getLocalNode();
+        this.lastFlush = clock.nanoTime();
+        updateRing();
+    }
+
+    private static int mix(int hash)
+    {
+        int h = hash;
+        h ^= h >>> SHIFT1;
+        h *= MIX1;
+        h ^= h >>> SHIFT2;
+        h *= MIX2;
+        h ^= h >>> SHIFT1;
+        return h;
+    }
+
+    /**
+     * Hash the pair using the string representation of its entities, since hash codes of some entities, like
+     * references, may differ between nodes.
+     */
+    private static int hash(Object consumer, Object consumed)
+    {
+        return mix(31 * String.valueOf(consumer).hashCode() + String.valueOf(consumed).hashCode());
+    }
+
+    private void updateRing()
+    {
+        TreeSet<String> nodes = new TreeSet<String>(transport.getNodes());
+        nodes.add(localNode);
+        List<String> nodeList = new ArrayList<String>(nodes);
+        Ring current = ring;
+        if (current == null || !current.nodes.equals(nodeList)) {
+            final Ring previous = current;
+            final Ring next = new Ring(nodeList);
+            ring = next;
+            if (previous != null) {
+                // Neither actual limiters nor leases are valid anymore for the quotas whose ownership moved
+                store.remove(new RateLimiterStore.Filter()
+                {
+                    @Override
+                    public boolean accept(Object consumer, Object consumed, RateLimiter limiter)
+                    {
+                        int hash = hash(consumer, consumed);
+                        return !previous.getOwner(hash).equals(next.getOwner(hash));
+                    }
+                });
+                Iterator<LeasedRateLimiter> it = renewals.iterator();
+                while (it.hasNext()) {
+                    LeasedRateLimiter lease = it.next();
+                    if (!lease.getOwner().equals(getOwner(lease.getConsumer(), lease.getConsumed()))) {
+                        it.remove();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @param consumer the entity consuming.
+     * @param consumed the entity being consumed.
+     * @return the node owning the quota of the given pair.
+     */
+    public String getOwner(Object consumer, Object consumed)
+    {
+        return ring.getOwner(hash(consumer, consumed));
+    }
+
+    @Override
+    public RateLimiter get(Object consumer, Object consumed)
+    {
+        maybeFlush();
+        return store.get(consumer, consumed);
+    }
+
+    @Override
+    public RateLimiter get(Object consumer, Object consumed, RateLimiter template)
+    {
+        maybeFlush();
+        RateLimiter limiter = store.get(consumer, consumed);
+        if (limiter != null) {
+            return limiter;
+        }
+
+        int index = templates.indexOf(template);
+        String owner = getOwner(consumer, consumed);
+        if (index < 0 || owner.equals(localNode)) {
+            return store.get(consumer, consumed, template);
+        }
+
+        limiter = new LeasedRateLimiter(this, consumer, consumed, index, owner, template, leaseSize, clock);
+        store.add(consumer, consumed, limiter);
+        return limiter;
+    }
+
+    @Override
+    public RateLimiter[] get(Object[] consumers, Object[] consumed, RateLimiter[] templates)
+    {
+        maybeFlush();
+        RateLimiter[] limiters = store.get(consumers, consumed, new RateLimiter[consumers.length]);
+        for (int i = 0; i < limiters.length; i++) {
+            if (limiters[i] == null && templates[i] != null) {
+                limiters[i] = get(consumers[i], consumed[i], templates[i]);
+            }
+        }
+        return limiters;
+    }
+
+    @Override
+    public RateLimiterState consume(Object consumer, Object consumed, long amount, RateLimiter template)
+    {
+        RateLimiter limiter = get(consumer, consumed, template);
+        return store.track(consumer, consumed, limiter, limiter.consume(amount));
+    }
+
+    @Override
+    public RateLimiterState track(Object consumer, Object consumed, RateLimiter limiter, boolean allowed)
+    {
+        return store.track(consumer, consumed, limiter, allowed);
+    }
+
+    @Override
+    public RateLimiterState[] consume(Object[] consumers, Object consumed, long[] amounts, RateLimiter[] templates)
+    {
+        return RateLimiterStore.consume(this, consumers, consumed, amounts, templates);
+    }
+
+    @Override
+    public void add(Object consumer, Object consumed, RateLimiter limiter)
+    {
+        store.add(consumer, consumed, limiter);
+    }
+
+    @Override
+    public void clear()
+    {
+        store.clear();
+        renewals.clear();
+    }
+
+    @Override
+    public void close()
+    {
+        // Leave the receiver of the shared transport alone, it may already be the cache replacing this one
+        store.close();
+        renewals.clear();
+    }
+
+    /**
+     * Queue the renewal of the given lease, to be sent with the next batch.
+     *
+     * @param lease the lease to renew.
+     */
+    void renew(LeasedRateLimiter lease)
+    {
+        renewals.add(lease);
+    }
+
+    private void maybeFlush()
+    {
+        if (clock.nanoTime() - lastFlush >= FLUSH_INTERVAL && flushing.compareAndSet(false, true)) {
+            try {
+                flush();
+            } finally {
+                flushing.set(false);
+            }
+        }
+    }
+
+    /**
+     * Send the queued lease renewals, in one batch per owner node. This is done automatically by the consuming
+     * threads at most once per flush interval.
+     */
+    public void flush()
+    {
+        lastFlush = clock.nanoTime();
+        updateRing();
+
+        Map<String, List<LeasedRateLimiter>> batches = new HashMap<String, List<LeasedRateLimiter>>();
+        LeasedRateLimiter lease;
+        while ((lease = renewals.poll()) != null) {
+            List<LeasedRateLimiter> batch = batches.get(lease.getOwner());
+            if (batch == null) {
+                batch = new ArrayList<LeasedRateLimiter>();
+                batches.put(lease.getOwner(), batch);
+            }
+            batch.add(lease);
+        }
+
+        for (Map.Entry<String, List<LeasedRateLimiter>> batch : batches.entrySet()) {
+            List<LeasedRateLimiter> leases = batch.getValue();
+            int size = leases.size();
+            Object[] consumers = new Object[size];
+            Object[] consumed = new Object[size];
+            int[] indexes = new int[size];
+            long[] amounts = new long[size];
+            int count = 0;
+            for (LeasedRateLimiter renewal : leases) {
+                long request = renewal.getRequest();
+                if (request > 0) {
+                    consumers[count] = renewal.getConsumer();
+                    consumed[count] = renewal.getConsumed();
+                    indexes[count] = renewal.getTemplate();
+                    amounts[count] = request;
+                    count++;
+                }
+            }
+            if (count > 0) {
+                transport.send(new LeaseMessage(localNode, batch.getKey(), false, Arrays.copyOf(consumers, count),
+                    Arrays.copyOf(consumed, count), Arrays.copyOf(indexes, count), Arrays.copyOf(amounts, count),
+                    null));
+            }
+        }
+    }
+
+    @Override
+    public void receive(LeaseMessage message)
+    {
+        if (message.isGrant()) {
+            for (int i = 0; i < message.size(); i++) {
+                RateLimiter limiter = store.get(message.getConsumer(i), message.getConsumed(i));
+                if (limiter instanceof LeasedRateLimiter) {
+                    ((LeasedRateLimiter) limiter).grant(message.getAmount(i), message.getDelay(i));
+                }
+            }
+        } else {
+            grant(message);
+        }
+    }
+
+    /**
+     * Get the actual limiter of a quota owned by this node. Leased quotas are always tracked by a limiter of their
+     * own, bypassing the admission of the store, since the shared limiter of the consumers not admitted would grant
+     * the quota of a consumer to any other.
+     */
+    private synchronized RateLimiter getOwnedLimiter(Object consumer, Object consumed, RateLimiter template)
+    {
+        RateLimiter limiter = store.get(consumer, consumed);
+        // Nodes disagree on the ownership while the nodes of the cluster change, the requested node wins
+        if (limiter == null || limiter instanceof LeasedRateLimiter) {
+            limiter = template.clone(true);
+            store.add(consumer, consumed, limiter);
+        }
+        return limiter;
+    }
+
+    /**
+     * Grant the requested quotas, as much as allowed by the actual limiters owned by this node.
+     *
+     * @param message the batch of lease requests.
+     */
+    private void grant(LeaseMessage message)
+    {
+        int size = message.size();
+        long[] amounts = new long[size];
+        long[] delays = new long[size];
+        Object[] consumers = new Object[size];
+        Object[] consumed = new Object[size];
+        int[] indexes = new int[size];
+        for (int i = 0; i < size; i++) {
+            consumers[i] = message.getConsumer(i);
+            consumed[i] = message.getConsumed(i);
+            indexes[i] = message.getTemplate(i);
+            int index = indexes[i];
+            if (index < 0 || index >= templates.size() || templates.get(index) == null) {
+                continue;
+            }
+
+            RateLimiter limiter = getOwnedLimiter(consumers[i], consumed[i], templates.get(index));
+            long requested = message.getAmount(i);
+            long granted;
+            synchronized (limiter) {
+                granted = Math.min(requested, Math.max(limiter.getAvailableAmount(true), 0));
+                // Only consume what fits, since some limiters also account rejected consumptions
+                if (granted > 0
+                    && (limiter.getWaitingTime(granted, TimeUnit.NANOSECONDS, false) > 0 || !limiter.consume(granted)))
+                {
+                    granted = 0;
+                }
+            }
+            amounts[i] = granted;
+            if (granted < requested) {
+                delays[i] = limiter.getWaitingTime(requested - granted, TimeUnit.NANOSECONDS);
+            }
+        }
+        transport.send(
+            new LeaseMessage(localNode, message.getSource(), true, consumers, consumed, indexes, amounts, delays));
+    }
+}
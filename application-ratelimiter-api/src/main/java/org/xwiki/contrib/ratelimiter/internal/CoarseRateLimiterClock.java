@@ -0,0 +1,88 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.xwiki.contrib.ratelimiter.internal;
+
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.manager.ComponentLifecycleException;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.contrib.ratelimiter.RateLimiterClock;
+
+/**
+ * A {@link RateLimiterClock} returning a cached time, updated every {@value #RESOLUTION} millisecond by a background
+ * thread. Reading this clock never calls the system, at the cost of a coarser resolution.
+ *
+ * @version $Id$
+ */
+@Component
+@Named("coarse")
+@Singleton
+public class CoarseRateLimiterClock implements RateLimiterClock, Initializable, Disposable
+{
+    /**
+     * The resolution of this clock in milliseconds.
+     */
+    public static final long RESOLUTION = 1;
+
+    private volatile long time;
+
+    private Thread ticker;
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        time = System.nanoTime();
+        ticker = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                while (!Thread.currentThread().isInterrupted()) {
+                    try {
+                        Thread.sleep(RESOLUTION);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    time = System.nanoTime();
+                }
+            }
+        }, "RateLimiter coarse clock");
+        ticker.setDaemon(true);
+        ticker.start();
+    }
+
+    @Override
+    public void dispose() throws ComponentLifecycleException
+    {
+        ticker.interrupt();
+    }
+
+    @Override
+    public long nanoTime()
+    {
+        return time;
+    }
+}
@@ -26,16 +26,19 @@ import java.util.Collections;
 import java.util.concurrent.TimeUnit;
 
 import org.xwiki.contrib.ratelimiter.RateLimiter;
+import org.xwiki.contrib.ratelimiter.RateLimiterClock;
 
 /**
  * Implement a {@link RateLimiter} using a collection of other {@link RateLimiter}.
  *
  * @version $Id$
  */
-public class CollectionRateLimiter implements RateLimiter
+public class CollectionRateLimiter implements CompositeRateLimiter, PersistentRateLimiter
 {
     private Collection<RateLimiter> rateLimiters = new ArrayList<RateLimiter>();
 
+    private final RateLimiterClock clock;
+
     /**
      * Construct a new collection of rate limiter with an initial one.
      *
@@ -43,6 +46,18 @@ public class CollectionRateLimiter implements RateLimiter
      */
     public CollectionRateLimiter(RateLimiter rateLimiter)
     {
+        this(rateLimiter, RateLimiterClock.SYSTEM);
+    }
+
+    /**
+     * Construct a new collection of rate limiter with an initial one.
+     *
+     * @param rateLimiter the initial rate limiter to add to the collection.
+     * @param clock the clock read once per consumption and shared with the limiters using the same clock.
+     */
+    public CollectionRateLimiter(RateLimiter rateLimiter, RateLimiterClock clock)
+    {
+        this.clock = clock;
         this.rateLimiters.add(rateLimiter);
     }
 
@@ -53,9 +68,18 @@ public class CollectionRateLimiter implements RateLimiter
      */
     public CollectionRateLimiter(Collection<RateLimiter> rateLimiters)
     {
+        this.clock = RateLimiterClock.SYSTEM;
         this.rateLimiters.addAll(rateLimiters);
     }
 
+    /**
+     * @return the clock read once per consumption by this collection.
+     */
+    public RateLimiterClock getClock()
+    {
+        return clock;
+    }
+
     /**
      * Copy constructor.
      *
@@ -74,6 +98,7 @@ public class CollectionRateLimiter implements RateLimiter
      */
     public CollectionRateLimiter(CollectionRateLimiter rateLimiters, boolean empty)
     {
+        this.clock = rateLimiters.clock;
         for (RateLimiter rateLimiter : rateLimiters.getRateLimiters()) {
             this.rateLimiters.add(rateLimiter.clone(empty));
         }
@@ -105,9 +130,7 @@ public class CollectionRateLimiter implements RateLimiter
         return rateLimiters.remove(rateLimiter);
     }
 
-    /**
-     * @return the collection of rate limiter wrapped in this limiter.
-     */
+    @Override
     public Collection<RateLimiter> getRateLimiters()
     {
         return Collections.unmodifiableCollection(rateLimiters);
@@ -116,9 +139,15 @@ public class CollectionRateLimiter implements RateLimiter
     @Override
     public boolean consume(long amount)
     {
+        // Read the clock once for all limiters sharing it
+        long now = clock.nanoTime();
         boolean result = true;
         for (RateLimiter rateLimiter : rateLimiters) {
-            result &= rateLimiter.consume(amount);
+            if (rateLimiter instanceof AbstractRateLimiter && ((AbstractRateLimiter) rateLimiter).getClock() == clock) {
+                result &= ((AbstractRateLimiter) rateLimiter).consume(amount, now);
+            } else {
+                result &= rateLimiter.consume(amount);
+            }
         }
         return result;
     }
@@ -156,6 +185,19 @@ public class CollectionRateLimiter implements RateLimiter
         return waitTime;
     }
 
+    @Override
+    public long getDrainTime(TimeUnit unit)
+    {
+        long drainTime = 0;
+        for (RateLimiter rateLimiter : rateLimiters) {
+            if (!(rateLimiter instanceof DrainableRateLimiter)) {
+                return Long.MAX_VALUE;
+            }
+            drainTime = Math.max(drainTime, ((DrainableRateLimiter) rateLimiter).getDrainTime(unit));
+        }
+        return drainTime;
+    }
+
     @Override
     public synchronized void reset()
     {
@@ -164,6 +206,44 @@ public class CollectionRateLimiter implements RateLimiter
         }
     }
 
+    @Override
+    public int getStateSize()
+    {
+        int size = 0;
+        for (RateLimiter rateLimiter : rateLimiters) {
+            int limiterSize =
+                (rateLimiter instanceof PersistentRateLimiter) ? ((PersistentRateLimiter) rateLimiter).getStateSize()
+                    : -1;
+            if (limiterSize < 0) {
+                return -1;
+            }
+            size += limiterSize;
+        }
+        return size;
+    }
+
+    @Override
+    public void saveState(long[] state, int offset)
+    {
+        int index = offset;
+        for (RateLimiter rateLimiter : rateLimiters) {
+            PersistentRateLimiter limiter = (PersistentRateLimiter) rateLimiter;
+            limiter.saveState(state, index);
+            index += limiter.getStateSize();
+        }
+    }
+
+    @Override
+    public void restoreState(long[] state, int offset)
+    {
+        int index = offset;
+        for (RateLimiter rateLimiter : rateLimiters) {
+            PersistentRateLimiter limiter = (PersistentRateLimiter) rateLimiter;
+            limiter.restoreState(state, index);
+            index += limiter.getStateSize();
+        }
+    }
+
     @Override
     public long getPeriod()
     {
@@ -0,0 +1,133 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.xwiki.contrib.ratelimiter.internal;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.xwiki.contrib.ratelimiter.RateLimiterClock;
+
+/**
+ * A count-min sketch of leaky buckets, approximating the recent consumption of any number of consumers in a fixed
+ * amount of memory. Each consumer is mapped to one cell in each of the {@value #DEPTH} rows of the sketch, and each
+ * cell is a leaky bucket shared by all the consumers mapped to it, stored as the time at which it will be empty like
+ * in {@link LeakyBucketPolicy}. The estimated level of a consumer is the lowest level of its cells, so consumption
+ * could be over estimated because of collisions, but never under estimated.
+ * <p>
+ * Cells are updated independently using compare-and-set, so this sketch could be used concurrently without locking.
+ *
+ * @version $Id$
+ */
+public class ConsumptionSketch
+{
+    /**
+     * Number of rows of the sketch.
+     */
+    public static final int DEPTH = 4;
+
+    private static final long[] SEEDS = {
+        0x97cb3127c3a5c85cL, 0xbe98f273b492b66fL, 0x2f90404f9ae16a3bL, 0x84222325cbf29ce4L
+    };
+
+    private final AtomicLongArray cells;
+
+    private final int width;
+
+    private final long threshold;
+
+    private final long leakrate;
+
+    private final RateLimiterClock clock;
+
+    private final long origin;
+
+    /**
+     * Create an empty sketch.
+     *
+     * @param width the number of cells of each row, rounded up to a power of two.
+     * @param threshold the level above which a consumer should be tracked individually.
+     * @param period the period of time needed for a level of threshold to leak completely.
+     * @param unit the unit used to express the period of time.
+     * @param clock the clock used to measure time.
+     */
+    public ConsumptionSketch(int width, long threshold, long period, TimeUnit unit, RateLimiterClock clock)
+    {
+        this.width = Integer.highestOneBit(Math.max(width, 2) - 1) << 1;
+        this.cells = new AtomicLongArray(this.width * DEPTH);
+        this.threshold = threshold;
+        this.leakrate = TimeUnit.NANOSECONDS.convert(period, unit) / threshold;
+        this.clock = clock;
+        this.origin = clock.nanoTime();
+    }
+
+    /**
+     * @return the level above which a consumer should be tracked individually.
+     */
+    public long getThreshold()
+    {
+        return threshold;
+    }
+
+    private int indexOf(int hash, int row)
+    {
+        long h = (hash + SEEDS[row]) * SEEDS[row];
+        h += h >>> 32;
+        return row * width + (((int) h) & (width - 1));
+    }
+
+    /**
+     * Add the given amount to the consumption of the given consumer.
+     *
+     * @param consumer the entity consuming.
+     * @param consumed the entity being consumed.
+     * @param amount the amount being consumed.
+     * @return the estimated level of the consumer, including the given amount.
+     */
+    public long add(Object consumer, Object consumed, long amount)
+    {
+        int hash = RateLimiterStore.hash(consumer, consumed);
+        long now = clock.nanoTime() - origin;
+        long emptyAt = Long.MAX_VALUE;
+        for (int row = 0; row < DEPTH; row++) {
+            int index = indexOf(hash, row);
+            while (true) {
+                long current = cells.get(index);
+                long next = Math.max(current, now) + amount * leakrate;
+                if (cells.compareAndSet(index, current, next)) {
+                    emptyAt = Math.min(emptyAt, next);
+                    break;
+                }
+            }
+        }
+        return (emptyAt - now + leakrate - 1) / leakrate;
+    }
+
+    /**
+     * Forget all consumption.
+     */
+    public void clear()
+    {
+        for (int i = 0; i < cells.length(); i++) {
+            cells.set(i, 0);
+        }
+    }
+}
@@ -22,11 +22,15 @@ package org.xwiki.contrib.ratelimiter.internal;
 
 import java.util.concurrent.TimeUnit;
 
+import javax.inject.Inject;
+import javax.inject.Named;
+
 import org.xwiki.component.annotation.Component;
 import org.xwiki.component.annotation.InstantiationStrategy;
 import org.xwiki.component.descriptor.ComponentInstantiationStrategy;
 import org.xwiki.contrib.ratelimiter.RateLimiter;
 import org.xwiki.contrib.ratelimiter.RateLimiterBuilder;
+import org.xwiki.contrib.ratelimiter.RateLimiterClock;
 
 /**
  * Build a rate limiter.
@@ -39,22 +43,52 @@ public class DefaultRateLimiterBuilder implements RateLimiterBuilder
 {
     private CollectionRateLimiter rateLimiter;
 
+    @Inject
+    @Named("coarse")
+    private RateLimiterClock clock = RateLimiterClock.SYSTEM;
+
     @Override public RateLimiter build()
     {
         return rateLimiter;
     }
 
+    @Override
+    public RateLimiter buildFused(boolean allOrNothing)
+    {
+        if (rateLimiter == null) {
+            return null;
+        }
+        for (RateLimiter limiter : rateLimiter.getRateLimiters()) {
+            // The fused limiter is synchronized, use build() to keep lock-free buckets lock-free
+            if (limiter instanceof LockFreeLeakyBucketRateLimiter) {
+                throw new IllegalArgumentException(
+                    "Unable to fuse lock-free leaky buckets without losing their lock-free consumption.");
+            }
+        }
+        return new FusedRateLimiter(rateLimiter.getRateLimiters(), allOrNothing, clock);
+    }
+
     private void addRateLimiter(RateLimiter limiter)
     {
         if (limiter != null) {
             if (rateLimiter == null) {
-                rateLimiter = new CollectionRateLimiter(limiter);
+                rateLimiter = new CollectionRateLimiter(limiter, clock);
             } else {
                 rateLimiter.add(limiter);
             }
         }
     }
 
+    @Override
+    public RateLimiterBuilder setClock(RateLimiterClock clock)
+    {
+        if (rateLimiter != null) {
+            throw new IllegalStateException("The clock should be set before adding any limiter.");
+        }
+        this.clock = clock;
+        return this;
+    }
+
     @Override
     public RateLimiterBuilder addLimiter(RateLimiter limiter)
     {
@@ -68,7 +102,7 @@ public class DefaultRateLimiterBuilder implements RateLimiterBuilder
         if (limit < 1) {
             throw new IllegalArgumentException(String.format("Limit [%d] should at higher than 0.", limit));
         }
-        addRateLimiter(new InfiniteLeakyBucketRateLimiter(limit, period, unit));
+        addRateLimiter(new InfiniteLeakyBucketRateLimiter(limit, period, unit, clock));
         return this;
     }
 
@@ -79,7 +113,82 @@ public class DefaultRateLimiterBuilder implements RateLimiterBuilder
             throw new IllegalArgumentException(
                 String.format("Limit [%d] should be lower or equal to overflow level [%d].", limit, overflow));
         }
-        addRateLimiter(new OverflowingLeakyBucketRateLimiter(limit, overflow, period, unit));
+        addRateLimiter(new OverflowingLeakyBucketRateLimiter(limit, overflow, period, unit, clock));
+        return this;
+    }
+
+    @Override
+    public RateLimiterBuilder addLockFreeLimiter(long limit, long period, TimeUnit unit)
+    {
+        if (limit < 1 || limit > LockFreeLeakyBucketRateLimiter.MAX_LEVEL) {
+            throw new IllegalArgumentException(String.format("Limit [%d] should be between 1 and %d.", limit,
+                LockFreeLeakyBucketRateLimiter.MAX_LEVEL));
+        }
+        addRateLimiter(new LockFreeLeakyBucketRateLimiter(limit, LockFreeLeakyBucketRateLimiter.MAX_LEVEL, period,
+            unit, clock));
+        return this;
+    }
+
+    @Override
+    public RateLimiterBuilder addLockFreeLimiter(long limit, long overflow, long period, TimeUnit unit)
+    {
+        if (limit > overflow) {
+            throw new IllegalArgumentException(
+                String.format("Limit [%d] should be lower or equal to overflow level [%d].", limit, overflow));
+        }
+        if (limit < 1 || overflow >= LockFreeLeakyBucketRateLimiter.MAX_LEVEL) {
+            throw new IllegalArgumentException(
+                String.format("Limit [%d] should be higher than 0 and overflow level [%d] should be lower than %d.",
+                    limit, overflow, LockFreeLeakyBucketRateLimiter.MAX_LEVEL));
+        }
+        addRateLimiter(new LockFreeLeakyBucketRateLimiter(limit, overflow, period, unit, clock));
+        return this;
+    }
+
+    @Override
+    public RateLimiterBuilder addCellRateLimiter(long limit, long period, TimeUnit unit, long burst)
+    {
+        if (limit < 1 || burst < 1) {
+            throw new IllegalArgumentException(
+                String.format("Limit [%d] and burst [%d] should be higher than 0.", limit, burst));
+        }
+        return addCellRateLimiter(limit, period, unit, (burst - 1) * (unit.toNanos(period) / limit),
+            TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public RateLimiterBuilder addCellRateLimiter(long limit, long period, TimeUnit unit, long tolerance,
+        TimeUnit toleranceUnit)
+    {
+        if (limit < 1) {
+            throw new IllegalArgumentException(String.format("Limit [%d] should be higher than 0.", limit));
+        }
+        if (tolerance < 0) {
+            throw new IllegalArgumentException(
+                String.format("Burst tolerance [%d] should not be negative.", tolerance));
+        }
+        addRateLimiter(new GenericCellRateLimiter(limit, period, unit, toleranceUnit.toNanos(tolerance), clock));
+        return this;
+    }
+
+    @Override
+    public RateLimiterBuilder addSlidingWindowLimiter(long limit, long period, TimeUnit unit)
+    {
+        if (limit < 1) {
+            throw new IllegalArgumentException(String.format("Limit [%d] should be higher than 0.", limit));
+        }
+        addRateLimiter(new SlidingWindowRateLimiter(limit, period, unit, clock));
+        return this;
+    }
+
+    @Override
+    public RateLimiterBuilder addSlidingLogLimiter(long limit, long period, TimeUnit unit)
+    {
+        if (limit < 1 || limit > SlidingLogRateLimiter.MAX_LIMIT) {
+            throw new IllegalArgumentException(String.format("Limit [%d] should be between 1 and %d.", limit,
+                SlidingLogRateLimiter.MAX_LIMIT));
+        }
+        addRateLimiter(new SlidingLogRateLimiter(limit, period, unit, clock));
         return this;
     }
 }
@@ -20,9 +20,24 @@
 
 package org.xwiki.contrib.ratelimiter.internal;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import org.xwiki.contrib.ratelimiter.IpAddressKey;
 import org.xwiki.contrib.ratelimiter.RateLimiter;
+import org.xwiki.contrib.ratelimiter.RateLimiterBackend;
+import org.xwiki.contrib.ratelimiter.RateLimiterClock;
 import org.xwiki.contrib.ratelimiter.RateLimiterEntry;
+import org.xwiki.contrib.ratelimiter.RateLimiterFuture;
 import org.xwiki.contrib.ratelimiter.RateLimiterService;
+import org.xwiki.contrib.ratelimiter.RateLimiterServiceOptions;
+import org.xwiki.contrib.ratelimiter.RateLimiterState;
 import org.xwiki.contrib.ratelimiter.event.RateLimiterExhaustedEvent;
 import org.xwiki.observation.ObservationManager;
 
@@ -33,65 +48,541 @@ import org.xwiki.observation.ObservationManager;
  */
 class DefaultRateLimiterService implements RateLimiterService
 {
-    private final RateLimiterCache cache;
+    /** Run the listeners of delayed consumptions in the thread completing them, they never block. */
+    private static final Executor SAME_THREAD = new Executor()
+    {
+        @Override
+        public void execute(Runnable command)
+        {
+            command.run();
+        }
+    };
+
+    private final RateLimiterBackend backend;
+    private final RateLimiterSnapshot snapshot;
     private final RateLimiter rateLimiterTemplate;
     private final ObservationManager observationManager;
+    private final ConsumptionSketch sketch;
+    private final FairShareLimiter fairShare;
+    private final RateLimiter aggregateTemplate;
+    private final int ipv4PrefixLength;
+    private final int ipv6PrefixLength;
+    private final RateLimiterClock clock;
+    private TimingWheel timingWheel;
+    private RateLimiterThrottle throttle;
 
-    DefaultRateLimiterService(RateLimiterCache cache, RateLimiter rateLimiterTemplate,
-        ObservationManager observationManager)
+    /**
+     * Create a service in approximate mode when a sketch is provided. Consumers are only charged in the sketch until
+     * their estimated level exceeds the sketch threshold, and only then an individual limiter is created for them,
+     * charged once with their estimated level. A consumer refused by the admission filter of the store is only charged
+     * the consumed amount on the limiter shared by newcomers, until it is admitted. When an aggregate template is
+     * provided by the options, the consumption of IP addresses is also charged to their network prefix. When a fair
+     * share limiter is provided, consumptions are first reserved in the global capacity, shared between consumed
+     * entities. Consumptions rejected by the global capacity are not charged to their consumer, and reservations of
+     * consumptions finally rejected individually are given back, so only consumptions allowed individually are part of
+     * the global load.
+     *
+     * @param backend the backend storing individual limiters.
+     * @param rateLimiterTemplate the template of individual limiters.
+     * @param observationManager the observation manager used to notify exhaustion.
+     * @param sketch the sketch used in approximate mode, or null for exact limitation.
+     * @param fairShare the limiter of the global capacity, or null if the global consumption is not limited.
+     * @param options the options of the service.
+     */
+    DefaultRateLimiterService(RateLimiterBackend backend, RateLimiter rateLimiterTemplate,
+        ObservationManager observationManager, ConsumptionSketch sketch, FairShareLimiter fairShare,
+        RateLimiterServiceOptions options)
     {
-        this.cache = cache;
+        this(backend, rateLimiterTemplate, observationManager, sketch, fairShare, null, options);
+    }
+
+    /**
+     * Create a service whose rate limiters are persisted.
+     *
+     * @param backend the backend storing individual limiters.
+     * @param rateLimiterTemplate the template of individual limiters.
+     * @param observationManager the observation manager used to notify exhaustion.
+     * @param sketch the sketch used in approximate mode, or null for exact limitation.
+     * @param fairShare the limiter of the global capacity, or null if the global consumption is not limited.
+     * @param snapshot the snapshot saving the state of the backend, or null if it is not persisted.
+     * @param options the options of the service.
+     */
+    DefaultRateLimiterService(RateLimiterBackend backend, RateLimiter rateLimiterTemplate,
+        ObservationManager observationManager, ConsumptionSketch sketch, FairShareLimiter fairShare,
+        RateLimiterSnapshot snapshot, RateLimiterServiceOptions options)
+    {
+        this.snapshot = snapshot;
+        this.backend = backend;
         this.rateLimiterTemplate = rateLimiterTemplate;
         this.observationManager = observationManager;
+        this.sketch = sketch;
+        this.fairShare = fairShare;
+        this.aggregateTemplate = options.getAggregateTemplate();
+        this.ipv4PrefixLength = options.getIPv4PrefixLength();
+        this.ipv6PrefixLength = options.getIPv6PrefixLength();
+        this.clock = (options.getClock() != null) ? options.getClock() : RateLimiterClock.SYSTEM;
     }
 
     @Override
     public boolean consume(Object consumer, Object consumed, long amount)
     {
-        RateLimiter limiter = safeGetRateLimiter(consumer, consumed);
+        // A consumer is not charged for consumptions rejected by the global capacity, it did not cause them
+        if (fairShare != null && !fairShare.consume(consumed, amount)) {
+            return false;
+        }
 
-        boolean wasNotExhausted = limiter.getAvailableAmount(false) >= 0;
+        long charge = getCharge(consumer, consumed, amount);
+        IpAddressKey prefix = getAggregate(consumer);
 
-        if (limiter.consume(amount)) {
-            return true;
+        boolean allowed;
+        if (prefix == null) {
+            allowed = charge < 0 || check(consume(consumer, consumed, charge, amount), consumer, consumed);
+        } else if (charge < 0) {
+            allowed = check(backend.consume(prefix, consumed, amount, aggregateTemplate), prefix, consumed);
+        } else if (charge != amount && backend instanceof RateLimiterCache) {
+            // Local limiters are consumed one after the other anyway
+            allowed = check(consume(consumer, consumed, charge, amount), consumer, consumed)
+                & check(backend.consume(prefix, consumed, amount, aggregateTemplate), prefix, consumed);
+        } else {
+            // The prefix is always charged, so that rejected requests of an address still count for its network
+            RateLimiterState[] states = backend.consume(new Object[] {consumer, prefix}, consumed,
+                new long[] {charge, amount}, new RateLimiter[] {rateLimiterTemplate, aggregateTemplate});
+            allowed = check(states[0], consumer, consumed) & check(states[1], prefix, consumed);
         }
 
-        if (wasNotExhausted) {
-            observationManager.notify(new RateLimiterExhaustedEvent(), this,
-                new RateLimiterEntry(consumer, consumed, limiter));
+        // Only the consumptions allowed individually are part of the global load
+        if (!allowed) {
+            release(consumed, amount);
         }
-        return false;
+        return allowed;
     }
 
     @Override
-    public RateLimiter getRateLimiter(Object consumer, Object consumed)
+    public boolean[] consume(Object[] consumers, Object[] consumed, long[] amounts, boolean allOrNothing)
     {
-        RateLimiter limiter = cache.get(consumer, consumed);
-        return (limiter != null) ? limiter : RateLimiter.NOLIMIT;
+        // Each consumer is charged at index 2i, and its network prefix at index 2i + 1, -1 meaning no charge
+        int size = 2 * consumers.length;
+        Object[] keys = new Object[size];
+        Object[] keysConsumed = new Object[size];
+        RateLimiter[] templates = new RateLimiter[size];
+        long[] charges = new long[size];
+        Arrays.fill(charges, -1);
+        for (int i = 0; i < consumers.length; i++) {
+            if (rateLimiterTemplate != null) {
+                keys[2 * i] = consumers[i];
+                keysConsumed[2 * i] = consumed[i];
+                // In approximate mode, consumers are only tracked individually once they exceed the threshold
+                templates[2 * i] = (sketch == null) ? rateLimiterTemplate : null;
+                charges[2 * i] = amounts[i];
+            }
+            IpAddressKey prefix = getAggregate(consumers[i]);
+            if (prefix != null) {
+                keys[2 * i + 1] = prefix;
+                keysConsumed[2 * i + 1] = consumed[i];
+                templates[2 * i + 1] = aggregateTemplate;
+                charges[2 * i + 1] = amounts[i];
+            }
+        }
+
+        boolean[] shared = reserveShares(consumed, amounts, allOrNothing);
+        if (shared == null) {
+            return new boolean[consumers.length];
+        }
+        for (int i = 0; i < consumers.length; i++) {
+            if (!shared[i]) {
+                // A consumer is not charged for consumptions rejected by the global capacity, it did not cause them
+                charges[2 * i] = -1;
+                charges[2 * i + 1] = -1;
+            }
+        }
+
+        RateLimiter[] limiters = resolve(keys, keysConsumed, templates, charges, allOrNothing || sketch != null);
+        if (allOrNothing && !isAvailable(limiters, charges)) {
+            releaseShares(consumed, amounts, consumers.length);
+            return new boolean[consumers.length];
+        }
+
+        long[] keyAmounts = charges.clone();
+        for (int i = 0; i < size; i += 2) {
+            if (charges[i] >= 0 && sketch != null && limiters[i] == null) {
+                long charge = sketch.add(keys[i], keysConsumed[i], charges[i]);
+                charges[i] = (charge <= sketch.getThreshold()) ? -1 : charge;
+                templates[i] = rateLimiterTemplate;
+            }
+        }
+        RateLimiterState[] states = consume(keys, keysConsumed, templates, charges, keyAmounts, limiters);
+
+        boolean[] results = new boolean[consumers.length];
+        for (int i = 0; i < consumers.length; i++) {
+            boolean allowed = shared[i];
+            for (int j = 2 * i; j < 2 * i + 2; j++) {
+                if (states[j] != null) {
+                    allowed &= check(states[j], keys[j], keysConsumed[j]);
+                }
+            }
+            if (shared[i] && !allowed && fairShare != null) {
+                fairShare.release(consumed[i], amounts[i]);
+            }
+            results[i] = allowed;
+        }
+        return results;
     }
 
-    private RateLimiter safeGetRateLimiter(Object consumer, Object consumed)
+    /**
+     * Reserve consumptions in the global capacity.
+     *
+     * @return whether each consumption fits in the global capacity, or null if some do not in all-or-nothing mode,
+     *         in which case no consumption is reserved.
+     */
+    private boolean[] reserveShares(Object[] consumed, long[] amounts, boolean allOrNothing)
     {
-        RateLimiter limiter = cache.get(consumer, consumed);
-        if (limiter == null) {
-            if (rateLimiterTemplate != null) {
-                synchronized (cache) {
-                    limiter = cache.get(consumer, consumed);
-                    if (limiter == null) {
-                        limiter = rateLimiterTemplate.clone(true);
-                        cache.add(consumer, consumed, limiter);
-                    }
+        boolean[] shared = new boolean[consumed.length];
+        for (int i = 0; i < consumed.length; i++) {
+            shared[i] = fairShare == null || fairShare.consume(consumed[i], amounts[i]);
+            if (!shared[i] && allOrNothing) {
+                releaseShares(consumed, amounts, i);
+                return null;
+            }
+        }
+        return shared;
+    }
+
+    /**
+     * Give back the first reserved consumptions to the global capacity.
+     */
+    private void releaseShares(Object[] consumed, long[] amounts, int count)
+    {
+        if (fairShare != null) {
+            for (int i = 0; i < count; i++) {
+                fairShare.release(consumed[i], amounts[i]);
+            }
+        }
+    }
+
+    /**
+     * Resolve the limiters of several charges at once.
+     *
+     * @param peek when true, the existing limiters of external backends are also retrieved.
+     * @return the limiter of each charge, or null if it could not be resolved.
+     */
+    private RateLimiter[] resolve(Object[] keys, Object[] keysConsumed, RateLimiter[] templates, long[] charges,
+        boolean peek)
+    {
+        RateLimiter[] limiters = new RateLimiter[keys.length];
+        if (backend instanceof RateLimiterCache) {
+            int count = 0;
+            int[] indexes = new int[keys.length];
+            for (int j = 0; j < keys.length; j++) {
+                if (charges[j] >= 0) {
+                    indexes[count++] = j;
                 }
-            } else {
-                limiter = RateLimiter.NOLIMIT;
             }
+            Object[] batchKeys = new Object[count];
+            Object[] batchConsumed = new Object[count];
+            RateLimiter[] batchTemplates = new RateLimiter[count];
+            for (int k = 0; k < count; k++) {
+                batchKeys[k] = keys[indexes[k]];
+                batchConsumed[k] = keysConsumed[indexes[k]];
+                batchTemplates[k] = templates[indexes[k]];
+            }
+            RateLimiter[] found = ((RateLimiterCache) backend).get(batchKeys, batchConsumed, batchTemplates);
+            for (int k = 0; k < count; k++) {
+                limiters[indexes[k]] = found[k];
+            }
+        } else if (peek) {
+            for (int j = 0; j < keys.length; j++) {
+                if (charges[j] >= 0) {
+                    limiters[j] = backend.get(keys[j], keysConsumed[j]);
+                }
+            }
+        }
+        return limiters;
+    }
+
+    /**
+     * @return true if all the charges are under the limitation of their limiter, ignoring the consumers not tracked
+     *         individually in approximate mode.
+     */
+    private boolean isAvailable(RateLimiter[] limiters, long[] charges)
+    {
+        boolean local = backend instanceof RateLimiterCache;
+        for (int j = 0; j < limiters.length; j++) {
+            if (charges[j] >= 0) {
+                RateLimiter limiter = limiters[j];
+                if (limiter == null && (j % 2 != 0 || sketch == null)) {
+                    // Missing limiters are created empty
+                    limiter = (j % 2 == 0) ? rateLimiterTemplate : aggregateTemplate;
+                }
+                if (limiter != null && limiter.getWaitingTime(charges[j], TimeUnit.NANOSECONDS, local) > 0) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Consume the charges on their resolved limiters, or through the backend, grouping them by consumed entity.
+     *
+     * @param amounts the amount consumed by each charge, which differs from the charge for consumers promoted from
+     *            the sketch.
+     * @return the state of each charged limiter, or null for charges not consumed.
+     */
+    private RateLimiterState[] consume(Object[] keys, Object[] keysConsumed, RateLimiter[] templates,
+        long[] charges, long[] amounts, RateLimiter[] limiters)
+    {
+        RateLimiterState[] states = new RateLimiterState[keys.length];
+        if (backend instanceof RateLimiterCache) {
+            RateLimiterCache cache = (RateLimiterCache) backend;
+            for (int j = 0; j < keys.length; j++) {
+                if (charges[j] >= 0) {
+                    states[j] = (limiters[j] != null)
+                        ? cache.track(keys[j], keysConsumed[j], limiters[j], limiters[j].consume(charges[j]))
+                        : consume(cache, keys[j], keysConsumed[j], templates[j], charges[j], amounts[j]);
+                }
+            }
+            return states;
+        }
+
+        Map<Object, List<Integer>> groups = new LinkedHashMap<Object, List<Integer>>();
+        for (int j = 0; j < keys.length; j++) {
+            if (charges[j] >= 0) {
+                List<Integer> group = groups.get(keysConsumed[j]);
+                if (group == null) {
+                    group = new ArrayList<Integer>();
+                    groups.put(keysConsumed[j], group);
+                }
+                group.add(j);
+            }
+        }
+        for (Map.Entry<Object, List<Integer>> group : groups.entrySet()) {
+            List<Integer> indexes = group.getValue();
+            Object[] batchKeys = new Object[indexes.size()];
+            long[] batchCharges = new long[indexes.size()];
+            RateLimiter[] batchTemplates = new RateLimiter[indexes.size()];
+            for (int k = 0; k < batchKeys.length; k++) {
+                batchKeys[k] = keys[indexes.get(k)];
+                batchCharges[k] = charges[indexes.get(k)];
+                batchTemplates[k] = templates[indexes.get(k)];
+            }
+            RateLimiterState[] batchStates = backend.consume(batchKeys, group.getKey(), batchCharges, batchTemplates);
+            for (int k = 0; k < batchKeys.length; k++) {
+                states[indexes.get(k)] = batchStates[k];
+            }
+        }
+        return states;
+    }
+
+    /**
+     * Charge the individual limiter of a consumer.
+     *
+     * @param consumer the entity consuming.
+     * @param consumed the entity being consumed.
+     * @param charge the amount to charge, see {@link #getCharge(Object, Object, long)}.
+     * @param amount the amount being consumed.
+     * @return the state of the limiter after the consumption.
+     */
+    private RateLimiterState consume(Object consumer, Object consumed, long charge, long amount)
+    {
+        if (charge != amount && backend instanceof RateLimiterCache) {
+            return consume((RateLimiterCache) backend, consumer, consumed, rateLimiterTemplate, charge, amount);
+        }
+        // External backends always create a limiter for the pair
+        return backend.consume(consumer, consumed, charge, rateLimiterTemplate);
+    }
+
+    /**
+     * Charge a consumer promoted from the sketch with its estimated level, but only on a limiter of its own. When the
+     * store refuses to admit it, the limiter it gets is shared with other newcomers, and is only charged the amount.
+     */
+    private RateLimiterState consume(RateLimiterCache cache, Object consumer, Object consumed, RateLimiter template,
+        long charge, long amount)
+    {
+        RateLimiter limiter = cache.get(consumer, consumed, template);
+        boolean own = cache.get(consumer, consumed) == limiter;
+        return cache.track(consumer, consumed, limiter, limiter.consume(own ? charge : amount));
+    }
+
+    /**
+     * @param consumer the entity consuming.
+     * @param consumed the entity being consumed.
+     * @param amount the amount being consumed.
+     * @return the amount to charge to the individual limiter of the consumer, which is its estimated level when it is
+     *         promoted from the sketch, or -1 if the consumer is not limited individually.
+     */
+    private long getCharge(Object consumer, Object consumed, long amount)
+    {
+        if (rateLimiterTemplate == null) {
+            return -1;
+        }
+        if (sketch != null && backend.get(consumer, consumed) == null) {
+            long charge = sketch.add(consumer, consumed, amount);
+            return (charge <= sketch.getThreshold()) ? -1 : charge;
+        }
+        return amount;
+    }
+
+    /**
+     * Notify the exhaustion of a limiter, the first time it rejects a consumption.
+     *
+     * @param state the state of the limiter after a consumption.
+     * @param consumer the entity consuming.
+     * @param consumed the entity being consumed.
+     * @return true if the consumption was allowed.
+     */
+    private boolean check(RateLimiterState state, Object consumer, Object consumed)
+    {
+        if (!state.isAllowed() && !state.wasExhausted()) {
+            observationManager.notify(new RateLimiterExhaustedEvent(), this,
+                new RateLimiterEntry(consumer, consumed, state.getLimiter()));
+        }
+        return state.isAllowed();
+    }
+
+    /**
+     * @param consumer the entity consuming.
+     * @return the network prefix aggregating the consumption of the given consumer, or null if the consumption of
+     *         this consumer is not aggregated.
+     */
+    private IpAddressKey getAggregate(Object consumer)
+    {
+        if (aggregateTemplate == null || !(consumer instanceof IpAddressKey)) {
+            return null;
+        }
+        IpAddressKey address = (IpAddressKey) consumer;
+        int prefixLength = address.isIPv4() ? ipv4PrefixLength : ipv6PrefixLength;
+        if (prefixLength <= 0 || prefixLength >= address.getPrefixLength()) {
+            return null;
+        }
+        return address.getPrefix(prefixLength);
+    }
+
+    /**
+     * @param timingWheel the timing wheel shared by the services for delaying consumptions, see
+     *            {@link #acquire(Object, Object, long, long, TimeUnit)}, which should use the clock of the rate
+     *            limiters of this service.
+     */
+    synchronized void setTimingWheel(TimingWheel timingWheel)
+    {
+        this.timingWheel = timingWheel;
+    }
+
+    private synchronized RateLimiterThrottle getThrottle()
+    {
+        if (throttle == null) {
+            throttle = new RateLimiterThrottle(
+                (timingWheel != null) ? timingWheel : new TimingWheel("RateLimiter service timing wheel", clock));
+        }
+        return throttle;
+    }
+
+    @Override
+    public RateLimiterFuture acquire(final Object consumer, final Object consumed, final long amount, long timeout,
+        TimeUnit unit)
+    {
+        // Shared limitations are not waited for, since the consumer is not the only one to blame for their rejection
+        if (fairShare != null && !fairShare.consume(consumed, amount)) {
+            return RateLimiterThrottle.completed(false);
+        }
+        IpAddressKey prefix = getAggregate(consumer);
+        if (prefix != null && !check(backend.consume(prefix, consumed, amount, aggregateTemplate), prefix, consumed)) {
+            release(consumed, amount);
+            return RateLimiterThrottle.completed(false);
+        }
+        if (rateLimiterTemplate == null) {
+            return RateLimiterThrottle.completed(true);
+        }
+
+        final RateLimiter limiter = (backend instanceof RateLimiterCache)
+            ? ((RateLimiterCache) backend).get(consumer, consumed, rateLimiterTemplate)
+            : backend.get(consumer, consumed);
+        if (limiter == null) {
+            // Limiters missing from external backends are empty, so waiting would not help
+            boolean allowed =
+                check(backend.consume(consumer, consumed, amount, rateLimiterTemplate), consumer, consumed);
+            if (!allowed) {
+                release(consumed, amount);
+            }
+            return RateLimiterThrottle.completed(allowed);
         }
-        return limiter;
+
+        final RateLimiterFuture future = getThrottle().acquire(limiter, amount, timeout, unit);
+        future.addListener(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                settle(future, consumer, consumed, limiter, amount);
+            }
+        }, SAME_THREAD);
+        return future;
+    }
+
+    /**
+     * Account the outcome of a delayed consumption like the one of {@link #consume(Object, Object, long)}, notifying
+     * the exhaustion of the limiter of the consumer when it could not be consumed in time, and giving back to the
+     * global capacity the consumptions which have not been served.
+     */
+    private void settle(RateLimiterFuture future, Object consumer, Object consumed, RateLimiter limiter, long amount)
+    {
+        boolean allowed;
+        try {
+            allowed = !future.isCancelled() && future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            allowed = false;
+        } catch (ExecutionException e) {
+            allowed = false;
+        }
+        if (!future.isCancelled()) {
+            RateLimiterState state = (backend instanceof RateLimiterCache)
+                ? ((RateLimiterCache) backend).track(consumer, consumed, limiter, allowed)
+                : new RateLimiterState(limiter, allowed, limiter.getAvailableAmount(false) < 0);
+            check(state, consumer, consumed);
+        }
+        if (!allowed) {
+            release(consumed, amount);
+        }
+    }
+
+    private void release(Object consumed, long amount)
+    {
+        if (fairShare != null) {
+            fairShare.release(consumed, amount);
+        }
+    }
+
+    @Override
+    public RateLimiter getRateLimiter(Object consumer, Object consumed)
+    {
+        RateLimiter limiter = backend.get(consumer, consumed);
+        return (limiter != null) ? limiter : RateLimiter.NOLIMIT;
     }
 
     @Override
     public void clearCache()
     {
-        cache.clear();
+        backend.clear();
+        if (sketch != null) {
+            sketch.clear();
+        }
+        if (fairShare != null) {
+            fairShare.clear();
+        }
+    }
+
+    @Override
+    public void dispose()
+    {
+        if (snapshot != null) {
+            snapshot.close();
+        }
+        backend.close();
+        if (sketch != null) {
+            sketch.clear();
+        }
+        if (fairShare != null) {
+            fairShare.clear();
+        }
     }
 }
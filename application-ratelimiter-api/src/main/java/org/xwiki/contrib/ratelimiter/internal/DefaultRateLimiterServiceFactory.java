@@ -20,13 +20,33 @@
 
 package org.xwiki.contrib.ratelimiter.internal;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
 import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Provider;
 import javax.inject.Singleton;
 
+import org.slf4j.Logger;
 import org.xwiki.component.annotation.Component;
+import org.xwiki.component.manager.ComponentLifecycleException;
+import org.xwiki.component.phase.Disposable;
 import org.xwiki.contrib.ratelimiter.RateLimiter;
+import org.xwiki.contrib.ratelimiter.RateLimiterBackend;
+import org.xwiki.contrib.ratelimiter.RateLimiterClock;
 import org.xwiki.contrib.ratelimiter.RateLimiterService;
 import org.xwiki.contrib.ratelimiter.RateLimiterServiceFactory;
+import org.xwiki.contrib.ratelimiter.RateLimiterServiceOptions;
+import org.xwiki.contrib.ratelimiter.cluster.LeaseTransport;
 import org.xwiki.observation.ObservationManager;
 
 /**
@@ -36,17 +56,242 @@ import org.xwiki.observation.ObservationManager;
  */
 @Component
 @Singleton
-public class DefaultRateLimiterServiceFactory implements RateLimiterServiceFactory
+public class DefaultRateLimiterServiceFactory implements RateLimiterServiceFactory, Disposable
 {
-    @Inject
-    private RateLimiterCache cache;
+    /** Number of sketch cells per row for each individual rate limiter, to keep collisions rare. */
+    private static final int SKETCH_WIDTH_FACTOR = 4;
+
+    private static final int DEFAULT_REDIS_PORT = 6379;
+
+    private static final String REDIS_KEY_PREFIX = "xwiki:ratelimiter:";
 
     @Inject
     private ObservationManager observationManager;
 
+    @Inject
+    private Provider<LeaseTransport> leaseTransportProvider;
+
+    @Inject
+    private Logger logger;
+
+    /** The clock of the services whose options do not provide one. */
+    @Inject
+    @Named("coarse")
+    private RateLimiterClock clock;
+
+    /** The snapshots to be saved when the wiki is stopped. */
+    private final Set<RateLimiterSnapshot> snapshots =
+        Collections.newSetFromMap(new ConcurrentHashMap<RateLimiterSnapshot, Boolean>());
+
+    private ScheduledExecutorService snapshotExecutor;
+
+    /** The timing wheel delaying the consumptions of all services using the default clock. */
+    private TimingWheel timingWheel;
+
     @Override
     public RateLimiterService create(RateLimiter rateLimiterTemplate)
     {
-        return new DefaultRateLimiterService(cache, rateLimiterTemplate, observationManager);
+        return create(rateLimiterTemplate, RateLimiterStore.DEFAULT_CAPACITY);
+    }
+
+    @Override
+    public RateLimiterService create(RateLimiter rateLimiterTemplate, int capacity)
+    {
+        return create(rateLimiterTemplate, new RateLimiterServiceOptions().setCapacity(capacity));
+    }
+
+    @Override
+    public RateLimiterService create(RateLimiter rateLimiterTemplate, int capacity, long threshold, long period,
+        TimeUnit unit)
+    {
+        if (threshold < 1) {
+            throw new IllegalArgumentException(String.format("Threshold [%d] should be higher than 0.", threshold));
+        }
+        return create(rateLimiterTemplate,
+            new RateLimiterServiceOptions().setCapacity(capacity).setApproximate(threshold, period, unit));
+    }
+
+    @Override
+    public RateLimiterService create(RateLimiter rateLimiterTemplate, RateLimiterServiceOptions options)
+    {
+        DefaultRateLimiterService service = createService(rateLimiterTemplate, options);
+        service.setTimingWheel(getTimingWheel(getClock(options)));
+        return service;
+    }
+
+    /**
+     * @return the timing wheel shared by the services using the default clock, or a timing wheel of its own for a
+     *         service using another clock, so that delays are measured with the clock of the rate limiters.
+     */
+    private synchronized TimingWheel getTimingWheel(RateLimiterClock serviceClock)
+    {
+        if (serviceClock != getDefaultClock()) {
+            return new TimingWheel("RateLimiter timing wheel", serviceClock);
+        }
+        if (timingWheel == null) {
+            timingWheel = new TimingWheel("RateLimiter timing wheel", serviceClock);
+        }
+        return timingWheel;
+    }
+
+    private DefaultRateLimiterService createService(RateLimiter rateLimiterTemplate,
+        RateLimiterServiceOptions options)
+    {
+        RateLimiterBackend backend = getExternalBackend(rateLimiterTemplate, options);
+        if (backend != null) {
+            return new DefaultRateLimiterService(backend, rateLimiterTemplate, observationManager, null,
+                createFairShare(options), options);
+        }
+
+        RateLimiterClock serviceClock = getClock(options);
+        int capacity = options.getCapacity();
+        ConsumptionSketch sketch = null;
+        if (options.getApproximateThreshold() > 0) {
+            sketch = new ConsumptionSketch(SKETCH_WIDTH_FACTOR * capacity, options.getApproximateThreshold(),
+                options.getApproximatePeriod(), options.getApproximateUnit(), serviceClock);
+        }
+        RateLimiterStore store = new RateLimiterStore(capacity, serviceClock);
+        RateLimiterSnapshot snapshot = null;
+        RateLimiterCache cache = store;
+        if (options.getLeaseSize() > 0) {
+            if (options.getSnapshotFile() != null) {
+                // Restored limiters would enforce locally the quotas owned by other nodes, bypassing their leases
+                logger.warn("The rate limiter snapshot [{}] is ignored, since snapshots are not supported in cluster"
+                    + " mode.", options.getSnapshotFile());
+            }
+            LeaseTransport transport =
+                (options.getLeaseTransport() != null) ? options.getLeaseTransport() : leaseTransportProvider.get();
+            ClusterRateLimiterCache clusterCache = new ClusterRateLimiterCache(store, transport,
+                Arrays.asList(rateLimiterTemplate, options.getAggregateTemplate()), options.getLeaseSize(),
+                serviceClock);
+            transport.setReceiver(clusterCache);
+            cache = clusterCache;
+        } else if (options.getSnapshotFile() != null) {
+            snapshot = createSnapshot(store, rateLimiterTemplate, options);
+        }
+        return new DefaultRateLimiterService(cache, rateLimiterTemplate, observationManager, sketch,
+            createFairShare(options), snapshot, options);
+    }
+
+    private RateLimiterSnapshot createSnapshot(RateLimiterStore store, RateLimiter rateLimiterTemplate,
+        RateLimiterServiceOptions options)
+    {
+        RateLimiterSnapshot snapshot = new RateLimiterSnapshot(store, options.getSnapshotFile(), rateLimiterTemplate,
+            options.getAggregateTemplate(), snapshots);
+        try {
+            int count = snapshot.restore();
+            logger.debug("[{}] rate limiters restored from [{}].", count, options.getSnapshotFile());
+        } catch (IOException e) {
+            logger.warn("Failed to restore the rate limiter snapshot [{}]: {}", options.getSnapshotFile(),
+                e.getMessage());
+        }
+
+        long interval = options.getSnapshotInterval();
+        snapshot.setFuture((interval > 0)
+            ? getSnapshotExecutor().scheduleWithFixedDelay(snapshot, interval, interval, options.getSnapshotUnit())
+            : null);
+        return snapshot;
+    }
+
+    private synchronized ScheduledExecutorService getSnapshotExecutor()
+    {
+        if (snapshotExecutor == null) {
+            snapshotExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+            {
+                @Override
+                public Thread newThread(Runnable runnable)
+                {
+                    Thread thread = new Thread(runnable, "RateLimiter snapshot");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return snapshotExecutor;
+    }
+
+    @Override
+    public void dispose() throws ComponentLifecycleException
+    {
+        synchronized (this) {
+            if (snapshotExecutor != null) {
+                snapshotExecutor.shutdownNow();
+            }
+        }
+        // Save a last snapshot of the services still in use
+        for (RateLimiterSnapshot snapshot : new ArrayList<RateLimiterSnapshot>(snapshots)) {
+            snapshot.close();
+        }
+    }
+
+    private FairShareLimiter createFairShare(RateLimiterServiceOptions options)
+    {
+        if (options.getGlobalCapacity() <= 0) {
+            return null;
+        }
+        return new FairShareLimiter(options.getGlobalCapacity(), options.getGlobalPeriod(), options.getGlobalUnit(),
+            options.getShareWeights(), getClock(options));
+    }
+
+    private RateLimiterClock getClock(RateLimiterServiceOptions options)
+    {
+        return (options.getClock() != null) ? options.getClock() : getDefaultClock();
+    }
+
+    private RateLimiterClock getDefaultClock()
+    {
+        return (clock != null) ? clock : RateLimiterClock.SYSTEM;
+    }
+
+    private RateLimiterBackend getExternalBackend(RateLimiter rateLimiterTemplate, RateLimiterServiceOptions options)
+    {
+        if (options.getBackend() != null) {
+            return options.getBackend();
+        }
+        String address = options.getRedisAddress();
+        if (address == null || address.trim().isEmpty()) {
+            return (options.isOffHeap()) ? getOffHeapBackend(rateLimiterTemplate, options) : null;
+        }
+
+        address = address.trim();
+        String host = address;
+        int port = DEFAULT_REDIS_PORT;
+        int separator = address.lastIndexOf(':');
+        if (separator > 0 && address.indexOf(']', separator) < 0) {
+            host = address.substring(0, separator);
+            try {
+                port = Integer.parseInt(address.substring(separator + 1));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException(String.format("Invalid port in address [%s].", address), e);
+            }
+        }
+        if (host.startsWith("[") && host.endsWith("]")) {
+            host = host.substring(1, host.length() - 1);
+        }
+
+        RedisRateLimiterBackend backend =
+            new RedisRateLimiterBackend(host, port, REDIS_KEY_PREFIX, rateLimiterTemplate, getClock(options));
+        if (options.getAggregateTemplate() != null) {
+            backend.checkTemplate(options.getAggregateTemplate());
+        }
+        return backend;
+    }
+
+    private RateLimiterBackend getOffHeapBackend(RateLimiter rateLimiterTemplate, RateLimiterServiceOptions options)
+    {
+        OffHeapRateLimiterBackend backend;
+        try {
+            backend = (options.getOffHeapFile() != null)
+                ? new OffHeapRateLimiterBackend(options.getOffHeapFile(), options.getCapacity(), rateLimiterTemplate)
+                : new OffHeapRateLimiterBackend(options.getCapacity(), rateLimiterTemplate);
+        } catch (IOException e) {
+            logger.warn("Failed to create the off-heap rate limiter table, keeping rate limiters in the heap: {}",
+                e.getMessage());
+            return null;
+        }
+        if (options.getAggregateTemplate() != null) {
+            backend.checkTemplate(options.getAggregateTemplate());
+        }
+        return backend;
     }
 }
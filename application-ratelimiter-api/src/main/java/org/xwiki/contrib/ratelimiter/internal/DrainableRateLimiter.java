@@ -0,0 +1,41 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.xwiki.contrib.ratelimiter.internal;
+
+import java.util.concurrent.TimeUnit;
+
+import org.xwiki.contrib.ratelimiter.RateLimiter;
+
+/**
+ * A {@link RateLimiter} able to tell when it will have forgotten all past consumption, so it could be discarded and
+ * later recreated empty without changing its behavior.
+ *
+ * @version $Id$
+ */
+public interface DrainableRateLimiter extends RateLimiter
+{
+    /**
+     * @param unit the {@link TimeUnit} to use for reporting the return value.
+     * @return the time remaining until this limiter is fully drained, or 0 if it is already drained.
+     */
+    long getDrainTime(TimeUnit unit);
+}
@@ -0,0 +1,291 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.xwiki.contrib.ratelimiter.internal;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.xwiki.contrib.ratelimiter.RateLimiterClock;
+
+/**
+ * Limit the total consumption of all consumed entities, like the wikis of a farm, to a global capacity over a period,
+ * sharing it fairly between them. Each active entity, that has tried to consume during the last period, is guaranteed
+ * a share of the capacity proportional to its weight among the active entities. An entity may consume beyond its
+ * share by borrowing the capacity left unused by the others, as long as the global capacity is not exceeded. Once
+ * overloaded, only entities below their share are allowed to consume, so the load degrades evenly instead of being
+ * taken by the most demanding entity. The global consumption may temporarily exceed the capacity by the amount
+ * borrowed while entities reclaim their shares.
+ * <p>
+ * Consumption is estimated over a sliding period using two fixed windows per entity, like
+ * {@link SlidingWindowRateLimiter}, and entities are forgotten once inactive for a whole period. Counters are updated
+ * without locking: a consumption is optimistically added, then removed if it exceeds both the share of its entity
+ * and the global capacity, so concurrent consumptions never wait on each other.
+ *
+ * @version $Id$
+ */
+final class FairShareLimiter
+{
+    /** Number of low bits of a window slot holding its count, the high bits holding the tag of its window. */
+    private static final int COUNT_BITS = 40;
+
+    private static final long COUNT_MASK = (1L << COUNT_BITS) - 1;
+
+    /** Number of distinct window tags, 0 being reserved for empty slots. */
+    private static final long TAGS = (1L << (Long.SIZE - COUNT_BITS)) - 1;
+
+    /**
+     * The counts of the previous and current fixed windows. Each slot packs the tag of its window with its count, so
+     * a slot left by an older window reads as empty, and is reset by the first consumption of a new window.
+     */
+    private static final class Windows
+    {
+        private final AtomicLongArray slots = new AtomicLongArray(2);
+
+        private static long tag(long index)
+        {
+            return (index % TAGS) + 1;
+        }
+
+        /**
+         * @param index the index of a window.
+         * @return the count of the given window.
+         */
+        long get(long index)
+        {
+            long value = slots.get((int) (index & 1));
+            return ((value >>> COUNT_BITS) == tag(index)) ? value & COUNT_MASK : 0;
+        }
+
+        /**
+         * @param index the index of the current window.
+         * @param amount the amount to add.
+         * @return true if this is the first addition in the given window.
+         */
+        boolean add(long index, long amount)
+        {
+            int slot = (int) (index & 1);
+            long tag = tag(index);
+            while (true) {
+                long value = slots.get(slot);
+                boolean first = (value >>> COUNT_BITS) != tag;
+                long next = first ? (tag << COUNT_BITS) | amount : value + amount;
+                if (slots.compareAndSet(slot, value, next)) {
+                    return first;
+                }
+            }
+        }
+
+        /**
+         * @param index the index of the current window.
+         * @param amount the amount to remove, ignored if the window has been replaced.
+         */
+        void remove(long index, long amount)
+        {
+            int slot = (int) (index & 1);
+            long tag = tag(index);
+            while (true) {
+                long value = slots.get(slot);
+                if ((value >>> COUNT_BITS) != tag
+                    || slots.compareAndSet(slot, value, value - Math.min(amount, value & COUNT_MASK)))
+                {
+                    return;
+                }
+            }
+        }
+
+        void clear()
+        {
+            slots.set(0, 0);
+            slots.set(1, 0);
+        }
+    }
+
+    private static final class Share
+    {
+        private final long weight;
+
+        private final Windows windows = new Windows();
+
+        Share(long weight)
+        {
+            this.weight = weight;
+        }
+
+        boolean isActive(long index)
+        {
+            return windows.get(index - 1) > 0 || windows.get(index) > 0;
+        }
+    }
+
+    private final long capacity;
+
+    private final long window;
+
+    private final Map<Object, Long> weights;
+
+    private final RateLimiterClock clock;
+
+    private final long origin;
+
+    private final ConcurrentMap<Object, Share> shares = new ConcurrentHashMap<Object, Share>();
+
+    /** The global consumption. */
+    private final Windows total = new Windows();
+
+    /** The total weight of the entities consuming in each window. */
+    private final Windows started = new Windows();
+
+    /** The total weight of the entities consuming in each window, that were inactive in the previous one. */
+    private final Windows joined = new Windows();
+
+    /** The last window in which inactive entities have been forgotten. */
+    private final AtomicLong pruned = new AtomicLong();
+
+    /**
+     * @param capacity the maximum total consumption over a period of time.
+     * @param period the period of time.
+     * @param unit the unit used to express the period of time.
+     * @param weights the weights of consumed entities, entities not found having a weight of 1.
+     * @param clock the clock used to measure time.
+     */
+    FairShareLimiter(long capacity, long period, TimeUnit unit, Map<Object, Long> weights, RateLimiterClock clock)
+    {
+        this.capacity = capacity;
+        this.window = TimeUnit.NANOSECONDS.convert(period, unit);
+        this.weights = (weights != null) ? new HashMap<Object, Long>(weights) : Collections.<Object, Long>emptyMap();
+        this.clock = clock;
+        this.origin = clock.nanoTime();
+    }
+
+    private long getWeight(Object consumed)
+    {
+        Long weight = weights.get(consumed);
+        return (weight != null && weight > 0) ? weight : 1;
+    }
+
+    private Share getShare(Object consumed)
+    {
+        Share share = shares.get(consumed);
+        if (share == null) {
+            share = new Share(getWeight(consumed));
+            Share existing = shares.putIfAbsent(consumed, share);
+            if (existing != null) {
+                share = existing;
+            }
+        }
+        return share;
+    }
+
+    /**
+     * Forget the entities inactive for a whole period, once per window.
+     *
+     * @param index the index of the current window.
+     */
+    private void prune(long index)
+    {
+        long last = pruned.get();
+        if (index > last && pruned.compareAndSet(last, index)) {
+            Iterator<Map.Entry<Object, Share>> it = shares.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Object, Share> entry = it.next();
+                if (!entry.getValue().isActive(index)) {
+                    shares.remove(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+    }
+
+    /**
+     * @param consumed the entity being consumed.
+     * @param amount the amount being consumed.
+     * @return true if the consumption was allowed, and has been accounted.
+     */
+    boolean consume(Object consumed, long amount)
+    {
+        if (amount <= 0) {
+            return true;
+        }
+
+        long now = clock.nanoTime() - origin;
+        long index = now / window;
+        // The weight of the previous window in the sliding period
+        double ratio = (double) (window - now % window) / window;
+        prune(index);
+
+        Share share = getShare(consumed);
+        if (share.windows.add(index, amount)) {
+            started.add(index, share.weight);
+            if (share.windows.get(index - 1) == 0) {
+                joined.add(index, share.weight);
+            }
+        }
+        total.add(index, amount);
+
+        long activeWeight = Math.max(started.get(index - 1) + joined.get(index), share.weight);
+        double fairShare = (double) capacity * share.weight / activeWeight;
+        if (share.windows.get(index - 1) * ratio + share.windows.get(index) > fairShare
+            && total.get(index - 1) * ratio + total.get(index) > capacity)
+        {
+            share.windows.remove(index, amount);
+            total.remove(index, amount);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Give back a consumption previously allowed, that has finally not been done.
+     *
+     * @param consumed the entity being consumed.
+     * @param amount the amount that was consumed.
+     */
+    void release(Object consumed, long amount)
+    {
+        if (amount <= 0) {
+            return;
+        }
+        long index = (clock.nanoTime() - origin) / window;
+        Share share = shares.get(consumed);
+        if (share != null) {
+            share.windows.remove(index, amount);
+        }
+        total.remove(index, amount);
+    }
+
+    /**
+     * Forget all consumptions.
+     */
+    void clear()
+    {
+        shares.clear();
+        total.clear();
+        started.clear();
+        joined.clear();
+    }
+}
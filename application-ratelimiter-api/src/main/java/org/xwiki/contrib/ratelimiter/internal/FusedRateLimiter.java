@@ -0,0 +1,276 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.xwiki.contrib.ratelimiter.internal;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.xwiki.contrib.ratelimiter.RateLimiter;
+import org.xwiki.contrib.ratelimiter.RateLimiterClock;
+
+/**
+ * Implement a {@link RateLimiter} enforcing several leaky buckets at once. The configuration of the buckets is an
+ * immutable {@link LeakyBucketPolicy} shared by all clones, while each limiter only holds a single long per bucket,
+ * so cloning a template only allocates this object and its state array. All buckets are updated in a single critical
+ * section using a single reading of the clock.
+ * <p>
+ * In all-or-nothing mode, a consumption is only accounted when all buckets accept it, so rejected consumptions never
+ * drain the other buckets, and overflow levels are irrelevant. Otherwise, each bucket behaves like an
+ * {@link InfiniteLeakyBucketRateLimiter} or an {@link OverflowingLeakyBucketRateLimiter} in a
+ * {@link CollectionRateLimiter}.
+ *
+ * @version $Id$
+ */
+public class FusedRateLimiter implements CompositeRateLimiter, PersistentRateLimiter
+{
+    private final LeakyBucketPolicy policy;
+
+    /** The time at which each bucket will be empty. */
+    private final long[] state;
+
+    /**
+     * Fuse the given leaky bucket rate limiters into a single limiter. The state of the given limiters is ignored,
+     * and the new limiter is empty.
+     *
+     * @param rateLimiters the leaky bucket rate limiters to be fused.
+     * @param allOrNothing when true, consumptions are only accounted if all buckets accept them.
+     * @param clock the clock used to measure time.
+     * @throws IllegalArgumentException if some of the given limiters are not leaky buckets.
+     */
+    public FusedRateLimiter(Collection<RateLimiter> rateLimiters, boolean allOrNothing, RateLimiterClock clock)
+    {
+        this(new LeakyBucketPolicy(rateLimiters, allOrNothing, clock));
+    }
+
+    /**
+     * Create an empty limiter for the given policy.
+     *
+     * @param policy the policy enforced by this limiter.
+     */
+    public FusedRateLimiter(LeakyBucketPolicy policy)
+    {
+        this.policy = policy;
+        this.state = policy.newState();
+    }
+
+    /**
+     * Copy constructor with reinitialization.
+     *
+     * @param rateLimiter the source to copy.
+     * @param empty when true, the copy is empty.
+     */
+    public FusedRateLimiter(FusedRateLimiter rateLimiter, boolean empty)
+    {
+        this.policy = rateLimiter.policy;
+        if (!empty) {
+            synchronized (rateLimiter) {
+                this.state = rateLimiter.state.clone();
+            }
+        } else {
+            this.state = policy.newState();
+        }
+    }
+
+    @Override
+    public RateLimiter clone(boolean empty)
+    {
+        return new FusedRateLimiter(this, empty);
+    }
+
+    /**
+     * @return the policy enforced by this limiter.
+     */
+    public LeakyBucketPolicy getPolicy()
+    {
+        return policy;
+    }
+
+    @Override
+    public synchronized boolean consume(long amount)
+    {
+        return policy.consume(state, amount, policy.getClock().nanoTime());
+    }
+
+    @Override
+    public long getAvailableAmount()
+    {
+        return getAvailableAmount(true);
+    }
+
+    @Override
+    public synchronized long getAvailableAmount(boolean update)
+    {
+        long now = policy.getClock().nanoTime();
+        long amount = Long.MAX_VALUE;
+        for (int i = 0; i < state.length; i++) {
+            amount = Math.min(amount, policy.getAvailableAmount(state, i, now));
+        }
+        return amount;
+    }
+
+    @Override
+    public long getWaitingTime(long amount, TimeUnit unit)
+    {
+        return getWaitingTime(amount, unit, true);
+    }
+
+    @Override
+    public synchronized long getWaitingTime(long amount, TimeUnit unit, boolean update)
+    {
+        long now = policy.getClock().nanoTime();
+        long waitTime = 0;
+        for (int i = 0; i < state.length; i++) {
+            waitTime = Math.max(waitTime, policy.getWaitingTime(state, i, amount, now));
+        }
+        return unit.convert(waitTime, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public synchronized long getDrainTime(TimeUnit unit)
+    {
+        return unit.convert(policy.getDrainTime(state, policy.getClock().nanoTime()), TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public synchronized void reset()
+    {
+        policy.reset(state);
+    }
+
+    @Override
+    public int getStateSize()
+    {
+        return state.length;
+    }
+
+    @Override
+    public synchronized void saveState(long[] state, int offset)
+    {
+        long now = policy.getClock().nanoTime();
+        for (int i = 0; i < this.state.length; i++) {
+            state[offset + i] = this.state[i] - now;
+        }
+    }
+
+    @Override
+    public synchronized void restoreState(long[] state, int offset)
+    {
+        long now = policy.getClock().nanoTime();
+        for (int i = 0; i < this.state.length; i++) {
+            this.state[i] = now + Math.max(0, state[offset + i]);
+        }
+    }
+
+    @Override
+    public Collection<RateLimiter> getRateLimiters()
+    {
+        List<RateLimiter> limiters = new ArrayList<RateLimiter>(state.length);
+        for (int i = 0; i < state.length; i++) {
+            limiters.add(new Bucket(i));
+        }
+        return limiters;
+    }
+
+    @Override
+    public long getPeriod()
+    {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public long getPeriod(TimeUnit unit)
+    {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public TimeUnit getPeriodUnit()
+    {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public long getLimit()
+    {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * A read-only view on a single bucket of a fused limiter, used to report which limitation has been exceeded.
+     */
+    private final class Bucket extends AbstractRateLimiter
+    {
+        private final int index;
+
+        Bucket(int index)
+        {
+            super(policy.getLimit(index), policy.getPeriod(index), policy.getPeriodUnit(index), policy.getClock());
+            this.index = index;
+        }
+
+        @Override
+        public boolean consume(long amount, long now)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public RateLimiter clone(boolean empty)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public long getAvailableAmount(boolean update)
+        {
+            synchronized (FusedRateLimiter.this) {
+                return policy.getAvailableAmount(state, index, clock.nanoTime());
+            }
+        }
+
+        @Override
+        public long getWaitingTime(long amount, TimeUnit unit, boolean update)
+        {
+            synchronized (FusedRateLimiter.this) {
+                return unit.convert(policy.getWaitingTime(state, index, amount, clock.nanoTime()),
+                    TimeUnit.NANOSECONDS);
+            }
+        }
+
+        @Override
+        public long getDrainTime(TimeUnit unit)
+        {
+            synchronized (FusedRateLimiter.this) {
+                long drain = state[index] - clock.nanoTime();
+                return (drain <= 0) ? 0 : unit.convert(drain, TimeUnit.NANOSECONDS);
+            }
+        }
+
+        @Override
+        public void reset()
+        {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
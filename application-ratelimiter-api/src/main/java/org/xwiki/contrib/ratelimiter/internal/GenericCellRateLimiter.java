@@ -0,0 +1,191 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.xwiki.contrib.ratelimiter.internal;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+import org.xwiki.contrib.ratelimiter.RateLimiter;
+import org.xwiki.contrib.ratelimiter.RateLimiterClock;
+
+/**
+ * Implement a {@link RateLimiter} using the generic cell rate algorithm (GCRA). Instead of a bucket level and a last
+ * update time, the only state kept is the theoretical arrival time (TAT) of the next unit of consumption, which is
+ * moved forward by the emission interval (period / limit) for each unit consumed. A consumption is accepted when the
+ * resulting TAT is not further in the future than the burst tolerance plus one emission interval. Rejected
+ * consumptions are not accounted.
+ *
+ * @version $Id$
+ */
+public class GenericCellRateLimiter extends AbstractRateLimiter implements PersistentRateLimiter
+{
+    private static final AtomicLongFieldUpdater<GenericCellRateLimiter> TAT =
+        AtomicLongFieldUpdater.newUpdater(GenericCellRateLimiter.class, "tat");
+
+    protected final long emissionInterval;
+    protected final long tolerance;
+
+    private volatile long tat;
+
+    /**
+     * Initializing constructor.
+     *
+     * @param limit the maximum amount of consumption over a period of time.
+     * @param period the period of time.
+     * @param unit the unit used to express the period of time.
+     * @param tolerance the burst tolerance in nanoseconds, the amount that could be consumed at once is
+     *            {@code 1 + tolerance / (period / limit)}.
+     */
+    public GenericCellRateLimiter(long limit, long period, TimeUnit unit, long tolerance)
+    {
+        this(limit, period, unit, tolerance, RateLimiterClock.SYSTEM);
+    }
+
+    /**
+     * Initializing constructor.
+     *
+     * @param limit the maximum amount of consumption over a period of time.
+     * @param period the period of time.
+     * @param unit the unit used to express the period of time.
+     * @param tolerance the burst tolerance in nanoseconds, the amount that could be consumed at once is
+     *            {@code 1 + tolerance / (period / limit)}.
+     * @param clock the clock used to measure time.
+     */
+    public GenericCellRateLimiter(long limit, long period, TimeUnit unit, long tolerance, RateLimiterClock clock)
+    {
+        super(limit, period, unit, clock);
+        this.emissionInterval = TimeUnit.NANOSECONDS.convert(period, unit) / limit;
+        this.tolerance = tolerance;
+        this.tat = clock.nanoTime();
+    }
+
+    /**
+     * Copy constructor.
+     *
+     * @param rateLimiter source object.
+     */
+    public GenericCellRateLimiter(GenericCellRateLimiter rateLimiter)
+    {
+        this(rateLimiter, false);
+    }
+
+    /**
+     * Copy constructor with reinitialization.
+     *
+     * @param rateLimiter the source to copy.
+     * @param empty when true, the copy is empty.
+     */
+    public GenericCellRateLimiter(GenericCellRateLimiter rateLimiter, boolean empty)
+    {
+        super(rateLimiter);
+        this.emissionInterval = rateLimiter.emissionInterval;
+        this.tolerance = rateLimiter.tolerance;
+        this.tat = (empty) ? clock.nanoTime() : rateLimiter.tat;
+    }
+
+    @Override
+    public RateLimiter clone(boolean empty)
+    {
+        return new GenericCellRateLimiter(this, empty);
+    }
+
+    /**
+     * @return the emission interval, the time needed for a single unit of consumption to be allowed again, in
+     *         nanoseconds.
+     */
+    public long getEmissionInterval()
+    {
+        return emissionInterval;
+    }
+
+    /**
+     * @return the burst tolerance in nanoseconds.
+     */
+    public long getTolerance()
+    {
+        return tolerance;
+    }
+
+    @Override
+    public boolean consume(long amount, long now)
+    {
+        long bound = now + tolerance + emissionInterval;
+        while (true) {
+            long current = tat;
+            long next = Math.max(current, now) + amount * emissionInterval;
+            if (next > bound) {
+                return false;
+            }
+            if (TAT.compareAndSet(this, current, next)) {
+                return true;
+            }
+        }
+    }
+
+    @Override
+    public long getAvailableAmount(boolean update)
+    {
+        long delay = Math.max(0, tat - clock.nanoTime());
+        return (tolerance + emissionInterval - delay) / emissionInterval;
+    }
+
+    @Override
+    public long getWaitingTime(long amount, TimeUnit unit, boolean update)
+    {
+        long now = clock.nanoTime();
+        long wait = Math.max(tat, now) + amount * emissionInterval - tolerance - emissionInterval - now;
+        if (wait <= 0) {
+            return 0;
+        }
+        return unit.convert(wait, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public long getDrainTime(TimeUnit unit)
+    {
+        long drain = tat - clock.nanoTime();
+        return (drain <= 0) ? 0 : unit.convert(drain, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void reset()
+    {
+        this.tat = clock.nanoTime();
+    }
+
+    @Override
+    public int getStateSize()
+    {
+        return 1;
+    }
+
+    @Override
+    public void saveState(long[] state, int offset)
+    {
+        state[offset] = tat - clock.nanoTime();
+    }
+
+    @Override
+    public void restoreState(long[] state, int offset)
+    {
+        this.tat = clock.nanoTime() + Math.max(0, state[offset]);
+    }
+}
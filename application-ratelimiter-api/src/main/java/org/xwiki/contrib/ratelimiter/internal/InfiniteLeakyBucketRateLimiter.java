@@ -23,6 +23,7 @@ package org.xwiki.contrib.ratelimiter.internal;
 import java.util.concurrent.TimeUnit;
 
 import org.xwiki.contrib.ratelimiter.RateLimiter;
+import org.xwiki.contrib.ratelimiter.RateLimiterClock;
 
 /**
  * Implement a {@link RateLimiter} using a leaky bucket like algorithm. The bucket never overflow, but the bucket
@@ -30,7 +31,7 @@ import org.xwiki.contrib.ratelimiter.RateLimiter;
  *
  * @version $Id$
  */
-public class InfiniteLeakyBucketRateLimiter extends AbstractRateLimiter
+public class InfiniteLeakyBucketRateLimiter extends AbstractRateLimiter implements PersistentRateLimiter
 {
     protected final long leakrate;
     protected long lastUpdate;
@@ -45,9 +46,22 @@ public class InfiniteLeakyBucketRateLimiter extends AbstractRateLimiter
      */
     public InfiniteLeakyBucketRateLimiter(long limit, long period, TimeUnit unit)
     {
-        super(limit, period, unit);
+        this(limit, period, unit, RateLimiterClock.SYSTEM);
+    }
+
+    /**
+     * Initializing constructor.
+     *
+     * @param limit the maximum amount of consumption over a period of time.
+     * @param period the period of time.
+     * @param unit the unit used to express the period of time.
+     * @param clock the clock used to measure time.
+     */
+    public InfiniteLeakyBucketRateLimiter(long limit, long period, TimeUnit unit, RateLimiterClock clock)
+    {
+        super(limit, period, unit, clock);
         this.leakrate = TimeUnit.NANOSECONDS.convert(period, unit) / limit;
-        this.lastUpdate = System.nanoTime();
+        this.lastUpdate = clock.nanoTime();
     }
 
     /**
@@ -74,7 +88,7 @@ public class InfiniteLeakyBucketRateLimiter extends AbstractRateLimiter
             this.lastUpdate = rateLimiter.lastUpdate;
             this.bucketLevel = rateLimiter.bucketLevel;
         } else {
-            this.lastUpdate = System.nanoTime();
+            this.lastUpdate = clock.nanoTime();
         }
     }
 
@@ -84,9 +98,9 @@ public class InfiniteLeakyBucketRateLimiter extends AbstractRateLimiter
         return new InfiniteLeakyBucketRateLimiter(this, empty);
     }
 
-    protected synchronized boolean internalConsume(long amount)
+    protected synchronized boolean internalConsume(long amount, long now)
     {
-        long elapsed = System.nanoTime() - lastUpdate;
+        long elapsed = now - lastUpdate;
         long leak = elapsed / leakrate;
         lastUpdate += leak * leakrate;
         bucketLevel = Math.max(0, bucketLevel - leak + amount);
@@ -94,16 +108,16 @@ public class InfiniteLeakyBucketRateLimiter extends AbstractRateLimiter
     }
 
     @Override
-    public boolean consume(long amount)
+    public boolean consume(long amount, long now)
     {
-        return internalConsume(amount);
+        return internalConsume(amount, now);
     }
 
     @Override
     public long getAvailableAmount(boolean update)
     {
         if (update) {
-            internalConsume(0);
+            internalConsume(0, clock.nanoTime());
         }
         return limit - bucketLevel;
     }
@@ -112,7 +126,7 @@ public class InfiniteLeakyBucketRateLimiter extends AbstractRateLimiter
     public long getWaitingTime(long amount, TimeUnit unit, boolean update)
     {
         if (update) {
-            internalConsume(0);
+            internalConsume(0, clock.nanoTime());
         }
         long overflow = (bucketLevel - limit + amount);
         if (overflow <= 0) {
@@ -121,9 +135,43 @@ public class InfiniteLeakyBucketRateLimiter extends AbstractRateLimiter
         return unit.convert(overflow * leakrate, TimeUnit.NANOSECONDS);
     }
 
+    @Override
+    public synchronized long getDrainTime(TimeUnit unit)
+    {
+        long drain = bucketLevel * leakrate - (clock.nanoTime() - lastUpdate);
+        return (drain <= 0) ? 0 : unit.convert(drain, TimeUnit.NANOSECONDS);
+    }
+
     @Override
     public void reset()
     {
         this.bucketLevel = 0;
     }
+
+    @Override
+    public int getStateSize()
+    {
+        return 1;
+    }
+
+    @Override
+    public synchronized void saveState(long[] state, int offset)
+    {
+        state[offset] = bucketLevel * leakrate - (clock.nanoTime() - lastUpdate);
+    }
+
+    @Override
+    public synchronized void restoreState(long[] state, int offset)
+    {
+        long now = clock.nanoTime();
+        long drain = state[offset];
+        if (drain <= 0) {
+            bucketLevel = 0;
+            lastUpdate = now;
+        } else {
+            // Date back the last update so that the partially leaked unit is preserved
+            bucketLevel = (drain + leakrate - 1) / leakrate;
+            lastUpdate = now - (bucketLevel * leakrate - drain);
+        }
+    }
 }
@@ -0,0 +1,320 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.xwiki.contrib.ratelimiter.internal;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.xwiki.contrib.ratelimiter.RateLimiter;
+import org.xwiki.contrib.ratelimiter.RateLimiterClock;
+
+/**
+ * The immutable configuration of a set of leaky buckets, shared by all the {@link FusedRateLimiter} created from the
+ * same template. The policy implements the leaky bucket algorithm over a per-limiter state made of a single long per
+ * bucket: the time at which the bucket will be empty. The bucket level is the number of leak rates remaining until
+ * that time, so leaking requires no update of the state, and consuming only moves that time forward.
+ * <p>
+ * The state is not protected by the policy, callers should ensure that a given state is not accessed concurrently.
+ *
+ * @version $Id$
+ */
+public final class LeakyBucketPolicy
+{
+    private static final int LIMIT = 0;
+    private static final int OVERFLOW = 1;
+    private static final int LEAKRATE = 2;
+    private static final int PERIOD = 3;
+    private static final int WINDOW_SIZE = 4;
+
+    private final boolean allOrNothing;
+
+    private final RateLimiterClock clock;
+
+    /** The limit, overflow level, leak rate and period of each bucket. */
+    private final long[] windows;
+
+    /** The units of the bucket periods. */
+    private final TimeUnit[] units;
+
+    /**
+     * Create a policy from the configuration of the given leaky bucket rate limiters. The state of the given limiters
+     * is ignored.
+     *
+     * @param rateLimiters the leaky bucket rate limiters to be fused.
+     * @param allOrNothing when true, consumptions are only accounted if all buckets accept them.
+     * @param clock the clock used to measure time.
+     * @throws IllegalArgumentException if some of the given limiters are not leaky buckets.
+     */
+    public LeakyBucketPolicy(Collection<RateLimiter> rateLimiters, boolean allOrNothing, RateLimiterClock clock)
+    {
+        this.allOrNothing = allOrNothing;
+        this.clock = clock;
+        this.windows = new long[rateLimiters.size() * WINDOW_SIZE];
+        this.units = new TimeUnit[rateLimiters.size()];
+        int i = 0;
+        for (RateLimiter limiter : rateLimiters) {
+            int w = i * WINDOW_SIZE;
+            windows[w + LIMIT] = limiter.getLimit();
+            windows[w + OVERFLOW] = getOverflowLevel(limiter);
+            windows[w + LEAKRATE] = getLeakRate(limiter);
+            windows[w + PERIOD] = limiter.getPeriod();
+            units[i++] = limiter.getPeriodUnit();
+        }
+    }
+
+    /**
+     * Create a policy from a rate limiter template, made of a single leaky bucket, or of several ones, in order to
+     * keep the state of the corresponding rate limiters outside of the heap.
+     *
+     * @param template the template of the rate limiters.
+     * @return the policy of the given template, measuring time with the clock of that template.
+     * @throws IllegalArgumentException if the given template is not made of leaky buckets.
+     */
+    static LeakyBucketPolicy fromTemplate(RateLimiter template)
+    {
+        if (template instanceof FusedRateLimiter) {
+            return ((FusedRateLimiter) template).getPolicy();
+        }
+        if (template instanceof CompositeRateLimiter) {
+            return new LeakyBucketPolicy(((CompositeRateLimiter) template).getRateLimiters(), false,
+                getTemplateClock(template));
+        }
+        return new LeakyBucketPolicy(Collections.singletonList(template), false, getTemplateClock(template));
+    }
+
+    private static RateLimiterClock getTemplateClock(RateLimiter limiter)
+    {
+        if (limiter instanceof CollectionRateLimiter) {
+            return ((CollectionRateLimiter) limiter).getClock();
+        }
+        if (limiter instanceof AbstractRateLimiter) {
+            return ((AbstractRateLimiter) limiter).getClock();
+        }
+        return RateLimiterClock.SYSTEM;
+    }
+
+    private static long getOverflowLevel(RateLimiter limiter)
+    {
+        if (limiter instanceof OverflowingLeakyBucketRateLimiter) {
+            return ((OverflowingLeakyBucketRateLimiter) limiter).overflowLevel;
+        }
+        if (limiter instanceof LockFreeLeakyBucketRateLimiter
+            && ((LockFreeLeakyBucketRateLimiter) limiter).overflowing) {
+            return ((LockFreeLeakyBucketRateLimiter) limiter).getOverflowLevel();
+        }
+        return Long.MAX_VALUE;
+    }
+
+    private static long getLeakRate(RateLimiter limiter)
+    {
+        if (limiter instanceof InfiniteLeakyBucketRateLimiter) {
+            return ((InfiniteLeakyBucketRateLimiter) limiter).leakrate;
+        }
+        if (limiter instanceof LockFreeLeakyBucketRateLimiter) {
+            return ((LockFreeLeakyBucketRateLimiter) limiter).getLeakRate();
+        }
+        throw new IllegalArgumentException(
+            String.format("Unable to fuse [%s], only leaky bucket rate limiters are supported.",
+                limiter.getClass().getName()));
+    }
+
+    /**
+     * @return the number of buckets of this policy.
+     */
+    public int size()
+    {
+        return units.length;
+    }
+
+    /**
+     * @return true if consumptions are only accounted when all buckets accept them.
+     */
+    public boolean isAllOrNothing()
+    {
+        return allOrNothing;
+    }
+
+    /**
+     * @return the clock used to measure time.
+     */
+    public RateLimiterClock getClock()
+    {
+        return clock;
+    }
+
+    /**
+     * @param bucket the index of a bucket.
+     * @return the limit of the given bucket.
+     */
+    public long getLimit(int bucket)
+    {
+        return windows[bucket * WINDOW_SIZE + LIMIT];
+    }
+
+    /**
+     * @param bucket the index of a bucket.
+     * @return the period of the given bucket, expressed in {@link #getPeriodUnit(int)}.
+     */
+    public long getPeriod(int bucket)
+    {
+        return windows[bucket * WINDOW_SIZE + PERIOD];
+    }
+
+    /**
+     * @param bucket the index of a bucket.
+     * @return the unit of the period of the given bucket.
+     */
+    public TimeUnit getPeriodUnit(int bucket)
+    {
+        return units[bucket];
+    }
+
+    /**
+     * @param bucket the index of a bucket.
+     * @return the level above which consumptions of the given bucket are not accounted, or {@link Long#MAX_VALUE}
+     *         if all consumptions are accounted.
+     */
+    long getOverflowLevel(int bucket)
+    {
+        return windows[bucket * WINDOW_SIZE + OVERFLOW];
+    }
+
+    /**
+     * @param bucket the index of a bucket.
+     * @return the time in nanoseconds needed by the given bucket to leak one unit.
+     */
+    long getLeakRate(int bucket)
+    {
+        return windows[bucket * WINDOW_SIZE + LEAKRATE];
+    }
+
+    /**
+     * @return a new state of empty buckets.
+     */
+    long[] newState()
+    {
+        long[] state = new long[units.length];
+        reset(state);
+        return state;
+    }
+
+    /**
+     * Empty all buckets of the given state.
+     *
+     * @param state the state to reset.
+     */
+    void reset(long[] state)
+    {
+        Arrays.fill(state, clock.nanoTime());
+    }
+
+    /**
+     * @param state the state of the buckets.
+     * @param bucket the index of a bucket.
+     * @param now the current time.
+     * @return the level of the given bucket at the given time.
+     */
+    long getLevel(long[] state, int bucket, long now)
+    {
+        long remaining = state[bucket] - now;
+        if (remaining <= 0) {
+            return 0;
+        }
+        long leakrate = windows[bucket * WINDOW_SIZE + LEAKRATE];
+        return (remaining + leakrate - 1) / leakrate;
+    }
+
+    /**
+     * Consume the given amount.
+     *
+     * @param state the state of the buckets, updated when the consumption is accounted.
+     * @param amount the amount to be consumed.
+     * @param now the current time.
+     * @return true if the consumption is under the limitation.
+     */
+    boolean consume(long[] state, long amount, long now)
+    {
+        if (allOrNothing) {
+            for (int i = 0; i < state.length; i++) {
+                if (getLevel(state, i, now) + amount > windows[i * WINDOW_SIZE + LIMIT]) {
+                    return false;
+                }
+            }
+            for (int i = 0, w = 0; i < state.length; i++, w += WINDOW_SIZE) {
+                state[i] = Math.max(state[i], now) + amount * windows[w + LEAKRATE];
+            }
+            return true;
+        }
+
+        boolean result = true;
+        for (int i = 0, w = 0; i < state.length; i++, w += WINDOW_SIZE) {
+            long level = getLevel(state, i, now) + amount;
+            if (level > windows[w + OVERFLOW]) {
+                result = false;
+            } else {
+                state[i] = Math.max(state[i], now) + amount * windows[w + LEAKRATE];
+                result &= level <= windows[w + LIMIT];
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @param state the state of the buckets.
+     * @param bucket the index of a bucket.
+     * @param now the current time.
+     * @return the amount that could be consumed from the given bucket at the given time.
+     */
+    long getAvailableAmount(long[] state, int bucket, long now)
+    {
+        return windows[bucket * WINDOW_SIZE + LIMIT] - getLevel(state, bucket, now);
+    }
+
+    /**
+     * @param state the state of the buckets.
+     * @param now the current time.
+     * @return the time in nanoseconds until all buckets are empty.
+     */
+    long getDrainTime(long[] state, long now)
+    {
+        long drain = 0;
+        for (long emptyAt : state) {
+            drain = Math.max(drain, emptyAt - now);
+        }
+        return drain;
+    }
+
+    /**
+     * @param state the state of the buckets.
+     * @param bucket the index of a bucket.
+     * @param amount the amount to be consumed.
+     * @param now the current time.
+     * @return the time to wait in nanoseconds before the given amount could be consumed from the given bucket.
+     */
+    long getWaitingTime(long[] state, int bucket, long amount, long now)
+    {
+        int w = bucket * WINDOW_SIZE;
+        return Math.max(0, state[bucket] - now - (windows[w + LIMIT] - amount) * windows[w + LEAKRATE]);
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.xwiki.contrib.ratelimiter.internal;
+
+import java.util.concurrent.TimeUnit;
+
+import org.xwiki.contrib.ratelimiter.RateLimiter;
+
+/**
+ * A read-only view on a single bucket of a rate limiter kept outside of the heap, as of a given available amount, used
+ * to report which limitation has been exceeded.
+ *
+ * @version $Id$
+ */
+final class LeakyBucketView extends AbstractRateLimiter
+{
+    private final long leakRate;
+
+    private final long available;
+
+    /**
+     * Constructor.
+     *
+     * @param policy the configuration of the buckets of the limiter.
+     * @param index the index of the bucket.
+     * @param available the amount available in the bucket.
+     */
+    LeakyBucketView(LeakyBucketPolicy policy, int index, long available)
+    {
+        super(policy.getLimit(index), policy.getPeriod(index), policy.getPeriodUnit(index), policy.getClock());
+        this.leakRate = policy.getLeakRate(index);
+        this.available = available;
+    }
+
+    @Override
+    public boolean consume(long amount, long now)
+    {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public RateLimiter clone(boolean empty)
+    {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public long getAvailableAmount(boolean update)
+    {
+        return available;
+    }
+
+    @Override
+    public long getWaitingTime(long amount, TimeUnit unit, boolean update)
+    {
+        return unit.convert(Math.max(0, amount - available) * leakRate, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public long getDrainTime(TimeUnit unit)
+    {
+        return unit.convert((limit - available) * leakRate, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void reset()
+    {
+        throw new UnsupportedOperationException();
+    }
+}
@@ -0,0 +1,320 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.xwiki.contrib.ratelimiter.internal;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.xwiki.contrib.ratelimiter.RateLimiter;
+import org.xwiki.contrib.ratelimiter.RateLimiterClock;
+
+/**
+ * A slice of the quota of a consumer leased from the node owning that quota in a cluster, see
+ * {@link ClusterRateLimiterCache}. Consumption is accounted locally on the leased balance, and a renewal is requested
+ * when the balance runs low. While the renewal is pending, consumption may continue on credit, up to one lease, the
+ * debt being repaid on the next grant. When the owner cannot grant more, consumption is rejected until the delay
+ * reported by the owner has elapsed. Unused leased quota expires after the longest period of the template, whose
+ * limitation is also reported by this limiter.
+ *
+ * @version $Id$
+ */
+public class LeasedRateLimiter implements DrainableRateLimiter, CompositeRateLimiter
+{
+    /**
+     * Time after which a renewal without answer is requested again, since messages may be lost.
+     */
+    private static final long RENEWAL_TIMEOUT = TimeUnit.SECONDS.toNanos(1);
+
+    private final ClusterRateLimiterCache cache;
+    private final Object consumer;
+    private final Object consumed;
+    private final int template;
+    private final String owner;
+    private final RateLimiter templateLimiter;
+    private final RateLimiter reference;
+    private final long leaseSize;
+    private final long leaseTime;
+    private final RateLimiterClock clock;
+
+    private long balance;
+    private long expiresAt;
+    private long blockedUntil;
+    private boolean blocked;
+    private boolean pending;
+    private long pendingSince;
+
+    /**
+     * Constructor.
+     *
+     * @param cache the cache requesting renewals.
+     * @param consumer the entity consuming.
+     * @param consumed the entity being consumed.
+     * @param template the index of the template limiting the consumer on the owner node.
+     * @param owner the node owning the quota.
+     * @param templateLimiter the template limiting the consumer on the owner node.
+     * @param leaseSize the amount of quota leased at once.
+     * @param clock the clock used to measure time.
+     */
+    LeasedRateLimiter(ClusterRateLimiterCache cache, Object consumer, Object consumed, int template, String owner,
+        RateLimiter templateLimiter, long leaseSize, RateLimiterClock clock)
+    {
+        this.cache = cache;
+        this.consumer = consumer;
+        this.consumed = consumed;
+        this.template = template;
+        this.owner = owner;
+        this.templateLimiter = templateLimiter;
+        this.reference = getLongestLimiter(templateLimiter);
+        this.leaseSize = leaseSize;
+        this.leaseTime = Math.max(reference.getPeriod(TimeUnit.NANOSECONDS), 1);
+        this.clock = clock;
+        this.expiresAt = clock.nanoTime();
+    }
+
+    /**
+     * @param limiter a limiter.
+     * @return the limitation of the given limiter with the longest period.
+     */
+    private static RateLimiter getLongestLimiter(RateLimiter limiter)
+    {
+        if (!(limiter instanceof CompositeRateLimiter)) {
+            return limiter;
+        }
+        RateLimiter longest = null;
+        for (RateLimiter child : ((CompositeRateLimiter) limiter).getRateLimiters()) {
+            RateLimiter candidate = getLongestLimiter(child);
+            if (longest == null
+                || candidate.getPeriod(TimeUnit.NANOSECONDS) > longest.getPeriod(TimeUnit.NANOSECONDS))
+            {
+                longest = candidate;
+            }
+        }
+        return (longest != null) ? longest : RateLimiter.NOLIMIT;
+    }
+
+    /**
+     * @return the entity consuming.
+     */
+    Object getConsumer()
+    {
+        return consumer;
+    }
+
+    /**
+     * @return the entity being consumed.
+     */
+    Object getConsumed()
+    {
+        return consumed;
+    }
+
+    /**
+     * @return the index of the template limiting the consumer on the owner node.
+     */
+    int getTemplate()
+    {
+        return template;
+    }
+
+    /**
+     * @return the node owning the quota.
+     */
+    String getOwner()
+    {
+        return owner;
+    }
+
+    private void expire(long now)
+    {
+        if (balance > 0 && now - expiresAt >= 0) {
+            balance = 0;
+        }
+    }
+
+    /**
+     * @param now the current time.
+     * @return true if a renewal should be requested.
+     */
+    private boolean requestRenewal(long now)
+    {
+        if (pending && now - pendingSince < RENEWAL_TIMEOUT) {
+            return false;
+        }
+        pending = true;
+        pendingSince = now;
+        return true;
+    }
+
+    @Override
+    public boolean consume(long amount)
+    {
+        boolean allowed;
+        boolean renew;
+        synchronized (this) {
+            long now = clock.nanoTime();
+            expire(now);
+            if (balance >= amount) {
+                balance -= amount;
+                allowed = true;
+                renew = balance < leaseSize / 2;
+            } else {
+                allowed = !(blocked && now - blockedUntil < 0) && balance - amount >= -leaseSize;
+                if (allowed) {
+                    balance -= amount;
+                }
+                renew = true;
+            }
+            renew = renew && requestRenewal(now);
+        }
+        if (renew) {
+            cache.renew(this);
+        }
+        return allowed;
+    }
+
+    /**
+     * @return the amount to request from the owner, covering the debt and a full lease, or 0 if no renewal is needed.
+     */
+    synchronized long getRequest()
+    {
+        expire(clock.nanoTime());
+        long request = leaseSize - balance;
+        if (request <= 0) {
+            pending = false;
+        }
+        return Math.max(request, 0);
+    }
+
+    /**
+     * Account the quota granted by the owner.
+     *
+     * @param amount the amount granted.
+     * @param delay the time in nanoseconds to wait before requesting more, when less than requested was granted.
+     */
+    synchronized void grant(long amount, long delay)
+    {
+        long now = clock.nanoTime();
+        pending = false;
+        expire(now);
+        balance += amount;
+        expiresAt = now + leaseTime;
+        blocked = balance <= 0 && delay > 0;
+        blockedUntil = now + delay;
+    }
+
+    @Override
+    public long getPeriod()
+    {
+        return reference.getPeriod();
+    }
+
+    @Override
+    public long getPeriod(TimeUnit unit)
+    {
+        return reference.getPeriod(unit);
+    }
+
+    @Override
+    public TimeUnit getPeriodUnit()
+    {
+        return reference.getPeriodUnit();
+    }
+
+    @Override
+    public long getLimit()
+    {
+        return reference.getLimit();
+    }
+
+    @Override
+    public RateLimiter clone(boolean empty)
+    {
+        LeasedRateLimiter clone =
+            new LeasedRateLimiter(cache, consumer, consumed, template, owner, templateLimiter, leaseSize, clock);
+        if (!empty) {
+            synchronized (this) {
+                clone.balance = balance;
+                clone.expiresAt = expiresAt;
+                clone.blockedUntil = blockedUntil;
+                clone.blocked = blocked;
+            }
+        }
+        return clone;
+    }
+
+    @Override
+    public long getAvailableAmount()
+    {
+        return getAvailableAmount(true);
+    }
+
+    @Override
+    public synchronized long getAvailableAmount(boolean update)
+    {
+        if (update) {
+            expire(clock.nanoTime());
+        }
+        return balance;
+    }
+
+    @Override
+    public long getWaitingTime(long amount, TimeUnit unit)
+    {
+        return getWaitingTime(amount, unit, true);
+    }
+
+    @Override
+    public synchronized long getWaitingTime(long amount, TimeUnit unit, boolean update)
+    {
+        long wait = (balance < amount && blocked) ? blockedUntil - clock.nanoTime() : 0;
+        return (wait <= 0) ? 0 : unit.convert(wait, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public synchronized long getDrainTime(TimeUnit unit)
+    {
+        // Keep the lease while some quota is leased, or while a renewal or a block is pending
+        long end = expiresAt;
+        if (blocked && blockedUntil - end > 0) {
+            end = blockedUntil;
+        }
+        if (pending && pendingSince + RENEWAL_TIMEOUT - end > 0) {
+            end = pendingSince + RENEWAL_TIMEOUT;
+        }
+        long drain = end - clock.nanoTime();
+        return (drain <= 0) ? 0 : unit.convert(drain, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public Collection<RateLimiter> getRateLimiters()
+    {
+        return Collections.<RateLimiter>singletonList(this);
+    }
+
+    @Override
+    public synchronized void reset()
+    {
+        balance = 0;
+        blocked = false;
+    }
+}
@@ -0,0 +1,327 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.xwiki.contrib.ratelimiter.internal;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+import org.xwiki.contrib.ratelimiter.RateLimiter;
+import org.xwiki.contrib.ratelimiter.RateLimiterClock;
+
+/**
+ * Implement a {@link RateLimiter} using the same leaky bucket algorithm than {@link InfiniteLeakyBucketRateLimiter}
+ * and {@link OverflowingLeakyBucketRateLimiter}, but without any lock. The bucket level and the time of the last
+ * leak are packed into a single long that is updated using compare-and-set, so concurrent consumers never wait on a
+ * monitor.
+ * <p>
+ * The last update time is always a whole number of leak rates after an origin, so it is stored as a count of leaks
+ * on {@value #TICK_BITS} bits, while the bucket level is stored on {@value #LEVEL_BITS} bits. An infinite bucket
+ * level saturates at {@link #MAX_LEVEL}. Before the count of leaks overflows, which may happen within hours with a
+ * small leak rate, the origin is moved to the last update time, under a lock only taken then. The remaining bit of
+ * the state selects which of the two last origins it is based on, so that consumers never read an origin
+ * inconsistent with the state they update.
+ *
+ * @version $Id$
+ */
+public class LockFreeLeakyBucketRateLimiter extends AbstractRateLimiter implements PersistentRateLimiter
+{
+    /**
+     * Number of bits used to store the bucket level.
+     */
+    public static final int LEVEL_BITS = 24;
+
+    /**
+     * Number of bits used to store the number of leaks since the origin.
+     */
+    public static final int TICK_BITS = Long.SIZE - LEVEL_BITS - 2;
+
+    /**
+     * The maximum level the bucket could reach, and therefore the maximum limit and overflow levels supported.
+     */
+    public static final long MAX_LEVEL = (1L << LEVEL_BITS) - 1;
+
+    private static final long MAX_TICKS = (1L << TICK_BITS) - 1;
+
+    private static final int EPOCH_SHIFT = LEVEL_BITS + TICK_BITS;
+
+    private static final AtomicLongFieldUpdater<LockFreeLeakyBucketRateLimiter> STATE =
+        AtomicLongFieldUpdater.newUpdater(LockFreeLeakyBucketRateLimiter.class, "state");
+
+    protected final long leakrate;
+    protected final long overflowLevel;
+    protected final boolean overflowing;
+
+    /** The origins of the ticks, the one used by the current state is selected by its epoch bit. */
+    private final long[] origins = new long[2];
+
+    private volatile long state;
+
+    /**
+     * Initializing constructor for an infinite bucket.
+     *
+     * @param limit the maximum amount of consumption over a period of time.
+     * @param period the period of time.
+     * @param unit the unit used to express the period of time.
+     */
+    public LockFreeLeakyBucketRateLimiter(long limit, long period, TimeUnit unit)
+    {
+        this(limit, MAX_LEVEL, period, unit);
+    }
+
+    /**
+     * Initializing constructor for an overflowing bucket.
+     *
+     * @param limit the maximum amount of consumption over a period of time.
+     * @param overflowLevel the overflow level, should be higher than the limit level and lower than
+     *            {@link #MAX_LEVEL}, a value of {@link #MAX_LEVEL} means an infinite bucket.
+     * @param period the period of time.
+     * @param unit the unit used to express the period of time.
+     */
+    public LockFreeLeakyBucketRateLimiter(long limit, long overflowLevel, long period, TimeUnit unit)
+    {
+        this(limit, overflowLevel, period, unit, RateLimiterClock.SYSTEM);
+    }
+
+    /**
+     * Initializing constructor for an overflowing bucket.
+     *
+     * @param limit the maximum amount of consumption over a period of time.
+     * @param overflowLevel the overflow level, should be higher than the limit level and lower than
+     *            {@link #MAX_LEVEL}, a value of {@link #MAX_LEVEL} means an infinite bucket.
+     * @param period the period of time.
+     * @param unit the unit used to express the period of time.
+     * @param clock the clock used to measure time.
+     */
+    public LockFreeLeakyBucketRateLimiter(long limit, long overflowLevel, long period, TimeUnit unit,
+        RateLimiterClock clock)
+    {
+        super(limit, period, unit, clock);
+        this.leakrate = TimeUnit.NANOSECONDS.convert(period, unit) / limit;
+        this.overflowLevel = overflowLevel;
+        this.overflowing = overflowLevel < MAX_LEVEL;
+        this.origins[0] = clock.nanoTime();
+    }
+
+    /**
+     * Copy constructor.
+     *
+     * @param rateLimiter source object.
+     */
+    public LockFreeLeakyBucketRateLimiter(LockFreeLeakyBucketRateLimiter rateLimiter)
+    {
+        this(rateLimiter, false);
+    }
+
+    /**
+     * Copy constructor with reinitialization.
+     *
+     * @param rateLimiter the source to copy.
+     * @param empty when true, the copy is empty.
+     */
+    public LockFreeLeakyBucketRateLimiter(LockFreeLeakyBucketRateLimiter rateLimiter, boolean empty)
+    {
+        super(rateLimiter);
+        this.leakrate = rateLimiter.leakrate;
+        this.overflowLevel = rateLimiter.overflowLevel;
+        this.overflowing = rateLimiter.overflowing;
+        if (!empty) {
+            synchronized (rateLimiter) {
+                this.origins[0] = rateLimiter.origins[0];
+                this.origins[1] = rateLimiter.origins[1];
+                this.state = rateLimiter.state;
+            }
+        } else {
+            this.origins[0] = clock.nanoTime();
+        }
+    }
+
+    @Override
+    public RateLimiter clone(boolean empty)
+    {
+        return new LockFreeLeakyBucketRateLimiter(this, empty);
+    }
+
+    /**
+     * @return the leak rate of this bucket in nanoseconds.
+     */
+    public long getLeakRate()
+    {
+        return leakrate;
+    }
+
+    /**
+     * @return the overflow level of this bucket, or {@link #MAX_LEVEL} for an infinite bucket.
+     */
+    public long getOverflowLevel()
+    {
+        return overflowLevel;
+    }
+
+    private static int getEpoch(long state)
+    {
+        return (int) (state >>> EPOCH_SHIFT);
+    }
+
+    private static long getTicks(long state)
+    {
+        return (state >>> LEVEL_BITS) & MAX_TICKS;
+    }
+
+    private static long getLevel(long state)
+    {
+        return state & MAX_LEVEL;
+    }
+
+    private static long pack(int epoch, long ticks, long level)
+    {
+        return ((long) epoch << EPOCH_SHIFT) | (ticks << LEVEL_BITS) | level;
+    }
+
+    private long getOrigin(long state)
+    {
+        return origins[getEpoch(state)];
+    }
+
+    /**
+     * Move the origin of the ticks to the time of the given leak, since the count of ticks would overflow. The
+     * origin of the given state is kept for the consumers that have not seen the new state yet.
+     *
+     * @param current the state to rebase.
+     * @param leak the number of leaks elapsed since the time of the given state.
+     */
+    private synchronized void rebase(long current, long leak)
+    {
+        if (state == current) {
+            int epoch = getEpoch(current);
+            origins[1 - epoch] = origins[epoch] + (getTicks(current) + leak) * leakrate;
+            // Publish the new origin with the state using it
+            STATE.compareAndSet(this, current, pack(1 - epoch, 0, Math.max(0, getLevel(current) - leak)));
+        }
+    }
+
+    /**
+     * Atomically leak the bucket and add the given amount.
+     *
+     * @param amount the amount to add to the bucket.
+     * @param time the current time.
+     * @return the new state of the bucket, with the sign bit set when the consumption has been rejected.
+     */
+    private long internalConsume(long amount, long time)
+    {
+        while (true) {
+            long current = state;
+            long ticks = getTicks(current);
+            // Another thread may have already leaked up to a slightly later time than ours
+            long leak = Math.max(0, (time - getOrigin(current) - ticks * leakrate) / leakrate);
+            if (leak > MAX_TICKS - ticks) {
+                rebase(current, leak);
+                continue;
+            }
+            long level = Math.max(0, getLevel(current) - leak + amount);
+            boolean rejected = false;
+            if (level > overflowLevel) {
+                if (overflowing) {
+                    level = level - amount;
+                    rejected = true;
+                } else {
+                    level = MAX_LEVEL;
+                }
+            }
+            long next = pack(getEpoch(current), ticks + leak, level);
+            if (next == current || STATE.compareAndSet(this, current, next)) {
+                return rejected ? next | Long.MIN_VALUE : next;
+            }
+        }
+    }
+
+    @Override
+    public boolean consume(long amount, long now)
+    {
+        long result = internalConsume(amount, now);
+        return result >= 0 && getLevel(result) <= limit;
+    }
+
+    @Override
+    public long getAvailableAmount(boolean update)
+    {
+        long current = (update) ? internalConsume(0, clock.nanoTime()) : state;
+        return limit - getLevel(current);
+    }
+
+    @Override
+    public long getWaitingTime(long amount, TimeUnit unit, boolean update)
+    {
+        long current = (update) ? internalConsume(0, clock.nanoTime()) : state;
+        long overflow = (getLevel(current) - limit + amount);
+        if (overflow <= 0) {
+            return 0;
+        }
+        return unit.convert(overflow * leakrate, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public long getDrainTime(TimeUnit unit)
+    {
+        long current = state;
+        long drain =
+            getLevel(current) * leakrate - (clock.nanoTime() - getOrigin(current) - getTicks(current) * leakrate);
+        return (drain <= 0) ? 0 : unit.convert(drain, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void reset()
+    {
+        while (true) {
+            long current = state;
+            if (STATE.compareAndSet(this, current, pack(getEpoch(current), getTicks(current), 0))) {
+                return;
+            }
+        }
+    }
+
+    @Override
+    public int getStateSize()
+    {
+        return 1;
+    }
+
+    @Override
+    public void saveState(long[] state, int offset)
+    {
+        long current = this.state;
+        state[offset] =
+            getLevel(current) * leakrate - (clock.nanoTime() - getOrigin(current) - getTicks(current) * leakrate);
+    }
+
+    @Override
+    public synchronized void restoreState(long[] state, int offset)
+    {
+        long drain = state[offset];
+        long level = 0;
+        if (drain > 0) {
+            level = Math.min((drain + leakrate - 1) / leakrate, MAX_LEVEL);
+        }
+        // Restart the ticks from now, using the origin not used by the current state
+        int epoch = 1 - getEpoch(this.state);
+        origins[epoch] = clock.nanoTime();
+        STATE.set(this, pack(epoch, 0, level));
+    }
+}
@@ -29,7 +29,7 @@ import org.xwiki.contrib.ratelimiter.RateLimiter;
  *
  * @version $Id$
  */
-public class NoLimitRateLimiter implements RateLimiter
+public class NoLimitRateLimiter implements DrainableRateLimiter
 {
     @Override
     public long getPeriod()
@@ -91,6 +91,12 @@ public class NoLimitRateLimiter implements RateLimiter
         return 0;
     }
 
+    @Override
+    public long getDrainTime(TimeUnit unit)
+    {
+        return 0;
+    }
+
     @Override
     public void reset()
     {
@@ -0,0 +1,235 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.xwiki.contrib.ratelimiter.internal;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.manager.ComponentLifecycleException;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.contrib.ratelimiter.cluster.LeaseMessage;
+import org.xwiki.contrib.ratelimiter.cluster.LeaseTransport;
+import org.xwiki.contrib.ratelimiter.event.RateLimiterLeaseEvent;
+import org.xwiki.observation.AbstractEventListener;
+import org.xwiki.observation.ObservationManager;
+import org.xwiki.observation.event.Event;
+
+/**
+ * A {@link LeaseTransport} based on XWiki remote observation, which forwards serializable events to the other nodes
+ * of the cluster. Nodes announce themselves with a heartbeat every {@value #HEARTBEAT_INTERVAL} seconds, even when
+ * idle, and are forgotten when not heard of for {@value #NODE_TIMEOUT} seconds. Messages are sent from a dedicated
+ * thread, since events notified while handling a remote event are not forwarded, and are dropped when too many are
+ * waiting, with a warning logged at most once per {@value #DROP_WARNING_INTERVAL} seconds.
+ *
+ * @version $Id$
+ */
+@Component
+@Singleton
+public class ObservationLeaseTransport implements LeaseTransport, Initializable, Disposable
+{
+    /**
+     * Interval in seconds between two heartbeats of the local node.
+     */
+    public static final long HEARTBEAT_INTERVAL = 5;
+
+    /**
+     * Time in seconds after which a silent node is considered gone.
+     */
+    public static final long NODE_TIMEOUT = 30;
+
+    /**
+     * Minimum time in seconds between two warnings about dropped messages.
+     */
+    public static final long DROP_WARNING_INTERVAL = 60;
+
+    private static final String LISTENER_NAME = "RateLimiterLeaseListener";
+
+    private static final int MAX_PENDING_MESSAGES = 1000;
+
+    private static final Object[] EMPTY = new Object[0];
+
+    @Inject
+    private ObservationManager observationManager;
+
+    @Inject
+    private Logger logger;
+
+    private final String localNode = UUID.randomUUID().toString();
+
+    private final Map<String, Long> nodes = new ConcurrentHashMap<String, Long>();
+
+    private volatile Receiver receiver;
+
+    private final AtomicLong dropped = new AtomicLong();
+
+    private volatile long lastDropWarning;
+
+    private ThreadPoolExecutor sender;
+
+    private ScheduledExecutorService heartbeat;
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        ThreadFactory threadFactory = new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable runnable)
+            {
+                Thread thread = new Thread(runnable, "RateLimiter lease transport");
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+        sender = new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<Runnable>(MAX_PENDING_MESSAGES), threadFactory, new RejectedExecutionHandler()
+            {
+                @Override
+                public void rejectedExecution(Runnable runnable, ThreadPoolExecutor executor)
+                {
+                    onDropped(executor);
+                }
+            });
+
+        observationManager.addListener(new AbstractEventListener(LISTENER_NAME, new RateLimiterLeaseEvent())
+        {
+            @Override
+            public void onEvent(Event event, Object source, Object data)
+            {
+                if (data instanceof LeaseMessage) {
+                    onMessage((LeaseMessage) data);
+                }
+            }
+        });
+
+        lastDropWarning = System.nanoTime() - TimeUnit.SECONDS.toNanos(DROP_WARNING_INTERVAL);
+        heartbeat = Executors.newSingleThreadScheduledExecutor(threadFactory);
+        heartbeat.scheduleWithFixedDelay(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                send(new LeaseMessage(localNode, null, false, EMPTY, EMPTY, new int[0], new long[0], null));
+            }
+        }, 0, HEARTBEAT_INTERVAL, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public void dispose() throws ComponentLifecycleException
+    {
+        observationManager.removeListener(LISTENER_NAME);
+        heartbeat.shutdownNow();
+        sender.shutdownNow();
+    }
+
+    private void onDropped(ThreadPoolExecutor executor)
+    {
+        if (executor.isShutdown()) {
+            return;
+        }
+        long count = dropped.incrementAndGet();
+        long now = System.nanoTime();
+        // Only one of the threads dropping messages at the same time logs the warning
+        if (now - lastDropWarning >= TimeUnit.SECONDS.toNanos(DROP_WARNING_INTERVAL)
+            && dropped.compareAndSet(count, 0))
+        {
+            lastDropWarning = now;
+            logger.warn("[{}] rate limiter lease messages dropped, [{}] messages were already waiting to be sent.",
+                count, MAX_PENDING_MESSAGES);
+        }
+    }
+
+    private void onMessage(LeaseMessage message)
+    {
+        if (localNode.equals(message.getSource())) {
+            return;
+        }
+        nodes.put(message.getSource(), System.nanoTime());
+
+        Receiver current = receiver;
+        if (current != null && localNode.equals(message.getTarget())) {
+            current.receive(message);
+        }
+    }
+
+    @Override
+    public String getLocalNode()
+    {
+        return localNode;
+    }
+
+    @Override
+    public Collection<String> getNodes()
+    {
+        long now = System.nanoTime();
+        Collection<String> result = new ArrayList<String>();
+        result.add(localNode);
+        Iterator<Map.Entry<String, Long>> it = nodes.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Long> node = it.next();
+            if (now - node.getValue() >= TimeUnit.SECONDS.toNanos(NODE_TIMEOUT)) {
+                it.remove();
+            } else {
+                result.add(node.getKey());
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void send(final LeaseMessage message)
+    {
+        sender.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                observationManager.notify(new RateLimiterLeaseEvent(), localNode, message);
+            }
+        });
+    }
+
+    @Override
+    public void setReceiver(Receiver receiver)
+    {
+        this.receiver = receiver;
+    }
+}
@@ -0,0 +1,682 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.xwiki.contrib.ratelimiter.internal;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.xwiki.contrib.ratelimiter.RateLimiter;
+import org.xwiki.contrib.ratelimiter.RateLimiterBackend;
+import org.xwiki.contrib.ratelimiter.RateLimiterState;
+
+/**
+ * A {@link RateLimiterBackend} keeping the state of the rate limiters outside of the heap, in a direct buffer, or in a
+ * memory-mapped file which may be shared by several JVMs of the same host. Tracking millions of consumers this way
+ * puts no pressure on the garbage collector, since no object is retained per consumer.
+ * <p>
+ * The buffer holds a set-associative hash table: a consumer is hashed to a set of a few slots, looked up linearly.
+ * Each slot holds a 128 bits fingerprint of the consumer and consumed entity, the time at which all the buckets will be
+ * empty, after which the slot is free, and the time at which each bucket will be empty, like in
+ * {@link LeakyBucketPolicy}. When all the slots of a set are in use, the one that will be empty first is replaced.
+ * Slots are updated in place while holding a lock of their set. Within a process, sets are locked by a fixed number
+ * of striped locks. When the table is in a file, the region of the set in the file is also locked, which excludes
+ * the other processes sharing the file, and is released by the system if the process holding it dies.
+ * <p>
+ * Times are nanoseconds since the epoch, measured with the monotonic clock from the wall clock time at which the
+ * backend was created, so that processes sharing a file agree on them. Only leaky bucket rate limiters with up to
+ * {@link #MAX_BUCKETS} buckets are supported.
+ *
+ * @version $Id$
+ */
+public class OffHeapRateLimiterBackend implements RateLimiterBackend
+{
+    /**
+     * The maximum number of buckets of the supported rate limiters.
+     */
+    public static final int MAX_BUCKETS = 4;
+
+    /** "RLO" followed by the version of the layout, so that processes locking sets differently do not share a file. */
+    private static final int MAGIC = 0x524C4F02;
+
+    private static final int HEADER_SIZE = 64;
+
+    private static final int HEADER_MAGIC = 0;
+
+    private static final int HEADER_SETS = 4;
+
+    private static final int HEADER_WAYS = 8;
+
+    private static final int HEADER_BUCKETS = 12;
+
+    /** The number of slots of each set. */
+    private static final int WAYS = 8;
+
+    private static final int LONG_BYTES = Long.SIZE / Byte.SIZE;
+
+    private static final int SLOT_FINGERPRINT = 0;
+
+    private static final int SLOT_CHECK = LONG_BYTES;
+
+    private static final int SLOT_EXPIRE = 2 * LONG_BYTES;
+
+    private static final int SLOT_BUCKETS = 3 * LONG_BYTES;
+
+    private static final int SLOT_SIZE = SLOT_BUCKETS + MAX_BUCKETS * LONG_BYTES;
+
+    /** Each set starts with a reserved word. */
+    private static final int SET_SIZE = LONG_BYTES + WAYS * SLOT_SIZE;
+
+    /** The maximum number of locks serializing the updates of the sets within this process. */
+    private static final int MAX_STRIPES = 256;
+
+    private static final long FNV_OFFSET = 0xCBF29CE484222325L;
+
+    private static final long FNV_PRIME = 0x100000001B3L;
+
+    private static final long GOLDEN_GAMMA = 0x9E3779B97F4A7C15L;
+
+    private static final int MODE_CONSUME = 0;
+
+    private static final int MODE_PEEK = 1;
+
+    private static final char KEY_SEPARATOR = '|';
+
+    private final ByteBuffer buffer;
+
+    private final int setMask;
+
+    private final ReentrantLock[] stripes;
+
+    /** The lock of the region of the set locked by each stripe, only accessed while holding the stripe. */
+    private final FileLock[] regionLocks;
+
+    private final File file;
+
+    private volatile FileChannel channel;
+
+    private volatile boolean closed;
+
+    private final RateLimiter defaultTemplate;
+
+    private final ConcurrentMap<RateLimiter, LeakyBucketPolicy> policies =
+        new ConcurrentHashMap<RateLimiter, LeakyBucketPolicy>();
+
+    private final long originTime = TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis());
+
+    private final long originNanoTime = System.nanoTime();
+
+    /**
+     * Create a backend in a direct buffer, private to this process.
+     *
+     * @param capacity the number of rate limiters to be kept.
+     * @param defaultTemplate the rate limiter template used to report the state of existing rate limiters, see
+     *            {@link #get(Object, Object)}, or null if the state of the rate limiters is not needed.
+     * @throws IllegalArgumentException if the capacity is too large, or the default template is not made of leaky
+     *             buckets.
+     */
+    public OffHeapRateLimiterBackend(int capacity, RateLimiter defaultTemplate)
+    {
+        this.defaultTemplate = checkSupported(defaultTemplate);
+        this.file = null;
+        int sets = getSets(capacity);
+        this.buffer = ByteBuffer.allocateDirect(HEADER_SIZE + sets * SET_SIZE).order(ByteOrder.nativeOrder());
+        this.setMask = sets - 1;
+        this.stripes = createStripes(sets);
+        this.regionLocks = null;
+    }
+
+    /**
+     * Create a backend in a memory-mapped file, shared with the other processes using the same file. The file is
+     * created if needed, and the rate limiters it holds are kept.
+     *
+     * @param file the file holding the rate limiters.
+     * @param capacity the number of rate limiters to be kept, which should be the same in all processes.
+     * @param defaultTemplate the rate limiter template used to report the state of existing rate limiters, see
+     *            {@link #get(Object, Object)}, or null if the state of the rate limiters is not needed.
+     * @throws IOException if the file could not be mapped, or has been created with a different capacity.
+     * @throws IllegalArgumentException if the capacity is too large, or the default template is not made of leaky
+     *             buckets.
+     */
+    public OffHeapRateLimiterBackend(File file, int capacity, RateLimiter defaultTemplate) throws IOException
+    {
+        this.defaultTemplate = checkSupported(defaultTemplate);
+        this.file = file;
+        int sets = getSets(capacity);
+        File directory = file.getAbsoluteFile().getParentFile();
+        if (directory != null) {
+            directory.mkdirs();
+        }
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+            StandardOpenOption.WRITE);
+        try {
+            // Lock the file while checking its layout, so that processes starting together do not both initialize it
+            FileLock lock = channel.lock();
+            try {
+                boolean created = channel.size() == 0;
+                this.buffer =
+                    channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) sets * SET_SIZE)
+                        .order(ByteOrder.nativeOrder());
+                if (created) {
+                    buffer.putInt(HEADER_SETS, sets);
+                    buffer.putInt(HEADER_WAYS, WAYS);
+                    buffer.putInt(HEADER_BUCKETS, MAX_BUCKETS);
+                    buffer.putInt(HEADER_MAGIC, MAGIC);
+                } else if (buffer.getInt(HEADER_MAGIC) != MAGIC || buffer.getInt(HEADER_SETS) != sets
+                    || buffer.getInt(HEADER_WAYS) != WAYS || buffer.getInt(HEADER_BUCKETS) != MAX_BUCKETS) {
+                    throw new IOException(
+                        String.format("File [%s] is not a rate limiter table of capacity [%d].", file, capacity));
+                }
+            } finally {
+                lock.release();
+            }
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        this.setMask = sets - 1;
+        this.stripes = createStripes(sets);
+        this.regionLocks = new FileLock[stripes.length];
+    }
+
+    private static ReentrantLock[] createStripes(int sets)
+    {
+        ReentrantLock[] locks = new ReentrantLock[Math.min(sets, MAX_STRIPES)];
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new ReentrantLock();
+        }
+        return locks;
+    }
+
+    private RateLimiter checkSupported(RateLimiter template)
+    {
+        if (template != null) {
+            getPolicy(template);
+        }
+        return template;
+    }
+
+    private static int getSets(int capacity)
+    {
+        long needed = Math.max(1, ((long) capacity + WAYS - 1) / WAYS);
+        long sets = Long.highestOneBit(needed);
+        if (sets < needed) {
+            sets <<= 1;
+        }
+        if (sets * SET_SIZE + HEADER_SIZE > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException(String.format("Capacity [%d] is too large.", capacity));
+        }
+        return (int) sets;
+    }
+
+    /**
+     * Check that a rate limiter template is supported by this backend.
+     *
+     * @param template a rate limiter template.
+     * @throws IllegalArgumentException if the given template is not made of leaky buckets, or has too many buckets.
+     */
+    public void checkTemplate(RateLimiter template)
+    {
+        getPolicy(template);
+    }
+
+    private LeakyBucketPolicy getPolicy(RateLimiter template)
+    {
+        LeakyBucketPolicy policy = policies.get(template);
+        if (policy == null) {
+            policy = LeakyBucketPolicy.fromTemplate(template);
+            if (policy.size() > MAX_BUCKETS) {
+                throw new IllegalArgumentException(
+                    String.format("Rate limiters of more than %d buckets are not supported.", MAX_BUCKETS));
+            }
+            policies.putIfAbsent(template, policy);
+        }
+        return policy;
+    }
+
+    private long now()
+    {
+        return originTime + (System.nanoTime() - originNanoTime);
+    }
+
+    @Override
+    public RateLimiter get(Object consumer, Object consumed)
+    {
+        if (defaultTemplate == null) {
+            return null;
+        }
+        RateLimiterState state = execute(new Key(consumer, consumed), getPolicy(defaultTemplate), MODE_PEEK, 0);
+        return (state != null) ? state.getLimiter() : null;
+    }
+
+    @Override
+    public RateLimiterState consume(Object consumer, Object consumed, long amount, RateLimiter template)
+    {
+        return execute(new Key(consumer, consumed), getPolicy(template), MODE_CONSUME, amount);
+    }
+
+    @Override
+    public RateLimiterState[] consume(Object[] consumers, Object consumed, long[] amounts, RateLimiter[] templates)
+    {
+        RateLimiterState[] states = new RateLimiterState[consumers.length];
+        for (int i = 0; i < consumers.length; i++) {
+            states[i] = consume(consumers[i], consumed, amounts[i], templates[i]);
+        }
+        return states;
+    }
+
+    @Override
+    public void clear()
+    {
+        for (int set = 0; set <= setMask; set++) {
+            int offset = lock(set);
+            try {
+                for (int way = 0, slot = offset + LONG_BYTES; way < WAYS; way++, slot += SLOT_SIZE) {
+                    buffer.putLong(slot + SLOT_EXPIRE, 0);
+                }
+            } finally {
+                unlock(set);
+            }
+        }
+    }
+
+    /**
+     * Close the mapped file, if any. The memory of the table is released once this backend is garbage collected.
+     */
+    @Override
+    public void close()
+    {
+        closed = true;
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Nothing more to release
+            }
+        }
+    }
+
+    /**
+     * Consume on a rate limiter, or read its state.
+     *
+     * @return the state of the rate limiter, or null when peeking a missing rate limiter.
+     */
+    private RateLimiterState execute(Key key, LeakyBucketPolicy policy, int mode, long amount)
+    {
+        long[] state = new long[policy.size()];
+        boolean allowed = true;
+        boolean exhausted = false;
+        int offset = lock(key.set);
+        try {
+            long now = now();
+            int slot = find(offset, key, now);
+            if (slot > 0) {
+                for (int i = 0; i < state.length; i++) {
+                    state[i] = buffer.getLong(slot + SLOT_BUCKETS + i * LONG_BYTES);
+                    exhausted |= policy.getLevel(state, i, now) > policy.getLimit(i);
+                }
+            } else if (mode == MODE_PEEK) {
+                return null;
+            } else {
+                for (int i = 0; i < state.length; i++) {
+                    state[i] = now;
+                }
+            }
+
+            if (mode == MODE_CONSUME) {
+                allowed = policy.consume(state, amount, now);
+                long drain = policy.getDrainTime(state, now);
+                if (drain > 0) {
+                    if (slot < 0) {
+                        slot = allocate(offset, now);
+                        buffer.putLong(slot + SLOT_FINGERPRINT, key.fingerprint);
+                        buffer.putLong(slot + SLOT_CHECK, key.check);
+                    }
+                    buffer.putLong(slot + SLOT_EXPIRE, now + drain);
+                    for (int i = 0; i < state.length; i++) {
+                        buffer.putLong(slot + SLOT_BUCKETS + i * LONG_BYTES, state[i]);
+                    }
+                } else if (slot > 0) {
+                    buffer.putLong(slot + SLOT_EXPIRE, 0);
+                }
+            }
+        } finally {
+            unlock(key.set);
+        }
+        return new RateLimiterState(new OffHeapRateLimiter(key, policy, state), allowed, exhausted);
+    }
+
+    /**
+     * @return the offset of the slot of the given key, or -1 if it is missing or all its buckets are empty.
+     */
+    private int find(int offset, Key key, long now)
+    {
+        for (int way = 0, slot = offset + LONG_BYTES; way < WAYS; way++, slot += SLOT_SIZE) {
+            if (buffer.getLong(slot + SLOT_FINGERPRINT) == key.fingerprint
+                && buffer.getLong(slot + SLOT_CHECK) == key.check && buffer.getLong(slot + SLOT_EXPIRE) > now) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the offset of a free slot, or of the slot that will be empty first when all are in use.
+     */
+    private int allocate(int offset, long now)
+    {
+        int victim = offset + LONG_BYTES;
+        long victimExpire = Long.MAX_VALUE;
+        for (int way = 0, slot = offset + LONG_BYTES; way < WAYS; way++, slot += SLOT_SIZE) {
+            long expire = buffer.getLong(slot + SLOT_EXPIRE);
+            if (expire <= now) {
+                return slot;
+            }
+            if (expire < victimExpire) {
+                victim = slot;
+                victimExpire = expire;
+            }
+        }
+        return victim;
+    }
+
+    /**
+     * Acquire the lock of a set.
+     *
+     * @return the offset of the set.
+     */
+    private int lock(int set)
+    {
+        int stripe = set & (stripes.length - 1);
+        stripes[stripe].lock();
+        int offset = HEADER_SIZE + set * SET_SIZE;
+        if (file != null) {
+            try {
+                regionLocks[stripe] = lockRegion(offset);
+            } catch (IOException e) {
+                stripes[stripe].unlock();
+                throw new IllegalStateException(String.format("Failed to lock the rate limiter table [%s].", file),
+                    e);
+            }
+        }
+        return offset;
+    }
+
+    private void unlock(int set)
+    {
+        int stripe = set & (stripes.length - 1);
+        try {
+            if (regionLocks != null && regionLocks[stripe] != null) {
+                regionLocks[stripe].release();
+                regionLocks[stripe] = null;
+            }
+        } catch (IOException e) {
+            // The region is unlocked anyway when the channel is closed
+        } finally {
+            stripes[stripe].unlock();
+        }
+    }
+
+    /**
+     * Lock the region of a set in the file, excluding the other processes.
+     */
+    private FileLock lockRegion(int offset) throws IOException
+    {
+        // A thread interrupted while locking closes the channel, so the interruption is only restored afterwards
+        boolean interrupted = Thread.interrupted();
+        try {
+            while (true) {
+                try {
+                    return channel.lock(offset, SET_SIZE, false);
+                } catch (ClosedChannelException e) {
+                    reopen();
+                } catch (OverlappingFileLockException e) {
+                    // Held by another backend sharing the same file in this process
+                    Thread.yield();
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private synchronized void reopen() throws IOException
+    {
+        if (closed) {
+            throw new ClosedChannelException();
+        }
+        if (!channel.isOpen()) {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+    }
+
+    /**
+     * The fingerprint of a consumer and consumed entity, and the set where their rate limiter is kept.
+     */
+    private final class Key
+    {
+        private final long fingerprint;
+
+        private final long check;
+
+        private final int set;
+
+        Key(Object consumer, Object consumed)
+        {
+            // Two independent 64 bits hashes of the keys, which should be stable across processes
+            long[] hashes = {FNV_OFFSET, GOLDEN_GAMMA};
+            hash(hashes, consumer);
+            hash(hashes, consumed);
+            this.fingerprint = hashes[0];
+            this.check = mix(hashes[1]);
+            this.set = (int) (mix(fingerprint) >>> Integer.SIZE) & setMask;
+        }
+
+        private void hash(long[] hashes, Object key)
+        {
+            // Hash the type of the key too, so that a string does not collide with an address
+            if (key != null) {
+                hash(hashes, key.getClass().getName());
+                hash(hashes, key.toString());
+            }
+        }
+
+        private void hash(long[] hashes, String value)
+        {
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                hashes[0] = (hashes[0] ^ c) * FNV_PRIME;
+                hashes[1] = (hashes[1] + c) * GOLDEN_GAMMA;
+            }
+            hashes[0] = (hashes[0] ^ KEY_SEPARATOR) * FNV_PRIME;
+            hashes[1] = (hashes[1] + KEY_SEPARATOR) * GOLDEN_GAMMA;
+        }
+
+        private long mix(long value)
+        {
+            long z = value;
+            z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+            z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+            return z ^ (z >>> 31);
+        }
+    }
+
+    /**
+     * A view on a rate limiter kept in the table, reporting its state as of its last access.
+     */
+    private final class OffHeapRateLimiter implements CompositeRateLimiter, DrainableRateLimiter
+    {
+        private final Key key;
+
+        private final LeakyBucketPolicy policy;
+
+        private volatile long[] state;
+
+        OffHeapRateLimiter(Key key, LeakyBucketPolicy policy, long[] state)
+        {
+            this.key = key;
+            this.policy = policy;
+            this.state = state;
+        }
+
+        private void refresh()
+        {
+            RateLimiterState current = execute(key, policy, MODE_PEEK, 0);
+            if (current != null) {
+                this.state = ((OffHeapRateLimiter) current.getLimiter()).state;
+            }
+        }
+
+        @Override
+        public boolean consume(long amount)
+        {
+            RateLimiterState current = execute(key, policy, MODE_CONSUME, amount);
+            this.state = ((OffHeapRateLimiter) current.getLimiter()).state;
+            return current.isAllowed();
+        }
+
+        @Override
+        public RateLimiter clone(boolean empty)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public long getAvailableAmount()
+        {
+            return getAvailableAmount(true);
+        }
+
+        @Override
+        public long getAvailableAmount(boolean update)
+        {
+            if (update) {
+                refresh();
+            }
+            long[] buckets = state;
+            long now = now();
+            long amount = Long.MAX_VALUE;
+            for (int i = 0; i < buckets.length; i++) {
+                amount = Math.min(amount, policy.getAvailableAmount(buckets, i, now));
+            }
+            return amount;
+        }
+
+        @Override
+        public long getWaitingTime(long amount, TimeUnit unit)
+        {
+            return getWaitingTime(amount, unit, true);
+        }
+
+        @Override
+        public long getWaitingTime(long amount, TimeUnit unit, boolean update)
+        {
+            if (update) {
+                refresh();
+            }
+            long[] buckets = state;
+            long now = now();
+            long waitTime = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                waitTime = Math.max(waitTime, policy.getWaitingTime(buckets, i, amount, now));
+            }
+            return unit.convert(waitTime, TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public long getDrainTime(TimeUnit unit)
+        {
+            return unit.convert(policy.getDrainTime(state, now()), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public void reset()
+        {
+            int offset = lock(key.set);
+            try {
+                int slot = find(offset, key, now());
+                if (slot > 0) {
+                    buffer.putLong(slot + SLOT_EXPIRE, 0);
+                }
+            } finally {
+                unlock(key.set);
+            }
+            long[] buckets = new long[policy.size()];
+            long now = now();
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = now;
+            }
+            this.state = buckets;
+        }
+
+        @Override
+        public Collection<RateLimiter> getRateLimiters()
+        {
+            long[] buckets = state;
+            long now = now();
+            List<RateLimiter> limiters = new ArrayList<RateLimiter>(buckets.length);
+            for (int i = 0; i < buckets.length; i++) {
+                limiters.add(new LeakyBucketView(policy, i, policy.getAvailableAmount(buckets, i, now)));
+            }
+            return limiters;
+        }
+
+        @Override
+        public long getPeriod()
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public long getPeriod(TimeUnit unit)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public TimeUnit getPeriodUnit()
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public long getLimit()
+        {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
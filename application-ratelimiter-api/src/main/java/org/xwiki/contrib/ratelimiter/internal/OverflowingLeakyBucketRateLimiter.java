@@ -22,6 +22,8 @@ package org.xwiki.contrib.ratelimiter.internal;
 
 import java.util.concurrent.TimeUnit;
 
+import org.xwiki.contrib.ratelimiter.RateLimiterClock;
+
 /**
  * Implement a {@link org.xwiki.contrib.ratelimiter.RateLimiter} using a leaky bucket like algorithm. The bucket might overflow, and the bucket
  * level should be also lower than limit in order to allow normal consumption. When the amount added to the bucket
@@ -35,7 +37,13 @@ class OverflowingLeakyBucketRateLimiter extends InfiniteLeakyBucketRateLimiter
 
     public OverflowingLeakyBucketRateLimiter(long limit, long overflowLevel, long period, TimeUnit unit)
     {
-        super(limit, period, unit);
+        this(limit, overflowLevel, period, unit, RateLimiterClock.SYSTEM);
+    }
+
+    public OverflowingLeakyBucketRateLimiter(long limit, long overflowLevel, long period, TimeUnit unit,
+        RateLimiterClock clock)
+    {
+        super(limit, period, unit, clock);
         this.overflowLevel = overflowLevel;
     }
 
@@ -51,9 +59,9 @@ class OverflowingLeakyBucketRateLimiter extends InfiniteLeakyBucketRateLimiter
     }
 
     @Override
-    protected synchronized boolean internalConsume(long amount)
+    protected synchronized boolean internalConsume(long amount, long now)
     {
-        boolean result = super.internalConsume(amount);
+        boolean result = super.internalConsume(amount, now);
         if (bucketLevel > overflowLevel) {
             bucketLevel = bucketLevel - amount;
             return false;
@@ -0,0 +1,54 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.xwiki.contrib.ratelimiter.internal;
+
+/**
+ * A {@link DrainableRateLimiter} whose state could be saved and later restored into an empty clone of the same
+ * template. The state is expressed as the time remaining until each of its buckets is empty, so it does not depend
+ * on the clock, and could be restored after a restart, once reduced by the elapsed time.
+ *
+ * @version $Id$
+ */
+public interface PersistentRateLimiter extends DrainableRateLimiter
+{
+    /**
+     * @return the number of values of the state of this limiter, or -1 if this limiter could not be persisted.
+     */
+    int getStateSize();
+
+    /**
+     * Save the state of this limiter.
+     *
+     * @param state the array receiving the time in nanoseconds remaining until each bucket is empty.
+     * @param offset the index of the first value to write.
+     */
+    void saveState(long[] state, int offset);
+
+    /**
+     * Restore a state previously saved by a limiter created from the same template.
+     *
+     * @param state the array holding the time in nanoseconds remaining until each bucket is empty, which may be
+     *            negative for buckets already empty.
+     * @param offset the index of the first value to read.
+     */
+    void restoreState(long[] state, int offset);
+}
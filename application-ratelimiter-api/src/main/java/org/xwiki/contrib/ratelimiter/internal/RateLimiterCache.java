@@ -20,26 +20,38 @@
 
 package org.xwiki.contrib.ratelimiter.internal;
 
-import org.xwiki.component.annotation.Role;
 import org.xwiki.contrib.ratelimiter.RateLimiter;
+import org.xwiki.contrib.ratelimiter.RateLimiterBackend;
+import org.xwiki.contrib.ratelimiter.RateLimiterState;
 
 /**
- * A cache for storing rate limiters per entities (ie: users).
+ * A cache for storing rate limiters per entities (ie: users) in the local memory.
  *
  * @version $Id$
  */
-@Role
-public interface RateLimiterCache
+public interface RateLimiterCache extends RateLimiterBackend
 {
     /**
-     * Get the rate limiter for the given entity.
+     * Get the rate limiter for the given entity, creating it from the given template if the cache does not contain
+     * any rate limiter for that pair.
      *
      * @param consumer the entity consuming.
      * @param consumed the entity being consumed.
-     * @return the rate limiter for the entity pair or NULL if the cache does not contains any rate limiter for that
-     *         pair.
+     * @param template the rate limiter to clone for creating a missing rate limiter.
+     * @return the rate limiter for the entity pair.
      */
-    RateLimiter get(Object consumer, Object consumed);
+    RateLimiter get(Object consumer, Object consumed, RateLimiter template);
+
+    /**
+     * Get the rate limiters of several entity pairs at once, creating the missing ones from the given templates.
+     *
+     * @param consumers the entities consuming.
+     * @param consumed the entities being consumed, one for each consumer.
+     * @param templates the rate limiter to clone for creating a missing rate limiter of each pair, or null to not
+     *            create it.
+     * @return the rate limiter of each pair, or null for missing rate limiters without template.
+     */
+    RateLimiter[] get(Object[] consumers, Object[] consumed, RateLimiter[] templates);
 
     /**
      * Add the provided rate limiter to the cache for the given entity.
@@ -51,7 +63,14 @@ public interface RateLimiterCache
     void add(Object consumer, Object consumed, RateLimiter limiter);
 
     /**
-     * Clear the cache.
+     * Get the state of a rate limiter returned by this cache after consuming it directly, tracking its exhaustion
+     * like {@link #consume(Object, Object, long, RateLimiter)} does.
+     *
+     * @param consumer the entity consuming.
+     * @param consumed the entity being consumed.
+     * @param limiter the rate limiter that has been consumed.
+     * @param allowed true if the consumption was under the limitation.
+     * @return the state of the rate limiter after the consumption.
      */
-    void clear();
+    RateLimiterState track(Object consumer, Object consumed, RateLimiter limiter, boolean allowed);
 }
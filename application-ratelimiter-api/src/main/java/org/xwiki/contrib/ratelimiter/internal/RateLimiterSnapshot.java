@@ -0,0 +1,561 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.xwiki.contrib.ratelimiter.internal;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xwiki.contrib.ratelimiter.IpAddressKey;
+import org.xwiki.contrib.ratelimiter.RateLimiter;
+import org.xwiki.model.reference.EntityReference;
+
+/**
+ * Save the limiters of a {@link RateLimiterStore} to a compact binary file, and restore them, so that consumers do
+ * not get a fresh quota when the wiki restarts. Only the limiters implementing {@link PersistentRateLimiter}, for
+ * consumers and consumed entities which are strings, {@link IpAddressKey} or {@link EntityReference}, are saved.
+ * <p>
+ * The file starts with a header holding the wall clock time of the snapshot, followed by one record per limiter:
+ * the size of its state, a hash of its encoded keys, the length of these keys, the time remaining until each of its
+ * buckets is empty, and finally the encoded keys. Restoring maps the file in memory and only indexes the records of
+ * the limiters not drained yet, which takes a few milliseconds even for millions of records. Limiters are then
+ * decoded lazily, the first time they are requested from the store, their remaining times being reduced by the time
+ * elapsed since the snapshot. Records not loaded yet are carried over to the next snapshots, until they are drained.
+ * <p>
+ * Network prefixes are restored from the aggregate template, and other consumers from the individual template, the
+ * saved limiters being ignored when the template is no more compatible.
+ *
+ * @version $Id$
+ */
+class RateLimiterSnapshot implements Runnable, RateLimiterStore.Loader
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(RateLimiterSnapshot.class);
+
+    /** "RLS" followed by the version of the format. */
+    private static final int MAGIC = 0x524C5302;
+
+    private static final int MAX_STATE_SIZE = 0xFF;
+
+    private static final int BYTE_MASK = 0xFF;
+
+    private static final int INT_BYTES = Integer.SIZE / Byte.SIZE;
+
+    private static final int LONG_BYTES = Long.SIZE / Byte.SIZE;
+
+    /** Size of the record header: state size, keys hash, and keys length. */
+    private static final int RECORD_HEADER = 1 + 2 * INT_BYTES;
+
+    private static final int FNV_OFFSET = 0x811C9DC5;
+
+    private static final int FNV_PRIME = 0x01000193;
+
+    private static final int REMOVED = -1;
+
+    private static final byte END = 0;
+
+    private static final byte NULL = 0;
+
+    private static final byte STRING = 1;
+
+    private static final byte ADDRESS = 2;
+
+    private static final byte REFERENCE = 3;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final RateLimiterStore store;
+
+    private final File file;
+
+    private final RateLimiter template;
+
+    private final RateLimiter aggregateTemplate;
+
+    private final Collection<RateLimiterSnapshot> registry;
+
+    /** Serialize the snapshots, the lock of the snapshot being taken by the store while holding its own locks. */
+    private final Object saveLock = new Object();
+
+    private volatile Future<?> future;
+
+    /** The restored snapshot, or null once all its records have been loaded or drained. */
+    private ByteBuffer restored;
+
+    /** The wall clock time of the restored snapshot. */
+    private long restoredAt;
+
+    /** The wall clock time at which all the records of the restored snapshot are drained. */
+    private long restoredUntil;
+
+    /** Open addressing index of the restored records not loaded yet, by hash of their keys. */
+    private int[] hashes;
+
+    /** The offsets of the indexed records, 0 for free slots and {@link #REMOVED} for loaded records. */
+    private int[] offsets;
+
+    private int pending;
+
+    /**
+     * Constructor.
+     *
+     * @param store the store to be saved and restored.
+     * @param file the snapshot file.
+     * @param template the template of individual limiters.
+     * @param aggregateTemplate the template of network prefix limiters, or null if there are none.
+     * @param registry the collection of the snapshots to be saved on shutdown, which this snapshot joins when it is
+     *            scheduled, and leaves when it is closed.
+     */
+    RateLimiterSnapshot(RateLimiterStore store, File file, RateLimiter template, RateLimiter aggregateTemplate,
+        Collection<RateLimiterSnapshot> registry)
+    {
+        this.store = store;
+        this.file = file;
+        this.template = template;
+        this.aggregateTemplate = aggregateTemplate;
+        this.registry = registry;
+    }
+
+    /**
+     * @param future the periodic execution of this snapshot, to be cancelled when it is closed.
+     */
+    void setFuture(Future<?> future)
+    {
+        this.future = future;
+        registry.add(this);
+    }
+
+    /**
+     * Stop the periodic snapshots and save a last one.
+     */
+    void close()
+    {
+        registry.remove(this);
+        Future<?> scheduled = future;
+        if (scheduled != null) {
+            scheduled.cancel(false);
+        }
+        run();
+    }
+
+    @Override
+    public void run()
+    {
+        try {
+            save();
+        } catch (IOException e) {
+            LOGGER.warn("Failed to save the rate limiter snapshot [{}]: {}", file, e.getMessage());
+        }
+    }
+
+    /**
+     * Save the limiters of the store, and the restored limiters not loaded yet, replacing the previous snapshot
+     * atomically.
+     *
+     * @return the number of limiters saved.
+     * @throws IOException if the snapshot could not be written.
+     */
+    int save() throws IOException
+    {
+        synchronized (saveLock) {
+            File directory = file.getAbsoluteFile().getParentFile();
+            directory.mkdirs();
+            File temporary = new File(directory, file.getName() + ".tmp");
+
+            final long now = System.currentTimeMillis();
+            final OutputStream out = new BufferedOutputStream(new FileOutputStream(temporary));
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            final DataOutputStream data = new DataOutputStream(bytes);
+            final KeyEncoder encoder = new KeyEncoder();
+            final long[] state = new long[MAX_STATE_SIZE];
+            final int[] count = new int[1];
+            try {
+                data.writeInt(MAGIC);
+                data.writeLong(now);
+                // Records are buffered in memory while holding the lock of a segment, and written once it is released
+                store.visit(new RateLimiterStore.Visitor()
+                {
+                    @Override
+                    public void visit(Object consumer, Object consumed, RateLimiter limiter) throws IOException
+                    {
+                        if (write(data, encoder, state, consumer, consumed, limiter)) {
+                            count[0]++;
+                        }
+                    }
+
+                    @Override
+                    public void segmentVisited() throws IOException
+                    {
+                        bytes.writeTo(out);
+                        bytes.reset();
+                    }
+                });
+                count[0] += writePending(data, now);
+                data.writeByte(END);
+                bytes.writeTo(out);
+                out.close();
+            } catch (IOException e) {
+                out.close();
+                temporary.delete();
+                throw e;
+            }
+
+            try {
+                Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            return count[0];
+        }
+    }
+
+    private static boolean write(DataOutputStream data, KeyEncoder encoder, long[] state, Object consumer,
+        Object consumed, RateLimiter limiter) throws IOException
+    {
+        if (!(limiter instanceof PersistentRateLimiter) || !encoder.encode(consumer, consumed)) {
+            return false;
+        }
+        PersistentRateLimiter persistent = (PersistentRateLimiter) limiter;
+        int size = persistent.getStateSize();
+        if (size <= 0 || size > MAX_STATE_SIZE) {
+            return false;
+        }
+        persistent.saveState(state, 0);
+        long drain = 0;
+        for (int i = 0; i < size; i++) {
+            drain = Math.max(drain, state[i]);
+        }
+        if (drain <= 0) {
+            // Drained limiters are equivalent to missing ones
+            return false;
+        }
+
+        data.writeByte(size);
+        data.writeInt(encoder.hash());
+        data.writeInt(encoder.size());
+        for (int i = 0; i < size; i++) {
+            data.writeLong(state[i]);
+        }
+        encoder.writeTo(data);
+        return true;
+    }
+
+    /**
+     * Copy the restored records not loaded yet, reducing their remaining times by the time elapsed since they have
+     * been saved.
+     */
+    private synchronized int writePending(DataOutputStream data, long now) throws IOException
+    {
+        if (!isRestoring(now)) {
+            return 0;
+        }
+        long elapsed = TimeUnit.MILLISECONDS.toNanos(now - restoredAt);
+        int count = 0;
+        for (int offset : offsets) {
+            if (offset > 0) {
+                int size = restored.get(offset) & BYTE_MASK;
+                int keysLength = restored.getInt(offset + 1 + INT_BYTES);
+                int states = offset + RECORD_HEADER;
+                long drain = 0;
+                for (int i = 0; i < size; i++) {
+                    drain = Math.max(drain, restored.getLong(states + i * LONG_BYTES) - elapsed);
+                }
+                if (drain > 0) {
+                    data.writeByte(size);
+                    data.writeInt(restored.getInt(offset + 1));
+                    data.writeInt(keysLength);
+                    for (int i = 0; i < size; i++) {
+                        data.writeLong(restored.getLong(states + i * LONG_BYTES) - elapsed);
+                    }
+                    int keys = states + size * LONG_BYTES;
+                    for (int i = 0; i < keysLength; i++) {
+                        data.writeByte(restored.get(keys + i));
+                    }
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Index the snapshot file, so that the limiters it holds are loaded by the store the first time they are
+     * requested.
+     *
+     * @return the number of limiters to be restored.
+     * @throws IOException if the snapshot could not be read.
+     */
+    int restore() throws IOException
+    {
+        if (!file.isFile()) {
+            return 0;
+        }
+        ByteBuffer buffer;
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Snapshot too large.");
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            channel.close();
+        }
+
+        int count = index(buffer);
+        if (count > 0) {
+            store.setLoader(this);
+        }
+        return count;
+    }
+
+    private synchronized int index(ByteBuffer buffer) throws IOException
+    {
+        try {
+            if (buffer.getInt() != MAGIC) {
+                throw new IOException("Unsupported snapshot format.");
+            }
+            long savedAt = buffer.getLong();
+            long elapsed = TimeUnit.MILLISECONDS.toNanos(Math.max(0, System.currentTimeMillis() - savedAt));
+
+            // Records are at least as large as their header and state, which bounds their number
+            int capacity = Integer.highestOneBit(Math.max(1, buffer.remaining() / (RECORD_HEADER + LONG_BYTES))) << 2;
+            int[] indexHashes = new int[capacity];
+            int[] indexOffsets = new int[capacity];
+            int mask = capacity - 1;
+            long horizon = 0;
+            int count = 0;
+            int size;
+            while ((size = buffer.get(buffer.position()) & BYTE_MASK) != END) {
+                int offset = buffer.position();
+                int hash = buffer.getInt(offset + 1);
+                int keysLength = buffer.getInt(offset + 1 + INT_BYTES);
+                int states = offset + RECORD_HEADER;
+                long drain = 0;
+                for (int i = 0; i < size; i++) {
+                    drain = Math.max(drain, buffer.getLong(states + i * LONG_BYTES));
+                }
+                if (drain > elapsed) {
+                    int slot = hash & mask;
+                    while (indexOffsets[slot] != 0) {
+                        slot = (slot + 1) & mask;
+                    }
+                    indexHashes[slot] = hash;
+                    indexOffsets[slot] = offset;
+                    horizon = Math.max(horizon, drain);
+                    count++;
+                }
+                buffer.position(states + size * LONG_BYTES + keysLength);
+            }
+
+            if (count > 0) {
+                this.restored = buffer;
+                this.restoredAt = savedAt;
+                this.restoredUntil = savedAt + TimeUnit.NANOSECONDS.toMillis(horizon) + 1;
+                this.hashes = indexHashes;
+                this.offsets = indexOffsets;
+                this.pending = count;
+            }
+            return count;
+        } catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e) {
+            throw new IOException("Truncated or corrupted snapshot.", e);
+        }
+    }
+
+    private boolean isRestoring(long now)
+    {
+        if (restored != null && (pending == 0 || now >= restoredUntil)) {
+            // Release the mapping, all its records have been loaded or are drained
+            restored = null;
+            hashes = null;
+            offsets = null;
+            store.setLoader(null);
+        }
+        return restored != null;
+    }
+
+    @Override
+    public RateLimiter load(Object consumer, Object consumed)
+    {
+        KeyEncoder encoder = new KeyEncoder();
+        try {
+            if (!encoder.encode(consumer, consumed)) {
+                return null;
+            }
+        } catch (IOException e) {
+            return null;
+        }
+        RateLimiter limiterTemplate =
+            (consumer instanceof IpAddressKey && ((IpAddressKey) consumer).isPrefix()) ? aggregateTemplate : template;
+        return load(encoder, limiterTemplate);
+    }
+
+    private synchronized RateLimiter load(KeyEncoder encoder, RateLimiter limiterTemplate)
+    {
+        long now = System.currentTimeMillis();
+        if (!isRestoring(now)) {
+            return null;
+        }
+        int hash = encoder.hash();
+        int mask = offsets.length - 1;
+        for (int slot = hash & mask; offsets[slot] != 0; slot = (slot + 1) & mask) {
+            int offset = offsets[slot];
+            if (offset > 0 && hashes[slot] == hash && encoder.matches(restored, offset)) {
+                // A record is loaded only once, later requests being served by the store
+                offsets[slot] = REMOVED;
+                pending--;
+                return decode(offset, limiterTemplate, TimeUnit.MILLISECONDS.toNanos(now - restoredAt));
+            }
+        }
+        return null;
+    }
+
+    private RateLimiter decode(int offset, RateLimiter limiterTemplate, long elapsed)
+    {
+        if (limiterTemplate == null) {
+            return null;
+        }
+        int size = restored.get(offset) & BYTE_MASK;
+        RateLimiter limiter = limiterTemplate.clone(true);
+        if (!(limiter instanceof PersistentRateLimiter) || ((PersistentRateLimiter) limiter).getStateSize() != size) {
+            return null;
+        }
+        long[] state = new long[size];
+        long drain = 0;
+        for (int i = 0; i < size; i++) {
+            state[i] = restored.getLong(offset + RECORD_HEADER + i * LONG_BYTES) - elapsed;
+            drain = Math.max(drain, state[i]);
+        }
+        if (drain <= 0) {
+            return null;
+        }
+        ((PersistentRateLimiter) limiter).restoreState(state, 0);
+        return limiter;
+    }
+
+    /**
+     * Encode the keys of a limiter, in order to write them, or to look them up in a restored snapshot.
+     */
+    private static final class KeyEncoder extends ByteArrayOutputStream
+    {
+        private final DataOutputStream data = new DataOutputStream(this);
+
+        /**
+         * @return false if the given keys could not be encoded.
+         */
+        boolean encode(Object consumer, Object consumed) throws IOException
+        {
+            reset();
+            return isSupported(consumer) && isSupported(consumed) && writeKey(consumer) && writeKey(consumed);
+        }
+
+        private boolean isSupported(Object key)
+        {
+            return key == null || key instanceof String || key instanceof IpAddressKey
+                || key instanceof EntityReference;
+        }
+
+        private boolean writeKey(Object key) throws IOException
+        {
+            if (key == null) {
+                data.writeByte(NULL);
+            } else if (key instanceof String) {
+                data.writeByte(STRING);
+                writeString((String) key);
+            } else if (key instanceof IpAddressKey) {
+                IpAddressKey address = (IpAddressKey) key;
+                data.writeByte(ADDRESS);
+                data.writeLong(address.getHighBits());
+                data.writeLong(address.getLowBits());
+                data.writeByte(address.getBitLength());
+            } else {
+                data.writeByte(REFERENCE);
+                writeReference((EntityReference) key, 1);
+            }
+            return true;
+        }
+
+        private void writeReference(EntityReference reference, int depth) throws IOException
+        {
+            // Write the depth first, then the references from the root
+            if (reference.getParent() != null) {
+                writeReference(reference.getParent(), depth + 1);
+            } else {
+                data.writeByte(depth);
+            }
+            data.writeByte(reference.getType().ordinal());
+            writeString(reference.getName());
+        }
+
+        private void writeString(String value) throws IOException
+        {
+            byte[] bytes = value.getBytes(UTF8);
+            data.writeInt(bytes.length);
+            data.write(bytes);
+        }
+
+        /**
+         * @return a hash of the encoded keys, stable across restarts.
+         */
+        int hash()
+        {
+            int hash = FNV_OFFSET;
+            for (int i = 0; i < count; i++) {
+                hash = (hash ^ (buf[i] & BYTE_MASK)) * FNV_PRIME;
+            }
+            return hash ^ (hash >>> Short.SIZE);
+        }
+
+        /**
+         * @return true if the given record holds the encoded keys.
+         */
+        boolean matches(ByteBuffer buffer, int offset)
+        {
+            if (buffer.getInt(offset + 1 + INT_BYTES) != count) {
+                return false;
+            }
+            int keys = offset + RECORD_HEADER + (buffer.get(offset) & BYTE_MASK) * LONG_BYTES;
+            for (int i = 0; i < count; i++) {
+                if (buffer.get(keys + i) != buf[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
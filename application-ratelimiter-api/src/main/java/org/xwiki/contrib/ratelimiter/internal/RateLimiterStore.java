@@ -0,0 +1,798 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.xwiki.contrib.ratelimiter.internal;
+
+import java.io.IOException;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+import org.xwiki.contrib.ratelimiter.RateLimiter;
+import org.xwiki.contrib.ratelimiter.RateLimiterBackend;
+import org.xwiki.contrib.ratelimiter.RateLimiterClock;
+import org.xwiki.contrib.ratelimiter.RateLimiterServiceFactory;
+import org.xwiki.contrib.ratelimiter.RateLimiterState;
+
+/**
+ * A {@link RateLimiterCache} dedicated to rate limiters, keeping at most a given number of limiters. Entries are
+ * keyed on both the consumer and the consumed entities, compared using {@link Object#equals(Object)}, so distinct
+ * pairs never share a limiter, and looking up a limiter never allocates.
+ * <p>
+ * The store is split in independently locked segments, each holding a hash table. Limiters are created from a
+ * template under the lock of a single segment, so concurrent creations for different consumers rarely wait on each
+ * other.
+ * <p>
+ * Limiters are expired once they are fully drained, since an empty limiter could be recreated from the template
+ * without any loss. Each segment schedules its entries on a timing wheel of {@value #WHEEL_SIZE} slots of one
+ * second, swept at most once per second, and only checks the drain time of the entries of the elapsed slots.
+ * When a segment exceeds its share of the capacity, drained limiters are evicted first, then the least recently used
+ * ones, but exhausted limiters are spared whenever possible, so abusers are not handed a fresh quota by a flood of
+ * new consumers.
+ * <p>
+ * In a full segment, a new consumer is only admitted when a {@link FrequencySketch} estimates that it has been seen
+ * more often recently than the limiter that would be evicted for it, or when that limiter is drained. Until then,
+ * the consumers refused by a segment share a newcomers limiter, so a scan of one-shot consumers neither churns the
+ * store nor escapes limitation. Each segment keeps one newcomers limiter per template, since keys limited by distinct
+ * templates, like consumers and their network prefix, may live in the same store.
+ * <p>
+ * Each entry, including the newcomers ones, tracks whether its limiter is exhausted, set by the first rejected
+ * consumption and cleared by the next allowed one, so that exhaustion is only reported once. This cannot be inferred
+ * from the available amount of the limiter, since most limiters do not account rejected consumptions.
+ *
+ * @version $Id$
+ */
+public class RateLimiterStore implements RateLimiterCache
+{
+    /**
+     * Default maximum number of limiters kept by a store.
+     */
+    public static final int DEFAULT_CAPACITY = RateLimiterServiceFactory.DEFAULT_CAPACITY;
+
+    /**
+     * Number of slots of the timing wheel of each segment.
+     */
+    public static final int WHEEL_SIZE = 64;
+
+    private static final int SEGMENT_BITS = 4;
+    private static final int SEGMENT_COUNT = 1 << SEGMENT_BITS;
+    private static final int SEGMENT_SHIFT = Integer.SIZE - SEGMENT_BITS;
+    private static final int SEGMENT_MIX = 0x9E3779B9;
+    private static final int INITIAL_TABLE_SIZE = 16;
+
+    private static final long TICK = TimeUnit.SECONDS.toNanos(1);
+
+    /** Maximum number of least recently used entries examined to find an eviction victim. */
+    private static final int EVICTION_SCAN = 16;
+
+    private final Segment[] segments = new Segment[SEGMENT_COUNT];
+
+    private final RateLimiterClock clock;
+
+    private final long origin;
+
+    /** The last tick at which all segments have been swept. */
+    private volatile long sweepTick;
+
+    private volatile Loader loader;
+
+    /**
+     * Create a store with the default capacity.
+     */
+    public RateLimiterStore()
+    {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Create a store with the given capacity.
+     *
+     * @param capacity the maximum number of limiters kept by this store.
+     */
+    public RateLimiterStore(int capacity)
+    {
+        this(capacity, RateLimiterClock.SYSTEM);
+    }
+
+    /**
+     * Create a store with the given capacity.
+     *
+     * @param capacity the maximum number of limiters kept by this store.
+     * @param clock the clock used to schedule the expiration of drained limiters.
+     */
+    public RateLimiterStore(int capacity, RateLimiterClock clock)
+    {
+        if (capacity < 1) {
+            throw new IllegalArgumentException(String.format("Capacity [%d] should be higher than 0.", capacity));
+        }
+        this.clock = clock;
+        this.origin = clock.nanoTime();
+        int segmentCapacity = (capacity + SEGMENT_COUNT - 1) / SEGMENT_COUNT;
+        for (int i = 0; i < SEGMENT_COUNT; i++) {
+            segments[i] = new Segment(segmentCapacity);
+        }
+    }
+
+    static int hash(Object consumer, Object consumed)
+    {
+        int h = 31 * ((consumer == null) ? 0 : consumer.hashCode()) + ((consumed == null) ? 0 : consumed.hashCode());
+        return h ^ (h >>> 16);
+    }
+
+    private static boolean equals(Object a, Object b)
+    {
+        return a == b || (a != null && a.equals(b));
+    }
+
+    private static long getDrainTime(RateLimiter limiter)
+    {
+        if (limiter instanceof DrainableRateLimiter) {
+            return ((DrainableRateLimiter) limiter).getDrainTime(TimeUnit.NANOSECONDS);
+        }
+        return Long.MAX_VALUE;
+    }
+
+    private static boolean isExhausted(RateLimiter limiter)
+    {
+        return limiter.getAvailableAmount(true) <= 0;
+    }
+
+    private Segment getSegment(int hash)
+    {
+        // Small hash codes are common, so mix all bits into the high ones used to select the segment
+        return segments[(hash * SEGMENT_MIX) >>> SEGMENT_SHIFT];
+    }
+
+    /**
+     * Also sweep all segments once per tick, so segments rarely accessed do not keep drained limiters.
+     *
+     * @return the time elapsed since the creation of this store, in nanoseconds.
+     */
+    private long now()
+    {
+        long now = clock.nanoTime() - origin;
+        long tick = now / TICK;
+        if (tick > sweepTick) {
+            sweepTick = tick;
+            for (Segment segment : segments) {
+                segment.sweep(now);
+            }
+        }
+        return now;
+    }
+
+    @Override
+    public RateLimiter get(Object consumer, Object consumed)
+    {
+        int hash = hash(consumer, consumed);
+        return getSegment(hash).get(hash, consumer, consumed, null, loader, now());
+    }
+
+    @Override
+    public RateLimiter get(Object consumer, Object consumed, RateLimiter template)
+    {
+        int hash = hash(consumer, consumed);
+        return getSegment(hash).get(hash, consumer, consumed, template, loader, now());
+    }
+
+    @Override
+    public RateLimiter[] get(Object[] consumers, Object[] consumed, RateLimiter[] templates)
+    {
+        RateLimiter[] limiters = new RateLimiter[consumers.length];
+        int[] hashes = new int[consumers.length];
+        for (int i = 0; i < consumers.length; i++) {
+            hashes[i] = hash(consumers[i], consumed[i]);
+        }
+        long now = now();
+        Loader currentLoader = loader;
+        boolean[] resolved = new boolean[consumers.length];
+        for (int i = 0; i < consumers.length; i++) {
+            if (!resolved[i]) {
+                // Resolve all the pairs of the same segment while holding its lock once
+                Segment segment = getSegment(hashes[i]);
+                synchronized (segment) {
+                    for (int j = i; j < consumers.length; j++) {
+                        if (!resolved[j] && getSegment(hashes[j]) == segment) {
+                            limiters[j] =
+                                segment.get(hashes[j], consumers[j], consumed[j], templates[j], currentLoader, now);
+                            resolved[j] = true;
+                        }
+                    }
+                }
+            }
+        }
+        return limiters;
+    }
+
+    /**
+     * @param loader the loader of the limiters missing from this store, or null to not load missing limiters.
+     */
+    public void setLoader(Loader loader)
+    {
+        this.loader = loader;
+    }
+
+    @Override
+    public RateLimiterState consume(Object consumer, Object consumed, long amount, RateLimiter template)
+    {
+        int hash = hash(consumer, consumed);
+        Entry e = getSegment(hash).getEntry(hash, consumer, consumed, template, loader, now());
+        return getState(e, e.limiter, e.limiter.consume(amount));
+    }
+
+    @Override
+    public RateLimiterState track(Object consumer, Object consumed, RateLimiter limiter, boolean allowed)
+    {
+        int hash = hash(consumer, consumed);
+        return getState(getSegment(hash).find(hash, consumer, consumed, limiter), limiter, allowed);
+    }
+
+    @Override
+    public RateLimiterState[] consume(Object[] consumers, Object consumed, long[] amounts, RateLimiter[] templates)
+    {
+        return consume(this, consumers, consumed, amounts, templates);
+    }
+
+    /**
+     * @param e the entry of the consumed limiter, or null if it is not kept by this store anymore, in which case its
+     *            exhaustion is not tracked.
+     */
+    private static RateLimiterState getState(Entry e, RateLimiter limiter, boolean allowed)
+    {
+        return new RateLimiterState(limiter, allowed, e != null && e.setExhausted(!allowed));
+    }
+
+    /**
+     * Consume on several local rate limiters, one after the other.
+     *
+     * @param backend the backend holding the rate limiters.
+     * @param consumers the entities consuming.
+     * @param consumed the entity being consumed.
+     * @param amounts the amount being consumed by each consumer.
+     * @param templates the rate limiter to clone for creating a missing rate limiter of each consumer.
+     * @return the state of each rate limiter after the consumption.
+     */
+    static RateLimiterState[] consume(RateLimiterBackend backend, Object[] consumers, Object consumed,
+        long[] amounts, RateLimiter[] templates)
+    {
+        RateLimiterState[] states = new RateLimiterState[consumers.length];
+        for (int i = 0; i < consumers.length; i++) {
+            states[i] = backend.consume(consumers[i], consumed, amounts[i], templates[i]);
+        }
+        return states;
+    }
+
+    @Override
+    public void add(Object consumer, Object consumed, RateLimiter limiter)
+    {
+        int hash = hash(consumer, consumed);
+        getSegment(hash).put(hash, consumer, consumed, limiter, now());
+    }
+
+    @Override
+    public void clear()
+    {
+        for (Segment segment : segments) {
+            segment.clear();
+        }
+    }
+
+    @Override
+    public void close()
+    {
+        clear();
+    }
+
+    /**
+     * Remove the limiters accepted by the given filter, one segment at a time. The lock of each segment is held while
+     * filtering its limiters, so filters should not block.
+     *
+     * @param filter the filter selecting the limiters to remove.
+     * @return the number of limiters removed.
+     */
+    public int remove(Filter filter)
+    {
+        int count = 0;
+        for (Segment segment : segments) {
+            count += segment.remove(filter);
+        }
+        return count;
+    }
+
+    /**
+     * Visit all the limiters kept by this store, one segment at a time. The lock of each segment is held while
+     * visiting its limiters, so visitors should not block.
+     *
+     * @param visitor the visitor called for each limiter.
+     * @throws IOException if the visitor failed.
+     */
+    public void visit(Visitor visitor) throws IOException
+    {
+        for (Segment segment : segments) {
+            segment.visit(visitor);
+            visitor.segmentVisited();
+        }
+    }
+
+    /**
+     * @return the number of limiters currently kept by this store.
+     */
+    public int size()
+    {
+        int size = 0;
+        for (Segment segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    /**
+     * A source of limiters kept outside of the store, loaded the first time they are requested.
+     */
+    public interface Loader
+    {
+        /**
+         * Called while holding the lock of a segment, when a limiter is missing from the store.
+         *
+         * @param consumer the entity consuming.
+         * @param consumed the entity being consumed.
+         * @return the limiter of the entity pair, or null if the loader does not have it.
+         */
+        RateLimiter load(Object consumer, Object consumed);
+    }
+
+    /**
+     * A filter of the limiters kept by a store, see {@link RateLimiterStore#remove(Filter)}.
+     */
+    public interface Filter
+    {
+        /**
+         * Called for each limiter while holding the lock of its segment.
+         *
+         * @param consumer the entity consuming.
+         * @param consumed the entity being consumed.
+         * @param limiter the limiter of the entity pair.
+         * @return true if the limiter should be removed.
+         */
+        boolean accept(Object consumer, Object consumed, RateLimiter limiter);
+    }
+
+    /**
+     * A visitor of the limiters kept by a store, see {@link RateLimiterStore#visit(Visitor)}.
+     */
+    public interface Visitor
+    {
+        /**
+         * Called for each limiter while holding the lock of its segment.
+         *
+         * @param consumer the entity consuming.
+         * @param consumed the entity being consumed.
+         * @param limiter the limiter of the entity pair.
+         * @throws IOException if the visitor failed.
+         */
+        void visit(Object consumer, Object consumed, RateLimiter limiter) throws IOException;
+
+        /**
+         * Called once all the limiters of a segment have been visited, after releasing its lock.
+         *
+         * @throws IOException if the visitor failed.
+         */
+        void segmentVisited() throws IOException;
+    }
+
+    /**
+     * An entry of a segment, chained in its hash bucket, in the recency order of the segment, and in its slot of the
+     * timing wheel.
+     */
+    private static final class Entry
+    {
+        private static final AtomicIntegerFieldUpdater<Entry> EXHAUSTED =
+            AtomicIntegerFieldUpdater.newUpdater(Entry.class, "exhausted");
+
+        private final int hash;
+        private final Object consumer;
+        private final Object consumed;
+        private RateLimiter limiter;
+        private Entry next;
+        private Entry before;
+        private Entry after;
+        private Entry wheelPrevious;
+        private Entry wheelNext;
+        private long deadline;
+        private int slot;
+        private boolean accessed;
+        private volatile int exhausted;
+
+        Entry(int hash, Object consumer, Object consumed, RateLimiter limiter)
+        {
+            this.hash = hash;
+            this.consumer = consumer;
+            this.consumed = consumed;
+            this.limiter = limiter;
+        }
+
+        boolean isExhausted()
+        {
+            return exhausted != 0;
+        }
+
+        /**
+         * @param value true after a rejected consumption, false after an allowed one.
+         * @return true if the limiter was already exhausted before the consumption.
+         */
+        boolean setExhausted(boolean value)
+        {
+            // Do not write the flag on each allowed consumption, it is read by all the consumers of the limiter
+            if (!value && exhausted == 0) {
+                return false;
+            }
+            return EXHAUSTED.getAndSet(this, value ? 1 : 0) != 0;
+        }
+    }
+
+    /**
+     * A hash table with its own lock, keeping its entries ordered from the least to the most recently used, and
+     * scheduled on a timing wheel for checking their expiration.
+     */
+    private static final class Segment
+    {
+        private final int capacity;
+
+        /** Sentinel of the recency list, followed by the least recently used entry. */
+        private final Entry head = new Entry(0, null, null, null);
+
+        private final Entry[] wheel = new Entry[WHEEL_SIZE];
+
+        private final FrequencySketch sketch;
+
+        /** The entry of the limiter shared by the consumers that have not been admitted, for each template. */
+        private final Map<RateLimiter, Entry> newcomers = new IdentityHashMap<RateLimiter, Entry>();
+
+        private Entry[] table = new Entry[INITIAL_TABLE_SIZE];
+
+        private int size;
+
+        /** The last tick of the timing wheel that has been swept. */
+        private long tick;
+
+        Segment(int capacity)
+        {
+            this.capacity = capacity;
+            this.sketch = new FrequencySketch(capacity);
+            head.before = head;
+            head.after = head;
+        }
+
+        private Entry find(int hash, Object consumer, Object consumed)
+        {
+            for (Entry e = table[hash & (table.length - 1)]; e != null; e = e.next) {
+                if (e.hash == hash && RateLimiterStore.equals(e.consumer, consumer)
+                    && RateLimiterStore.equals(e.consumed, consumed)) {
+                    return e;
+                }
+            }
+            return null;
+        }
+
+        private void unlink(Entry e)
+        {
+            e.before.after = e.after;
+            e.after.before = e.before;
+        }
+
+        private void linkLast(Entry e)
+        {
+            e.after = head;
+            e.before = head.before;
+            head.before.after = e;
+            head.before = e;
+        }
+
+        private void schedule(Entry e, long deadline)
+        {
+            e.deadline = deadline;
+            // Never schedule in an already swept tick, it would wait a full turn of the wheel
+            e.slot = (int) (Math.max(deadline / TICK, tick + 1) % WHEEL_SIZE);
+            e.wheelPrevious = null;
+            e.wheelNext = wheel[e.slot];
+            if (e.wheelNext != null) {
+                e.wheelNext.wheelPrevious = e;
+            }
+            wheel[e.slot] = e;
+        }
+
+        private void unschedule(Entry e)
+        {
+            if (e.wheelPrevious != null) {
+                e.wheelPrevious.wheelNext = e.wheelNext;
+            } else {
+                wheel[e.slot] = e.wheelNext;
+            }
+            if (e.wheelNext != null) {
+                e.wheelNext.wheelPrevious = e.wheelPrevious;
+            }
+        }
+
+        private void insert(Entry e, long now)
+        {
+            if (size >= table.length - (table.length >>> 2)) {
+                resize();
+            }
+            int index = e.hash & (table.length - 1);
+            e.next = table[index];
+            table[index] = e;
+            linkLast(e);
+            schedule(e, now + TICK);
+            size++;
+        }
+
+        private void remove(Entry e)
+        {
+            unschedule(e);
+            delete(e);
+        }
+
+        /**
+         * Remove the given entry from the hash table and the recency list, but not from the timing wheel.
+         *
+         * @param e the entry to remove.
+         */
+        private void delete(Entry e)
+        {
+            int index = e.hash & (table.length - 1);
+            if (table[index] == e) {
+                table[index] = e.next;
+            } else {
+                Entry p = table[index];
+                while (p.next != e) {
+                    p = p.next;
+                }
+                p.next = e.next;
+            }
+            unlink(e);
+            size--;
+        }
+
+        /**
+         * Select the entry to be evicted, preferring drained limiters, then the least recently used limiters which
+         * are not exhausted. The least recently used entry is selected if no better candidate is found.
+         *
+         * @return the entry to be evicted.
+         */
+        private Entry getVictim()
+        {
+            Entry victim = null;
+            int scanned = 0;
+            for (Entry e = head.after; e != head && scanned < EVICTION_SCAN; e = e.after, scanned++) {
+                if (getDrainTime(e.limiter) <= 0) {
+                    victim = e;
+                    break;
+                }
+                if (victim == null && !e.isExhausted() && !isExhausted(e.limiter)) {
+                    victim = e;
+                }
+            }
+            return (victim != null) ? victim : head.after;
+        }
+
+        /**
+         * Make room for a new entry if needed.
+         *
+         * @param hash the hash of the new entry.
+         * @return false if the new entry should not be admitted.
+         */
+        private boolean admit(int hash)
+        {
+            if (size < capacity) {
+                return true;
+            }
+            Entry victim = getVictim();
+            if (getDrainTime(victim.limiter) > 0 && sketch.frequency(hash) <= sketch.frequency(victim.hash)) {
+                return false;
+            }
+            remove(victim);
+            return true;
+        }
+
+        private void resize()
+        {
+            Entry[] newTable = new Entry[table.length << 1];
+            for (Entry e = head.after; e != head; e = e.after) {
+                int index = e.hash & (newTable.length - 1);
+                e.next = newTable[index];
+                newTable[index] = e;
+            }
+            table = newTable;
+        }
+
+        /**
+         * Sweep the slots of the timing wheel elapsed since the last sweep, removing the entries that are due and
+         * drained, and rescheduling the others at their drain time.
+         *
+         * @param now the current time.
+         */
+        private void expire(long now)
+        {
+            long current = now / TICK;
+            if (current <= tick) {
+                return;
+            }
+            long first = Math.max(tick + 1, current - WHEEL_SIZE + 1);
+            tick = current;
+            for (long t = first; t <= current; t++) {
+                int slot = (int) (t % WHEEL_SIZE);
+                Entry e = wheel[slot];
+                wheel[slot] = null;
+                while (e != null) {
+                    Entry nextEntry = e.wheelNext;
+                    if (e.deadline > now) {
+                        // Due in a later turn of the wheel
+                        schedule(e, e.deadline);
+                    } else if (e.accessed) {
+                        // The limiter may be in use, check it again later
+                        e.accessed = false;
+                        long drain = getDrainTime(e.limiter);
+                        schedule(e, now + Math.max(TICK, Math.min(drain, Long.MAX_VALUE - now)));
+                    } else {
+                        long drain = getDrainTime(e.limiter);
+                        if (drain <= 0) {
+                            delete(e);
+                        } else {
+                            schedule(e, now + Math.min(drain, Long.MAX_VALUE - now));
+                        }
+                    }
+                    e = nextEntry;
+                }
+            }
+        }
+
+        synchronized RateLimiter get(int hash, Object consumer, Object consumed, RateLimiter template, Loader loader,
+            long now)
+        {
+            Entry e = getEntry(hash, consumer, consumed, template, loader, now);
+            return (e != null) ? e.limiter : null;
+        }
+
+        /**
+         * @return the entry of the given pair, the newcomers entry of the template if the pair is not admitted, or
+         *         null if the pair is missing and no template is provided.
+         */
+        synchronized Entry getEntry(int hash, Object consumer, Object consumed, RateLimiter template, Loader loader,
+            long now)
+        {
+            expire(now);
+            Entry e = find(hash, consumer, consumed);
+            if (e != null || template != null) {
+                sketch.increment(hash);
+            }
+            if (e != null) {
+                e.accessed = true;
+                unlink(e);
+                linkLast(e);
+                return e;
+            }
+            RateLimiter loaded = (loader != null) ? loader.load(consumer, consumed) : null;
+            if (loaded != null) {
+                // Loaded limiters are known consumers, always admitted
+                if (size >= capacity) {
+                    remove(getVictim());
+                }
+                e = new Entry(hash, consumer, consumed, loaded);
+                insert(e, now);
+                return e;
+            }
+            if (template == null) {
+                return null;
+            }
+            if (!admit(hash)) {
+                e = newcomers.get(template);
+                if (e == null) {
+                    e = new Entry(0, null, null, template.clone(true));
+                    newcomers.put(template, e);
+                }
+                return e;
+            }
+            e = new Entry(hash, consumer, consumed, template.clone(true));
+            insert(e, now);
+            return e;
+        }
+
+        /**
+         * @return the entry of the given pair holding the given limiter, the newcomers entry holding it, or null if
+         *         the limiter is not kept by this segment anymore.
+         */
+        synchronized Entry find(int hash, Object consumer, Object consumed, RateLimiter limiter)
+        {
+            Entry e = find(hash, consumer, consumed);
+            if (e != null && e.limiter == limiter) {
+                return e;
+            }
+            for (Entry shared : newcomers.values()) {
+                if (shared.limiter == limiter) {
+                    return shared;
+                }
+            }
+            return null;
+        }
+
+        synchronized void put(int hash, Object consumer, Object consumed, RateLimiter limiter, long now)
+        {
+            expire(now);
+            Entry e = find(hash, consumer, consumed);
+            if (e != null) {
+                e.limiter = limiter;
+                e.accessed = true;
+                unlink(e);
+                linkLast(e);
+            } else {
+                if (size >= capacity) {
+                    remove(getVictim());
+                }
+                insert(new Entry(hash, consumer, consumed, limiter), now);
+            }
+        }
+
+        synchronized void sweep(long now)
+        {
+            expire(now);
+        }
+
+        synchronized void clear()
+        {
+            table = new Entry[INITIAL_TABLE_SIZE];
+            for (int i = 0; i < WHEEL_SIZE; i++) {
+                wheel[i] = null;
+            }
+            head.before = head;
+            head.after = head;
+            size = 0;
+            newcomers.clear();
+        }
+
+        synchronized int remove(Filter filter)
+        {
+            int count = 0;
+            Entry e = head.after;
+            while (e != head) {
+                Entry next = e.after;
+                if (filter.accept(e.consumer, e.consumed, e.limiter)) {
+                    remove(e);
+                    count++;
+                }
+                e = next;
+            }
+            return count;
+        }
+
+        synchronized int size()
+        {
+            return size;
+        }
+
+        synchronized void visit(Visitor visitor) throws IOException
+        {
+            for (Entry e = head.after; e != head; e = e.after) {
+                visitor.visit(e.consumer, e.consumed, e.limiter);
+            }
+        }
+    }
+}
@@ -0,0 +1,384 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.xwiki.contrib.ratelimiter.internal;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.xwiki.contrib.ratelimiter.RateLimiter;
+import org.xwiki.contrib.ratelimiter.RateLimiterClock;
+import org.xwiki.contrib.ratelimiter.RateLimiterFuture;
+
+/**
+ * Delay consumptions until their rate limiter allows them, instead of rejecting them. The consumptions waiting for
+ * the same rate limiter are queued, and served in first come, first served order: a consumption is only attempted
+ * once all the previous ones have been served, so large amounts are not starved by small ones. The head of each queue
+ * is retried when its rate limiter is expected to have leaked enough, using a shared {@link TimingWheel}, so no thread
+ * is blocked while waiting.
+ * <p>
+ * A consumption that cannot be served before its deadline is completed with false as soon as this is known, letting
+ * the next ones proceed. A consumption is only attempted once the rate limiter reports no waiting time, and never
+ * accounted when it is rejected anyway, like by a leased limiter waiting for the renewal of its lease; it is then
+ * retried after {@link #MIN_RETRY_DELAY}.
+ * <p>
+ * Deadlines are measured with the clock of the timing wheel, which should be the one of the rate limiters.
+ *
+ * @version $Id$
+ */
+class RateLimiterThrottle
+{
+    /**
+     * The delay before retrying a consumption rejected while its rate limiter reported no waiting time.
+     */
+    static final long MIN_RETRY_DELAY = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final TimingWheel wheel;
+
+    private final RateLimiterClock clock;
+
+    /** The waiting consumptions of each rate limiter. */
+    private final Map<RateLimiter, Queue<Acquisition>> queues = new HashMap<RateLimiter, Queue<Acquisition>>();
+
+    /**
+     * Constructor.
+     *
+     * @param wheel the timing wheel used to retry the waiting consumptions.
+     */
+    RateLimiterThrottle(TimingWheel wheel)
+    {
+        this.wheel = wheel;
+        this.clock = wheel.getClock();
+    }
+
+    /**
+     * Consume the given amount as soon as the rate limiter allows it.
+     *
+     * @param limiter the rate limiter to consume.
+     * @param amount the amount to consume.
+     * @param timeout the maximum time to wait.
+     * @param unit the unit used to express the timeout.
+     * @return the future result of the consumption.
+     */
+    RateLimiterFuture acquire(RateLimiter limiter, long amount, long timeout, TimeUnit unit)
+    {
+        final Acquisition acquisition =
+            new Acquisition(amount, clock.nanoTime() + unit.toNanos(Math.max(0, timeout)));
+        List<Acquisition> completed = new ArrayList<Acquisition>();
+        synchronized (this) {
+            Queue<Acquisition> queue = queues.get(limiter);
+            if (queue == null) {
+                queue = new ArrayDeque<Acquisition>();
+                queues.put(limiter, queue);
+            }
+            queue.add(acquisition);
+            if (queue.size() == 1) {
+                process(limiter, queue, completed);
+            }
+        }
+        if (!acquisition.isDone()) {
+            // Complete consumptions still queued behind others when they time out
+            acquisition.timeout = wheel.schedule(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    acquisition.complete(false);
+                }
+            }, timeout, unit);
+        }
+        notify(completed);
+        return acquisition;
+    }
+
+    /**
+     * @param result the result of a consumption which has not been delayed.
+     * @return a future already completed with the given result.
+     */
+    static RateLimiterFuture completed(boolean result)
+    {
+        Acquisition acquisition = new Acquisition(0, 0);
+        acquisition.complete(result);
+        return acquisition;
+    }
+
+    /**
+     * Retry the head of the queue of the given rate limiter.
+     */
+    private void retry(RateLimiter limiter)
+    {
+        List<Acquisition> completed = new ArrayList<Acquisition>();
+        synchronized (this) {
+            Queue<Acquisition> queue = queues.get(limiter);
+            if (queue != null) {
+                process(limiter, queue, completed);
+            }
+        }
+        notify(completed);
+    }
+
+    /**
+     * Serve the consumptions of a queue in order, until one should wait, scheduling its retry.
+     */
+    private void process(final RateLimiter limiter, Queue<Acquisition> queue, List<Acquisition> completed)
+    {
+        Acquisition head;
+        while ((head = queue.peek()) != null) {
+            long wait = head.isDone() ? 0 : limiter.getWaitingTime(head.amount, TimeUnit.NANOSECONDS, true);
+            if (wait == 0) {
+                // Settle the consumption while holding its lock, so that it cannot time out once consumed
+                synchronized (head) {
+                    if (!head.isDone()) {
+                        if (consume(limiter, head.amount)) {
+                            head.settle(Boolean.TRUE);
+                            completed.add(head);
+                        } else {
+                            wait = MIN_RETRY_DELAY;
+                        }
+                    }
+                }
+            }
+            if (wait == 0) {
+                queue.remove();
+            } else if (clock.nanoTime() + wait > head.deadline) {
+                if (head.settle(Boolean.FALSE)) {
+                    completed.add(head);
+                }
+                queue.remove();
+            } else {
+                wheel.schedule(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        retry(limiter);
+                    }
+                }, wait, TimeUnit.NANOSECONDS);
+                return;
+            }
+        }
+        queues.remove(limiter);
+    }
+
+    /**
+     * Consume only if the rate limiter allows it, since some rate limiters, like infinite leaky buckets, also account
+     * the consumptions they reject. The rate limiter and the rate limiters composing it are locked while checking and
+     * consuming, so that no other consumption locking them can be accounted in between.
+     *
+     * @return true if the amount has been consumed.
+     */
+    private static boolean consume(RateLimiter limiter, long amount)
+    {
+        List<RateLimiter> locks = new ArrayList<RateLimiter>();
+        addLocks(limiter, locks);
+        return consume(limiter, amount, locks.iterator());
+    }
+
+    private static boolean consume(RateLimiter limiter, long amount, Iterator<RateLimiter> locks)
+    {
+        if (!locks.hasNext()) {
+            return limiter.getWaitingTime(amount, TimeUnit.NANOSECONDS, true) == 0 && limiter.consume(amount);
+        }
+        synchronized (locks.next()) {
+            return consume(limiter, amount, locks);
+        }
+    }
+
+    private static void addLocks(RateLimiter limiter, List<RateLimiter> locks)
+    {
+        locks.add(limiter);
+        if (limiter instanceof CompositeRateLimiter) {
+            for (RateLimiter child : ((CompositeRateLimiter) limiter).getRateLimiters()) {
+                // Some limiters are their own single component
+                if (child != limiter) {
+                    addLocks(child, locks);
+                }
+            }
+        }
+    }
+
+    private void notify(List<Acquisition> completed)
+    {
+        for (Acquisition acquisition : completed) {
+            acquisition.done();
+        }
+    }
+
+    /**
+     * A consumption waiting for its rate limiter.
+     */
+    private static final class Acquisition implements RateLimiterFuture
+    {
+        private final long amount;
+
+        private final long deadline;
+
+        private volatile TimingWheel.Timeout timeout;
+
+        private Boolean value;
+
+        private boolean cancelled;
+
+        private List<Runnable> listeners = new ArrayList<Runnable>();
+
+        Acquisition(long amount, long deadline)
+        {
+            this.amount = amount;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Set the result, without notifying the listeners yet.
+         *
+         * @return false if the result was already set, or the consumption cancelled.
+         */
+        synchronized boolean settle(Boolean result)
+        {
+            if (isDone()) {
+                return false;
+            }
+            value = result;
+            notifyAll();
+            return true;
+        }
+
+        /**
+         * Set the result and notify the listeners.
+         */
+        void complete(Boolean result)
+        {
+            if (settle(result)) {
+                done();
+            }
+        }
+
+        /**
+         * Release the timeout, and notify the listeners, once the result is set.
+         */
+        void done()
+        {
+            TimingWheel.Timeout scheduled = timeout;
+            if (scheduled != null) {
+                scheduled.cancel();
+            }
+            List<Runnable> toNotify;
+            synchronized (this) {
+                toNotify = listeners;
+                listeners = null;
+            }
+            if (toNotify != null) {
+                for (Runnable listener : toNotify) {
+                    listener.run();
+                }
+            }
+        }
+
+        @Override
+        public void addListener(final Runnable listener, final Executor executor)
+        {
+            Runnable dispatcher = new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    executor.execute(listener);
+                }
+            };
+            synchronized (this) {
+                if (listeners != null) {
+                    listeners.add(dispatcher);
+                    return;
+                }
+            }
+            dispatcher.run();
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning)
+        {
+            synchronized (this) {
+                if (isDone()) {
+                    return false;
+                }
+                // Cancelled consumptions are removed from their queue when they reach its head
+                cancelled = true;
+                notifyAll();
+            }
+            done();
+            return true;
+        }
+
+        @Override
+        public synchronized boolean isCancelled()
+        {
+            return cancelled;
+        }
+
+        @Override
+        public synchronized boolean isDone()
+        {
+            return value != null || cancelled;
+        }
+
+        @Override
+        public synchronized Boolean get() throws InterruptedException, ExecutionException
+        {
+            while (!isDone()) {
+                wait();
+            }
+            return getValue();
+        }
+
+        @Override
+        public synchronized Boolean get(long waitTimeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException
+        {
+            // The caller waits in real time, whatever the clock of the rate limiters
+            long end = System.nanoTime() + unit.toNanos(waitTimeout);
+            while (!isDone()) {
+                long remaining = end - System.nanoTime();
+                if (remaining <= 0) {
+                    throw new TimeoutException();
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+            return getValue();
+        }
+
+        private Boolean getValue()
+        {
+            if (cancelled) {
+                throw new CancellationException();
+            }
+            return value;
+        }
+    }
+}
@@ -0,0 +1,723 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.xwiki.contrib.ratelimiter.internal;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xwiki.contrib.ratelimiter.RateLimiter;
+import org.xwiki.contrib.ratelimiter.RateLimiterBackend;
+import org.xwiki.contrib.ratelimiter.RateLimiterClock;
+import org.xwiki.contrib.ratelimiter.RateLimiterState;
+
+/**
+ * A {@link RateLimiterBackend} keeping the rate limiters in a server speaking the Redis protocol, shared by all the
+ * nodes of a cluster, so that limits are enforced exactly across nodes. Each consumption is a single atomic server
+ * side script, reading the time of the server, so the clocks of the nodes do not need to be synchronized, and batches
+ * of consumptions are pipelined in a single round trip.
+ * <p>
+ * Only leaky bucket rate limiters are supported, since their state is a single time per bucket: the time at which the
+ * bucket will be empty, like in {@link LeakyBucketPolicy}. This state is stored as a string which expires once all
+ * buckets are empty. When the server cannot be reached, consumptions are allowed, and the server is not contacted
+ * anymore until a backoff delay has elapsed, after which a single consumption probes whether it has recovered. The
+ * backoff delay doubles each time the probe fails.
+ *
+ * @version $Id$
+ */
+public class RedisRateLimiterBackend implements RateLimiterBackend
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(RedisRateLimiterBackend.class);
+
+    /** Timeout in milliseconds for connecting to the server and reading its replies. */
+    private static final int TIMEOUT = 1000;
+
+    /** Time in nanoseconds during which the server is not contacted after it failed. */
+    private static final long MIN_BACKOFF = TimeUnit.SECONDS.toNanos(1);
+
+    /** Maximum time in nanoseconds during which the server is not contacted after failed probes. */
+    private static final long MAX_BACKOFF = TimeUnit.SECONDS.toNanos(30);
+
+    /** Maximum number of idle connections kept open. */
+    private static final int MAX_IDLE = 8;
+
+    private static final int SCAN_COUNT = 1000;
+
+    private static final int MODE_PER_BUCKET = 0;
+
+    private static final int MODE_ALL_OR_NOTHING = 1;
+
+    private static final int MODE_PEEK = 2;
+
+    /** Index of the first available amount in the replies of the script. */
+    private static final int AVAILABLE_INDEX = 3;
+
+    private static final long NANOS_PER_MICRO = 1000;
+
+    private static final String KEY_SEPARATOR = "|";
+
+    private static final String NOSCRIPT = "NOSCRIPT";
+
+    /**
+     * The consumption script. KEYS[1] is the key of the limiter, ARGV[1] the mode, ARGV[2] the amount to consume,
+     * followed by the limit, overflow level (-1 for none), and leak rate in microseconds of each bucket. It replies
+     * whether the consumption is allowed, whether the limiter was already exhausted, whether it existed, and the
+     * available amount of each bucket.
+     */
+    private static final String SCRIPT = "redis.replicate_commands()\n"
+        + "local t = redis.call('TIME')\n"
+        + "local now = tonumber(t[1]) * 1000000 + tonumber(t[2])\n"
+        + "local mode = tonumber(ARGV[1])\n"
+        + "local amount = tonumber(ARGV[2])\n"
+        + "local n = (#ARGV - 2) / 3\n"
+        + "local raw = redis.call('GET', KEYS[1])\n"
+        + "local state = {}\n"
+        + "if raw then\n"
+        + "  for v in string.gmatch(raw, '[^:]+') do state[#state + 1] = tonumber(v) end\n"
+        + "end\n"
+        + "local function limit(i) return tonumber(ARGV[3 * i]) end\n"
+        + "local function overflow(i) return tonumber(ARGV[3 * i + 1]) end\n"
+        + "local function rate(i) return tonumber(ARGV[3 * i + 2]) end\n"
+        + "local function level(i) return math.ceil((state[i] - now) / rate(i)) end\n"
+        + "local exhausted = 0\n"
+        + "for i = 1, n do\n"
+        + "  state[i] = math.max(state[i] or now, now)\n"
+        + "  if level(i) > limit(i) then exhausted = 1 end\n"
+        + "end\n"
+        + "local allowed = 1\n"
+        + "if mode == 1 then\n"
+        + "  for i = 1, n do\n"
+        + "    if level(i) + amount > limit(i) then allowed = 0 end\n"
+        + "  end\n"
+        + "  if allowed == 1 then\n"
+        + "    for i = 1, n do state[i] = state[i] + amount * rate(i) end\n"
+        + "  end\n"
+        + "elseif mode == 0 then\n"
+        + "  for i = 1, n do\n"
+        + "    local l = level(i) + amount\n"
+        + "    if overflow(i) >= 0 and l > overflow(i) then\n"
+        + "      allowed = 0\n"
+        + "    else\n"
+        + "      state[i] = state[i] + amount * rate(i)\n"
+        + "      if l > limit(i) then allowed = 0 end\n"
+        + "    end\n"
+        + "  end\n"
+        + "end\n"
+        + "local reply = {allowed, exhausted, raw and 1 or 0}\n"
+        + "local drain = 0\n"
+        + "for i = 1, n do\n"
+        + "  reply[#reply + 1] = limit(i) - level(i)\n"
+        + "  drain = math.max(drain, state[i] - now)\n"
+        + "  state[i] = string.format('%.0f', state[i])\n"
+        + "end\n"
+        + "if mode ~= 2 then\n"
+        + "  if drain > 0 then\n"
+        + "    redis.call('SET', KEYS[1], table.concat(state, ':'), 'PX', math.ceil(drain / 1000))\n"
+        + "  else\n"
+        + "    redis.call('DEL', KEYS[1])\n"
+        + "  end\n"
+        + "end\n"
+        + "return reply\n";
+
+    private final String host;
+
+    private final int port;
+
+    private final String keyPrefix;
+
+    private final RateLimiter defaultTemplate;
+
+    private final BlockingQueue<RespConnection> idle = new ArrayBlockingQueue<RespConnection>(MAX_IDLE);
+
+    private final ConcurrentMap<RateLimiter, Template> templates = new ConcurrentHashMap<RateLimiter, Template>();
+
+    private volatile String scriptSha;
+
+    private final RateLimiterClock clock;
+
+    private final AtomicBoolean probing = new AtomicBoolean();
+
+    private volatile boolean failing;
+
+    private long backoff;
+
+    private volatile long retryAt;
+
+    /**
+     * Thrown instead of contacting the server while it is known to be unavailable.
+     */
+    private static final class UnavailableException extends IOException
+    {
+        private static final long serialVersionUID = 1L;
+
+        UnavailableException()
+        {
+            super("Rate limiter backend is unavailable.");
+        }
+
+        @Override
+        public synchronized Throwable fillInStackTrace()
+        {
+            // Thrown on every consumption while the server is unavailable, the stack trace is useless
+            return this;
+        }
+    }
+
+    /**
+     * The configuration of the buckets of a rate limiter template, with the corresponding script arguments.
+     */
+    private static final class Template
+    {
+        private final LeakyBucketPolicy policy;
+
+        private final String[] arguments;
+
+        Template(LeakyBucketPolicy policy)
+        {
+            this.policy = policy;
+            this.arguments = new String[policy.size() * 3];
+            for (int i = 0, a = 0; i < policy.size(); i++) {
+                long overflow = policy.getOverflowLevel(i);
+                arguments[a++] = Long.toString(policy.getLimit(i));
+                arguments[a++] = Long.toString((overflow == Long.MAX_VALUE) ? -1 : overflow);
+                arguments[a++] = Long.toString(Math.max(1, policy.getLeakRate(i) / NANOS_PER_MICRO));
+            }
+        }
+
+        int getMode(int mode)
+        {
+            return (mode == MODE_PER_BUCKET && policy.isAllOrNothing()) ? MODE_ALL_OR_NOTHING : mode;
+        }
+    }
+
+    /**
+     * A single invocation of the consumption script.
+     */
+    private static final class Call
+    {
+        private final String key;
+
+        private final int mode;
+
+        private final long amount;
+
+        private final Template template;
+
+        Call(String key, int mode, long amount, Template template)
+        {
+            this.key = key;
+            this.mode = template.getMode(mode);
+            this.amount = amount;
+            this.template = template;
+        }
+
+        String[] toCommand(String sha)
+        {
+            String[] command = new String[6 + template.arguments.length];
+            command[0] = "EVALSHA";
+            command[1] = sha;
+            command[2] = "1";
+            command[3] = key;
+            command[4] = Integer.toString(mode);
+            command[5] = Long.toString(amount);
+            System.arraycopy(template.arguments, 0, command, 6, template.arguments.length);
+            return command;
+        }
+    }
+
+    /**
+     * Create a backend.
+     *
+     * @param host the host name of the server.
+     * @param port the port of the server.
+     * @param keyPrefix the prefix of the keys used to store the rate limiters, distinguishing them from other data of
+     *            the server.
+     * @param defaultTemplate the rate limiter template used to report the state of existing rate limiters, see
+     *            {@link #get(Object, Object)}, or null if the state of the rate limiters is not needed.
+     * @throws IllegalArgumentException if the default template is not made of leaky buckets.
+     */
+    public RedisRateLimiterBackend(String host, int port, String keyPrefix, RateLimiter defaultTemplate)
+    {
+        this(host, port, keyPrefix, defaultTemplate, RateLimiterClock.SYSTEM);
+    }
+
+    /**
+     * Create a backend.
+     *
+     * @param host the host name of the server.
+     * @param port the port of the server.
+     * @param keyPrefix the prefix of the keys used to store the rate limiters, distinguishing them from other data of
+     *            the server.
+     * @param defaultTemplate the rate limiter template used to report the state of existing rate limiters, see
+     *            {@link #get(Object, Object)}, or null if the state of the rate limiters is not needed.
+     * @param clock the clock measuring the backoff delay after a failure of the server.
+     * @throws IllegalArgumentException if the default template is not made of leaky buckets.
+     */
+    public RedisRateLimiterBackend(String host, int port, String keyPrefix, RateLimiter defaultTemplate,
+        RateLimiterClock clock)
+    {
+        this.clock = clock;
+        this.host = host;
+        this.port = port;
+        this.keyPrefix = keyPrefix;
+        this.defaultTemplate = defaultTemplate;
+        if (defaultTemplate != null) {
+            getTemplate(defaultTemplate);
+        }
+    }
+
+    /**
+     * Check that a rate limiter template is supported by this backend.
+     *
+     * @param template a rate limiter template.
+     * @throws IllegalArgumentException if the given template is not made of leaky buckets.
+     */
+    public void checkTemplate(RateLimiter template)
+    {
+        getTemplate(template);
+    }
+
+    private Template getTemplate(RateLimiter template)
+    {
+        Template result = templates.get(template);
+        if (result == null) {
+            result = new Template(LeakyBucketPolicy.fromTemplate(template));
+            templates.putIfAbsent(template, result);
+        }
+        return result;
+    }
+
+    private String getKey(Object consumer, Object consumed)
+    {
+        return keyPrefix + consumer + KEY_SEPARATOR + consumed;
+    }
+
+    @Override
+    public RateLimiter get(Object consumer, Object consumed)
+    {
+        if (defaultTemplate == null) {
+            return null;
+        }
+        String key = getKey(consumer, consumed);
+        Template template = getTemplate(defaultTemplate);
+        try {
+            List<?> reply = execute(Collections.singletonList(new Call(key, MODE_PEEK, 0, template))).get(0);
+            return (getLong(reply, 2) != 0) ? new RemoteRateLimiter(key, template, reply) : null;
+        } catch (IOException e) {
+            fail(e);
+            return null;
+        }
+    }
+
+    @Override
+    public RateLimiterState consume(Object consumer, Object consumed, long amount, RateLimiter template)
+    {
+        return consume(new Object[] {consumer}, consumed, new long[] {amount}, new RateLimiter[] {template})[0];
+    }
+
+    @Override
+    public RateLimiterState[] consume(Object[] consumers, Object consumed, long[] amounts, RateLimiter[] templates)
+    {
+        List<Call> calls = new ArrayList<Call>(consumers.length);
+        for (int i = 0; i < consumers.length; i++) {
+            calls.add(new Call(getKey(consumers[i], consumed), MODE_PER_BUCKET, amounts[i],
+                getTemplate(templates[i])));
+        }
+
+        RateLimiterState[] states = new RateLimiterState[consumers.length];
+        try {
+            List<List<?>> replies = execute(calls);
+            for (int i = 0; i < states.length; i++) {
+                List<?> reply = replies.get(i);
+                states[i] = new RateLimiterState(new RemoteRateLimiter(calls.get(i).key, calls.get(i).template, reply),
+                    getLong(reply, 0) != 0, getLong(reply, 1) != 0);
+            }
+        } catch (IOException e) {
+            // Fail open, the service should not become unavailable because of its rate limiter
+            fail(e);
+            for (int i = 0; i < states.length; i++) {
+                states[i] = new RateLimiterState(RateLimiter.NOLIMIT, true, false);
+            }
+        }
+        return states;
+    }
+
+    @Override
+    public void clear()
+    {
+        String pattern = escapeGlob(keyPrefix) + '*';
+        RespConnection connection = null;
+        try {
+            connection = borrow();
+            String cursor = "0";
+            do {
+                List<?> reply = (List<?>) check(connection.call("SCAN", cursor, "MATCH", pattern, "COUNT",
+                    Integer.toString(SCAN_COUNT)));
+                cursor = (String) reply.get(0);
+                List<?> keys = (List<?>) reply.get(1);
+                if (!keys.isEmpty()) {
+                    String[] command = new String[keys.size() + 1];
+                    command[0] = "DEL";
+                    for (int i = 0; i < keys.size(); i++) {
+                        command[i + 1] = (String) keys.get(i);
+                    }
+                    check(connection.call(command));
+                }
+            } while (!"0".equals(cursor));
+            release(connection);
+            recover();
+        } catch (IOException e) {
+            discard(connection);
+            fail(e);
+        }
+    }
+
+    /**
+     * Close the idle connections to the server.
+     */
+    @Override
+    public void close()
+    {
+        RespConnection connection;
+        while ((connection = idle.poll()) != null) {
+            connection.close();
+        }
+    }
+
+    private List<List<?>> execute(List<Call> calls) throws IOException
+    {
+        RespConnection connection = borrow();
+        try {
+            String sha = scriptSha;
+            if (sha == null) {
+                sha = loadScript(connection);
+            }
+            List<Object> replies = connection.pipeline(toCommands(calls, sha));
+            if (isNoScript(replies)) {
+                // The server has been restarted or its script cache flushed
+                replies = connection.pipeline(toCommands(calls, loadScript(connection)));
+            }
+            List<List<?>> results = new ArrayList<List<?>>(replies.size());
+            for (Object reply : replies) {
+                results.add((List<?>) check(reply));
+            }
+            release(connection);
+            recover();
+            return results;
+        } catch (IOException e) {
+            discard(connection);
+            throw e;
+        } catch (RuntimeException e) {
+            discard(connection);
+            throw new IOException("Unexpected reply from the server.", e);
+        }
+    }
+
+    private List<String[]> toCommands(List<Call> calls, String sha)
+    {
+        List<String[]> commands = new ArrayList<String[]>(calls.size());
+        for (Call call : calls) {
+            commands.add(call.toCommand(sha));
+        }
+        return commands;
+    }
+
+    private boolean isNoScript(List<Object> replies)
+    {
+        for (Object reply : replies) {
+            if (reply instanceof RespConnection.ErrorReply
+                && ((RespConnection.ErrorReply) reply).getMessage().startsWith(NOSCRIPT)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private String loadScript(RespConnection connection) throws IOException
+    {
+        String sha = (String) check(connection.call("SCRIPT", "LOAD", SCRIPT));
+        scriptSha = sha;
+        return sha;
+    }
+
+    private static Object check(Object reply) throws IOException
+    {
+        if (reply instanceof RespConnection.ErrorReply) {
+            throw new IOException(reply.toString());
+        }
+        return reply;
+    }
+
+    private static long getLong(List<?> reply, int index)
+    {
+        return ((Long) reply.get(index)).longValue();
+    }
+
+    private static String escapeGlob(String value)
+    {
+        StringBuilder escaped = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '*' || c == '?' || c == '[' || c == ']' || c == '\\') {
+                escaped.append('\\');
+            }
+            escaped.append(c);
+        }
+        return escaped.toString();
+    }
+
+    private RespConnection borrow() throws IOException
+    {
+        // While the server is unavailable, only a single caller probes it once the backoff delay has elapsed
+        if (failing && (clock.nanoTime() - retryAt < 0 || !probing.compareAndSet(false, true))) {
+            throw new UnavailableException();
+        }
+        RespConnection connection = idle.poll();
+        return (connection != null) ? connection : new RespConnection(host, port, TIMEOUT);
+    }
+
+    private void release(RespConnection connection)
+    {
+        if (!idle.offer(connection)) {
+            connection.close();
+        }
+    }
+
+    private void discard(RespConnection connection)
+    {
+        if (connection != null) {
+            connection.close();
+        }
+    }
+
+    private synchronized void fail(IOException e)
+    {
+        if (e instanceof UnavailableException) {
+            return;
+        }
+        if (!failing) {
+            backoff = MIN_BACKOFF;
+            retryAt = clock.nanoTime() + backoff;
+            failing = true;
+            // Idle connections are most likely broken too
+            close();
+            LOGGER.warn("Rate limiter backend [{}:{}] is unavailable, consumptions are allowed until it recovers: {}",
+                host, port, e.getMessage());
+        } else if (probing.get()) {
+            backoff = Math.min(backoff * 2, MAX_BACKOFF);
+            retryAt = clock.nanoTime() + backoff;
+            probing.set(false);
+        }
+    }
+
+    private void recover()
+    {
+        // Only synchronize on recovery, not on every successful call
+        if (failing) {
+            synchronized (this) {
+                if (failing) {
+                    failing = false;
+                    probing.set(false);
+                    LOGGER.info("Rate limiter backend [{}:{}] has recovered.", host, port);
+                }
+            }
+        }
+    }
+
+    /**
+     * A view on a rate limiter stored in the server, reporting its state as of its last consumption.
+     */
+    private final class RemoteRateLimiter implements CompositeRateLimiter, DrainableRateLimiter
+    {
+        private final String key;
+
+        private final Template template;
+
+        private volatile long[] available;
+
+        RemoteRateLimiter(String key, Template template, List<?> reply)
+        {
+            this.key = key;
+            this.template = template;
+            update(reply);
+        }
+
+        private void update(List<?> reply)
+        {
+            long[] amounts = new long[template.policy.size()];
+            for (int i = 0; i < amounts.length; i++) {
+                amounts[i] = getLong(reply, AVAILABLE_INDEX + i);
+            }
+            this.available = amounts;
+        }
+
+        private List<?> execute(int mode, long amount) throws IOException
+        {
+            List<?> reply =
+                RedisRateLimiterBackend.this.execute(Collections.singletonList(new Call(key, mode, amount, template)))
+                    .get(0);
+            update(reply);
+            return reply;
+        }
+
+        private void refresh()
+        {
+            try {
+                execute(MODE_PEEK, 0);
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+
+        @Override
+        public boolean consume(long amount)
+        {
+            try {
+                return getLong(execute(MODE_PER_BUCKET, amount), 0) != 0;
+            } catch (IOException e) {
+                fail(e);
+                return true;
+            }
+        }
+
+        @Override
+        public RateLimiter clone(boolean empty)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public long getAvailableAmount()
+        {
+            return getAvailableAmount(true);
+        }
+
+        @Override
+        public long getAvailableAmount(boolean update)
+        {
+            if (update) {
+                refresh();
+            }
+            long amount = Long.MAX_VALUE;
+            for (long bucket : available) {
+                amount = Math.min(amount, bucket);
+            }
+            return amount;
+        }
+
+        @Override
+        public long getWaitingTime(long amount, TimeUnit unit)
+        {
+            return getWaitingTime(amount, unit, true);
+        }
+
+        @Override
+        public long getWaitingTime(long amount, TimeUnit unit, boolean update)
+        {
+            if (update) {
+                refresh();
+            }
+            long[] buckets = available;
+            long waitTime = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                waitTime = Math.max(waitTime, (amount - buckets[i]) * template.policy.getLeakRate(i));
+            }
+            return unit.convert(waitTime, TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public long getDrainTime(TimeUnit unit)
+        {
+            long[] buckets = available;
+            long drain = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                drain = Math.max(drain, (template.policy.getLimit(i) - buckets[i]) * template.policy.getLeakRate(i));
+            }
+            return unit.convert(drain, TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public void reset()
+        {
+            RespConnection connection = null;
+            try {
+                connection = borrow();
+                check(connection.call("DEL", key));
+                release(connection);
+                recover();
+                long[] amounts = new long[template.policy.size()];
+                for (int i = 0; i < amounts.length; i++) {
+                    amounts[i] = template.policy.getLimit(i);
+                }
+                this.available = amounts;
+            } catch (IOException e) {
+                discard(connection);
+                fail(e);
+            }
+        }
+
+        @Override
+        public Collection<RateLimiter> getRateLimiters()
+        {
+            long[] buckets = available;
+            List<RateLimiter> limiters = new ArrayList<RateLimiter>(buckets.length);
+            for (int i = 0; i < buckets.length; i++) {
+                limiters.add(new LeakyBucketView(template.policy, i, buckets[i]));
+            }
+            return limiters;
+        }
+
+        @Override
+        public long getPeriod()
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public long getPeriod(TimeUnit unit)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public TimeUnit getPeriodUnit()
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public long getLimit()
+        {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
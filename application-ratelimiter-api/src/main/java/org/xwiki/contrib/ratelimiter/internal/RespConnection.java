@@ -0,0 +1,245 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.xwiki.contrib.ratelimiter.internal;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A minimal client connection speaking the Redis serialization protocol (RESP). Commands are sent as arrays of bulk
+ * strings, and several commands may be pipelined, so that they are written at once and their replies read back in a
+ * single round trip. Error replies do not interrupt a pipeline, they are returned as {@link ErrorReply}.
+ * <p>
+ * Connections are not thread safe.
+ *
+ * @version $Id$
+ */
+class RespConnection
+{
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final int CR = '\r';
+
+    private static final int LF = '\n';
+
+    private static final String CLOSED = "Connection closed by the server.";
+
+    private final Socket socket;
+
+    private final InputStream in;
+
+    private final OutputStream out;
+
+    /**
+     * An error replied by the server.
+     */
+    static final class ErrorReply
+    {
+        private final String message;
+
+        ErrorReply(String message)
+        {
+            this.message = message;
+        }
+
+        /**
+         * @return the error message, starting with the error kind, like "NOSCRIPT".
+         */
+        String getMessage()
+        {
+            return message;
+        }
+
+        @Override
+        public String toString()
+        {
+            return message;
+        }
+    }
+
+    /**
+     * Open a connection.
+     *
+     * @param host the host name of the server.
+     * @param port the port of the server.
+     * @param timeout the timeout in milliseconds for connecting and reading replies.
+     * @throws IOException if the server could not be reached.
+     */
+    RespConnection(String host, int port, int timeout) throws IOException
+    {
+        this.socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(host, port), timeout);
+            socket.setSoTimeout(timeout);
+            socket.setTcpNoDelay(true);
+            this.in = new BufferedInputStream(socket.getInputStream());
+            this.out = new BufferedOutputStream(socket.getOutputStream());
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Send a single command and read its reply.
+     *
+     * @param command the command name followed by its arguments.
+     * @return the reply of the server.
+     * @throws IOException if the communication with the server failed.
+     */
+    Object call(String... command) throws IOException
+    {
+        return pipeline(Collections.singletonList(command)).get(0);
+    }
+
+    /**
+     * Send several commands at once and read all their replies.
+     *
+     * @param commands the commands, each being a command name followed by its arguments.
+     * @return the replies of the server, in the order of the commands. Replies are {@link String} for simple and bulk
+     *         strings, {@link Long} for integers, {@link List} for arrays, {@link ErrorReply} for errors, and null for
+     *         null bulk strings and arrays.
+     * @throws IOException if the communication with the server failed.
+     */
+    List<Object> pipeline(List<String[]> commands) throws IOException
+    {
+        for (String[] command : commands) {
+            write(command);
+        }
+        out.flush();
+
+        List<Object> replies = new ArrayList<Object>(commands.size());
+        for (int i = 0; i < commands.size(); i++) {
+            replies.add(read());
+        }
+        return replies;
+    }
+
+    /**
+     * Close the connection, ignoring failures.
+     */
+    void close()
+    {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Nothing more could be done
+        }
+    }
+
+    private void write(String[] command) throws IOException
+    {
+        writeHeader('*', command.length);
+        for (String argument : command) {
+            byte[] bytes = argument.getBytes(UTF8);
+            writeHeader('$', bytes.length);
+            out.write(bytes);
+            out.write(CR);
+            out.write(LF);
+        }
+    }
+
+    private void writeHeader(char type, int length) throws IOException
+    {
+        out.write(type);
+        out.write(Integer.toString(length).getBytes(UTF8));
+        out.write(CR);
+        out.write(LF);
+    }
+
+    private Object read() throws IOException
+    {
+        int type = in.read();
+        if (type < 0) {
+            throw new EOFException(CLOSED);
+        }
+        String line = readLine();
+        switch (type) {
+            case '+':
+                return line;
+            case '-':
+                return new ErrorReply(line);
+            case ':':
+                return Long.parseLong(line);
+            case '$':
+                return readBulk(Integer.parseInt(line));
+            case '*':
+                int size = Integer.parseInt(line);
+                if (size < 0) {
+                    return null;
+                }
+                List<Object> array = new ArrayList<Object>(size);
+                for (int i = 0; i < size; i++) {
+                    array.add(read());
+                }
+                return array;
+            default:
+                throw new IOException(String.format("Unexpected reply type [%c].", (char) type));
+        }
+    }
+
+    private String readBulk(int length) throws IOException
+    {
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        int offset = 0;
+        while (offset < length) {
+            int count = in.read(bytes, offset, length - offset);
+            if (count < 0) {
+                throw new EOFException(CLOSED);
+            }
+            offset += count;
+        }
+        // Skip the terminating CRLF
+        readLine();
+        return new String(bytes, UTF8);
+    }
+
+    private String readLine() throws IOException
+    {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int c;
+        while ((c = in.read()) != CR) {
+            if (c < 0) {
+                throw new EOFException(CLOSED);
+            }
+            line.write(c);
+        }
+        if (in.read() != LF) {
+            throw new IOException("Malformed reply, missing line feed.");
+        }
+        return new String(line.toByteArray(), UTF8);
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.xwiki.contrib.ratelimiter.internal;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.xwiki.contrib.ratelimiter.RateLimiter;
+import org.xwiki.contrib.ratelimiter.RateLimiterClock;
+
+/**
+ * Implement a {@link RateLimiter} using a sliding log. The time of each unit consumed during the last period is kept
+ * in a ring buffer of exactly limit entries, ordered from the oldest to the most recent, so a consumption is allowed
+ * only when the oldest units it would replace have left the sliding period. This is an exact enforcement of the
+ * limit over any period, and is only meant for small limits, since it requires one long per unit of limit. Rejected
+ * consumptions are not accounted.
+ *
+ * @version $Id$
+ */
+public class SlidingLogRateLimiter extends AbstractRateLimiter
+{
+    /**
+     * The maximum limit supported by this limiter.
+     */
+    public static final long MAX_LIMIT = 256;
+
+    protected final long window;
+    protected final long[] log;
+    protected int head;
+
+    /**
+     * Initializing constructor.
+     *
+     * @param limit the maximum amount of consumption over a period of time, should not exceed {@link #MAX_LIMIT}.
+     * @param period the period of time.
+     * @param unit the unit used to express the period of time.
+     */
+    public SlidingLogRateLimiter(long limit, long period, TimeUnit unit)
+    {
+        this(limit, period, unit, RateLimiterClock.SYSTEM);
+    }
+
+    /**
+     * Initializing constructor.
+     *
+     * @param limit the maximum amount of consumption over a period of time, should not exceed {@link #MAX_LIMIT}.
+     * @param period the period of time.
+     * @param unit the unit used to express the period of time.
+     * @param clock the clock used to measure time.
+     */
+    public SlidingLogRateLimiter(long limit, long period, TimeUnit unit, RateLimiterClock clock)
+    {
+        super(limit, period, unit, clock);
+        this.window = TimeUnit.NANOSECONDS.convert(period, unit);
+        this.log = new long[(int) limit];
+        Arrays.fill(this.log, clock.nanoTime() - window);
+    }
+
+    /**
+     * Copy constructor.
+     *
+     * @param rateLimiter source object.
+     */
+    public SlidingLogRateLimiter(SlidingLogRateLimiter rateLimiter)
+    {
+        this(rateLimiter, false);
+    }
+
+    /**
+     * Copy constructor with reinitialization.
+     *
+     * @param rateLimiter the source to copy.
+     * @param empty when true, the copy is empty.
+     */
+    public SlidingLogRateLimiter(SlidingLogRateLimiter rateLimiter, boolean empty)
+    {
+        super(rateLimiter);
+        this.window = rateLimiter.window;
+        if (!empty) {
+            synchronized (rateLimiter) {
+                this.log = rateLimiter.log.clone();
+                this.head = rateLimiter.head;
+            }
+        } else {
+            this.log = new long[rateLimiter.log.length];
+            Arrays.fill(this.log, clock.nanoTime() - window);
+        }
+    }
+
+    @Override
+    public RateLimiter clone(boolean empty)
+    {
+        return new SlidingLogRateLimiter(this, empty);
+    }
+
+    /**
+     * @param index the index of an entry, starting from the oldest one.
+     * @return the time of the given entry.
+     */
+    private long entry(long index)
+    {
+        return log[(int) ((head + index) % log.length)];
+    }
+
+    @Override
+    public synchronized boolean consume(long amount, long now)
+    {
+        if (amount > log.length) {
+            return false;
+        }
+        if (amount <= 0) {
+            return true;
+        }
+
+        if (now - entry(amount - 1) < window) {
+            return false;
+        }
+        for (int i = 0; i < amount; i++) {
+            log[head] = now;
+            head = (head + 1) % log.length;
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized long getAvailableAmount(boolean update)
+    {
+        // Entries are ordered, so binary search the first one still in the sliding period
+        long now = clock.nanoTime();
+        int low = 0;
+        int high = log.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (now - entry(middle) >= window) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    @Override
+    public synchronized long getWaitingTime(long amount, TimeUnit unit, boolean update)
+    {
+        if (amount <= 0) {
+            return 0;
+        }
+        long wait = (amount > log.length) ? window : entry(amount - 1) + window - clock.nanoTime();
+        return (wait <= 0) ? 0 : unit.convert(wait, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public synchronized long getDrainTime(TimeUnit unit)
+    {
+        long drain = entry(log.length - 1) + window - clock.nanoTime();
+        return (drain <= 0) ? 0 : unit.convert(drain, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public synchronized void reset()
+    {
+        Arrays.fill(this.log, clock.nanoTime() - window);
+    }
+}
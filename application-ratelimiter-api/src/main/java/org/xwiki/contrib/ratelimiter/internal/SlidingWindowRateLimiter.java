@@ -0,0 +1,193 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.xwiki.contrib.ratelimiter.internal;
+
+import java.util.concurrent.TimeUnit;
+
+import org.xwiki.contrib.ratelimiter.RateLimiter;
+import org.xwiki.contrib.ratelimiter.RateLimiterClock;
+
+/**
+ * Implement a {@link RateLimiter} using a sliding window counter. The consumption is counted in fixed windows of one
+ * period, and the consumption over the last period is estimated by weighting the count of the previous window by
+ * the part of it still covered by the sliding period. Unlike leaky buckets, this enforces the limit over any period
+ * without periodic bursts, while only keeping two counters. Rejected consumptions are not accounted.
+ *
+ * @version $Id$
+ */
+public class SlidingWindowRateLimiter extends AbstractRateLimiter
+{
+    protected final long window;
+    protected long windowStart;
+    protected long currentCount;
+    protected long previousCount;
+
+    /**
+     * Initializing constructor.
+     *
+     * @param limit the maximum amount of consumption over a period of time.
+     * @param period the period of time.
+     * @param unit the unit used to express the period of time.
+     */
+    public SlidingWindowRateLimiter(long limit, long period, TimeUnit unit)
+    {
+        this(limit, period, unit, RateLimiterClock.SYSTEM);
+    }
+
+    /**
+     * Initializing constructor.
+     *
+     * @param limit the maximum amount of consumption over a period of time.
+     * @param period the period of time.
+     * @param unit the unit used to express the period of time.
+     * @param clock the clock used to measure time.
+     */
+    public SlidingWindowRateLimiter(long limit, long period, TimeUnit unit, RateLimiterClock clock)
+    {
+        super(limit, period, unit, clock);
+        this.window = TimeUnit.NANOSECONDS.convert(period, unit);
+        this.windowStart = clock.nanoTime();
+    }
+
+    /**
+     * Copy constructor.
+     *
+     * @param rateLimiter source object.
+     */
+    public SlidingWindowRateLimiter(SlidingWindowRateLimiter rateLimiter)
+    {
+        this(rateLimiter, false);
+    }
+
+    /**
+     * Copy constructor with reinitialization.
+     *
+     * @param rateLimiter the source to copy.
+     * @param empty when true, the copy is empty.
+     */
+    public SlidingWindowRateLimiter(SlidingWindowRateLimiter rateLimiter, boolean empty)
+    {
+        super(rateLimiter);
+        this.window = rateLimiter.window;
+        if (!empty) {
+            synchronized (rateLimiter) {
+                this.windowStart = rateLimiter.windowStart;
+                this.currentCount = rateLimiter.currentCount;
+                this.previousCount = rateLimiter.previousCount;
+            }
+        } else {
+            this.windowStart = clock.nanoTime();
+        }
+    }
+
+    @Override
+    public RateLimiter clone(boolean empty)
+    {
+        return new SlidingWindowRateLimiter(this, empty);
+    }
+
+    /**
+     * Slide the windows up to the given time.
+     *
+     * @param now the current time.
+     * @return the time elapsed since the start of the current window.
+     */
+    private long slide(long now)
+    {
+        long elapsed = now - windowStart;
+        if (elapsed >= window) {
+            long windows = elapsed / window;
+            previousCount = (windows == 1) ? currentCount : 0;
+            currentCount = 0;
+            windowStart += windows * window;
+            elapsed -= windows * window;
+        }
+        return elapsed;
+    }
+
+    /**
+     * @param elapsed the time elapsed since the start of the current window.
+     * @return the estimated consumption over the last period.
+     */
+    private double estimate(long elapsed)
+    {
+        return previousCount * ((double) (window - elapsed) / window) + currentCount;
+    }
+
+    @Override
+    public synchronized boolean consume(long amount, long now)
+    {
+        if (estimate(slide(now)) + amount > limit) {
+            return false;
+        }
+        currentCount += amount;
+        return true;
+    }
+
+    @Override
+    public synchronized long getAvailableAmount(boolean update)
+    {
+        long elapsed = (update) ? slide(clock.nanoTime()) : Math.min(clock.nanoTime() - windowStart, window);
+        return (long) Math.floor(limit - estimate(elapsed));
+    }
+
+    @Override
+    public synchronized long getWaitingTime(long amount, TimeUnit unit, boolean update)
+    {
+        long elapsed = (update) ? slide(clock.nanoTime()) : Math.min(clock.nanoTime() - windowStart, window);
+        if (estimate(elapsed) + amount <= limit) {
+            return 0;
+        }
+
+        long wait;
+        long room = limit - currentCount - amount;
+        if (room >= 0) {
+            // The weight of the previous window should decrease enough during the current window
+            wait = (long) (window * (1 - (double) room / previousCount)) - elapsed;
+        } else {
+            // The current window will become the previous one, and its weight should decrease enough
+            double ratio = (currentCount > 0) ? Math.max(0, (double) (limit - amount) / currentCount) : 1;
+            wait = window - elapsed + (long) (window * (1 - ratio));
+        }
+        return unit.convert(Math.max(0, wait), TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public synchronized long getDrainTime(TimeUnit unit)
+    {
+        long drain;
+        if (currentCount > 0) {
+            drain = windowStart + 2 * window - clock.nanoTime();
+        } else if (previousCount > 0) {
+            drain = windowStart + window - clock.nanoTime();
+        } else {
+            drain = 0;
+        }
+        return (drain <= 0) ? 0 : unit.convert(drain, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public synchronized void reset()
+    {
+        this.currentCount = 0;
+        this.previousCount = 0;
+    }
+}
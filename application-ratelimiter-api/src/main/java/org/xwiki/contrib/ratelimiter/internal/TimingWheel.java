@@ -0,0 +1,284 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.xwiki.contrib.ratelimiter.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xwiki.contrib.ratelimiter.RateLimiterClock;
+
+/**
+ * A hierarchical timing wheel, running delayed tasks from a single thread whatever their number. Each level is a ring
+ * of {@link #SLOTS} slots, the slots of the first level lasting one tick, and those of each next level lasting a
+ * whole turn of the previous one. A task is added to the slot of the lowest level covering its deadline, and tasks are
+ * moved down to the lower levels when the slot holding them is reached, so scheduling and cancelling are constant
+ * time operations.
+ * <p>
+ * The thread is started when a task is scheduled, and stops once no task remains. Tasks are run by this thread, and
+ * should therefore be short. Ticks are measured with a {@link RateLimiterClock}, so the wheel shares the time of the
+ * rate limiters whose consumptions it delays, while the thread sleeps at most one tick, or one turn of the first
+ * level when it is empty, before reading that clock again.
+ *
+ * @version $Id$
+ */
+class TimingWheel
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(TimingWheel.class);
+
+    private static final int SLOT_BITS = 6;
+
+    private static final int SLOTS = 1 << SLOT_BITS;
+
+    private static final int SLOT_MASK = SLOTS - 1;
+
+    private static final int LEVELS = 4;
+
+    /** The number of ticks covered by all levels. */
+    private static final long SPAN = 1L << (SLOT_BITS * LEVELS);
+
+    private static final long TICK = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final String name;
+
+    private final RateLimiterClock clock;
+
+    private final long origin;
+
+    /** The sentinel of the list of timeouts of each slot, by level. */
+    private final Timeout[][] slots = new Timeout[LEVELS][SLOTS];
+
+    /** The number of timeouts in the first level. */
+    private int firstLevelCount;
+
+    private int count;
+
+    /** The last tick whose timeouts have been expired. */
+    private long currentTick;
+
+    private Thread thread;
+
+    /**
+     * A task scheduled in the wheel, which can be cancelled until it is run.
+     */
+    final class Timeout
+    {
+        private final Runnable task;
+
+        private final long deadline;
+
+        private int level;
+
+        private Timeout previous;
+
+        private Timeout next;
+
+        Timeout(Runnable task, long deadline)
+        {
+            this.task = task;
+            this.deadline = deadline;
+            this.previous = this;
+            this.next = this;
+        }
+
+        /**
+         * Cancel the task, which has no effect once it has been run.
+         */
+        void cancel()
+        {
+            synchronized (TimingWheel.this) {
+                if (next != null && next != this) {
+                    unlink(this);
+                }
+            }
+        }
+    }
+
+    /**
+     * Create a timing wheel.
+     *
+     * @param name the name of the thread running the tasks.
+     * @param clock the clock used to measure time.
+     */
+    TimingWheel(String name, RateLimiterClock clock)
+    {
+        this.name = name;
+        this.clock = clock;
+        this.origin = clock.nanoTime();
+        for (Timeout[] level : slots) {
+            for (int i = 0; i < SLOTS; i++) {
+                level[i] = new Timeout(null, 0);
+            }
+        }
+    }
+
+    /**
+     * @return the clock used by this wheel to measure time.
+     */
+    RateLimiterClock getClock()
+    {
+        return clock;
+    }
+
+    private long getTick()
+    {
+        return (clock.nanoTime() - origin) / TICK;
+    }
+
+    /**
+     * Schedule a task.
+     *
+     * @param task the task to run.
+     * @param delay the minimum delay before running the task.
+     * @param unit the unit used to express the delay.
+     * @return the timeout of the task, which can be used to cancel it.
+     */
+    synchronized Timeout schedule(Runnable task, long delay, TimeUnit unit)
+    {
+        long now = getTick();
+        if (count == 0) {
+            // The wheel has not been advanced while it was empty
+            currentTick = Math.max(currentTick, now);
+        }
+        long ticks = (unit.toNanos(Math.max(0, delay)) + TICK - 1) / TICK;
+        Timeout timeout = new Timeout(task, now + Math.max(1, ticks));
+        add(timeout);
+        count++;
+        if (thread == null) {
+            thread = new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    runTimeouts();
+                }
+            }, name);
+            thread.setDaemon(true);
+            thread.start();
+        } else {
+            notifyAll();
+        }
+        return timeout;
+    }
+
+    private void add(Timeout timeout)
+    {
+        // Timeouts beyond the span of the wheel are moved down again when their slot of the last level is reached
+        long target = Math.max(currentTick + 1, Math.min(timeout.deadline, currentTick + SPAN - 1));
+        long delta = target - currentTick;
+        int level = 0;
+        while (level < LEVELS - 1 && delta >= 1L << (SLOT_BITS * (level + 1))) {
+            level++;
+        }
+        Timeout head = slots[level][(int) (target >>> (SLOT_BITS * level)) & SLOT_MASK];
+        timeout.level = level;
+        timeout.previous = head.previous;
+        timeout.next = head;
+        head.previous.next = timeout;
+        head.previous = timeout;
+        if (level == 0) {
+            firstLevelCount++;
+        }
+    }
+
+    private void unlink(Timeout timeout)
+    {
+        timeout.previous.next = timeout.next;
+        timeout.next.previous = timeout.previous;
+        timeout.previous = null;
+        timeout.next = null;
+        count--;
+        if (timeout.level == 0) {
+            firstLevelCount--;
+        }
+    }
+
+    /**
+     * Advance the wheel by one tick.
+     *
+     * @param expired the list receiving the tasks to run.
+     */
+    private void advance(List<Runnable> expired)
+    {
+        long tick = ++currentTick;
+        for (int level = LEVELS - 1; level > 0; level--) {
+            if ((tick & ((1L << (SLOT_BITS * level)) - 1)) == 0) {
+                Timeout head = slots[level][(int) (tick >>> (SLOT_BITS * level)) & SLOT_MASK];
+                while (head.next != head) {
+                    Timeout timeout = head.next;
+                    unlink(timeout);
+                    count++;
+                    add(timeout);
+                }
+            }
+        }
+        Timeout head = slots[0][(int) tick & SLOT_MASK];
+        while (head.next != head) {
+            Timeout timeout = head.next;
+            unlink(timeout);
+            expired.add(timeout.task);
+        }
+    }
+
+    private void runTimeouts()
+    {
+        List<Runnable> expired = new ArrayList<Runnable>();
+        while (true) {
+            synchronized (this) {
+                long now = getTick();
+                while (currentTick < now && count > 0) {
+                    if (firstLevelCount == 0) {
+                        // Skip the empty ticks up to the next turn of the first level
+                        currentTick = Math.min(now, (currentTick | SLOT_MASK) + 1) - 1;
+                    }
+                    advance(expired);
+                }
+                currentTick = Math.max(currentTick, now);
+                if (expired.isEmpty()) {
+                    if (count == 0) {
+                        thread = null;
+                        return;
+                    }
+                    try {
+                        long waitTicks = (firstLevelCount > 0) ? 1 : SLOTS - (currentTick & SLOT_MASK);
+                        wait(TimeUnit.NANOSECONDS.toMillis(waitTicks * TICK));
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        thread = null;
+                        return;
+                    }
+                }
+            }
+
+            for (Runnable task : expired) {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    LOGGER.warn("Failed to run a rate limiter timeout: {}", e.getMessage());
+                }
+            }
+            expired.clear();
+        }
+    }
+}
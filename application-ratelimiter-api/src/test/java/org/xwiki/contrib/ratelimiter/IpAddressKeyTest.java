@@ -0,0 +1,206 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.ratelimiter;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Validate {@link IpAddressKey}.
+ *
+ * @version $Id$
+ */
+public class IpAddressKeyTest
+{
+    private static final String IPV4 = "192.168.1.42";
+
+    private static final String IPV6 = "2001:db8::ff00:42:8329";
+
+    private static void assertParsed(String expected, String address)
+    {
+        IpAddressKey key = IpAddressKey.parse(address);
+        assertEquals(address, expected, String.valueOf(key));
+    }
+
+    @Test
+    public void parseIPv4()
+    {
+        IpAddressKey key = IpAddressKey.parse(IPV4);
+
+        assertTrue(key.isIPv4());
+        assertFalse(key.isPrefix());
+        assertEquals(32, key.getPrefixLength());
+        assertEquals(128, key.getBitLength());
+        assertEquals(0, key.getHighBits());
+        assertEquals(0xFFFFC0A8012AL, key.getLowBits());
+        assertEquals(IPV4, key.toString());
+        assertParsed("0.0.0.0", "0.0.0.0");
+        assertParsed("255.255.255.255", "255.255.255.255");
+        assertParsed(IPV4, " " + IPV4 + "\t");
+    }
+
+    @Test
+    public void parseInvalidIPv4()
+    {
+        assertNull(IpAddressKey.parse(null));
+        assertNull(IpAddressKey.parse(""));
+        assertNull(IpAddressKey.parse("192.168.1"));
+        assertNull(IpAddressKey.parse("192.168.1.42.1"));
+        assertNull(IpAddressKey.parse("192.168.1.256"));
+        assertNull(IpAddressKey.parse("192.168..42"));
+        assertNull(IpAddressKey.parse("192.168.1.42."));
+        assertNull(IpAddressKey.parse("192.168.1.4a"));
+        assertNull(IpAddressKey.parse("example.com"));
+        assertNull(IpAddressKey.parse("unknown"));
+    }
+
+    @Test
+    public void parseIPv6()
+    {
+        IpAddressKey key = IpAddressKey.parse(IPV6);
+
+        assertFalse(key.isIPv4());
+        assertEquals(128, key.getPrefixLength());
+        assertEquals(0x20010DB800000000L, key.getHighBits());
+        assertEquals(0x0000FF0000428329L, key.getLowBits());
+        assertEquals(IPV6, key.toString());
+        assertParsed(IPV6, "2001:0DB8:0000:0000:0000:FF00:0042:8329");
+        assertParsed("::", "::");
+        assertParsed("::1", "::1");
+        assertParsed("fe80::", "fe80::");
+        assertParsed("1:2:3:4:5:6:7:8", "1:2:3:4:5:6:7:8");
+        assertParsed("1::8", "1:0:0:0:0:0:0:8");
+        // Only the longest run of zero groups is compressed
+        assertParsed("1:0:0:2::3", "1:0:0:2:0:0:0:3");
+    }
+
+    @Test
+    public void parseIPv6WithBracketsAndZone()
+    {
+        assertParsed("::1", "[::1]");
+        assertParsed("fe80::1", "fe80::1%eth0");
+        assertParsed("fe80::1", "[fe80::1%25eth0]");
+        // Ports are not part of the address
+        assertNull(IpAddressKey.parse("[::1]:8080"));
+        assertNull(IpAddressKey.parse("[::1"));
+    }
+
+    @Test
+    public void parseIPv6WithEmbeddedIPv4()
+    {
+        // IPv4-mapped addresses are the same keys as IPv4 addresses
+        IpAddressKey mapped = IpAddressKey.parse("::ffff:" + IPV4);
+        assertEquals(IpAddressKey.parse(IPV4), mapped);
+        assertTrue(mapped.isIPv4());
+        assertEquals(IPV4, mapped.toString());
+
+        assertParsed("64:ff9b::c0a8:12a", "64:ff9b::" + IPV4);
+        assertNull(IpAddressKey.parse("1:2:3:4:5:6:7:" + IPV4));
+        assertNull(IpAddressKey.parse("::ffff:192.168.1"));
+    }
+
+    @Test
+    public void parseInvalidIPv6()
+    {
+        assertNull(IpAddressKey.parse(":"));
+        assertNull(IpAddressKey.parse(":::"));
+        assertNull(IpAddressKey.parse("1::2::3"));
+        assertNull(IpAddressKey.parse("1:2:3:4:5:6:7"));
+        assertNull(IpAddressKey.parse("1:2:3:4:5:6:7:8:9"));
+        assertNull(IpAddressKey.parse("1:2:3:4:5:6:7::8"));
+        assertNull(IpAddressKey.parse("1:2:3:4:5:6:7:8::"));
+        assertNull(IpAddressKey.parse("1:"));
+        assertNull(IpAddressKey.parse("12345::"));
+        assertNull(IpAddressKey.parse("g::1"));
+    }
+
+    @Test
+    public void parsePartOfAString()
+    {
+        String header = "for=" + IPV4 + ", for=[" + IPV6 + "]";
+        int start = header.indexOf(IPV4);
+
+        assertEquals(IpAddressKey.parse(IPV4), IpAddressKey.parse(header, start, start + IPV4.length()));
+        assertEquals(IpAddressKey.parse(IPV6), IpAddressKey.parse(header, header.indexOf('['), header.length()));
+        assertNull(IpAddressKey.parse(header, 0, start + IPV4.length()));
+    }
+
+    @Test
+    public void prefixesOfIPv4()
+    {
+        IpAddressKey address = IpAddressKey.parse(IPV4);
+        IpAddressKey prefix = address.getPrefix(24);
+
+        assertTrue(prefix.isIPv4());
+        assertTrue(prefix.isPrefix());
+        assertEquals(24, prefix.getPrefixLength());
+        assertEquals("192.168.1.0/24", prefix.toString());
+        assertEquals(prefix, IpAddressKey.parse("192.168.1.7").getPrefix(24));
+        assertEquals(prefix.hashCode(), IpAddressKey.parse("192.168.1.7").getPrefix(24).hashCode());
+        assertFalse(prefix.equals(IpAddressKey.parse("192.168.2.42").getPrefix(24)));
+        assertFalse(prefix.equals(address));
+        assertTrue(prefix.contains(address));
+        assertTrue(prefix.contains(prefix));
+        assertFalse(address.contains(prefix));
+        assertFalse(prefix.contains(IpAddressKey.parse("192.168.2.42")));
+        assertSame(address, address.getPrefix(32));
+        assertSame(prefix, prefix.getPrefix(28));
+        assertEquals("0.0.0.0/0", address.getPrefix(0).toString());
+    }
+
+    @Test
+    public void prefixesOfIPv6()
+    {
+        IpAddressKey address = IpAddressKey.parse(IPV6);
+        IpAddressKey prefix = address.getPrefix(64);
+
+        assertFalse(prefix.isIPv4());
+        assertEquals("2001:db8::/64", prefix.toString());
+        assertEquals(prefix, IpAddressKey.parse("2001:db8::1").getPrefix(64));
+        assertTrue(prefix.contains(address));
+        assertFalse(prefix.contains(IpAddressKey.parse("2001:db8:0:1::1")));
+        assertEquals("2001:d00::/24", address.getPrefix(24).toString());
+        assertEquals("2001:db8::ff00:0:0/96", address.getPrefix(96).toString());
+        assertEquals("::/0", address.getPrefix(-1).toString());
+        // IPv4 prefixes are not part of IPv6 prefixes except the mapped range
+        assertFalse(prefix.contains(IpAddressKey.parse(IPV4)));
+        IpAddressKey mapped = IpAddressKey.valueOf(0, 0xFFFF00000000L, 96);
+        assertEquals("0.0.0.0/0", mapped.toString());
+        assertTrue(mapped.contains(IpAddressKey.parse(IPV4)));
+    }
+
+    @Test
+    public void rawBitsRoundTrip()
+    {
+        IpAddressKey prefix = IpAddressKey.parse(IPV6).getPrefix(48);
+
+        assertEquals(prefix,
+            IpAddressKey.valueOf(prefix.getHighBits(), prefix.getLowBits(), prefix.getBitLength()));
+        // Bits outside the prefix are ignored
+        assertEquals(prefix, IpAddressKey.valueOf(prefix.getHighBits() | 0xFFFFL, 0x1234L, 48));
+        assertNull(IpAddressKey.valueOf(0, 0, 129));
+        assertNull(IpAddressKey.valueOf(0, 0, -1));
+    }
+}
@@ -0,0 +1,288 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.xwiki.contrib.ratelimiter.internal;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.xwiki.contrib.ratelimiter.RateLimiter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Validate {@link ClusterRateLimiterCache} with several nodes communicating through an {@link InMemoryLeaseTransport}.
+ *
+ * @version $Id$
+ */
+public class ClusterRateLimiterCacheTest
+{
+    private static final String WIKI = "wiki";
+
+    private static final long LEASE_SIZE = 5;
+
+    /** Small enough for each segment of the store to keep a single limiter. */
+    private static final int CAPACITY = 16;
+
+    /** Large enough for the store to keep all the limiters of a test. */
+    private static final int LARGE_CAPACITY = 1024;
+
+    private RateLimiterClockTest.ManualClock clock;
+
+    private RateLimiter template;
+
+    private InMemoryLeaseTransport.Network network;
+
+    private Map<String, ClusterRateLimiterCache> caches;
+
+    private Map<String, RateLimiterStore> stores;
+
+    private int capacity;
+
+    @Before
+    public void setUp()
+    {
+        clock = new RateLimiterClockTest.ManualClock();
+        template = new DefaultRateLimiterBuilder().setClock(clock).addLimiter(10, 1, TimeUnit.MINUTES).build();
+        network = new InMemoryLeaseTransport.Network();
+        caches = new HashMap<String, ClusterRateLimiterCache>();
+        stores = new HashMap<String, RateLimiterStore>();
+        capacity = CAPACITY;
+    }
+
+    private void start(String... nodes)
+    {
+        Map<String, InMemoryLeaseTransport> transports = new HashMap<String, InMemoryLeaseTransport>();
+        for (String node : nodes) {
+            transports.put(node, network.join(node));
+        }
+        for (String node : nodes) {
+            RateLimiterStore store = new RateLimiterStore(capacity, clock);
+            InMemoryLeaseTransport transport = transports.get(node);
+            ClusterRateLimiterCache cache = new ClusterRateLimiterCache(store, transport,
+                Collections.singletonList(template), LEASE_SIZE, clock);
+            transport.setReceiver(cache);
+            stores.put(node, store);
+            caches.put(node, cache);
+        }
+    }
+
+    private String getConsumerOwnedBy(String owner)
+    {
+        ClusterRateLimiterCache cache = caches.get(owner);
+        for (int i = 0;; i++) {
+            String consumer = "user" + i;
+            if (cache.getOwner(consumer, WIKI).equals(owner)) {
+                return consumer;
+            }
+        }
+    }
+
+    private boolean consume(String node, String consumer, long amount)
+    {
+        return caches.get(node).consume(consumer, WIKI, amount, template).isAllowed();
+    }
+
+    private void flush(String node)
+    {
+        clock.advance(ClusterRateLimiterCache.FLUSH_INTERVAL, TimeUnit.NANOSECONDS);
+        caches.get(node).flush();
+    }
+
+    private long getAvailableAmount(String node, String consumer)
+    {
+        return caches.get(node).get(consumer, WIKI).getAvailableAmount(true);
+    }
+
+    @Test
+    public void ownershipIsTheSameOnAllNodes()
+    {
+        start("a", "b", "c");
+
+        for (int i = 0; i < 100; i++) {
+            String owner = caches.get("a").getOwner("user" + i, WIKI);
+            assertEquals(owner, caches.get("b").getOwner("user" + i, WIKI));
+            assertEquals(owner, caches.get("c").getOwner("user" + i, WIKI));
+        }
+    }
+
+    @Test
+    public void leaseIsGrantedByTheOwner()
+    {
+        start("a", "b");
+        String consumer = getConsumerOwnedBy("b");
+
+        // The first consumption is done on credit while the lease is requested
+        assertTrue(consume("a", consumer, 1));
+        assertTrue(caches.get("a").get(consumer, WIKI) instanceof LeasedRateLimiter);
+        flush("a");
+
+        // The debt is repaid and a full lease is granted
+        assertEquals(LEASE_SIZE, getAvailableAmount("a", consumer));
+        assertEquals(10 - LEASE_SIZE - 1, getAvailableAmount("b", consumer));
+    }
+
+    @Test
+    public void exhaustedOwnerBlocksTheLeaseWithoutBeingDrained()
+    {
+        start("a", "b");
+        String consumer = getConsumerOwnedBy("b");
+
+        // Consumption on credit is limited to one lease
+        for (int i = 0; i < LEASE_SIZE; i++) {
+            assertTrue(consume("a", consumer, 1));
+        }
+        assertFalse(consume("a", consumer, 1));
+        flush("a");
+        assertEquals(LEASE_SIZE, getAvailableAmount("a", consumer));
+        assertEquals(0, getAvailableAmount("b", consumer));
+
+        for (int i = 0; i <= LEASE_SIZE; i++) {
+            assertTrue(consume("a", consumer, 1));
+        }
+        flush("a");
+
+        // Nothing is left to grant, so the lease is blocked until the owner recovers
+        assertFalse(consume("a", consumer, 1));
+        assertEquals(0, getAvailableAmount("b", consumer));
+
+        clock.advance(1, TimeUnit.MINUTES);
+        assertTrue(consume("a", consumer, 1));
+    }
+
+    @Test
+    public void leaseIsGrantedByADedicatedLimiterOfAFullOwner()
+    {
+        start("a", "b");
+        RateLimiterStore ownerStore = stores.get("b");
+        for (int i = 0; ownerStore.size() < CAPACITY; i++) {
+            for (int j = 0; j < 9; j++) {
+                ownerStore.consume("resident" + i, WIKI, 1, template);
+            }
+        }
+        String consumer = getConsumerOwnedBy("b");
+
+        assertTrue(consume("a", consumer, 1));
+        flush("a");
+
+        assertEquals(LEASE_SIZE, getAvailableAmount("a", consumer));
+        assertNotNull(ownerStore.get(consumer, WIKI));
+        assertEquals(10 - LEASE_SIZE - 1, getAvailableAmount("b", consumer));
+    }
+
+    @Test
+    public void leasesMoveWhenTheOwnerLeaves()
+    {
+        start("a", "b", "c");
+        String consumer = getConsumerOwnedBy("c");
+        assertTrue(consume("a", consumer, 1));
+        flush("a");
+        assertEquals(LEASE_SIZE, getAvailableAmount("a", consumer));
+
+        network.leave("c");
+        flush("a");
+
+        // The lease from the node that left is forgotten, and the quota is now owned by a remaining node
+        assertNull(caches.get("a").get(consumer, WIKI));
+        String owner = caches.get("a").getOwner(consumer, WIKI);
+        assertFalse("c".equals(owner));
+
+        assertTrue(consume("a", consumer, 1));
+        flush("a");
+        RateLimiter limiter = caches.get("a").get(consumer, WIKI);
+        assertEquals(!"a".equals(owner), limiter instanceof LeasedRateLimiter);
+        if (!"a".equals(owner)) {
+            assertEquals(LEASE_SIZE, limiter.getAvailableAmount(true));
+        }
+    }
+
+    @Test
+    public void ringOnlyMovesQuotasToTheJoiningNode()
+    {
+        start("a", "b");
+        Map<String, String> owners = new HashMap<String, String>();
+        for (int i = 0; i < 200; i++) {
+            owners.put("user" + i, caches.get("a").getOwner("user" + i, WIKI));
+        }
+
+        start("c");
+        flush("a");
+
+        int moved = 0;
+        for (Map.Entry<String, String> entry : owners.entrySet()) {
+            String owner = caches.get("a").getOwner(entry.getKey(), WIKI);
+            assertEquals(owner, caches.get("c").getOwner(entry.getKey(), WIKI));
+            if (!owner.equals(entry.getValue())) {
+                assertEquals("c", owner);
+                moved++;
+            }
+        }
+        assertTrue(moved > 0);
+    }
+
+    @Test
+    public void ringChangeOnlyDropsTheQuotasThatMoved()
+    {
+        capacity = LARGE_CAPACITY;
+        start("a", "b");
+        // Predict the ownership once the third node joins, since it only depends on the identifiers of the nodes
+        InMemoryLeaseTransport.Network future = new InMemoryLeaseTransport.Network();
+        future.join("a");
+        future.join("b");
+        ClusterRateLimiterCache futureCache = new ClusterRateLimiterCache(new RateLimiterStore(capacity, clock),
+            future.join("c"), Collections.singletonList(template), LEASE_SIZE, clock);
+        Map<String, String> consumers = new HashMap<String, String>();
+        for (int i = 0; consumers.size() < 4; i++) {
+            String consumer = "user" + i;
+            String change = caches.get("a").getOwner(consumer, WIKI) + '>' + futureCache.getOwner(consumer, WIKI);
+            if (!consumers.containsKey(change)) {
+                consumers.put(change, consumer);
+                assertTrue(consume("a", consumer, 1));
+            }
+        }
+        assertEquals(new HashSet<String>(Arrays.asList("a>a", "a>c", "b>b", "b>c")), consumers.keySet());
+
+        start("c");
+        flush("a");
+
+        // The actual limiter and the lease of the quotas kept by their owner are still there
+        assertFalse(getLimiter("a", consumers.get("a>a")) instanceof LeasedRateLimiter);
+        assertEquals(10 - 1, getAvailableAmount("a", consumers.get("a>a")));
+        assertTrue(getLimiter("a", consumers.get("b>b")) instanceof LeasedRateLimiter);
+        // The others are dropped
+        assertNull(getLimiter("a", consumers.get("a>c")));
+        assertNull(getLimiter("a", consumers.get("b>c")));
+    }
+
+    private RateLimiter getLimiter(String node, String consumer)
+    {
+        return caches.get(node).get(consumer, WIKI);
+    }
+}
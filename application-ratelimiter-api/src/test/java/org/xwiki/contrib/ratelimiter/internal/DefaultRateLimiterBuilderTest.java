@@ -0,0 +1,63 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.ratelimiter.internal;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.xwiki.contrib.ratelimiter.RateLimiter;
+import org.xwiki.contrib.ratelimiter.RateLimiterBuilder;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Validate {@link DefaultRateLimiterBuilder}.
+ *
+ * @version $Id$
+ */
+public class DefaultRateLimiterBuilderTest
+{
+    @Test
+    public void classicLeakyBucketsAreFused()
+    {
+        RateLimiter limiter = new DefaultRateLimiterBuilder().addLimiter(10, 1, TimeUnit.MINUTES)
+            .addLimiter(100, 200, 1, TimeUnit.HOURS).buildFused(true);
+
+        assertTrue(limiter instanceof FusedRateLimiter);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void lockFreeLeakyBucketsAreNotFused()
+    {
+        new DefaultRateLimiterBuilder().addLimiter(10, 1, TimeUnit.MINUTES).addLockFreeLimiter(100, 1, TimeUnit.HOURS)
+            .buildFused(false);
+    }
+
+    @Test
+    public void lockFreeLeakyBucketsAreKeptByBuild()
+    {
+        RateLimiterBuilder builder = new DefaultRateLimiterBuilder().addLockFreeLimiter(10, 1, TimeUnit.MINUTES);
+        RateLimiter limiter = builder.build();
+
+        assertTrue(limiter instanceof CollectionRateLimiter);
+        assertTrue(((CollectionRateLimiter) limiter).getRateLimiters().iterator()
+            .next() instanceof LockFreeLeakyBucketRateLimiter);
+    }
+}
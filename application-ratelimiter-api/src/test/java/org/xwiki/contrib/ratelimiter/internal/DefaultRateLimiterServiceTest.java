@@ -0,0 +1,303 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.xwiki.contrib.ratelimiter.internal;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.xwiki.contrib.ratelimiter.IpAddressKey;
+import org.xwiki.contrib.ratelimiter.RateLimiter;
+import org.xwiki.contrib.ratelimiter.RateLimiterBackend;
+import org.xwiki.contrib.ratelimiter.RateLimiterFuture;
+import org.xwiki.contrib.ratelimiter.RateLimiterServiceOptions;
+import org.xwiki.observation.ObservationManager;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Validate {@link DefaultRateLimiterService}.
+ *
+ * @version $Id$
+ */
+public class DefaultRateLimiterServiceTest
+{
+    private static final String WIKI = "wiki";
+
+    /** Small enough for each segment of the store to keep a single limiter. */
+    private static final int CAPACITY = 16;
+
+    private RateLimiterClockTest.ManualClock clock;
+
+    private RateLimiter template;
+
+    private RateLimiterStore store;
+
+    private final List<Object[]> notifications = new ArrayList<Object[]>();
+
+    private ObservationManager observationManager;
+
+    @Before
+    public void setUp()
+    {
+        clock = new RateLimiterClockTest.ManualClock();
+        template = new DefaultRateLimiterBuilder().setClock(clock).addLimiter(10, 1, TimeUnit.MINUTES).build();
+        store = new RateLimiterStore(CAPACITY, clock);
+        observationManager = (ObservationManager) Proxy.newProxyInstance(getClass().getClassLoader(),
+            new Class<?>[] {ObservationManager.class}, new InvocationHandler()
+            {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args)
+                {
+                    if (method.getName().equals("notify")) {
+                        notifications.add(args);
+                    }
+                    return null;
+                }
+            });
+    }
+
+    /**
+     * Fill all the segments of the store with frequently used limiters that are not drained, so that any new consumer
+     * is refused by the admission filter.
+     */
+    private void fillStore()
+    {
+        for (int i = 0; store.size() < CAPACITY; i++) {
+            for (int j = 0; j < 15; j++) {
+                store.consume("resident" + i, WIKI, 1, template);
+            }
+        }
+    }
+
+    private DefaultRateLimiterService createApproximateService()
+    {
+        ConsumptionSketch sketch = new ConsumptionSketch(4 * CAPACITY, 2, 1, TimeUnit.MINUTES, clock);
+        return new DefaultRateLimiterService(store, template, observationManager, sketch, null,
+            new RateLimiterServiceOptions());
+    }
+
+    @Test
+    public void refusedNewcomerIsOnlyChargedItsAmount()
+    {
+        fillStore();
+        DefaultRateLimiterService service = createApproximateService();
+
+        // Once promoted from the sketch, the newcomer is refused by the store, and shares the newcomers limiter
+        for (int i = 0; i < 10; i++) {
+            assertTrue("Request " + i, service.consume("newcomer", WIKI, 1));
+        }
+        assertNull(store.get("newcomer", WIKI));
+        assertTrue(notifications.isEmpty());
+    }
+
+    @Test
+    public void refusedNewcomerIsOnlyChargedItsAmountInBatches()
+    {
+        fillStore();
+        DefaultRateLimiterService service = createApproximateService();
+
+        for (int i = 0; i < 10; i++) {
+            boolean[] allowed =
+                service.consume(new Object[] {"newcomer"}, new Object[] {WIKI}, new long[] {1}, false);
+            assertTrue("Request " + i, allowed[0]);
+        }
+        assertNull(store.get("newcomer", WIKI));
+    }
+
+    @Test
+    public void admittedConsumerIsChargedItsEstimateOnce()
+    {
+        DefaultRateLimiterService service = createApproximateService();
+
+        // Tracked in the sketch only
+        assertTrue(service.consume("consumer", WIKI, 1));
+        assertTrue(service.consume("consumer", WIKI, 1));
+        assertNull(store.get("consumer", WIKI));
+
+        // Promoted with its estimated level, then charged the amount only
+        assertTrue(service.consume("consumer", WIKI, 1));
+        assertEquals(7, store.get("consumer", WIKI).getAvailableAmount(true));
+        assertTrue(service.consume("consumer", WIKI, 1));
+        assertEquals(6, store.get("consumer", WIKI).getAvailableAmount(true));
+    }
+
+    @Test
+    public void rejectionOfTheGlobalCapacityIsNotChargedToTheConsumer()
+    {
+        FairShareLimiter fairShare =
+            new FairShareLimiter(2, 1, TimeUnit.MINUTES, Collections.<Object, Long>emptyMap(), clock);
+        DefaultRateLimiterService service = new DefaultRateLimiterService(store, template, observationManager, null,
+            fairShare, new RateLimiterServiceOptions());
+
+        assertTrue(service.consume("consumer", WIKI, 1));
+        assertTrue(service.consume("consumer", WIKI, 1));
+        assertFalse(service.consume("consumer", WIKI, 1));
+        assertFalse(service.consume("consumer", WIKI, 1));
+        assertEquals(8, store.get("consumer", WIKI).getAvailableAmount(true));
+    }
+
+    @Test
+    public void consumptionRejectedIndividuallyIsGivenBackToTheGlobalCapacity()
+    {
+        FairShareLimiter fairShare =
+            new FairShareLimiter(11, 1, TimeUnit.MINUTES, Collections.<Object, Long>emptyMap(), clock);
+        DefaultRateLimiterService service = new DefaultRateLimiterService(store, template, observationManager, null,
+            fairShare, new RateLimiterServiceOptions());
+
+        for (int i = 0; i < 10; i++) {
+            assertTrue(service.consume("abuser", WIKI, 1));
+        }
+        assertFalse(service.consume("abuser", WIKI, 1));
+        assertEquals(1, notifications.size());
+
+        assertTrue(service.consume("user", WIKI, 1));
+        assertFalse(service.consume("user", WIKI, 1));
+    }
+
+    @Test
+    public void batchRejectedByTheGlobalCapacityIsNotCharged()
+    {
+        FairShareLimiter fairShare =
+            new FairShareLimiter(1, 1, TimeUnit.MINUTES, Collections.<Object, Long>emptyMap(), clock);
+        DefaultRateLimiterService service = new DefaultRateLimiterService(store, template, observationManager, null,
+            fairShare, new RateLimiterServiceOptions());
+
+        boolean[] allowed = service.consume(new Object[] {"a", "b"}, new Object[] {WIKI, WIKI}, new long[] {1, 1},
+            false);
+        assertTrue(allowed[0]);
+        assertFalse(allowed[1]);
+        assertNull(store.get("b", WIKI));
+    }
+
+    @Test
+    public void exhaustionIsNotifiedOncePerExhaustion()
+    {
+        RateLimiter cellTemplate =
+            new DefaultRateLimiterBuilder().setClock(clock).addCellRateLimiter(10, 1, TimeUnit.SECONDS, 1).build();
+        DefaultRateLimiterService service = new DefaultRateLimiterService(store, cellTemplate, observationManager,
+            null, null, new RateLimiterServiceOptions());
+
+        assertTrue(service.consume("abuser", WIKI, 1));
+        for (int i = 0; i < 5; i++) {
+            assertFalse(service.consume("abuser", WIKI, 1));
+            assertFalse(service.consume(new Object[] {"abuser"}, new Object[] {WIKI}, new long[] {1}, false)[0]);
+        }
+        assertEquals(1, notifications.size());
+
+        clock.advance(100, TimeUnit.MILLISECONDS);
+        assertTrue(service.consume("abuser", WIKI, 1));
+        assertFalse(service.consume("abuser", WIKI, 1));
+        assertEquals(2, notifications.size());
+    }
+
+    private DefaultRateLimiterService createShapingService(FairShareLimiter fairShare, RateLimiter aggregate)
+    {
+        DefaultRateLimiterService service = new DefaultRateLimiterService(store, template, observationManager, null,
+            fairShare, new RateLimiterServiceOptions().setAggregateTemplate(aggregate).setIPv4PrefixLength(24));
+        service.setTimingWheel(new TimingWheel("Test timing wheel", clock));
+        return service;
+    }
+
+    @Test
+    public void delayedConsumptionIsChargedToTheNetworkPrefix() throws Exception
+    {
+        RateLimiter aggregate =
+            new DefaultRateLimiterBuilder().setClock(clock).addLimiter(3, 1, TimeUnit.MINUTES).build();
+        DefaultRateLimiterService service = createShapingService(null, aggregate);
+        IpAddressKey neighbour = IpAddressKey.parse("192.0.2.2");
+
+        for (int i = 0; i < 3; i++) {
+            assertTrue(service.acquire(IpAddressKey.parse("192.0.2.1"), WIKI, 1, 1, TimeUnit.SECONDS).get());
+        }
+        // The exhausted prefix rejects at once instead of delaying
+        RateLimiterFuture future = service.acquire(neighbour, WIKI, 1, 1, TimeUnit.SECONDS);
+        assertTrue(future.isDone());
+        assertFalse(future.get());
+        assertNull(store.get(neighbour, WIKI));
+        assertEquals(1, notifications.size());
+    }
+
+    @Test
+    public void delayedConsumptionIsChargedToTheGlobalCapacity() throws Exception
+    {
+        FairShareLimiter fairShare =
+            new FairShareLimiter(2, 1, TimeUnit.MINUTES, Collections.<Object, Long>emptyMap(), clock);
+        DefaultRateLimiterService service = createShapingService(fairShare, null);
+
+        assertTrue(service.acquire("consumer", WIKI, 1, 1, TimeUnit.SECONDS).get());
+        assertTrue(service.consume("other", WIKI, 1));
+        RateLimiterFuture future = service.acquire("consumer", WIKI, 1, 1, TimeUnit.SECONDS);
+        assertTrue(future.isDone());
+        assertFalse(future.get());
+        assertEquals(9, store.get("consumer", WIKI).getAvailableAmount(true));
+    }
+
+    @Test
+    public void delayedConsumptionNotServedInTimeIsNotifiedAndGivenBack() throws Exception
+    {
+        FairShareLimiter fairShare =
+            new FairShareLimiter(11, 1, TimeUnit.MINUTES, Collections.<Object, Long>emptyMap(), clock);
+        DefaultRateLimiterService service = createShapingService(fairShare, null);
+
+        for (int i = 0; i < 10; i++) {
+            assertTrue(service.consume("abuser", WIKI, 1));
+        }
+        // Would only fit in 6 seconds
+        RateLimiterFuture future = service.acquire("abuser", WIKI, 1, 1, TimeUnit.SECONDS);
+        assertFalse(future.get(1, TimeUnit.SECONDS));
+        assertEquals(1, notifications.size());
+
+        // The rejected consumption is not part of the global load
+        assertTrue(service.consume("user", WIKI, 1));
+    }
+
+    @Test
+    public void disposeClosesTheBackend()
+    {
+        final List<String> calls = new ArrayList<String>();
+        RateLimiterBackend backend = (RateLimiterBackend) Proxy.newProxyInstance(getClass().getClassLoader(),
+            new Class<?>[] {RateLimiterBackend.class}, new InvocationHandler()
+            {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args)
+                {
+                    calls.add(method.getName());
+                    return null;
+                }
+            });
+        DefaultRateLimiterService service =
+            new DefaultRateLimiterService(backend, template, observationManager, null, null,
+                new RateLimiterServiceOptions());
+
+        service.dispose();
+        assertEquals(Collections.singletonList("close"), calls);
+    }
+}
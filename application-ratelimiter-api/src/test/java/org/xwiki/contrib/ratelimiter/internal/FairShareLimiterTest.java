@@ -0,0 +1,143 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.xwiki.contrib.ratelimiter.internal;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Validate {@link FairShareLimiter}.
+ *
+ * @version $Id$
+ */
+public class FairShareLimiterTest
+{
+    private RateLimiterClockTest.ManualClock clock;
+
+    @Before
+    public void setUp()
+    {
+        clock = new RateLimiterClockTest.ManualClock();
+    }
+
+    private FairShareLimiter createLimiter(long capacity, Map<Object, Long> weights)
+    {
+        return new FairShareLimiter(capacity, 1, TimeUnit.SECONDS, weights, clock);
+    }
+
+    @Test
+    public void singleEntityBorrowsTheWholeCapacity()
+    {
+        FairShareLimiter limiter = createLimiter(10, Collections.<Object, Long>emptyMap());
+
+        assertTrue(limiter.consume("a", 10));
+        assertFalse(limiter.consume("a", 1));
+    }
+
+    @Test
+    public void overloadedCapacityIsSharedFairly()
+    {
+        FairShareLimiter limiter = createLimiter(10, Collections.<Object, Long>emptyMap());
+
+        assertTrue(limiter.consume("a", 10));
+
+        // Once b is active, each entity is guaranteed half of the capacity
+        assertTrue(limiter.consume("b", 5));
+        assertFalse(limiter.consume("b", 1));
+        assertFalse(limiter.consume("a", 1));
+    }
+
+    @Test
+    public void sharesAreWeighted()
+    {
+        Map<Object, Long> weights = new HashMap<Object, Long>();
+        weights.put("b", 3L);
+        FairShareLimiter limiter = createLimiter(12, weights);
+
+        assertTrue(limiter.consume("a", 12));
+        assertTrue(limiter.consume("b", 9));
+        assertFalse(limiter.consume("b", 1));
+    }
+
+    @Test
+    public void capacityIsRecoveredOverTheSlidingPeriod()
+    {
+        FairShareLimiter limiter = createLimiter(10, Collections.<Object, Long>emptyMap());
+
+        assertTrue(limiter.consume("a", 10));
+        clock.advance(1, TimeUnit.SECONDS);
+        // The previous window is still fully covered by the sliding period
+        assertFalse(limiter.consume("a", 1));
+        clock.advance(500, TimeUnit.MILLISECONDS);
+        assertTrue(limiter.consume("a", 5));
+        assertFalse(limiter.consume("a", 1));
+    }
+
+    @Test
+    public void releasedConsumptionIsGivenBack()
+    {
+        FairShareLimiter limiter = createLimiter(10, Collections.<Object, Long>emptyMap());
+
+        assertTrue(limiter.consume("a", 10));
+        limiter.release("a", 4);
+        assertTrue(limiter.consume("a", 4));
+        assertFalse(limiter.consume("a", 1));
+    }
+
+    @Test
+    public void concurrentConsumptionsNeverExceedTheCapacity() throws InterruptedException
+    {
+        final int capacity = 1000;
+        final FairShareLimiter limiter = createLimiter(capacity, Collections.<Object, Long>emptyMap());
+        final AtomicInteger allowed = new AtomicInteger();
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    for (int i = 0; i < capacity; i++) {
+                        if (limiter.consume("a", 1)) {
+                            allowed.incrementAndGet();
+                        }
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertTrue("Allowed " + allowed.get(), allowed.get() <= capacity);
+        assertTrue("Allowed " + allowed.get(), allowed.get() > capacity - threads.length);
+    }
+}
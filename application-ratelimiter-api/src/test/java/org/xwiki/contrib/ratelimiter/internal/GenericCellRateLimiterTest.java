@@ -0,0 +1,141 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.ratelimiter.internal;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.xwiki.contrib.ratelimiter.RateLimiter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Validate {@link GenericCellRateLimiter}.
+ *
+ * @version $Id$
+ */
+public class GenericCellRateLimiterTest
+{
+    private static final long LIMIT = 10;
+
+    private static final long BURST = 5;
+
+    /** One unit every 6 seconds. */
+    private static final long EMISSION_INTERVAL = 6;
+
+    private RateLimiterClockTest.ManualClock clock;
+
+    private GenericCellRateLimiter limiter;
+
+    @Before
+    public void setUp()
+    {
+        clock = new RateLimiterClockTest.ManualClock();
+        CollectionRateLimiter built = (CollectionRateLimiter) new DefaultRateLimiterBuilder().setClock(clock)
+            .addCellRateLimiter(LIMIT, 1, TimeUnit.MINUTES, BURST).build();
+        limiter = (GenericCellRateLimiter) built.getRateLimiters().iterator().next();
+    }
+
+    @Test
+    public void burstIsDerivedFromTheTolerance()
+    {
+        assertEquals(TimeUnit.SECONDS.toNanos(EMISSION_INTERVAL), limiter.getEmissionInterval());
+        assertEquals(TimeUnit.SECONDS.toNanos((BURST - 1) * EMISSION_INTERVAL), limiter.getTolerance());
+        assertEquals(BURST, limiter.getAvailableAmount(true));
+    }
+
+    @Test
+    public void burstThenSustainedRate()
+    {
+        assertTrue(limiter.consume(BURST));
+        assertFalse(limiter.consume(1));
+        assertEquals(0, limiter.getAvailableAmount(true));
+        assertEquals(EMISSION_INTERVAL, limiter.getWaitingTime(1, TimeUnit.SECONDS));
+
+        // After the burst, one unit is allowed per emission interval
+        for (int i = 0; i < 3; i++) {
+            clock.advance(EMISSION_INTERVAL - 1, TimeUnit.SECONDS);
+            assertFalse(limiter.consume(1));
+            clock.advance(1, TimeUnit.SECONDS);
+            assertTrue(limiter.consume(1));
+        }
+    }
+
+    @Test
+    public void rejectedConsumptionsAreNotAccounted()
+    {
+        assertTrue(limiter.consume(BURST - 1));
+        assertFalse(limiter.consume(2));
+        assertFalse(limiter.consume(BURST + 1));
+
+        assertEquals(1, limiter.getAvailableAmount(true));
+        assertTrue(limiter.consume(1));
+    }
+
+    @Test
+    public void recoversWithTheClock()
+    {
+        assertTrue(limiter.consume(BURST));
+        assertEquals(BURST * EMISSION_INTERVAL, limiter.getDrainTime(TimeUnit.SECONDS));
+
+        clock.advance(2 * EMISSION_INTERVAL, TimeUnit.SECONDS);
+        assertEquals(2, limiter.getAvailableAmount(true));
+        assertEquals(EMISSION_INTERVAL, limiter.getWaitingTime(3, TimeUnit.SECONDS));
+        assertEquals((BURST - 2) * EMISSION_INTERVAL, limiter.getDrainTime(TimeUnit.SECONDS));
+
+        // Idle time beyond the drain time does not grant more than the burst
+        clock.advance(1, TimeUnit.HOURS);
+        assertEquals(0, limiter.getDrainTime(TimeUnit.SECONDS));
+        assertEquals(BURST, limiter.getAvailableAmount(true));
+        assertFalse(limiter.consume(BURST + 1));
+    }
+
+    @Test
+    public void stateIsSavedAndRestored()
+    {
+        assertTrue(limiter.consume(BURST));
+        long[] state = new long[limiter.getStateSize()];
+        limiter.saveState(state, 0);
+
+        clock.advance(EMISSION_INTERVAL, TimeUnit.SECONDS);
+        GenericCellRateLimiter restored = (GenericCellRateLimiter) limiter.clone(true);
+        assertEquals(BURST, restored.getAvailableAmount(true));
+        restored.restoreState(state, 0);
+        // The time elapsed while the state was saved is not accounted
+        assertEquals(0, restored.getAvailableAmount(true));
+        assertEquals(1, limiter.getAvailableAmount(true));
+    }
+
+    @Test
+    public void cloneAndReset()
+    {
+        assertTrue(limiter.consume(BURST));
+
+        RateLimiter copy = limiter.clone(false);
+        assertFalse(copy.consume(1));
+
+        limiter.reset();
+        assertEquals(BURST, limiter.getAvailableAmount(true));
+        assertEquals(0, copy.getAvailableAmount(true));
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.xwiki.contrib.ratelimiter.internal;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.xwiki.contrib.ratelimiter.cluster.LeaseMessage;
+import org.xwiki.contrib.ratelimiter.cluster.LeaseTransport;
+
+/**
+ * A {@link LeaseTransport} delivering messages synchronously between nodes of the same JVM, mainly to test the
+ * cluster mode with several in-process nodes.
+ *
+ * @version $Id$
+ */
+public class InMemoryLeaseTransport implements LeaseTransport
+{
+    /**
+     * A set of in-process nodes able to communicate together.
+     */
+    public static final class Network
+    {
+        private final Map<String, InMemoryLeaseTransport> nodes =
+            new ConcurrentHashMap<String, InMemoryLeaseTransport>();
+
+        /**
+         * @param node the identifier of the new node.
+         * @return the transport of the new node.
+         */
+        public InMemoryLeaseTransport join(String node)
+        {
+            InMemoryLeaseTransport transport = new InMemoryLeaseTransport(this, node);
+            nodes.put(node, transport);
+            return transport;
+        }
+
+        /**
+         * @param node the identifier of the node leaving the network.
+         */
+        public void leave(String node)
+        {
+            nodes.remove(node);
+        }
+    }
+
+    private final Network network;
+
+    private final String node;
+
+    private volatile Receiver receiver;
+
+    private InMemoryLeaseTransport(Network network, String node)
+    {
+        this.network = network;
+        this.node = node;
+    }
+
+    @Override
+    public String getLocalNode()
+    {
+        return node;
+    }
+
+    @Override
+    public Collection<String> getNodes()
+    {
+        return new ArrayList<String>(network.nodes.keySet());
+    }
+
+    @Override
+    public void send(LeaseMessage message)
+    {
+        InMemoryLeaseTransport target = network.nodes.get(message.getTarget());
+        Receiver targetReceiver = (target != null) ? target.receiver : null;
+        if (targetReceiver != null) {
+            targetReceiver.receive(message);
+        }
+    }
+
+    @Override
+    public void setReceiver(Receiver receiver)
+    {
+        this.receiver = receiver;
+    }
+}
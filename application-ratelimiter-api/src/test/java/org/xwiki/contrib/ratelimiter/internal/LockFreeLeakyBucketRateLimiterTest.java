@@ -0,0 +1,137 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.ratelimiter.internal;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Validate {@link LockFreeLeakyBucketRateLimiter}.
+ *
+ * @version $Id$
+ */
+public class LockFreeLeakyBucketRateLimiterTest
+{
+    private static final long LIMIT = 10;
+
+    /** Leak once per nanosecond, so the count of leaks overflows in a few minutes without rebasing. */
+    private static final long PERIOD = 10;
+
+    private static final long TICK_SPAN = 1L << LockFreeLeakyBucketRateLimiter.TICK_BITS;
+
+    private RateLimiterClockTest.ManualClock clock;
+
+    @Before
+    public void setUp()
+    {
+        clock = new RateLimiterClockTest.ManualClock();
+    }
+
+    private LockFreeLeakyBucketRateLimiter create(long overflow)
+    {
+        return new LockFreeLeakyBucketRateLimiter(LIMIT, overflow, PERIOD, TimeUnit.NANOSECONDS, clock);
+    }
+
+    private void assertFills(LockFreeLeakyBucketRateLimiter limiter)
+    {
+        assertEquals(LIMIT, limiter.getAvailableAmount(true));
+        for (int i = 0; i < LIMIT; i++) {
+            assertTrue(limiter.consume(1));
+        }
+        assertFalse(limiter.consume(1));
+        assertEquals(0, limiter.getAvailableAmount(false));
+        assertEquals(LIMIT, limiter.getDrainTime(TimeUnit.NANOSECONDS));
+        clock.advance(LIMIT / 2, TimeUnit.NANOSECONDS);
+        assertEquals(LIMIT / 2, limiter.getAvailableAmount(true));
+    }
+
+    @Test
+    public void leaksWithTheClock()
+    {
+        LockFreeLeakyBucketRateLimiter limiter = create(LIMIT);
+
+        assertFills(limiter);
+        clock.advance(LIMIT, TimeUnit.NANOSECONDS);
+        assertFills(limiter);
+    }
+
+    @Test
+    public void keepsLeakingLongAfterTheCountOfLeaksWouldOverflow()
+    {
+        LockFreeLeakyBucketRateLimiter limiter = create(LIMIT);
+
+        // Used regularly, across several rebases of the origin
+        for (int i = 0; i < 20; i++) {
+            clock.advance(TICK_SPAN / 4, TimeUnit.NANOSECONDS);
+            assertFills(limiter);
+        }
+    }
+
+    @Test
+    public void keepsLeakingAfterBeingIdleForLong()
+    {
+        LockFreeLeakyBucketRateLimiter limiter = create(LIMIT);
+        assertFills(limiter);
+
+        clock.advance(3 * TICK_SPAN + 1, TimeUnit.NANOSECONDS);
+        assertFills(limiter);
+        clock.advance(TimeUnit.DAYS.toNanos(30), TimeUnit.NANOSECONDS);
+        assertFills(limiter);
+    }
+
+    @Test
+    public void infiniteBucketKeepsItsDebtAcrossRebases()
+    {
+        LockFreeLeakyBucketRateLimiter limiter = create(LockFreeLeakyBucketRateLimiter.MAX_LEVEL);
+        clock.advance(TICK_SPAN - LIMIT, TimeUnit.NANOSECONDS);
+        assertEquals(LIMIT, limiter.getAvailableAmount(true));
+        assertFalse(limiter.consume(3 * LIMIT));
+
+        // The rebase happens while the bucket is still in debt
+        clock.advance(2 * LIMIT, TimeUnit.NANOSECONDS);
+        assertEquals(0, limiter.getAvailableAmount(true));
+        assertEquals(LIMIT, limiter.getWaitingTime(LIMIT, TimeUnit.NANOSECONDS, false));
+        clock.advance(LIMIT, TimeUnit.NANOSECONDS);
+        assertEquals(LIMIT, limiter.getAvailableAmount(true));
+    }
+
+    @Test
+    public void stateIsSavedAndRestoredAcrossRebases()
+    {
+        LockFreeLeakyBucketRateLimiter limiter = create(LIMIT);
+        clock.advance(TICK_SPAN + 1, TimeUnit.NANOSECONDS);
+        assertTrue(limiter.consume(LIMIT));
+        long[] state = new long[limiter.getStateSize()];
+        limiter.saveState(state, 0);
+
+        LockFreeLeakyBucketRateLimiter restored = (LockFreeLeakyBucketRateLimiter) limiter.clone(true);
+        restored.restoreState(state, 0);
+        assertEquals(0, restored.getAvailableAmount(true));
+        clock.advance(LIMIT / 2, TimeUnit.NANOSECONDS);
+        assertEquals(LIMIT / 2, restored.getAvailableAmount(true));
+        assertEquals(LIMIT / 2, limiter.clone(false).getAvailableAmount(true));
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.xwiki.contrib.ratelimiter.internal;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.xwiki.contrib.ratelimiter.RateLimiter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Validate {@link OffHeapRateLimiterBackend}.
+ *
+ * @version $Id$
+ */
+public class OffHeapRateLimiterBackendTest
+{
+    private static final String WIKI = "wiki";
+
+    private static final String USER = "user";
+
+    private static final int LIMIT = 1000;
+
+    private static final int CAPACITY = 64;
+
+    private RateLimiter template;
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        template = new DefaultRateLimiterBuilder().addLimiter(LIMIT, 1, TimeUnit.HOURS).build();
+        file = File.createTempFile("ratelimiter", ".table");
+        file.delete();
+    }
+
+    @After
+    public void tearDown()
+    {
+        file.delete();
+    }
+
+    private int consumeConcurrently(OffHeapRateLimiterBackend... backends) throws InterruptedException
+    {
+        final AtomicInteger allowed = new AtomicInteger();
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            final OffHeapRateLimiterBackend backend = backends[t % backends.length];
+            threads[t] = new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    for (int i = 0; i < LIMIT; i++) {
+                        if (backend.consume(USER, WIKI, 1, template).isAllowed()) {
+                            allowed.incrementAndGet();
+                        }
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        return allowed.get();
+    }
+
+    @Test
+    public void directBufferIsLimitedExactlyUnderContention() throws InterruptedException
+    {
+        OffHeapRateLimiterBackend backend = new OffHeapRateLimiterBackend(CAPACITY, template);
+
+        assertNull(backend.get(USER, WIKI));
+        assertEquals(LIMIT, consumeConcurrently(backend));
+        assertNotNull(backend.get(USER, WIKI));
+        assertFalse(backend.consume(USER, WIKI, 1, template).isAllowed());
+    }
+
+    @Test
+    public void fileIsSharedExactlyBetweenBackends() throws IOException, InterruptedException
+    {
+        OffHeapRateLimiterBackend first = new OffHeapRateLimiterBackend(file, CAPACITY, template);
+        OffHeapRateLimiterBackend second = new OffHeapRateLimiterBackend(file, CAPACITY, template);
+        try {
+            assertEquals(LIMIT, consumeConcurrently(first, second));
+            assertFalse(first.consume(USER, WIKI, 1, template).isAllowed());
+            assertFalse(second.consume(USER, WIKI, 1, template).isAllowed());
+        } finally {
+            first.close();
+            second.close();
+        }
+    }
+
+    @Test
+    public void interruptedThreadKeepsTheFileUsable() throws IOException
+    {
+        OffHeapRateLimiterBackend backend = new OffHeapRateLimiterBackend(file, CAPACITY, template);
+        try {
+            Thread.currentThread().interrupt();
+            assertTrue(backend.consume(USER, WIKI, 1, template).isAllowed());
+            assertTrue(Thread.interrupted());
+
+            assertTrue(backend.consume(USER, WIKI, 1, template).isAllowed());
+            assertEquals(LIMIT - 2, backend.get(USER, WIKI).getAvailableAmount(false));
+        } finally {
+            backend.close();
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void fileOfAnotherCapacityIsRefused() throws IOException
+    {
+        new OffHeapRateLimiterBackend(file, CAPACITY, template).close();
+        new OffHeapRateLimiterBackend(file, 2 * CAPACITY, template);
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.xwiki.contrib.ratelimiter.internal;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.xwiki.contrib.ratelimiter.RateLimiter;
+import org.xwiki.contrib.ratelimiter.RateLimiterClock;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Validate that rate limiters and the structures of the service only measure time with their clock.
+ *
+ * @version $Id$
+ */
+public class RateLimiterClockTest
+{
+    /**
+     * A clock only moving forward when told to, and counting how many times it has been read.
+     */
+    static final class ManualClock implements RateLimiterClock
+    {
+        private volatile long time = TimeUnit.DAYS.toNanos(1);
+
+        private int reads;
+
+        @Override
+        public long nanoTime()
+        {
+            reads++;
+            return time;
+        }
+
+        void advance(long duration, TimeUnit unit)
+        {
+            time += unit.toNanos(duration);
+        }
+
+        int getReads()
+        {
+            return reads;
+        }
+
+        void resetReads()
+        {
+            reads = 0;
+        }
+    }
+
+    private ManualClock clock;
+
+    @Before
+    public void setUp()
+    {
+        clock = new ManualClock();
+    }
+
+    @Test
+    public void leakyBucketLeaksWithTheClock()
+    {
+        RateLimiter limiter =
+            new DefaultRateLimiterBuilder().setClock(clock).addLimiter(10, 1, TimeUnit.SECONDS).build();
+
+        assertTrue(limiter.consume(10));
+        assertEquals(0, limiter.getAvailableAmount(true));
+
+        clock.advance(99, TimeUnit.MILLISECONDS);
+        assertEquals(0, limiter.getAvailableAmount(true));
+
+        clock.advance(1, TimeUnit.MILLISECONDS);
+        assertEquals(1, limiter.getAvailableAmount(true));
+        assertTrue(limiter.consume(1));
+        assertEquals(0, limiter.getAvailableAmount(true));
+    }
+
+    @Test
+    public void cellRateLimiterIsDrivenByTheClock()
+    {
+        RateLimiter limiter =
+            new DefaultRateLimiterBuilder().setClock(clock).addCellRateLimiter(10, 1, TimeUnit.SECONDS, 2).build();
+
+        assertTrue(limiter.consume(1));
+        assertTrue(limiter.consume(1));
+        assertFalse(limiter.consume(1));
+
+        clock.advance(100, TimeUnit.MILLISECONDS);
+        assertTrue(limiter.consume(1));
+        assertFalse(limiter.consume(1));
+    }
+
+    @Test
+    public void slidingWindowSlidesWithTheClock()
+    {
+        RateLimiter limiter =
+            new DefaultRateLimiterBuilder().setClock(clock).addSlidingWindowLimiter(10, 1, TimeUnit.SECONDS).build();
+
+        assertTrue(limiter.consume(10));
+        clock.advance(1, TimeUnit.SECONDS);
+        // The whole previous window is still covered by the sliding period
+        assertFalse(limiter.consume(1));
+
+        clock.advance(500, TimeUnit.MILLISECONDS);
+        assertTrue(limiter.consume(5));
+        assertFalse(limiter.consume(1));
+    }
+
+    @Test
+    public void collectionReadsTheClockOncePerConsumption()
+    {
+        RateLimiter limiter = new DefaultRateLimiterBuilder().setClock(clock).addLimiter(10, 1, TimeUnit.SECONDS)
+            .addLimiter(100, 1, TimeUnit.MINUTES).addSlidingWindowLimiter(1000, 1, TimeUnit.HOURS).build();
+
+        clock.resetReads();
+        assertTrue(limiter.consume(1));
+        assertEquals(1, clock.getReads());
+    }
+
+    @Test
+    public void fusedLimiterIsDrivenByTheClock()
+    {
+        RateLimiter limiter = new DefaultRateLimiterBuilder().setClock(clock).addLimiter(2, 1, TimeUnit.SECONDS)
+            .addLimiter(3, 1, TimeUnit.MINUTES).buildFused(true);
+
+        assertTrue(limiter.consume(2));
+        assertFalse(limiter.consume(1));
+
+        clock.advance(500, TimeUnit.MILLISECONDS);
+        assertTrue(limiter.consume(1));
+        clock.advance(1, TimeUnit.SECONDS);
+        // The per minute bucket is now exhausted
+        assertFalse(limiter.consume(1));
+    }
+
+    @Test
+    public void policyOfTemplateUsesTheClockOfTheTemplate()
+    {
+        RateLimiter template =
+            new DefaultRateLimiterBuilder().setClock(clock).addLimiter(10, 1, TimeUnit.SECONDS).build();
+
+        assertSame(clock, LeakyBucketPolicy.fromTemplate(template).getClock());
+    }
+
+    @Test
+    public void systemClockIsUsedByDefault()
+    {
+        RateLimiter template = new DefaultRateLimiterBuilder().addLimiter(10, 1, TimeUnit.SECONDS).build();
+
+        assertSame(RateLimiterClock.SYSTEM, LeakyBucketPolicy.fromTemplate(template).getClock());
+    }
+
+    @Test
+    public void periodIsConvertedFromItsOwnUnit()
+    {
+        AbstractRateLimiter limiter = new InfiniteLeakyBucketRateLimiter(10, 2, TimeUnit.MINUTES, clock);
+
+        assertEquals(120, limiter.getPeriod(TimeUnit.SECONDS));
+        assertEquals(2, limiter.getPeriod(TimeUnit.MINUTES));
+    }
+
+    @Test
+    public void storeExpiresDrainedLimitersWithTheClock()
+    {
+        RateLimiter template =
+            new DefaultRateLimiterBuilder().setClock(clock).addLimiter(10, 1, TimeUnit.SECONDS).build();
+        RateLimiterStore store = new RateLimiterStore(16, clock);
+
+        assertTrue(store.consume("consumer", "wiki", 5, template).isAllowed());
+        assertEquals(1, store.size());
+
+        // Nothing expires while the time does not move
+        store.get("other", "wiki");
+        assertEquals(1, store.size());
+
+        clock.advance(1, TimeUnit.MINUTES);
+        store.get("other", "wiki");
+        assertEquals(0, store.size());
+    }
+
+    @Test
+    public void sketchDecaysWithTheClock()
+    {
+        ConsumptionSketch sketch = new ConsumptionSketch(64, 10, 1, TimeUnit.SECONDS, clock);
+
+        assertEquals(5, sketch.add("consumer", "wiki", 5));
+        assertEquals(10, sketch.add("consumer", "wiki", 5));
+
+        clock.advance(1, TimeUnit.MINUTES);
+        assertEquals(1, sketch.add("consumer", "wiki", 1));
+    }
+
+    @Test
+    public void fairShareRefillsWithTheClock()
+    {
+        FairShareLimiter fairShare = new FairShareLimiter(10, 1, TimeUnit.SECONDS,
+            Collections.<Object, Long>emptyMap(), clock);
+
+        assertTrue(fairShare.consume("wiki", 10));
+        assertFalse(fairShare.consume("wiki", 1));
+
+        clock.advance(2, TimeUnit.SECONDS);
+        assertTrue(fairShare.consume("wiki", 1));
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.ratelimiter.internal;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.xwiki.contrib.ratelimiter.RateLimiter;
+import org.xwiki.contrib.ratelimiter.RateLimiterState;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Validate {@link RateLimiterStore}.
+ *
+ * @version $Id$
+ */
+public class RateLimiterStoreTest
+{
+    private static final String WIKI = "wiki";
+
+    /** Small enough for each segment of the store to keep a single limiter. */
+    private static final int CAPACITY = 16;
+
+    private RateLimiterClockTest.ManualClock clock;
+
+    private RateLimiter template;
+
+    private RateLimiterStore store;
+
+    @Before
+    public void setUp()
+    {
+        clock = new RateLimiterClockTest.ManualClock();
+        template = new DefaultRateLimiterBuilder().setClock(clock).addLimiter(10, 1, TimeUnit.MINUTES).build();
+        store = new RateLimiterStore(CAPACITY, clock);
+    }
+
+    /**
+     * Fill all the segments of the store with frequently used limiters that are not drained, so that any new consumer
+     * is refused by the admission filter.
+     */
+    private void fillStore()
+    {
+        for (int i = 0; store.size() < CAPACITY; i++) {
+            for (int j = 0; j < 15; j++) {
+                store.consume("resident" + i, WIKI, 1, template);
+            }
+        }
+    }
+
+    @Test
+    public void refusedKeysShareOneNewcomersLimiterPerTemplate()
+    {
+        RateLimiter aggregate =
+            new DefaultRateLimiterBuilder().setClock(clock).addLimiter(100, 1, TimeUnit.MINUTES).build();
+        fillStore();
+
+        // Keys of the same segment, refused by the admission filter
+        RateLimiter consumer = store.get("newcomer", WIKI, template);
+        RateLimiter prefix = store.get("newcomer", WIKI, aggregate);
+        assertNull(store.get("newcomer", WIKI));
+
+        assertNotSame(consumer, prefix);
+        assertSame(consumer, store.get("newcomer", WIKI, template));
+        assertSame(prefix, store.get("newcomer", WIKI, aggregate));
+        assertEquals(10, consumer.getAvailableAmount(true));
+        assertEquals(100, prefix.getAvailableAmount(true));
+    }
+
+    @Test
+    public void exhaustionIsOnlyReportedOnTheFirstRejection()
+    {
+        RateLimiter cellTemplate =
+            new DefaultRateLimiterBuilder().setClock(clock).addCellRateLimiter(10, 1, TimeUnit.SECONDS, 1).build();
+
+        assertTrue(store.consume("consumer", WIKI, 1, cellTemplate).isAllowed());
+        RateLimiterState state = store.consume("consumer", WIKI, 1, cellTemplate);
+        assertFalse(state.isAllowed());
+        assertFalse(state.wasExhausted());
+        state = store.consume("consumer", WIKI, 1, cellTemplate);
+        assertFalse(state.isAllowed());
+        assertTrue(state.wasExhausted());
+
+        // An allowed consumption ends the exhaustion
+        clock.advance(100, TimeUnit.MILLISECONDS);
+        assertTrue(store.consume("consumer", WIKI, 1, cellTemplate).isAllowed());
+        assertFalse(store.consume("consumer", WIKI, 1, cellTemplate).wasExhausted());
+    }
+
+    @Test
+    public void exhaustionOfLimitersConsumedDirectlyIsTracked()
+    {
+        RateLimiter limiter = store.get("consumer", WIKI, template);
+
+        assertTrue(store.track("consumer", WIKI, limiter, limiter.consume(10)).isAllowed());
+        assertFalse(store.track("consumer", WIKI, limiter, limiter.consume(1)).wasExhausted());
+        assertTrue(store.track("consumer", WIKI, limiter, limiter.consume(1)).wasExhausted());
+    }
+
+    @Test
+    public void exhaustionOfNewcomersIsTracked()
+    {
+        fillStore();
+
+        RateLimiter newcomers = store.get("newcomer", WIKI, template);
+        assertTrue(store.track("newcomer", WIKI, newcomers, newcomers.consume(10)).isAllowed());
+        assertFalse(store.consume("newcomer", WIKI, 1, template).wasExhausted());
+        assertTrue(store.consume("newcomer", WIKI, 1, template).wasExhausted());
+    }
+
+    /**
+     * Sweep the segments of the store, which is done by any access once per tick.
+     */
+    private void sweep()
+    {
+        assertNull(store.get("nobody", WIKI));
+    }
+
+    @Test
+    public void drainedLimitersExpire()
+    {
+        // Drained in 6 seconds
+        assertTrue(store.consume("consumer", WIKI, 1, template).isAllowed());
+
+        clock.advance(3, TimeUnit.SECONDS);
+        sweep();
+        assertEquals(1, store.size());
+
+        clock.advance(4, TimeUnit.SECONDS);
+        sweep();
+        assertEquals(0, store.size());
+        assertNull(store.get("consumer", WIKI));
+    }
+
+    @Test
+    public void limitersInUseDoNotExpire()
+    {
+        for (int i = 0; i < 30; i++) {
+            assertTrue(store.consume("consumer", WIKI, 1, template).isAllowed());
+            clock.advance(5, TimeUnit.SECONDS);
+            sweep();
+            assertEquals(1, store.size());
+        }
+
+        // The last use is noticed by the first check after the limiter has drained, so it is removed by the next one
+        clock.advance(1, TimeUnit.MINUTES);
+        sweep();
+        assertEquals(1, store.size());
+        clock.advance(1, TimeUnit.SECONDS);
+        sweep();
+        assertEquals(0, store.size());
+    }
+
+    @Test
+    public void newcomersAreNotAdmittedInPlaceOfFrequentLimiters()
+    {
+        fillStore();
+
+        for (int i = 0; i < 10; i++) {
+            store.consume("newcomer", WIKI, 1, template);
+            assertNull(store.get("newcomer", WIKI));
+        }
+        assertEquals(CAPACITY, store.size());
+    }
+
+    @Test
+    public void frequentNewcomersAreAdmittedOnceFrequenciesHaveAged()
+    {
+        fillStore();
+
+        // Once its frequency is saturated, the newcomer is still refused as long as the residents are as frequent
+        for (int i = 0; i < 100; i++) {
+            assertNotNull(store.get("newcomer", WIKI, template));
+        }
+        assertNull(store.get("newcomer", WIKI));
+
+        // The traffic of other consumers halves all frequencies periodically, after which the newcomer, still seen
+        // frequently, overtakes the resident it replaces
+        int visitors = 0;
+        while (store.get("newcomer", WIKI) == null && visitors < 10000) {
+            store.get("visitor" + visitors++, WIKI, template);
+            store.get("newcomer", WIKI, template);
+        }
+        assertNotNull(store.get("newcomer", WIKI));
+        assertEquals(CAPACITY, store.size());
+    }
+
+    @Test
+    public void newcomersAreAdmittedOnceResidentsHaveDrained()
+    {
+        fillStore();
+        store.consume("newcomer", WIKI, 1, template);
+        assertNull(store.get("newcomer", WIKI));
+
+        clock.advance(2, TimeUnit.MINUTES);
+        store.consume("newcomer", WIKI, 1, template);
+        assertNotNull(store.get("newcomer", WIKI));
+        assertEquals(9, store.get("newcomer", WIKI).getAvailableAmount(true));
+    }
+}
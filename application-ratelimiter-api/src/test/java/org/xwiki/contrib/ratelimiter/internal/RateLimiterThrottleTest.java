@@ -0,0 +1,182 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.ratelimiter.internal;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.xwiki.contrib.ratelimiter.RateLimiter;
+import org.xwiki.contrib.ratelimiter.RateLimiterFuture;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Validate {@link RateLimiterThrottle}, driven by a manual clock.
+ *
+ * @version $Id$
+ */
+public class RateLimiterThrottleTest
+{
+    /** Longer than the time the thread of the wheel sleeps before reading the clock again. */
+    private static final long SETTLE_TIME = 200;
+
+    private RateLimiterClockTest.ManualClock clock;
+
+    private RateLimiterThrottle throttle;
+
+    private RateLimiter limiter;
+
+    /**
+     * A limiter reporting no waiting time but rejecting consumptions until told otherwise, like a leased limiter
+     * waiting for the renewal of its lease.
+     */
+    private static final class RefusingRateLimiter extends NoLimitRateLimiter
+    {
+        private volatile boolean refusing = true;
+
+        private volatile int consumptions;
+
+        @Override
+        public boolean consume(long amount)
+        {
+            consumptions++;
+            return !refusing;
+        }
+    }
+
+    @Before
+    public void setUp()
+    {
+        clock = new RateLimiterClockTest.ManualClock();
+        throttle = new RateLimiterThrottle(new TimingWheel("Test timing wheel", clock));
+        limiter = new DefaultRateLimiterBuilder().setClock(clock).addLimiter(10, 1, TimeUnit.SECONDS).build();
+    }
+
+    private static Boolean get(RateLimiterFuture future)
+        throws InterruptedException, ExecutionException, TimeoutException
+    {
+        return future.get(1, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void consumptionWaitsUntilTheLimiterLeaks() throws Exception
+    {
+        assertTrue(limiter.consume(10));
+
+        RateLimiterFuture future = throttle.acquire(limiter, 1, 1, TimeUnit.SECONDS);
+        Thread.sleep(SETTLE_TIME);
+        assertFalse(future.isDone());
+
+        clock.advance(100, TimeUnit.MILLISECONDS);
+        assertTrue(get(future));
+        assertEquals(0, limiter.getAvailableAmount(true));
+    }
+
+    @Test
+    public void consumptionsAreServedInOrder() throws Exception
+    {
+        assertTrue(limiter.consume(10));
+
+        RateLimiterFuture large = throttle.acquire(limiter, 5, 1, TimeUnit.SECONDS);
+        RateLimiterFuture small = throttle.acquire(limiter, 1, 1, TimeUnit.SECONDS);
+
+        // The small consumption would fit, but waits behind the large one
+        clock.advance(100, TimeUnit.MILLISECONDS);
+        Thread.sleep(SETTLE_TIME);
+        assertFalse(small.isDone());
+
+        clock.advance(400, TimeUnit.MILLISECONDS);
+        assertTrue(get(large));
+        clock.advance(100, TimeUnit.MILLISECONDS);
+        assertTrue(get(small));
+    }
+
+    @Test
+    public void consumptionWhichCannotBeServedInTimeIsRejectedAtOnce() throws Exception
+    {
+        assertTrue(limiter.consume(10));
+
+        RateLimiterFuture future = throttle.acquire(limiter, 5, 100, TimeUnit.MILLISECONDS);
+        assertTrue(future.isDone());
+        assertFalse(future.get());
+        assertEquals(0, limiter.getAvailableAmount(true));
+
+        // The rejected consumption has not been accounted
+        clock.advance(100, TimeUnit.MILLISECONDS);
+        assertEquals(1, limiter.getAvailableAmount(true));
+    }
+
+    @Test
+    public void rejectionWithoutWaitingTimeIsRetriedLater() throws Exception
+    {
+        RefusingRateLimiter refusing = new RefusingRateLimiter();
+
+        RateLimiterFuture future = throttle.acquire(refusing, 1, 1, TimeUnit.SECONDS);
+        Thread.sleep(SETTLE_TIME);
+        // The throttle does not spin while the clock does not move
+        assertFalse(future.isDone());
+        assertEquals(1, refusing.consumptions);
+
+        refusing.refusing = false;
+        clock.advance(RateLimiterThrottle.MIN_RETRY_DELAY, TimeUnit.NANOSECONDS);
+        assertTrue(get(future));
+        assertEquals(2, refusing.consumptions);
+    }
+
+    @Test
+    public void rejectionWithoutWaitingTimeTimesOut() throws Exception
+    {
+        RefusingRateLimiter refusing = new RefusingRateLimiter();
+
+        RateLimiterFuture future = throttle.acquire(refusing, 1, 10, TimeUnit.MILLISECONDS);
+        for (int i = 0; i < 10; i++) {
+            clock.advance(RateLimiterThrottle.MIN_RETRY_DELAY, TimeUnit.NANOSECONDS);
+            Thread.sleep(10);
+        }
+        assertFalse(get(future));
+    }
+
+    @Test
+    public void otherLimitersAreServedWhileOneRejectsWithoutWaitingTime() throws Exception
+    {
+        throttle.acquire(new RefusingRateLimiter(), 1, 1, TimeUnit.SECONDS);
+
+        assertTrue(get(throttle.acquire(limiter, 1, 1, TimeUnit.SECONDS)));
+    }
+
+    @Test
+    public void cancelledConsumptionIsNotAccounted() throws Exception
+    {
+        assertTrue(limiter.consume(10));
+
+        RateLimiterFuture cancelled = throttle.acquire(limiter, 1, 1, TimeUnit.SECONDS);
+        RateLimiterFuture next = throttle.acquire(limiter, 1, 1, TimeUnit.SECONDS);
+        assertTrue(cancelled.cancel(false));
+
+        clock.advance(100, TimeUnit.MILLISECONDS);
+        assertTrue(get(next));
+        assertEquals(0, limiter.getAvailableAmount(true));
+    }
+}
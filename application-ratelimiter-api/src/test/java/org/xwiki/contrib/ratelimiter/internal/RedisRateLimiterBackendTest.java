@@ -0,0 +1,354 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.xwiki.contrib.ratelimiter.internal;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.xwiki.contrib.ratelimiter.RateLimiter;
+import org.xwiki.contrib.ratelimiter.RateLimiterState;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Validate {@link RedisRateLimiterBackend} against an embedded server standing in for Redis.
+ *
+ * @version $Id$
+ */
+public class RedisRateLimiterBackendTest
+{
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final String WIKI = "wiki";
+
+    private static final String USER = "user";
+
+    private static final String EVALSHA = "EVALSHA";
+
+    private static final long LIMIT = 10;
+
+    /**
+     * A server speaking the Redis protocol, which only knows the scripts loaded in it, and emulates the consumption
+     * script with a simple counter per key, limited by the first bucket.
+     */
+    private static final class StandInServer implements Runnable
+    {
+        private final ServerSocket serverSocket;
+
+        private final Set<String> scripts = Collections.synchronizedSet(new HashSet<String>());
+
+        private final Map<String, Long> levels = new HashMap<String, Long>();
+
+        private final List<String> commands = Collections.synchronizedList(new ArrayList<String>());
+
+        private final AtomicInteger connections = new AtomicInteger();
+
+        private final AtomicInteger pipelined = new AtomicInteger();
+
+        private volatile boolean up = true;
+
+        StandInServer() throws IOException
+        {
+            this.serverSocket = new ServerSocket(0, 0, InetAddress.getLoopbackAddress());
+            Thread thread = new Thread(this, "Stand-in server");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        int getPort()
+        {
+            return serverSocket.getLocalPort();
+        }
+
+        @Override
+        public void run()
+        {
+            try {
+                while (true) {
+                    final Socket socket = serverSocket.accept();
+                    connections.incrementAndGet();
+                    if (!up) {
+                        socket.close();
+                        continue;
+                    }
+                    Thread thread = new Thread(new Runnable()
+                    {
+                        @Override
+                        public void run()
+                        {
+                            serve(socket);
+                        }
+                    }, "Stand-in connection");
+                    thread.setDaemon(true);
+                    thread.start();
+                }
+            } catch (IOException e) {
+                // The server is closed
+            }
+        }
+
+        void close() throws IOException
+        {
+            serverSocket.close();
+        }
+
+        private void serve(Socket socket)
+        {
+            try {
+                InputStream in = new BufferedInputStream(socket.getInputStream());
+                OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+                List<String> command;
+                while ((command = readCommand(in)) != null) {
+                    commands.add(command.get(0));
+                    if (in.available() > 0) {
+                        // The next command was sent without waiting for this reply
+                        pipelined.incrementAndGet();
+                    }
+                    out.write(execute(command).getBytes(UTF8));
+                    if (in.available() == 0) {
+                        out.flush();
+                    }
+                }
+                socket.close();
+            } catch (IOException e) {
+                // The connection is closed
+            }
+        }
+
+        private String execute(List<String> command)
+        {
+            if ("SCRIPT".equals(command.get(0)) && "LOAD".equals(command.get(1))) {
+                String sha = sha1(command.get(2));
+                scripts.add(sha);
+                return bulk(sha);
+            } else if (EVALSHA.equals(command.get(0))) {
+                if (!scripts.contains(command.get(1))) {
+                    return "-NOSCRIPT No matching script. Please use EVAL.\r\n";
+                }
+                return consume(command.get(3), Integer.parseInt(command.get(4)), Long.parseLong(command.get(5)),
+                    Long.parseLong(command.get(6)));
+            }
+            return "-ERR unknown command\r\n";
+        }
+
+        private synchronized String consume(String key, int mode, long amount, long limit)
+        {
+            Long current = levels.get(key);
+            long level = (current != null) ? current : 0;
+            boolean allowed = level + amount <= limit;
+            if (allowed && mode != 2) {
+                levels.put(key, level + amount);
+            }
+            long available = limit - ((allowed && mode != 2) ? level + amount : level);
+            return "*4\r\n:" + (allowed ? 1 : 0) + "\r\n:" + ((level >= limit) ? 1 : 0) + "\r\n:"
+                + ((current != null) ? 1 : 0) + "\r\n:" + available + "\r\n";
+        }
+
+        private static String bulk(String value)
+        {
+            return "$" + value.getBytes(UTF8).length + "\r\n" + value + "\r\n";
+        }
+
+        private static String sha1(String script)
+        {
+            try {
+                StringBuilder sha = new StringBuilder();
+                for (byte b : MessageDigest.getInstance("SHA-1").digest(script.getBytes(UTF8))) {
+                    sha.append(String.format("%02x", b));
+                }
+                return sha.toString();
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private static List<String> readCommand(InputStream in) throws IOException
+        {
+            String header = readLine(in);
+            if (header == null) {
+                return null;
+            }
+            int size = Integer.parseInt(header.substring(1));
+            List<String> command = new ArrayList<String>(size);
+            for (int i = 0; i < size; i++) {
+                int length = Integer.parseInt(readLine(in).substring(1));
+                byte[] bytes = new byte[length];
+                int offset = 0;
+                while (offset < length) {
+                    offset += in.read(bytes, offset, length - offset);
+                }
+                readLine(in);
+                command.add(new String(bytes, UTF8));
+            }
+            return command;
+        }
+
+        private static String readLine(InputStream in) throws IOException
+        {
+            StringBuilder line = new StringBuilder();
+            int c;
+            while ((c = in.read()) != '\r') {
+                if (c < 0) {
+                    return null;
+                }
+                line.append((char) c);
+            }
+            in.read();
+            return line.toString();
+        }
+    }
+
+    private StandInServer server;
+
+    private RateLimiterClockTest.ManualClock clock;
+
+    private RateLimiter template;
+
+    private RedisRateLimiterBackend backend;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        server = new StandInServer();
+        clock = new RateLimiterClockTest.ManualClock();
+        template = new DefaultRateLimiterBuilder().setClock(clock).addLimiter(LIMIT, 1, TimeUnit.MINUTES).build();
+        backend = new RedisRateLimiterBackend(InetAddress.getLoopbackAddress().getHostAddress(), server.getPort(),
+            "test:", template, clock);
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        backend.close();
+        server.close();
+    }
+
+    private int count(String command)
+    {
+        synchronized (server.commands) {
+            return Collections.frequency(server.commands, command);
+        }
+    }
+
+    private RateLimiterState consume(String consumer)
+    {
+        return backend.consume(consumer, WIKI, 1, template);
+    }
+
+    @Test
+    public void consumptionsAreEvaluatedByTheLoadedScript()
+    {
+        for (int i = 0; i < LIMIT; i++) {
+            assertTrue(consume(USER).isAllowed());
+        }
+        RateLimiterState state = consume(USER);
+        assertFalse(state.isAllowed());
+        assertTrue(state.wasExhausted());
+
+        assertEquals(1, count("SCRIPT"));
+        assertEquals(LIMIT + 1, count(EVALSHA));
+        assertEquals(1, server.connections.get());
+        assertEquals(0, backend.get(USER, WIKI).getAvailableAmount(false));
+    }
+
+    @Test
+    public void scriptIsReloadedWhenTheServerForgotIt()
+    {
+        assertTrue(consume(USER).isAllowed());
+        server.scripts.clear();
+
+        assertTrue(consume(USER).isAllowed());
+        assertEquals(2, count("SCRIPT"));
+        assertEquals(LIMIT - 2, backend.get(USER, WIKI).getAvailableAmount(false));
+    }
+
+    @Test
+    public void batchesArePipelined()
+    {
+        RateLimiterState[] states = backend.consume(new Object[] {"a", "b", "c"}, WIKI, new long[] {1, LIMIT + 1, 1},
+            new RateLimiter[] {template, template, template});
+
+        assertTrue(states[0].isAllowed());
+        assertFalse(states[1].isAllowed());
+        assertTrue(states[2].isAllowed());
+        assertEquals(3, count(EVALSHA));
+        assertEquals(2, server.pipelined.get());
+        assertEquals(1, server.connections.get());
+    }
+
+    @Test
+    public void unavailableServerIsOnlyProbedAfterABackoff()
+    {
+        server.up = false;
+
+        // Consumptions are allowed while the server is unavailable
+        assertSame(RateLimiter.NOLIMIT, consume(USER).getLimiter());
+        assertEquals(1, server.connections.get());
+        for (int i = 0; i < 2 * LIMIT; i++) {
+            assertTrue(consume(USER).isAllowed());
+        }
+        assertEquals(1, server.connections.get());
+
+        // A failed probe doubles the backoff delay
+        clock.advance(1, TimeUnit.SECONDS);
+        assertTrue(consume(USER).isAllowed());
+        assertEquals(2, server.connections.get());
+        clock.advance(1, TimeUnit.SECONDS);
+        assertTrue(consume(USER).isAllowed());
+        assertEquals(2, server.connections.get());
+        clock.advance(1, TimeUnit.SECONDS);
+        assertTrue(consume(USER).isAllowed());
+        assertEquals(3, server.connections.get());
+
+        // Once the server recovers, it limits consumptions again
+        server.up = true;
+        clock.advance(4, TimeUnit.SECONDS);
+        for (int i = 0; i < LIMIT; i++) {
+            assertTrue(consume(USER).isAllowed());
+        }
+        assertFalse(consume(USER).isAllowed());
+        assertEquals(4, server.connections.get());
+    }
+}
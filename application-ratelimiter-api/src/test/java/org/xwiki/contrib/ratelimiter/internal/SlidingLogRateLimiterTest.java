@@ -0,0 +1,130 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.ratelimiter.internal;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.xwiki.contrib.ratelimiter.RateLimiter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Validate {@link SlidingLogRateLimiter}.
+ *
+ * @version $Id$
+ */
+public class SlidingLogRateLimiterTest
+{
+    private static final long LIMIT = 3;
+
+    private RateLimiterClockTest.ManualClock clock;
+
+    private SlidingLogRateLimiter limiter;
+
+    @Before
+    public void setUp()
+    {
+        clock = new RateLimiterClockTest.ManualClock();
+        limiter = new SlidingLogRateLimiter(LIMIT, 1, TimeUnit.MINUTES, clock);
+    }
+
+    @Test
+    public void limitIsEnforcedOverAnyPeriod()
+    {
+        for (int i = 0; i < LIMIT; i++) {
+            assertTrue(limiter.consume(1));
+            clock.advance(10, TimeUnit.SECONDS);
+        }
+        assertFalse(limiter.consume(1));
+        assertEquals(0, limiter.getAvailableAmount(true));
+
+        // Units leave the sliding period one by one, a minute after being consumed
+        clock.advance(30, TimeUnit.SECONDS);
+        assertEquals(1, limiter.getAvailableAmount(true));
+        assertTrue(limiter.consume(1));
+        assertFalse(limiter.consume(1));
+        assertEquals(10, limiter.getWaitingTime(1, TimeUnit.SECONDS));
+        assertEquals(20, limiter.getWaitingTime(2, TimeUnit.SECONDS));
+
+        clock.advance(10, TimeUnit.SECONDS);
+        assertTrue(limiter.consume(1));
+    }
+
+    @Test
+    public void noBurstAcrossPeriods()
+    {
+        clock.advance(59, TimeUnit.SECONDS);
+        assertTrue(limiter.consume(LIMIT));
+
+        clock.advance(2, TimeUnit.SECONDS);
+        assertFalse(limiter.consume(1));
+        assertEquals(58, limiter.getWaitingTime(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void consumptionIsAllOrNothing()
+    {
+        assertTrue(limiter.consume(1));
+        clock.advance(30, TimeUnit.SECONDS);
+        assertTrue(limiter.consume(1));
+
+        // Rejected consumptions are not accounted
+        assertFalse(limiter.consume(2));
+        assertEquals(1, limiter.getAvailableAmount(true));
+        assertFalse(limiter.consume(LIMIT + 1));
+        assertEquals(60, limiter.getWaitingTime(LIMIT + 1, TimeUnit.SECONDS));
+
+        clock.advance(30, TimeUnit.SECONDS);
+        assertTrue(limiter.consume(2));
+        assertEquals(0, limiter.getAvailableAmount(true));
+    }
+
+    @Test
+    public void drainTimeIsTheTimeOfTheLastUnit()
+    {
+        assertEquals(0, limiter.getDrainTime(TimeUnit.SECONDS));
+        assertTrue(limiter.consume(1));
+        clock.advance(20, TimeUnit.SECONDS);
+        assertTrue(limiter.consume(1));
+
+        assertEquals(60, limiter.getDrainTime(TimeUnit.SECONDS));
+        clock.advance(60, TimeUnit.SECONDS);
+        assertEquals(0, limiter.getDrainTime(TimeUnit.SECONDS));
+        assertEquals(LIMIT, limiter.getAvailableAmount(true));
+    }
+
+    @Test
+    public void cloneAndReset()
+    {
+        assertTrue(limiter.consume(LIMIT));
+
+        RateLimiter copy = limiter.clone(false);
+        assertFalse(copy.consume(1));
+        assertEquals(LIMIT, limiter.clone(true).getAvailableAmount(true));
+
+        limiter.reset();
+        assertEquals(LIMIT, limiter.getAvailableAmount(true));
+        assertEquals(0, copy.getAvailableAmount(true));
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.ratelimiter.internal;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.xwiki.contrib.ratelimiter.RateLimiter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Validate {@link SlidingWindowRateLimiter}.
+ *
+ * @version $Id$
+ */
+public class SlidingWindowRateLimiterTest
+{
+    private static final long LIMIT = 10;
+
+    private RateLimiterClockTest.ManualClock clock;
+
+    private SlidingWindowRateLimiter limiter;
+
+    @Before
+    public void setUp()
+    {
+        clock = new RateLimiterClockTest.ManualClock();
+        limiter = new SlidingWindowRateLimiter(LIMIT, 1, TimeUnit.MINUTES, clock);
+    }
+
+    private void consume(long count)
+    {
+        for (int i = 0; i < count; i++) {
+            assertTrue("Consumption " + i, limiter.consume(1));
+        }
+    }
+
+    @Test
+    public void rejectedConsumptionsAreNotAccounted()
+    {
+        consume(LIMIT);
+        assertFalse(limiter.consume(1));
+        assertFalse(limiter.consume(1));
+        assertEquals(0, limiter.getAvailableAmount(true));
+        assertFalse(limiter.consume(LIMIT + 1));
+    }
+
+    @Test
+    public void previousWindowIsWeightedByItsRemainingPart()
+    {
+        consume(LIMIT);
+
+        clock.advance(90, TimeUnit.SECONDS);
+        // Half of the previous window is still covered by the sliding period
+        assertEquals(LIMIT / 2, limiter.getAvailableAmount(true));
+        consume(LIMIT / 2);
+        assertFalse(limiter.consume(1));
+        assertEquals(6, limiter.getWaitingTime(1, TimeUnit.SECONDS));
+
+        clock.advance(6, TimeUnit.SECONDS);
+        assertTrue(limiter.consume(1));
+    }
+
+    @Test
+    public void noBurstAcrossWindowBoundaries()
+    {
+        clock.advance(59, TimeUnit.SECONDS);
+        consume(LIMIT);
+
+        // A fixed window counter would allow a new burst right after the boundary
+        clock.advance(2, TimeUnit.SECONDS);
+        assertEquals(0, limiter.getAvailableAmount(true));
+        assertFalse(limiter.consume(1));
+    }
+
+    @Test
+    public void waitingTimeAccountsTheCurrentWindow()
+    {
+        consume(LIMIT);
+
+        // The current window should become the previous one, and be half out of the sliding period
+        assertEquals(90, limiter.getWaitingTime(LIMIT / 2, TimeUnit.SECONDS));
+        clock.advance(89, TimeUnit.SECONDS);
+        assertFalse(limiter.consume(LIMIT / 2));
+        clock.advance(1, TimeUnit.SECONDS);
+        assertTrue(limiter.consume(LIMIT / 2));
+    }
+
+    @Test
+    public void consumptionIsForgottenAfterTwoWindows()
+    {
+        consume(LIMIT);
+        assertEquals(120, limiter.getDrainTime(TimeUnit.SECONDS));
+
+        clock.advance(1, TimeUnit.MINUTES);
+        assertEquals(60, limiter.getDrainTime(TimeUnit.SECONDS));
+        clock.advance(1, TimeUnit.MINUTES);
+        assertEquals(0, limiter.getDrainTime(TimeUnit.SECONDS));
+        assertEquals(LIMIT, limiter.getAvailableAmount(true));
+        assertEquals(0, limiter.getWaitingTime(LIMIT, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void cloneAndReset()
+    {
+        consume(LIMIT);
+
+        RateLimiter copy = limiter.clone(false);
+        assertEquals(0, copy.getAvailableAmount(true));
+        assertFalse(copy.consume(1));
+        assertEquals(LIMIT, limiter.clone(true).getAvailableAmount(true));
+
+        limiter.reset();
+        assertEquals(LIMIT, limiter.getAvailableAmount(true));
+        assertEquals(0, copy.getAvailableAmount(true));
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.ratelimiter.internal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Validate {@link TimingWheel}, driven by a manual clock.
+ *
+ * @version $Id$
+ */
+public class TimingWheelTest
+{
+    /** Longer than the time the thread of the wheel sleeps before reading the clock again. */
+    private static final long SETTLE_TIME = 200;
+
+    private RateLimiterClockTest.ManualClock clock;
+
+    private TimingWheel wheel;
+
+    private final List<String> runs = Collections.synchronizedList(new ArrayList<String>());
+
+    @Before
+    public void setUp()
+    {
+        clock = new RateLimiterClockTest.ManualClock();
+        wheel = new TimingWheel("Test timing wheel", clock);
+    }
+
+    private CountDownLatch schedule(final String name, long delay, TimeUnit unit)
+    {
+        final CountDownLatch latch = new CountDownLatch(1);
+        wheel.schedule(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                runs.add(name);
+                latch.countDown();
+            }
+        }, delay, unit);
+        return latch;
+    }
+
+    @Test
+    public void taskRunsOnceTheClockReachesItsDelay() throws InterruptedException
+    {
+        CountDownLatch latch = schedule("task", 10, TimeUnit.MILLISECONDS);
+
+        clock.advance(9, TimeUnit.MILLISECONDS);
+        assertFalse(latch.await(SETTLE_TIME, TimeUnit.MILLISECONDS));
+
+        clock.advance(1, TimeUnit.MILLISECONDS);
+        assertTrue(latch.await(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void taskBeyondTheFirstLevelIsMovedDownUntilItsDelay() throws InterruptedException
+    {
+        CountDownLatch latch = schedule("task", 5, TimeUnit.SECONDS);
+
+        clock.advance(4999, TimeUnit.MILLISECONDS);
+        assertFalse(latch.await(SETTLE_TIME, TimeUnit.MILLISECONDS));
+
+        clock.advance(1, TimeUnit.MILLISECONDS);
+        assertTrue(latch.await(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void tasksRunInTheOrderOfTheirDelay() throws InterruptedException
+    {
+        schedule("third", 3, TimeUnit.SECONDS);
+        schedule("first", 10, TimeUnit.MILLISECONDS);
+        CountDownLatch last = schedule("fourth", 1, TimeUnit.MINUTES);
+        schedule("second", 100, TimeUnit.MILLISECONDS);
+
+        for (int i = 0; i < 60; i++) {
+            clock.advance(1, TimeUnit.SECONDS);
+            // Let the wheel catch up, so that tasks of distinct seconds are not run together
+            Thread.sleep(10);
+        }
+        assertTrue(last.await(1, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("first", "second", "third", "fourth"), runs);
+    }
+
+    @Test
+    public void cancelledTaskIsNotRun() throws InterruptedException
+    {
+        wheel.schedule(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                runs.add("cancelled");
+            }
+        }, 5, TimeUnit.MILLISECONDS).cancel();
+        CountDownLatch latch = schedule("task", 10, TimeUnit.MILLISECONDS);
+
+        clock.advance(10, TimeUnit.MILLISECONDS);
+        assertTrue(latch.await(1, TimeUnit.SECONDS));
+        assertEquals(Collections.singletonList("task"), runs);
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.xwiki.contrib.ratelimiter.internal;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.xwiki.model.reference.EntityReference;
+
+/**
+ * The amount consumed by each action, with overrides for some spaces and documents. For each action, the costs are
+ * compiled into a tree of the names of the spaces and documents having an override, so that the cost of a request is
+ * found by walking down this tree along the reference of the requested document, the deepest override found
+ * applying.
+ *
+ * @version $Id$
+ */
+class ActionCostTable
+{
+    private static final long DEFAULT_COST = 1;
+
+    private static final char LOCATION_SEPARATOR = ':';
+
+    private static final char NAME_SEPARATOR = '.';
+
+    private static final char ESCAPE = '\\';
+
+    private final Map<String, Node> actions = new HashMap<String, Node>();
+
+    /**
+     * A node of the tree of an action, for an action, a space or a document.
+     */
+    private static final class Node
+    {
+        /**
+         * The cost of the action for this location, or -1 to inherit the cost of the parent node.
+         */
+        private long cost = -1;
+
+        private Map<String, Node> children;
+
+        Node getChild(String name)
+        {
+            if (children == null) {
+                children = new HashMap<String, Node>();
+            }
+            Node child = children.get(name);
+            if (child == null) {
+                child = new Node();
+                children.put(name, child);
+            }
+            return child;
+        }
+    }
+
+    /**
+     * Compile the given costs.
+     *
+     * @param costs the cost of actions, keyed by the name of the action optionally followed by a colon and the local
+     *            reference of a space or a document.
+     */
+    ActionCostTable(Map<String, Long> costs)
+    {
+        for (Map.Entry<String, Long> entry : costs.entrySet()) {
+            String key = entry.getKey();
+            int index = key.indexOf(LOCATION_SEPARATOR);
+            String action = (index < 0) ? key.trim() : key.substring(0, index).trim();
+            Node node = actions.get(action);
+            if (node == null) {
+                node = new Node();
+                actions.put(action, node);
+            }
+            if (index >= 0) {
+                for (String name : split(key.substring(index + 1).trim())) {
+                    node = node.getChild(name);
+                }
+            }
+            node.cost = entry.getValue();
+        }
+    }
+
+    /**
+     * Split a local reference into the names of its elements, unescaping them.
+     */
+    static List<String> split(String reference)
+    {
+        List<String> names = new ArrayList<String>();
+        StringBuilder name = new StringBuilder();
+        for (int i = 0; i < reference.length(); i++) {
+            char c = reference.charAt(i);
+            if (c == ESCAPE && i + 1 < reference.length()) {
+                name.append(reference.charAt(++i));
+            } else if (c == NAME_SEPARATOR) {
+                names.add(name.toString());
+                name.setLength(0);
+            } else {
+                name.append(c);
+            }
+        }
+        names.add(name.toString());
+        return names;
+    }
+
+    /**
+     * @param action the name of the action.
+     * @param document the reference of the requested document.
+     * @return the amount consumed by the action on the given document.
+     */
+    long getCost(String action, EntityReference document)
+    {
+        Node node = actions.get(action);
+        if (node == null) {
+            return DEFAULT_COST;
+        }
+
+        long cost = (node.cost >= 0) ? node.cost : DEFAULT_COST;
+        if (node.children != null && document != null) {
+            // Skip the wiki, overrides being local to each wiki
+            List<EntityReference> chain = document.getReversedReferenceChain();
+            for (int i = 1; i < chain.size() && node.children != null; i++) {
+                node = node.children.get(chain.get(i).getName());
+                if (node == null) {
+                    break;
+                }
+                if (node.cost >= 0) {
+                    cost = node.cost;
+                }
+            }
+        }
+        return cost;
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.xwiki.contrib.ratelimiter.internal;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.xwiki.component.annotation.Role;
+
+/**
+ * Resolve the address of the client of a request, following the forwarding headers of trusted proxies.
+ *
+ * @version $Id$
+ */
+@Role
+public interface ClientAddressResolver
+{
+    /**
+     * @param request the request.
+     * @return the address of the client as an {@link org.xwiki.contrib.ratelimiter.IpAddressKey}, or the raw remote
+     *         address when it could not be parsed.
+     */
+    Object getClientAddress(HttpServletRequest request);
+}
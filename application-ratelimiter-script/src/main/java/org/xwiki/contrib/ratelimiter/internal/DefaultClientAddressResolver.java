@@ -0,0 +1,270 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.xwiki.contrib.ratelimiter.internal;
+
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import javax.servlet.http.HttpServletRequest;
+
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.contrib.ratelimiter.IpAddressKey;
+
+/**
+ * Default implementation of {@link ClientAddressResolver}. The forwarding chain is walked from the nearest hop, that
+ * is from the right of the {@code Forwarded} header, or of the {@code X-Forwarded-For} header when the former is
+ * missing, and the client is the first hop which is not a trusted proxy. Forwarding headers are ignored unless the
+ * request comes from a trusted proxy, so that clients cannot choose their own address. Addresses are parsed in place
+ * in the headers, without creating intermediate strings.
+ *
+ * @version $Id$
+ */
+@Component
+@Singleton
+public class DefaultClientAddressResolver implements ClientAddressResolver
+{
+    private static final String FORWARDED = "Forwarded";
+
+    private static final String X_FORWARDED_FOR = "X-Forwarded-For";
+
+    private static final String FOR_PARAMETER = "for=";
+
+    private static final String NO_NETWORK = "none";
+
+    private static final char ELEMENT_SEPARATOR = ',';
+
+    private static final char PARAMETER_SEPARATOR = ';';
+
+    private static final char PORT_SEPARATOR = ':';
+
+    private static final char PREFIX_SEPARATOR = '/';
+
+    private static final char QUOTE = '"';
+
+    private static final char OPENING_BRACKET = '[';
+
+    private static final char CLOSING_BRACKET = ']';
+
+    @Inject
+    private Logger logger;
+
+    @Inject
+    private RateLimitingServiceConfiguration configuration;
+
+    private volatile TrustedProxies trustedProxies;
+
+    /**
+     * The trusted networks, compiled from their configuration.
+     */
+    private static final class TrustedProxies
+    {
+        private final String configuration;
+
+        private final IpAddressKey[] networks;
+
+        TrustedProxies(String configuration, IpAddressKey[] networks)
+        {
+            this.configuration = configuration;
+            this.networks = networks;
+        }
+    }
+
+    @Override
+    public Object getClientAddress(HttpServletRequest request)
+    {
+        String remoteAddress = request.getRemoteAddr();
+        IpAddressKey client = IpAddressKey.parse(remoteAddress);
+        if (client == null) {
+            return remoteAddress;
+        }
+        IpAddressKey[] networks = getTrustedProxies();
+        if (!isTrusted(client, networks)) {
+            return client;
+        }
+
+        boolean forwarded = true;
+        Enumeration<String> headers = request.getHeaders(FORWARDED);
+        if (headers == null || !headers.hasMoreElements()) {
+            forwarded = false;
+            headers = request.getHeaders(X_FORWARDED_FOR);
+            if (headers == null) {
+                return client;
+            }
+        }
+
+        // Proxies may add a new header instead of extending the existing one, so the last header is the nearest
+        String last = null;
+        List<String> previous = null;
+        while (headers.hasMoreElements()) {
+            if (last != null) {
+                if (previous == null) {
+                    previous = new ArrayList<String>();
+                }
+                previous.add(last);
+            }
+            last = headers.nextElement();
+        }
+
+        int count = (previous != null) ? previous.size() + 1 : (last != null) ? 1 : 0;
+        for (int i = 0; i < count; i++) {
+            String header = (i == 0) ? last : previous.get(previous.size() - i);
+            int end = header.length();
+            while (end >= 0) {
+                int start = header.lastIndexOf(ELEMENT_SEPARATOR, end - 1) + 1;
+                IpAddressKey hop = forwarded ? parseForwardedFor(header, start, end) : parseHop(header, start, end);
+                if (hop == null) {
+                    // Unknown or obfuscated hop, nothing beyond the last trusted proxy can be trusted
+                    return client;
+                }
+                client = hop;
+                if (!isTrusted(hop, networks)) {
+                    return client;
+                }
+                end = start - 1;
+            }
+        }
+
+        // All hops are trusted proxies, so the farthest one is the client
+        return client;
+    }
+
+    private static boolean isTrusted(IpAddressKey address, IpAddressKey[] networks)
+    {
+        for (IpAddressKey network : networks) {
+            if (network.contains(address)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the networks of trusted proxies, compiled again only when their configuration has changed.
+     */
+    private IpAddressKey[] getTrustedProxies()
+    {
+        String source = configuration.getTrustedProxies();
+        if (source == null) {
+            source = "";
+        }
+        TrustedProxies current = trustedProxies;
+        if (current == null || !current.configuration.equals(source)) {
+            current = new TrustedProxies(source, parseNetworks(source));
+            trustedProxies = current;
+        }
+        return current.networks;
+    }
+
+    private IpAddressKey[] parseNetworks(String source)
+    {
+        List<IpAddressKey> networks = new ArrayList<IpAddressKey>();
+        for (String value : source.split(String.valueOf(ELEMENT_SEPARATOR))) {
+            String network = value.trim();
+            if (network.isEmpty() || network.equals(NO_NETWORK)) {
+                continue;
+            }
+            int separator = network.indexOf(PREFIX_SEPARATOR);
+            IpAddressKey key = IpAddressKey.parse(network, 0, (separator < 0) ? network.length() : separator);
+            try {
+                if (key != null && separator >= 0) {
+                    key = key.getPrefix(Integer.parseInt(network.substring(separator + 1).trim()));
+                }
+            } catch (NumberFormatException e) {
+                key = null;
+            }
+            if (key != null) {
+                networks.add(key);
+            } else {
+                logger.warn("Invalid trusted proxy network [{}] ignored.", network);
+            }
+        }
+        return networks.toArray(new IpAddressKey[networks.size()]);
+    }
+
+    /**
+     * @return the address of the {@code for} parameter of an element of a {@code Forwarded} header, or null if it is
+     *         missing or not an IP address.
+     */
+    private static IpAddressKey parseForwardedFor(String header, int start, int end)
+    {
+        int pairStart = start;
+        while (pairStart < end) {
+            int pairEnd = indexOf(header, PARAMETER_SEPARATOR, pairStart, end);
+            while (pairStart < pairEnd && header.charAt(pairStart) <= ' ') {
+                pairStart++;
+            }
+            if (header.regionMatches(true, pairStart, FOR_PARAMETER, 0, FOR_PARAMETER.length())) {
+                return parseHop(header, pairStart + FOR_PARAMETER.length(), pairEnd);
+            }
+            pairStart = pairEnd + 1;
+        }
+        return null;
+    }
+
+    /**
+     * @return the address of a hop, with optional quotes, brackets and port, or null if it is not an IP address.
+     */
+    private static IpAddressKey parseHop(String header, int start, int end)
+    {
+        int first = start;
+        int last = end;
+        while (first < last && header.charAt(first) <= ' ') {
+            first++;
+        }
+        while (last > first && header.charAt(last - 1) <= ' ') {
+            last--;
+        }
+        if (last - first > 1 && header.charAt(first) == QUOTE && header.charAt(last - 1) == QUOTE) {
+            first++;
+            last--;
+        }
+
+        if (first < last && header.charAt(first) == OPENING_BRACKET) {
+            // Bracketed IPv6 address, with an optional port
+            int closing = indexOf(header, CLOSING_BRACKET, first, last);
+            return (closing < last) ? IpAddressKey.parse(header, first + 1, closing) : null;
+        }
+        int colon = indexOf(header, PORT_SEPARATOR, first, last);
+        if (colon < last && indexOf(header, PORT_SEPARATOR, colon + 1, last) == last) {
+            // A single colon is the port of an IPv4 address
+            last = colon;
+        }
+        return IpAddressKey.parse(header, first, last);
+    }
+
+    /**
+     * @return the index of the given character in the given part of the string, or the end of this part.
+     */
+    private static int indexOf(String value, char c, int start, int end)
+    {
+        for (int i = start; i < end; i++) {
+            if (value.charAt(i) == c) {
+                return i;
+            }
+        }
+        return end;
+    }
+}
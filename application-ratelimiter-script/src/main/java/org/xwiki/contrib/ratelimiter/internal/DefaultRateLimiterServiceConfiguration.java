@@ -46,7 +46,10 @@ public class DefaultRateLimiterServiceConfiguration implements RateLimitingServi
     private static final String TO_PROPERTY = "mail_to";
     private static final String INTERVAL_PROPERTY = "mail_interval";
     private static final String INTERVAL_UNIT_PROPERTY = "interval_unit";
+    private static final String DIGEST_PROPERTY = "mail_digest";
     private static final String LANGUAGE_PROPERTY = "language";
+    private static final String TRUSTED_PROXIES_PROPERTY = "trusted_proxies";
+    private static final String DEFAULT_TRUSTED_PROXIES = "127.0.0.0/8, ::1/128";
     private static final String ADMIN_EMAIL_PREFERENCE = "admin_email";
     private static final String DEFAULT_LANGUAGE_PREFERENCE = "default_language";
 
@@ -87,6 +90,12 @@ public class DefaultRateLimiterServiceConfiguration implements RateLimitingServi
             safeGetTimeUnit(INTERVAL_UNIT_PROPERTY, TimeUnit.HOURS));
     }
 
+    @Override
+    public boolean isMailDigest() {
+        Integer digest = this.configurationSource.getProperty(DIGEST_PROPERTY, Integer.class);
+        return digest != null && digest == 1;
+    }
+
     @Override
     public String getFormattedMailInterval() {
         Period period = new Period(getMailInterval());
@@ -99,4 +108,10 @@ public class DefaultRateLimiterServiceConfiguration implements RateLimitingServi
         return new Locale(this.configurationSource.getProperty(LANGUAGE_PROPERTY,
             this.documentsSource.getProperty(DEFAULT_LANGUAGE_PREFERENCE, "en")));
     }
+
+    @Override
+    public String getTrustedProxies()
+    {
+        return this.configurationSource.getProperty(TRUSTED_PROXIES_PROPERTY, DEFAULT_TRUSTED_PROXIES);
+    }
 }
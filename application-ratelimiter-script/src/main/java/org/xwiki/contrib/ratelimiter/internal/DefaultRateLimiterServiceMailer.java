@@ -20,10 +20,20 @@
 
 package org.xwiki.contrib.ratelimiter.internal;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import javax.inject.Inject;
 import javax.inject.Named;
@@ -33,7 +43,14 @@ import javax.mail.MessagingException;
 import javax.mail.Session;
 import javax.mail.internet.MimeMessage;
 
+import org.slf4j.Logger;
 import org.xwiki.component.annotation.Component;
+import org.xwiki.component.manager.ComponentLifecycleException;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContext;
+import org.xwiki.context.ExecutionContextException;
+import org.xwiki.context.ExecutionContextManager;
 import org.xwiki.contrib.ratelimiter.RateLimiter;
 import org.xwiki.mail.MailListener;
 import org.xwiki.mail.MailSender;
@@ -43,15 +60,77 @@ import org.xwiki.mail.XWikiAuthenticator;
 import org.xwiki.model.reference.DocumentReference;
 
 /**
- * Default implementation of {@link RateLimiterServiceMailer}.
+ * Default implementation of {@link RateLimiterServiceMailer}. Unless the digest mode is configured, a notification is
+ * sent for each abuse, at most once per mail interval for a given consumer and consumed entity. In digest mode, all
+ * abuses during the mail interval are aggregated into a single summary mail, sent at the end of the interval, or when
+ * the mailer is disposed.
  *
  * @version $Id$
  */
 @Component
 @Singleton
-public class DefaultRateLimiterServiceMailer implements RateLimiterServiceMailer
+public class DefaultRateLimiterServiceMailer implements RateLimiterServiceMailer, Disposable
 {
-    private final Map<Integer, Long> lastNotifTimes = new HashMap<Integer, Long>();
+    /**
+     * The maximum number of consumers whose last notification time is kept, the oldest ones being forgotten first.
+     */
+    private static final int MAX_NOTIFIED = 10000;
+
+    /**
+     * The maximum number of consumers listed in a digest, other abuses being only counted.
+     */
+    private static final int MAX_DIGESTED = 200;
+
+    /**
+     * The time in seconds given to send the pending digest when the mailer is disposed.
+     */
+    private static final long DISPOSE_TIMEOUT = 5;
+
+    private static final String SPACE = "RateLimiter";
+
+    private static final DocumentReference TEMPLATE =
+        new DocumentReference("xwiki", SPACE, "NotificationMailTemplate");
+
+    private static final DocumentReference DIGEST_TEMPLATE =
+        new DocumentReference("xwiki", SPACE, "NotificationDigestMailTemplate");
+
+    private static final String CONSUMER = "consumer";
+
+    private static final String CONSUMED = "consumed";
+
+    private static final String LIMIT = "limit";
+
+    private static final String PERIOD = "period";
+
+    private final Map<List<String>, Long> lastNotifTimes = new LinkedHashMap<List<String>, Long>()
+    {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<List<String>, Long> eldest)
+        {
+            return size() > MAX_NOTIFIED;
+        }
+    };
+
+    private final Map<List<String>, Abuse> digest = new LinkedHashMap<List<String>, Abuse>();
+
+    private long omitted;
+
+    private ScheduledExecutorService digestExecutor;
+
+    private ScheduledFuture<?> digestSending;
+
+    private boolean disposed;
+
+    private Session session;
+
+    private Properties sessionProperties;
+
+    private boolean sessionAuthentication;
+
+    @Inject
+    private Logger logger;
 
     @Inject
     private RateLimiterServiceLocalization localization;
@@ -73,8 +152,32 @@ public class DefaultRateLimiterServiceMailer implements RateLimiterServiceMailer
     @Inject
     private RateLimitingServiceConfiguration configuration;
 
-    private int getKey(String consumer, String consumed) {
-        return ((consumer == null) ? 0 : 37 * consumer.hashCode()) + ((consumed == null) ? 0 : consumed.hashCode());
+    @Inject
+    private Execution execution;
+
+    @Inject
+    private ExecutionContextManager executionContextManager;
+
+    /**
+     * The abuses of a consumer aggregated in a digest.
+     */
+    private static final class Abuse
+    {
+        private final String consumer;
+
+        private final String consumed;
+
+        /** The limitation exceeded by the first abuse, copied since the actual limiter keeps changing. */
+        private final RateLimiter exhaustedLimiter;
+
+        private long count = 1;
+
+        Abuse(String consumer, String consumed, RateLimiter exhaustedLimiter)
+        {
+            this.consumer = consumer;
+            this.consumed = consumed;
+            this.exhaustedLimiter = ExhaustedRateLimiter.copyOf(exhaustedLimiter);
+        }
     }
 
     @Override
@@ -84,42 +187,201 @@ public class DefaultRateLimiterServiceMailer implements RateLimiterServiceMailer
             return;
         }
 
-        Long lastNotifTime = lastNotifTimes.get(getKey(consumer, consumed));
-        if (lastNotifTime != null && (new Date().getTime() - lastNotifTime) < configuration.getMailInterval()) {
+        if (configuration.isMailDigest()) {
+            addToDigest(consumer, consumed, exhaustedLimiter);
             return;
         }
 
-        Session session;
+        List<String> key = Arrays.asList(consumer, consumed);
+        long now = System.currentTimeMillis();
+        synchronized (lastNotifTimes) {
+            Long lastNotifTime = lastNotifTimes.get(key);
+            if (lastNotifTime != null && (now - lastNotifTime) < configuration.getMailInterval()) {
+                return;
+            }
+            // Move the consumer to the end of the map, so that it is forgotten last
+            lastNotifTimes.remove(key);
+            lastNotifTimes.put(key, now);
+        }
+
+        Map<String, Object> vcontext = new HashMap<String, Object>();
+        vcontext.put(CONSUMER, consumer);
+        vcontext.put(CONSUMED, consumed);
+        vcontext.put(LIMIT, exhaustedLimiter.getLimit());
+        vcontext.put(PERIOD, getPeriod(exhaustedLimiter));
+        vcontext.put("interval", configuration.getFormattedMailInterval());
+        send(TEMPLATE, vcontext);
+    }
+
+    private String getPeriod(RateLimiter limiter)
+    {
+        return limiter.getPeriod() + " " + localization.getTranslatedUnit(limiter.getPeriodUnit());
+    }
+
+    private synchronized void addToDigest(String consumer, String consumed, RateLimiter exhaustedLimiter)
+    {
+        if (disposed) {
+            return;
+        }
 
-        if (mailConfiguration.usesAuthentication()) {
-            session = Session.getInstance(mailConfiguration.getAllProperties(),
-                new XWikiAuthenticator(mailConfiguration));
+        List<String> key = Arrays.asList(consumer, consumed);
+        Abuse abuse = digest.get(key);
+        if (abuse != null) {
+            abuse.count++;
+        } else if (digest.size() < MAX_DIGESTED) {
+            digest.put(key, new Abuse(consumer, consumed, exhaustedLimiter));
         } else {
-            session = Session.getInstance(mailConfiguration.getAllProperties());
+            omitted++;
+        }
+
+        if (digestSending == null) {
+            // The digest is sent at the end of the mail interval starting with its first abuse
+            digestSending = getDigestExecutor().schedule(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    sendDigest();
+                }
+            }, configuration.getMailInterval(), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private synchronized ScheduledExecutorService getDigestExecutor()
+    {
+        if (digestExecutor == null) {
+            digestExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+            {
+                @Override
+                public Thread newThread(Runnable runnable)
+                {
+                    Thread thread = new Thread(runnable, "RateLimiter digest mailer");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return digestExecutor;
+    }
+
+    @Override
+    public void dispose() throws ComponentLifecycleException
+    {
+        ScheduledExecutorService executor;
+        synchronized (this) {
+            disposed = true;
+            executor = digestExecutor;
+            if (executor == null) {
+                return;
+            }
+            if (digestSending != null && digestSending.cancel(false)) {
+                // Send the pending digest right away instead of losing it
+                try {
+                    executor.execute(new Runnable()
+                    {
+                        @Override
+                        public void run()
+                        {
+                            sendDigest();
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    logger.warn("Failed to send the pending rate limiter digest: {}", e.getMessage());
+                }
+            }
+        }
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(DISPOSE_TIMEOUT, TimeUnit.SECONDS)) {
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void sendDigest()
+    {
+        List<Abuse> abuses;
+        long omittedCount;
+        synchronized (this) {
+            abuses = new ArrayList<Abuse>(digest.values());
+            omittedCount = omitted;
+            digest.clear();
+            omitted = 0;
+            digestSending = null;
+        }
+        if (abuses.isEmpty() && omittedCount == 0) {
+            return;
+        }
+
+        List<Map<String, Object>> entries = new ArrayList<Map<String, Object>>(abuses.size());
+        for (Abuse abuse : abuses) {
+            Map<String, Object> entry = new HashMap<String, Object>();
+            entry.put(CONSUMER, abuse.consumer);
+            entry.put(CONSUMED, abuse.consumed);
+            entry.put("count", abuse.count);
+            entry.put(LIMIT, abuse.exhaustedLimiter.getLimit());
+            entry.put(PERIOD, getPeriod(abuse.exhaustedLimiter));
+            entries.add(entry);
+        }
+
+        boolean initialized = false;
+        try {
+            // Rendering the template requires an execution context, as any request
+            executionContextManager.initialize(new ExecutionContext());
+            initialized = true;
+        } catch (ExecutionContextException e) {
+            logger.warn("Failed to initialize the execution context of the digest mailer: {}", e.getMessage());
+        }
+        try {
+            Map<String, Object> vcontext = new HashMap<String, Object>();
+            vcontext.put("abuses", entries);
+            vcontext.put("omitted", omittedCount);
+            vcontext.put("interval", configuration.getFormattedMailInterval());
+            send(DIGEST_TEMPLATE, vcontext);
+        } finally {
+            if (initialized) {
+                execution.removeContext();
+            }
         }
+    }
 
+    private void send(DocumentReference template, Map<String, Object> vcontext)
+    {
         Map<String, Object> parameters = new HashMap<String, Object>();
-        Map<String, Object> vcontext = new HashMap<String, Object>();
         parameters.put("from", configuration.getMailFromAddress());
         parameters.put("to", configuration.getMailToAddress());
         parameters.put("language", configuration.getLocale().getLanguage());
         parameters.put("velocityVariables", vcontext);
-        vcontext.put("consumer", consumer);
-        vcontext.put("consumed", consumed);
-        vcontext.put("limit", exhaustedLimiter.getLimit());
-        vcontext.put("period",
-            exhaustedLimiter.getPeriod() + " " + localization.getTranslatedUnit(exhaustedLimiter.getPeriodUnit()));
-        vcontext.put("interval", configuration.getFormattedMailInterval());
 
         try {
-            MimeMessage message = messageFactory.createMessage(session,
-                new DocumentReference("xwiki", "RateLimiter", "NotificationMailTemplate"),
-                parameters);
-
-            mailSender.sendAsynchronously(Collections.singleton(message), session, databaseMailListenerProvider.get());
-            lastNotifTimes.put(getKey(consumer, consumed), new Date().getTime());
+            Session mailSession = getSession();
+            MimeMessage message = messageFactory.createMessage(mailSession, template, parameters);
+            mailSender.sendAsynchronously(Collections.singleton(message), mailSession,
+                databaseMailListenerProvider.get());
         } catch (MessagingException e) {
-            e.printStackTrace();
+            logger.warn("Failed to send the rate limiter notification: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * @return the mail session, created again only when the mail configuration has changed.
+     */
+    private synchronized Session getSession()
+    {
+        Properties properties = mailConfiguration.getAllProperties();
+        boolean authentication = mailConfiguration.usesAuthentication();
+        if (session == null || authentication != sessionAuthentication || !properties.equals(sessionProperties)) {
+            if (authentication) {
+                session = Session.getInstance(properties, new XWikiAuthenticator(mailConfiguration));
+            } else {
+                session = Session.getInstance(properties);
+            }
+            sessionProperties = properties;
+            sessionAuthentication = authentication;
         }
+        return session;
     }
 }
@@ -0,0 +1,125 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.xwiki.contrib.ratelimiter.internal;
+
+import java.util.concurrent.TimeUnit;
+
+import org.xwiki.contrib.ratelimiter.RateLimiter;
+
+/**
+ * A read-only copy of the limitation of an exhausted rate limiter, as of the time it was exhausted, used to report it
+ * later while the actual rate limiter keeps changing.
+ *
+ * @version $Id$
+ */
+final class ExhaustedRateLimiter implements RateLimiter
+{
+    private final long limit;
+
+    private final long period;
+
+    private final TimeUnit unit;
+
+    private final long available;
+
+    private ExhaustedRateLimiter(RateLimiter limiter)
+    {
+        this.limit = limiter.getLimit();
+        this.period = limiter.getPeriod();
+        this.unit = limiter.getPeriodUnit();
+        this.available = limiter.getAvailableAmount(false);
+    }
+
+    /**
+     * @param limiter an exhausted rate limiter.
+     * @return a copy of the current limitation of the given rate limiter.
+     */
+    static RateLimiter copyOf(RateLimiter limiter)
+    {
+        return (limiter instanceof ExhaustedRateLimiter) ? limiter : new ExhaustedRateLimiter(limiter);
+    }
+
+    @Override
+    public long getPeriod()
+    {
+        return period;
+    }
+
+    @Override
+    public long getPeriod(TimeUnit targetUnit)
+    {
+        return targetUnit.convert(period, unit);
+    }
+
+    @Override
+    public TimeUnit getPeriodUnit()
+    {
+        return unit;
+    }
+
+    @Override
+    public long getLimit()
+    {
+        return limit;
+    }
+
+    @Override
+    public boolean consume(long amount)
+    {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public RateLimiter clone(boolean empty)
+    {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public long getAvailableAmount()
+    {
+        return available;
+    }
+
+    @Override
+    public long getAvailableAmount(boolean update)
+    {
+        return available;
+    }
+
+    @Override
+    public long getWaitingTime(long amount, TimeUnit targetUnit)
+    {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public long getWaitingTime(long amount, TimeUnit targetUnit, boolean update)
+    {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void reset()
+    {
+        throw new UnsupportedOperationException();
+    }
+}
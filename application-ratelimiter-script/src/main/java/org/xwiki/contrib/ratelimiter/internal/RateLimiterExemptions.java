@@ -0,0 +1,166 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.xwiki.contrib.ratelimiter.internal;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.WikiReference;
+import org.xwiki.security.authorization.AuthorizationManager;
+import org.xwiki.security.authorization.Right;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
+import com.xpn.xwiki.doc.XWikiDocument;
+
+/**
+ * Cache the users exempted from rate limiting on each wiki, being either administrators of the wiki or members of
+ * the exempted groups, so that rights and groups are only checked once per user. The cache is cleared when a
+ * document holding rights or group members is saved or deleted.
+ *
+ * @version $Id$
+ */
+class RateLimiterExemptions
+{
+    /**
+     * The maximum number of decisions kept for each wiki, the decisions of a wiki being cleared when it is reached.
+     */
+    private static final int MAX_DECISIONS = 10000;
+
+    private static final List<String> INVALIDATING_CLASSES =
+        Arrays.asList("XWiki.XWikiRights", "XWiki.XWikiGlobalRights", "XWiki.XWikiGroups");
+
+    private final AuthorizationManager authorizationManager;
+
+    private final Set<Object> exemptions;
+
+    private final ConcurrentMap<WikiReference, ConcurrentMap<DocumentReference, Boolean>> decisions =
+        new ConcurrentHashMap<WikiReference, ConcurrentMap<DocumentReference, Boolean>>();
+
+    /**
+     * Constructor.
+     *
+     * @param authorizationManager the authorization manager in order to check the administration right.
+     * @param exemptions the references of the exempted users and groups.
+     */
+    RateLimiterExemptions(AuthorizationManager authorizationManager, Set<Object> exemptions)
+    {
+        this.authorizationManager = authorizationManager;
+        this.exemptions = new HashSet<Object>(exemptions);
+    }
+
+    /**
+     * @param user the reference of the user, or null for guests.
+     * @param wiki the consumed wiki.
+     * @param xcontext the context of the request, in order to retrieve the groups of the user.
+     * @return true if the user is exempted from rate limiting on the given wiki.
+     */
+    boolean isExempt(DocumentReference user, WikiReference wiki, XWikiContext xcontext)
+    {
+        if (user == null) {
+            // Guests are never exempted, and should not pay for any check
+            return false;
+        }
+
+        ConcurrentMap<DocumentReference, Boolean> wikiDecisions = decisions.get(wiki);
+        if (wikiDecisions == null) {
+            wikiDecisions = new ConcurrentHashMap<DocumentReference, Boolean>();
+            ConcurrentMap<DocumentReference, Boolean> previous = decisions.putIfAbsent(wiki, wikiDecisions);
+            if (previous != null) {
+                wikiDecisions = previous;
+            }
+        }
+
+        Boolean exempt = wikiDecisions.get(user);
+        if (exempt == null) {
+            try {
+                exempt = authorizationManager.hasAccess(Right.ADMIN, user, wiki) || isListed(user, xcontext);
+            } catch (XWikiException e) {
+                // Do not cache the decision, so that it is checked again on the next request
+                return false;
+            }
+            if (wikiDecisions.size() >= MAX_DECISIONS) {
+                wikiDecisions.clear();
+            }
+            wikiDecisions.put(user, exempt);
+        }
+        return exempt;
+    }
+
+    private boolean isListed(DocumentReference user, XWikiContext xcontext) throws XWikiException
+    {
+        if (exemptions.isEmpty()) {
+            return false;
+        }
+        if (exemptions.contains(user)) {
+            return true;
+        }
+
+        // Look for exempted groups among the groups of the user, and the groups of these groups
+        Set<DocumentReference> visited = new HashSet<DocumentReference>();
+        Deque<DocumentReference> members = new ArrayDeque<DocumentReference>();
+        members.add(user);
+        while (!members.isEmpty()) {
+            for (DocumentReference group : xcontext.getWiki().getGroupService(xcontext)
+                .getAllGroupsReferencesForMember(members.poll(), 0, 0, xcontext)) {
+                if (exemptions.contains(group)) {
+                    return true;
+                }
+                if (visited.add(group)) {
+                    members.add(group);
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Clear the cached decisions when the given document holds rights or group members, before or after its change.
+     *
+     * @param document the saved or deleted document.
+     */
+    void invalidate(XWikiDocument document)
+    {
+        if (hasRightsOrMembers(document) || hasRightsOrMembers(document.getOriginalDocument())) {
+            decisions.clear();
+        }
+    }
+
+    private static boolean hasRightsOrMembers(XWikiDocument document)
+    {
+        if (document != null) {
+            for (String className : INVALIDATING_CLASSES) {
+                if (document.getObject(className) != null) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+}
@@ -20,9 +20,22 @@
 
 package org.xwiki.contrib.ratelimiter.internal;
 
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.inject.Inject;
 import javax.inject.Named;
@@ -30,6 +43,13 @@ import javax.inject.Singleton;
 
 import org.slf4j.Logger;
 import org.xwiki.component.annotation.Component;
+import org.xwiki.component.manager.ComponentLifecycleException;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContext;
+import org.xwiki.context.ExecutionContextException;
+import org.xwiki.context.ExecutionContextManager;
+import org.xwiki.contrib.ratelimiter.IpAddressKey;
 import org.xwiki.contrib.ratelimiter.RateLimiter;
 import org.xwiki.contrib.ratelimiter.RateLimiterEntry;
 import org.xwiki.contrib.ratelimiter.event.RateLimiterExhaustedEvent;
@@ -39,14 +59,18 @@ import org.xwiki.observation.EventListener;
 import org.xwiki.observation.event.Event;
 
 /**
- * Listen to rate limiter exhausted events in order to provides notification and logging.
+ * Listen to rate limiter exhausted events in order to provides notification and logging. Events are only queued by
+ * the thread rejecting the consumption, with a copy of the exhausted limitation at that time, and are logged and
+ * notified by a single worker thread, so that rejecting a consumption stays cheap during an abuse storm. The queue is
+ * bounded, events for a consumer and a consumed entity already queued are coalesced, and events beyond the bound are
+ * dropped and counted. Events still queued when the listener is disposed are notified, for a short while.
  *
  * @version $Id$
  */
 @Component
 @Named(RateLimiterExhaustedListener.NAME)
 @Singleton
-public class RateLimiterExhaustedListener implements EventListener
+public class RateLimiterExhaustedListener implements EventListener, Disposable
 {
     /**
      * Name of this listener.
@@ -58,6 +82,16 @@ public class RateLimiterExhaustedListener implements EventListener
      */
     private static final List<Event> EVENTS = Collections.<Event>singletonList(new RateLimiterExhaustedEvent());
 
+    /**
+     * The maximum number of queued events.
+     */
+    private static final int MAX_QUEUED = 1024;
+
+    /**
+     * The time in seconds given to the worker to notify the queued events when the listener is disposed.
+     */
+    private static final long DISPOSE_TIMEOUT = 5;
+
     @Inject
     private Logger logger;
 
@@ -70,6 +104,49 @@ public class RateLimiterExhaustedListener implements EventListener
     @Inject
     private EntityReferenceSerializer<String> serializer;
 
+    @Inject
+    private Execution execution;
+
+    @Inject
+    private ExecutionContextManager executionContextManager;
+
+    private final Queue<Exhaustion> queue = new ConcurrentLinkedQueue<Exhaustion>();
+
+    /**
+     * The consumer and consumed entity of the queued events.
+     */
+    private final ConcurrentMap<List<Object>, Boolean> queued = new ConcurrentHashMap<List<Object>, Boolean>();
+
+    private final AtomicInteger size = new AtomicInteger();
+
+    private final AtomicLong dropped = new AtomicLong();
+
+    private final AtomicBoolean running = new AtomicBoolean();
+
+    private ExecutorService executor;
+
+    private boolean disposed;
+
+    /**
+     * An exhaustion waiting to be notified.
+     */
+    private static final class Exhaustion
+    {
+        private final List<Object> key;
+
+        private final RateLimiterEntry entry;
+
+        /** The exhausted limitation when the event was received, or null if it could not be determined. */
+        private final RateLimiter exhaustedLimiter;
+
+        Exhaustion(List<Object> key, RateLimiterEntry entry, RateLimiter exhaustedLimiter)
+        {
+            this.key = key;
+            this.entry = entry;
+            this.exhaustedLimiter = exhaustedLimiter;
+        }
+    }
+
     @Override
     public List<Event> getEvents()
     {
@@ -91,7 +168,124 @@ public class RateLimiterExhaustedListener implements EventListener
         }
 
         RateLimiterEntry rlentry = (RateLimiterEntry) data;
+        List<Object> key = Arrays.asList(rlentry.getConsumer(), rlentry.getConsumed());
+        if (queued.putIfAbsent(key, Boolean.TRUE) != null) {
+            // The same exhaustion is already waiting to be notified
+            return;
+        }
+        if (size.incrementAndGet() > MAX_QUEUED) {
+            size.decrementAndGet();
+            queued.remove(key);
+            dropped.incrementAndGet();
+            return;
+        }
+        // The limiter keeps changing, so the exhausted limitation is copied right away
+        RateLimiter exhaustedLimiter = (rlentry.getLimiter() instanceof CompositeRateLimiter)
+            ? getExhaustedRateLimiter(((CompositeRateLimiter) rlentry.getLimiter()).getRateLimiters()) : null;
+        queue.offer(new Exhaustion(key, rlentry,
+            (exhaustedLimiter != null) ? ExhaustedRateLimiter.copyOf(exhaustedLimiter) : null));
 
+        if (running.compareAndSet(false, true)) {
+            try {
+                getExecutor().execute(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        runWorker();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // The listener is disposed
+                running.set(false);
+            }
+        }
+    }
+
+    private synchronized ExecutorService getExecutor()
+    {
+        if (disposed) {
+            throw new RejectedExecutionException();
+        }
+        if (executor == null) {
+            executor = Executors.newSingleThreadExecutor(new ThreadFactory()
+            {
+                @Override
+                public Thread newThread(Runnable runnable)
+                {
+                    Thread thread = new Thread(runnable, "RateLimiter exhaustion notifier");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return executor;
+    }
+
+    @Override
+    public void dispose() throws ComponentLifecycleException
+    {
+        ExecutorService current;
+        synchronized (this) {
+            disposed = true;
+            current = executor;
+        }
+        if (current != null) {
+            current.shutdown();
+            try {
+                if (!current.awaitTermination(DISPOSE_TIMEOUT, TimeUnit.SECONDS)) {
+                    current.shutdownNow();
+                }
+            } catch (InterruptedException e) {
+                current.shutdownNow();
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Notify the queued exhaustions, until the queue is empty.
+     */
+    private void runWorker()
+    {
+        boolean initialized = false;
+        try {
+            // Notifications require an execution context, as any request
+            executionContextManager.initialize(new ExecutionContext());
+            initialized = true;
+        } catch (ExecutionContextException e) {
+            logger.warn("Failed to initialize the execution context of the exhaustion notifier: {}", e.getMessage());
+        }
+
+        try {
+            do {
+                Exhaustion exhaustion;
+                while ((exhaustion = queue.poll()) != null) {
+                    size.decrementAndGet();
+                    queued.remove(exhaustion.key);
+                    try {
+                        notifyExhaustion(exhaustion);
+                    } catch (Exception e) {
+                        logger.warn("Failed to notify rate limiter exhaustion: {}", e.getMessage());
+                    }
+                }
+                long count = dropped.getAndSet(0);
+                if (count > 0) {
+                    logger.warn("[{}] rate limiter exhausted events dropped, since too many were queued.", count);
+                }
+                running.set(false);
+                // An event may have been queued after the last poll, without running another worker
+            } while (!queue.isEmpty() && running.compareAndSet(false, true));
+        } finally {
+            if (initialized) {
+                execution.removeContext();
+            }
+        }
+    }
+
+    private void notifyExhaustion(Exhaustion exhaustion)
+    {
+        RateLimiterEntry rlentry = exhaustion.entry;
         String consumer = serialize(rlentry.getConsumer());
         if (consumer == null) {
             logger.warn("Unable to determine the consumer, ignoring.");
@@ -104,14 +298,12 @@ public class RateLimiterExhaustedListener implements EventListener
             return;
         }
 
-        if (!(rlentry.getLimiter() instanceof CollectionRateLimiter)) {
+        if (!(rlentry.getLimiter() instanceof CompositeRateLimiter)) {
             logger.warn("Unsupported rate limiter exceeded [{}], ignoring.", rlentry.getLimiter().getClass().getName());
             return;
         }
 
-        RateLimiter exhaustedLimiter =
-            getExhaustedRateLimiter(((CollectionRateLimiter) rlentry.getLimiter()).getRateLimiters());
-
+        RateLimiter exhaustedLimiter = exhaustion.exhaustedLimiter;
         if (exhaustedLimiter == null) {
             logger.warn("Unable to determine the exceeded limiter, ignoring.");
             return;
@@ -124,6 +316,7 @@ public class RateLimiterExhaustedListener implements EventListener
     private String serialize(Object value)
     {
         return (value instanceof String) ? (String) value
+            : (value instanceof IpAddressKey) ? value.toString()
             : (value instanceof EntityReference)
             ? serializer.serialize((EntityReference) value)
             : null;
@@ -131,13 +324,15 @@ public class RateLimiterExhaustedListener implements EventListener
 
     private RateLimiter getExhaustedRateLimiter(Collection<RateLimiter> ratelimiters)
     {
+        // Limiters that do not account rejected consumptions never report a negative available amount, so the most
+        // exhausted limiter is simply the one with the lowest available amount.
         RateLimiter exhaustedLimiter = null;
+        long exhaustedAmount = Long.MAX_VALUE;
         for (RateLimiter limiter : ratelimiters) {
-            if (limiter.getAvailableAmount(false) < 0) {
-                if (exhaustedLimiter == null
-                    || limiter.getAvailableAmount(false) < exhaustedLimiter.getAvailableAmount(false)) {
-                    exhaustedLimiter = limiter;
-                }
+            long amount = limiter.getAvailableAmount(false);
+            if (amount < exhaustedAmount) {
+                exhaustedLimiter = limiter;
+                exhaustedAmount = amount;
             }
         }
         return exhaustedLimiter;
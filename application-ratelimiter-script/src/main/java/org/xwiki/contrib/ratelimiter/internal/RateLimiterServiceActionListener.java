@@ -22,21 +22,29 @@ package org.xwiki.contrib.ratelimiter.internal;
 
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.velocity.VelocityContext;
 import org.xwiki.bridge.event.ActionExecutingEvent;
+import org.xwiki.bridge.event.DocumentCreatedEvent;
+import org.xwiki.bridge.event.DocumentDeletedEvent;
+import org.xwiki.bridge.event.DocumentUpdatedEvent;
+import org.xwiki.contrib.ratelimiter.RateLimiterFuture;
 import org.xwiki.contrib.ratelimiter.RateLimiterService;
+import org.xwiki.contrib.ratelimiter.RateLimiterServiceOptions;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.WikiReference;
 import org.xwiki.observation.EventListener;
 import org.xwiki.observation.event.Event;
-import org.xwiki.security.authorization.ContextualAuthorizationManager;
-import org.xwiki.security.authorization.Right;
+import org.xwiki.security.authorization.AuthorizationManager;
 import org.xwiki.velocity.VelocityManager;
 
 import com.xpn.xwiki.XWikiContext;
 import com.xpn.xwiki.XWikiException;
 import com.xpn.xwiki.api.Document;
 import com.xpn.xwiki.doc.XWikiDocument;
-import com.xpn.xwiki.web.XWikiRequest;
 
 /**
  * Listen to action in order to introduce appropriate rate limitation.
@@ -53,7 +61,8 @@ public class RateLimiterServiceActionListener implements EventListener
     /**
      * The list of events to listen to.
      */
-    private static final List<Event> EVENTS = Arrays.<Event>asList(new ActionExecutingEvent());
+    private static final List<Event> EVENTS = Arrays.<Event>asList(new ActionExecutingEvent(),
+        new DocumentCreatedEvent(), new DocumentUpdatedEvent(), new DocumentDeletedEvent());
 
     private static final String CTX_DOC = "doc";
 
@@ -61,30 +70,53 @@ public class RateLimiterServiceActionListener implements EventListener
 
     private static final String CTX_TDOC = "tdoc";
 
-    private static final List<String> SKIN_ACTIONS = Arrays.asList("skin", "jsx", "ssx");
-
     private final RateLimiterService service;
     private final VelocityManager velocityManager;
-    private final ContextualAuthorizationManager contextualAuthorizationManager;
+    private final RateLimiterExemptions exemptions;
+    private final ClientAddressResolver clientAddressResolver;
+    private final RequestClassifier classifier;
+    private final ActionCostTable costs;
+    private final long maxDelay;
+    private final Semaphore delaySlots;
 
     /**
      * Constructor.
      *
      * @param service the rate limiter service that will support this listener.
      * @param velocityManager the velocity manager in order to get the velocity context.
-     * @param contextualAuthorizationManager the authorization manager in order to avoid rate limiting on admins.
+     * @param authorizationManager the authorization manager in order to avoid rate limiting on admins.
+     * @param clientAddressResolver the resolver of the address of guests.
      */
     public RateLimiterServiceActionListener(RateLimiterService service, VelocityManager velocityManager,
-        ContextualAuthorizationManager contextualAuthorizationManager)
+        AuthorizationManager authorizationManager, ClientAddressResolver clientAddressResolver)
     {
-        this.service = service;
-        this.velocityManager = velocityManager;
-        this.contextualAuthorizationManager = contextualAuthorizationManager;
+        this(service, velocityManager, authorizationManager, clientAddressResolver, new RateLimiterServiceOptions());
     }
 
-    private static String getRemoteAddress(XWikiRequest request) {
-        String ipAddress = request.getHeader("X-FORWARDED-FOR");
-        return (ipAddress != null) ? ipAddress.split(",", 1)[0] : request.getRemoteAddr();
+    /**
+     * Constructor.
+     *
+     * @param service the rate limiter service that will support this listener.
+     * @param velocityManager the velocity manager in order to get the velocity context.
+     * @param authorizationManager the authorization manager in order to avoid rate limiting on admins.
+     * @param clientAddressResolver the resolver of the address of guests.
+     * @param options the options of the service, providing the exempted users, the classification of requests, the
+     *            cost of actions and the shaping of requests over the limit.
+     */
+    public RateLimiterServiceActionListener(RateLimiterService service, VelocityManager velocityManager,
+        AuthorizationManager authorizationManager, ClientAddressResolver clientAddressResolver,
+        RateLimiterServiceOptions options)
+    {
+        this.service = service;
+        this.velocityManager = velocityManager;
+        this.exemptions = new RateLimiterExemptions(authorizationManager, options.getExemptions());
+        this.clientAddressResolver = clientAddressResolver;
+        this.classifier = new RequestClassifier(options.getRequestRules());
+        this.costs = new ActionCostTable(options.getActionCosts());
+        this.maxDelay = (options.getShapingDelay() > 0) ? options.getShapingUnit().toNanos(options.getShapingDelay())
+            : 0;
+        this.delaySlots =
+            (this.maxDelay > 0 && options.getShapingSlots() > 0) ? new Semaphore(options.getShapingSlots()) : null;
     }
 
     @Override
@@ -102,27 +134,48 @@ public class RateLimiterServiceActionListener implements EventListener
     @Override
     public void onEvent(Event event, Object source, Object data)
     {
-        if (contextualAuthorizationManager.hasAccess(Right.ADMIN)) {
+        if (!(event instanceof ActionExecutingEvent)) {
+            // A document has been saved or deleted, which may change the rights or the groups of users
+            exemptions.invalidate((XWikiDocument) source);
             return;
         }
 
         XWikiContext xcontext = (XWikiContext) data;
         XWikiDocument doc = xcontext.getDoc();
         String action = ((ActionExecutingEvent) event).getActionName();
-        Object user = xcontext.getUserReference();
 
-        if (user == null) {
-            user = getRemoteAddress(xcontext.getRequest());
+        // Classify the request first, since most requests are resources that should not pay for rights checking
+        long cost = classifier.classify(action, doc.getDocumentReference(), xcontext.getRequest());
+        if (cost == RequestClassifier.EXEMPT
+            || (action.equals("download") && doc.getObject("XWiki.XWikiSkin") != null)) {
+            // Do not rate limit exempted requests, including download action of skin files
+            return;
         }
 
-        boolean allowed =
-            service.consume(user, doc.getDocumentReference().getWikiReference(), 1);
-
-        if (SKIN_ACTIONS.contains(action) || (action.equals("download") && doc.getObject("XWiki.XWikiSkin") != null)) {
-            // Do not rate limit during skin and resource actions, including download action of skin files
+        DocumentReference userReference = xcontext.getUserReference();
+        WikiReference wiki = doc.getDocumentReference().getWikiReference();
+        if (exemptions.isExempt(userReference, wiki, xcontext)) {
             return;
         }
 
+        // Guests are limited by address, parsed so that it can be aggregated with its network
+        Object user = (userReference != null) ? userReference
+            : clientAddressResolver.getClientAddress(xcontext.getRequest());
+
+        if (cost == RequestClassifier.CHARGE) {
+            cost = costs.getCost(action, doc.getDocumentReference());
+        }
+        boolean allowed;
+        if (isDelayed(user, wiki, cost) && delaySlots.tryAcquire()) {
+            try {
+                allowed = delay(user, wiki, cost);
+            } finally {
+                delaySlots.release();
+            }
+        } else {
+            allowed = service.consume(user, wiki, cost);
+        }
+
         if (!allowed) {
             if (action.equals("view")) {
                 try {
@@ -137,6 +190,53 @@ public class RateLimiterServiceActionListener implements EventListener
         }
     }
 
+    /**
+     * Check whether a request over the limit of its consumer should be delayed rather than rejected, which is the case
+     * when its rate limiter would allow it before the maximum delay. This is checked before consuming, since some rate
+     * limiters also account rejected consumptions, which would then be waited for twice.
+     *
+     * @param user the consumer.
+     * @param wiki the consumed wiki.
+     * @param cost the amount consumed by the request.
+     * @return true if the request should be delayed, false if it should be consumed right away.
+     */
+    private boolean isDelayed(Object user, Object wiki, long cost)
+    {
+        if (delaySlots == null) {
+            return false;
+        }
+        // A request refused by a shared limiter, like the aggregate or the global one, has no individual waiting
+        // time and is not delayed
+        long wait = service.getRateLimiter(user, wiki).getWaitingTime(cost, TimeUnit.NANOSECONDS);
+        return wait > 0 && wait <= maxDelay;
+    }
+
+    /**
+     * Delay a request until its rate limiter allows it, while holding a delay slot. Delayed requests of the same
+     * consumer are charged in first come, first served order as their rate limiter allows them, so they are spread
+     * over time instead of being released together. The network prefix of the consumer and the global capacity are
+     * charged like for any other request, and reject the request at once when they do not allow it.
+     *
+     * @param user the consumer.
+     * @param wiki the consumed wiki.
+     * @param cost the amount consumed by the request.
+     * @return true if the request has been charged and should be served, false if it should be rejected.
+     */
+    private boolean delay(Object user, Object wiki, long cost)
+    {
+        RateLimiterFuture future = service.acquire(user, wiki, cost, maxDelay, TimeUnit.NANOSECONDS);
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            // Do not charge a request which will not be served
+            future.cancel(false);
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            return false;
+        }
+    }
+
     /**
      * @return the rate limiter service supporting this listener.
      */
@@ -47,6 +47,11 @@ public interface RateLimitingServiceConfiguration
      */
     long getMailInterval();
 
+    /**
+     * @return true if abuses should be aggregated into a single summary mail per mail interval. Default to false.
+     */
+    boolean isMailDigest();
+
     /**
      * @return a formatted string of the mail interval
      */
@@ -56,4 +61,12 @@ public interface RateLimitingServiceConfiguration
      * @return the locale used for logs and notifications. Default to english.
      */
     Locale getLocale();
+
+    /**
+     * @return the comma separated list of the networks of trusted proxies, in CIDR notation, whose forwarding headers
+     *         are used to find the address of clients, or {@code none} to ignore forwarding headers. Default to the
+     *         loopback networks only, since any client of a private network could otherwise choose its own address;
+     *         the networks of the actual reverse proxies should be added when they are not on the same host.
+     */
+    String getTrustedProxies();
 }
@@ -0,0 +1,262 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.xwiki.contrib.ratelimiter.internal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.xwiki.contrib.ratelimiter.RateLimiterServiceOptions;
+import org.xwiki.model.reference.EntityReference;
+
+import com.xpn.xwiki.web.XWikiRequest;
+
+/**
+ * Classify requests before any rate limiting, in order to exempt or charge them according to the rules of the
+ * options, see {@link RateLimiterServiceOptions#addRequestRule(String)}. Rules are compiled into an ordered list of
+ * candidate rules for each action, so that only the rules which may match the action of a request are evaluated,
+ * and the request values needed by these rules are only computed once.
+ *
+ * @version $Id$
+ */
+class RequestClassifier
+{
+    /**
+     * Classification of requests exempted from rate limiting.
+     */
+    static final long EXEMPT = -1;
+
+    /**
+     * Classification of requests charged with the cost of their action.
+     */
+    static final long CHARGE = -2;
+
+    /**
+     * Rules exempting skin resources, only preceded by the configured rules of their own action, so that rules for
+     * any action, like {@code agent=bot:5}, do not charge skin resources.
+     */
+    private static final List<String> DEFAULT_RULES = Arrays.asList("action=skin:exempt", "action=jsx:exempt",
+        "action=ssx:exempt");
+
+    private static final String USER_AGENT = "User-Agent";
+
+    private final Map<String, Rule[]> actionRules = new HashMap<String, Rule[]>();
+
+    private final Rule[] otherRules;
+
+    /**
+     * A compiled rule.
+     */
+    private static final class Rule
+    {
+        private String action;
+
+        private String[] space;
+
+        private String[] document;
+
+        private String path;
+
+        private String agent;
+
+        private long decision;
+
+        Rule(String rule)
+        {
+            int index = rule.lastIndexOf(':');
+            String value = rule.substring(index + 1).trim();
+            decision = value.equals(RateLimiterServiceOptions.RULE_EXEMPT) ? EXEMPT
+                : value.equals(RateLimiterServiceOptions.RULE_CHARGE) ? CHARGE : Long.parseLong(value);
+            for (String condition : rule.substring(0, index).split("&")) {
+                int separator = condition.indexOf('=');
+                String key = condition.substring(0, separator).trim();
+                value = condition.substring(separator + 1).trim();
+                if (key.equals("action")) {
+                    action = value;
+                } else if (key.equals("space")) {
+                    space = toArray(ActionCostTable.split(value));
+                } else if (key.equals("document")) {
+                    document = toArray(ActionCostTable.split(value));
+                } else if (key.equals("path")) {
+                    path = value;
+                } else {
+                    agent = value.toLowerCase(Locale.ROOT);
+                }
+            }
+        }
+
+        private static String[] toArray(List<String> names)
+        {
+            return names.toArray(new String[names.size()]);
+        }
+
+        boolean matches(Request request)
+        {
+            return (space == null || request.isInSpace(space))
+                && (document == null || Arrays.equals(document, request.getLocation()))
+                && (path == null || request.getPath().startsWith(path))
+                && (agent == null || request.getAgent().contains(agent));
+        }
+    }
+
+    /**
+     * The values of a request, computed on demand.
+     */
+    private static final class Request
+    {
+        private final EntityReference document;
+
+        private final XWikiRequest request;
+
+        private String[] location;
+
+        private String path;
+
+        private String agent;
+
+        Request(EntityReference document, XWikiRequest request)
+        {
+            this.document = document;
+            this.request = request;
+        }
+
+        /**
+         * @return the names of the spaces and of the requested document, without the wiki.
+         */
+        String[] getLocation()
+        {
+            if (location == null) {
+                List<EntityReference> chain = document.getReversedReferenceChain();
+                location = new String[chain.size() - 1];
+                for (int i = 0; i < location.length; i++) {
+                    location[i] = chain.get(i + 1).getName();
+                }
+            }
+            return location;
+        }
+
+        boolean isInSpace(String[] space)
+        {
+            // The last name of the location is the document, which is not part of the spaces
+            String[] names = getLocation();
+            if (space.length >= names.length) {
+                return false;
+            }
+            for (int i = 0; i < space.length; i++) {
+                if (!space[i].equals(names[i])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        String getPath()
+        {
+            if (path == null) {
+                String uri = request.getRequestURI();
+                path = (uri != null) ? uri : "";
+            }
+            return path;
+        }
+
+        String getAgent()
+        {
+            if (agent == null) {
+                String header = request.getHeader(USER_AGENT);
+                agent = (header != null) ? header.toLowerCase(Locale.ROOT) : "";
+            }
+            return agent;
+        }
+    }
+
+    /**
+     * Compile the given rules.
+     *
+     * @param rules the rules, as validated by {@link RateLimiterServiceOptions#addRequestRule(String)}.
+     */
+    RequestClassifier(List<String> rules)
+    {
+        List<Rule> compiled = new ArrayList<Rule>();
+        for (String rule : rules) {
+            compiled.add(new Rule(rule));
+        }
+
+        // Each action gets the rules of this action and the rules of any action, in their original order
+        List<Rule> others = new ArrayList<Rule>();
+        Map<String, List<Rule>> actions = new HashMap<String, List<Rule>>();
+        for (Rule rule : compiled) {
+            if (rule.action != null && !actions.containsKey(rule.action)) {
+                actions.put(rule.action, new ArrayList<Rule>(others));
+            }
+            for (Map.Entry<String, List<Rule>> entry : actions.entrySet()) {
+                if (rule.action == null || rule.action.equals(entry.getKey())) {
+                    entry.getValue().add(rule);
+                }
+            }
+            if (rule.action == null) {
+                others.add(rule);
+            }
+        }
+        for (String rule : DEFAULT_RULES) {
+            Rule exemption = new Rule(rule);
+            List<Rule> actionList = new ArrayList<Rule>();
+            for (Rule configured : compiled) {
+                if (exemption.action.equals(configured.action)) {
+                    actionList.add(configured);
+                }
+            }
+            actionList.add(exemption);
+            actions.put(exemption.action, actionList);
+        }
+        for (Map.Entry<String, List<Rule>> entry : actions.entrySet()) {
+            actionRules.put(entry.getKey(), entry.getValue().toArray(new Rule[entry.getValue().size()]));
+        }
+        otherRules = others.toArray(new Rule[others.size()]);
+    }
+
+    /**
+     * @param action the name of the action.
+     * @param document the reference of the requested document.
+     * @param request the request.
+     * @return the amount to be consumed by the request, {@link #EXEMPT} if it should not be rate limited, or
+     *         {@link #CHARGE} if it should be charged the cost of its action.
+     */
+    long classify(String action, EntityReference document, XWikiRequest request)
+    {
+        Rule[] rules = actionRules.get(action);
+        if (rules == null) {
+            rules = otherRules;
+        }
+        if (rules.length > 0) {
+            Request values = new Request(document, request);
+            for (Rule rule : rules) {
+                if (rule.matches(values)) {
+                    return rule.decision;
+                }
+            }
+        }
+        return CHARGE;
+    }
+}
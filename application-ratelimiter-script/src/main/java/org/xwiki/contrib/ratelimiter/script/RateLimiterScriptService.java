@@ -20,6 +20,9 @@
 
 package org.xwiki.contrib.ratelimiter.script;
 
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Locale;
 import java.util.concurrent.TimeUnit;
 
@@ -35,18 +38,21 @@ import org.xwiki.contrib.ratelimiter.RateLimiter;
 import org.xwiki.contrib.ratelimiter.RateLimiterBuilder;
 import org.xwiki.contrib.ratelimiter.RateLimiterService;
 import org.xwiki.contrib.ratelimiter.RateLimiterServiceFactory;
+import org.xwiki.contrib.ratelimiter.RateLimiterServiceOptions;
+import org.xwiki.contrib.ratelimiter.internal.ClientAddressResolver;
 import org.xwiki.contrib.ratelimiter.internal.RateLimiterServiceActionListener;
 import org.xwiki.contrib.ratelimiter.internal.RateLimiterServiceLogger;
+import org.xwiki.environment.Environment;
 import org.xwiki.model.reference.DocumentReference;
 import org.xwiki.observation.EventListener;
 import org.xwiki.observation.ObservationManager;
 import org.xwiki.script.service.ScriptService;
+import org.xwiki.security.authorization.AuthorizationManager;
 import org.xwiki.security.authorization.ContextualAuthorizationManager;
 import org.xwiki.security.authorization.Right;
 import org.xwiki.velocity.VelocityManager;
 
 import com.xpn.xwiki.XWikiContext;
-import com.xpn.xwiki.web.XWikiRequest;
 
 /**
  * Script service for creating and using {@link RateLimiterService}.
@@ -57,6 +63,17 @@ import com.xpn.xwiki.web.XWikiRequest;
 @Named("ratelimiter")
 public class RateLimiterScriptService implements ScriptService
 {
+    /**
+     * Interval in minutes between the snapshots of the action rate limiters.
+     */
+    private static final long ACTION_SNAPSHOT_INTERVAL = 1;
+
+    /** The number of elements of a consumption: a consumer, a consumed entity, and an amount. */
+    private static final int CONSUMPTION_SIZE = 3;
+
+    @Inject
+    private Environment environment;
+
     @Inject
     private Provider<RateLimiterBuilder> builderProvider;
 
@@ -69,6 +86,9 @@ public class RateLimiterScriptService implements ScriptService
     @Inject
     private ContextualAuthorizationManager contextualAuthorizationManager;
 
+    @Inject
+    private AuthorizationManager authorizationManager;
+
     @Inject
     private Provider<XWikiContext> contextProvider;
 
@@ -78,18 +98,19 @@ public class RateLimiterScriptService implements ScriptService
     @Inject
     private VelocityManager velocityManager;
 
+    @Inject
+    private ClientAddressResolver clientAddressResolver;
+
     private Object getCurrentConsumed() {
         return contextProvider.get().getDoc().getDocumentReference().getWikiReference();
     }
 
-    private static String getRemoteAddress(XWikiRequest request) {
-        String ipAddress = request.getHeader("X-FORWARDED-FOR");
-        return (ipAddress != null) ? ipAddress.split(",", 1)[0] : request.getRemoteAddr();
-    }
-
     private Object getCurrentConsumer() {
         DocumentReference user = contextProvider.get().getUserReference();
-        return user == null ? getRemoteAddress(contextProvider.get().getRequest()) : user;
+        if (user != null) {
+            return user;
+        }
+        return clientAddressResolver.getClientAddress(contextProvider.get().getRequest());
     }
 
     /**
@@ -115,6 +136,46 @@ public class RateLimiterScriptService implements ScriptService
         return null;
     }
 
+    /**
+     * Create a new {@link RateLimiterService} based on the provided template, keeping at most the given number of
+     * individual limiters. Programming rights is required to use this method.
+     *
+     * @param limiterTemplate a rate limiter to be used as a template for creating limiter of this service.
+     * @param capacity the maximum number of individual limiters kept by the service.
+     * @return a new {@link RateLimiterService} ready for use.
+     */
+    public RateLimiterService createRateLimiterService(RateLimiter limiterTemplate, int capacity)
+    {
+        if (contextualAuthorizationManager.hasAccess(Right.PROGRAM)) {
+            return factory.create(limiterTemplate, capacity);
+        }
+        return null;
+    }
+
+    /**
+     * Create a new {@link RateLimiterService} based on the provided template and options. Programming rights is
+     * required to use this method.
+     *
+     * @param limiterTemplate a rate limiter to be used as a template for creating limiter of this service.
+     * @param options the options of the service, see {@link #getServiceOptions()}.
+     * @return a new {@link RateLimiterService} ready for use.
+     */
+    public RateLimiterService createRateLimiterService(RateLimiter limiterTemplate, RateLimiterServiceOptions options)
+    {
+        if (contextualAuthorizationManager.hasAccess(Right.PROGRAM)) {
+            return factory.create(limiterTemplate, options);
+        }
+        return null;
+    }
+
+    /**
+     * @return new {@link RateLimiterServiceOptions} with default values, ready to be customized.
+     */
+    public RateLimiterServiceOptions getServiceOptions()
+    {
+        return new RateLimiterServiceOptions();
+    }
+
     /**
      * Initialize or reinitialize the action rate limiting service with the given template. If the provided template
      * is null, the service is deactivated.
@@ -122,24 +183,87 @@ public class RateLimiterScriptService implements ScriptService
      * @param limiterTemplate a rate limiter to be used as a template for creating limiter of the default service.
      */
     public void setActionRateLimiter(RateLimiter limiterTemplate)
+    {
+        setActionRateLimiter(limiterTemplate, 0);
+    }
+
+    /**
+     * Initialize or reinitialize the action rate limiting service with the given template, keeping at most the given
+     * number of individual limiters. If the provided template is null, the service is deactivated.
+     *
+     * @param limiterTemplate a rate limiter to be used as a template for creating limiter of the default service.
+     * @param capacity the maximum number of individual limiters kept by the service, or 0 to use the default
+     *            capacity.
+     */
+    public void setActionRateLimiter(RateLimiter limiterTemplate, int capacity)
+    {
+        setActionRateLimiter(limiterTemplate, capacity, 0, 0, null);
+    }
+
+    /**
+     * Initialize or reinitialize the action rate limiting service with the given template, in approximate mode when
+     * a threshold is provided. In approximate mode, consumers are only tracked individually once they have consumed
+     * more than the threshold over the given period. If the provided template is null, the service is deactivated.
+     *
+     * @param limiterTemplate a rate limiter to be used as a template for creating limiter of the default service.
+     * @param capacity the maximum number of individual limiters kept by the service, or 0 to use the default
+     *            capacity.
+     * @param threshold the consumption above which a consumer is tracked individually, or 0 to track all consumers
+     *            individually.
+     * @param period the period of time over which the threshold is evaluated.
+     * @param unit the unit used to express the period of time.
+     */
+    public void setActionRateLimiter(RateLimiter limiterTemplate, int capacity, long threshold, long period,
+        TimeUnit unit)
+    {
+        RateLimiterServiceOptions options = getServiceOptions();
+        if (capacity > 0) {
+            options.setCapacity(capacity);
+        }
+        if (threshold > 0) {
+            options.setApproximate(threshold, period, unit);
+        }
+        setActionRateLimiter(limiterTemplate, options);
+    }
+
+    /**
+     * Initialize or reinitialize the action rate limiting service with the given template and options. Anonymous
+     * users are limited by IP address, and the consumption of their network is also limited when an aggregate
+     * template is provided by the options. Unless another snapshot file is provided by the options, the state of the
+     * rate limiters is saved every minute in the permanent directory, and restored when the service is
+     * reinitialized or the wiki restarted. If the provided template is null, the service is deactivated.
+     *
+     * @param limiterTemplate a rate limiter to be used as a template for creating limiter of the default service.
+     * @param options the options of the service, see {@link #getServiceOptions()}.
+     */
+    public void setActionRateLimiter(RateLimiter limiterTemplate, RateLimiterServiceOptions options)
     {
         if (contextualAuthorizationManager.hasAccess(Right.PROGRAM)) {
             EventListener listener = observationManager.getListener(RateLimiterServiceActionListener.NAME);
             if (listener != null) {
                 if (listener instanceof RateLimiterServiceActionListener) {
-                    ((RateLimiterServiceActionListener) listener).getService().clearCache();
+                    // Save the state of the rate limiters before the new service restores it
+                    ((RateLimiterServiceActionListener) listener).getService().dispose();
                 }
                 observationManager.removeListener(RateLimiterServiceActionListener.NAME);
             }
 
             if (limiterTemplate != null) {
+                if (options.getSnapshotFile() == null) {
+                    options.setSnapshot(getActionSnapshotFile(), ACTION_SNAPSHOT_INTERVAL, TimeUnit.MINUTES);
+                }
                 observationManager.addListener(
-                    new RateLimiterServiceActionListener(factory.create(limiterTemplate),
-                        velocityManager, contextualAuthorizationManager));
+                    new RateLimiterServiceActionListener(factory.create(limiterTemplate, options), velocityManager,
+                        authorizationManager, clientAddressResolver, options));
             }
         }
     }
 
+    private File getActionSnapshotFile()
+    {
+        return new File(new File(environment.getPermanentDirectory(), "ratelimiter"), "actions.snapshot");
+    }
+
     /**
      * @return the current rate limiter service.
      */
@@ -185,6 +309,43 @@ public class RateLimiterScriptService implements ScriptService
         return true;
     }
 
+    /**
+     * Consume on several entity pairs at once, such as the user, address, wiki and document of a request, see
+     * {@link RateLimiterService#consume(Object[], Object[], long[], boolean)}.
+     *
+     * @param consumptions the consumptions, each one being a list of the entity consuming, the entity being consumed,
+     *            and the amount being consumed.
+     * @param allOrNothing when true, nothing is consumed unless all the consumptions are successful.
+     * @return for each consumption, true if it was successful.
+     * @throws IllegalArgumentException if a consumption is not made of two entities and an amount.
+     */
+    public boolean[] consume(List<? extends List<?>> consumptions, boolean allOrNothing)
+    {
+        Object[] consumers = new Object[consumptions.size()];
+        Object[] consumed = new Object[consumptions.size()];
+        long[] amounts = new long[consumptions.size()];
+        for (int i = 0; i < consumers.length; i++) {
+            List<?> consumption = consumptions.get(i);
+            if (consumption == null || consumption.size() != CONSUMPTION_SIZE
+                || !(consumption.get(2) instanceof Number)) {
+                throw new IllegalArgumentException(
+                    String.format("Consumption [%s] should be a list of a consumer, a consumed entity and an amount.",
+                        consumption));
+            }
+            consumers[i] = consumption.get(0);
+            consumed[i] = consumption.get(1);
+            amounts[i] = ((Number) consumption.get(2)).longValue();
+        }
+
+        boolean[] results = new boolean[consumers.length];
+        RateLimiterService service = getService();
+        if (service == null || !contextualAuthorizationManager.hasAccess(Right.PROGRAM)) {
+            Arrays.fill(results, true);
+            return results;
+        }
+        return service.consume(consumers, consumed, amounts, allOrNothing);
+    }
+
     /**
      * @return the current consumable amount for the current user on the current wiki.
      */
@@ -0,0 +1,252 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.ratelimiter.internal;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.xwiki.contrib.ratelimiter.IpAddressKey;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Validate {@link DefaultClientAddressResolver}.
+ *
+ * @version $Id$
+ */
+public class DefaultClientAddressResolverTest
+{
+    private static final String FORWARDED = "Forwarded";
+
+    private static final String X_FORWARDED_FOR = "X-Forwarded-For";
+
+    private static final String PROXY = "10.0.0.1";
+
+    private static final String CLIENT = "203.0.113.7";
+
+    private static final String CLIENT6 = "2001:db8:cafe::17";
+
+    private DefaultClientAddressResolver resolver;
+
+    private String trustedProxies;
+
+    private final List<String> warnings = new ArrayList<String>();
+
+    private final Map<String, List<String>> headers = new HashMap<String, List<String>>();
+
+    @Before
+    public void setUp() throws Exception
+    {
+        trustedProxies = "10.0.0.0/8, fd00::/8";
+        resolver = new DefaultClientAddressResolver();
+        inject("configuration", Proxy.newProxyInstance(getClass().getClassLoader(),
+            new Class<?>[] {RateLimitingServiceConfiguration.class}, new InvocationHandler()
+            {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args)
+                {
+                    return method.getName().equals("getTrustedProxies") ? trustedProxies : null;
+                }
+            }));
+        inject("logger", Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] {Logger.class},
+            new InvocationHandler()
+            {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args)
+                {
+                    if (method.getName().equals("warn")) {
+                        warnings.add(String.valueOf(args[0]));
+                    }
+                    return null;
+                }
+            }));
+    }
+
+    private void inject(String name, Object value) throws Exception
+    {
+        Field field = DefaultClientAddressResolver.class.getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(resolver, value);
+    }
+
+    private void addHeader(String name, String value)
+    {
+        List<String> values = headers.get(name);
+        if (values == null) {
+            values = new ArrayList<String>();
+            headers.put(name, values);
+        }
+        values.add(value);
+    }
+
+    private Object resolve(final String remoteAddress)
+    {
+        HttpServletRequest request = (HttpServletRequest) Proxy.newProxyInstance(getClass().getClassLoader(),
+            new Class<?>[] {HttpServletRequest.class}, new InvocationHandler()
+            {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args)
+                {
+                    if (method.getName().equals("getRemoteAddr")) {
+                        return remoteAddress;
+                    }
+                    if (method.getName().equals("getHeaders")) {
+                        List<String> values = headers.get(args[0]);
+                        return Collections.enumeration((values != null) ? values : Collections.<String>emptyList());
+                    }
+                    return null;
+                }
+            });
+        return resolver.getClientAddress(request);
+    }
+
+    private static IpAddressKey ip(String address)
+    {
+        return IpAddressKey.parse(address);
+    }
+
+    @Test
+    public void remoteAddressIsUsedWithoutProxy()
+    {
+        addHeader(X_FORWARDED_FOR, "192.0.2.1");
+        addHeader(FORWARDED, "for=192.0.2.1");
+
+        // Forwarding headers of untrusted clients are ignored
+        assertEquals(ip(CLIENT), resolve(CLIENT));
+        assertEquals(ip(CLIENT6), resolve(CLIENT6));
+        assertEquals("localhost", resolve("localhost"));
+    }
+
+    @Test
+    public void remoteAddressIsUsedWithoutForwardingHeader()
+    {
+        assertEquals(ip(PROXY), resolve(PROXY));
+    }
+
+    @Test
+    public void xForwardedForIsWalkedFromTheNearestHop()
+    {
+        addHeader(X_FORWARDED_FOR, "192.0.2.1, " + CLIENT + ", 10.0.0.2");
+
+        // The leftmost address is chosen by the client, only the first untrusted hop from the right is reliable
+        assertEquals(ip(CLIENT), resolve(PROXY));
+    }
+
+    @Test
+    public void xForwardedForWithPorts()
+    {
+        addHeader(X_FORWARDED_FOR, CLIENT + ":4711, [fd00::2]:8080");
+        assertEquals(ip(CLIENT), resolve(PROXY));
+
+        headers.clear();
+        addHeader(X_FORWARDED_FOR, "[" + CLIENT6 + "]:4711," + CLIENT6);
+        assertEquals(ip(CLIENT6), resolve(PROXY));
+    }
+
+    @Test
+    public void allTrustedHopsResolveToTheFarthestOne()
+    {
+        addHeader(X_FORWARDED_FOR, "10.0.0.3,10.0.0.2");
+
+        assertEquals(ip("10.0.0.3"), resolve(PROXY));
+    }
+
+    @Test
+    public void forwardedWithQuotedValues()
+    {
+        addHeader(FORWARDED, "for=\"[" + CLIENT6 + "]:4711\";proto=https, For=\"10.0.0.2\"");
+
+        assertEquals(ip(CLIENT6), resolve(PROXY));
+    }
+
+    @Test
+    public void forwardedWithOtherParameters()
+    {
+        addHeader(FORWARDED, "proto=http;for=" + CLIENT + ";by=10.0.0.2, by=10.0.0.1; for=10.0.0.2");
+
+        assertEquals(ip(CLIENT), resolve(PROXY));
+    }
+
+    @Test
+    public void forwardedTakesPrecedence()
+    {
+        addHeader(X_FORWARDED_FOR, "192.0.2.1");
+        addHeader(FORWARDED, "for=" + CLIENT);
+
+        assertEquals(ip(CLIENT), resolve(PROXY));
+    }
+
+    @Test
+    public void multipleHeadersAreWalkedFromTheLastOne()
+    {
+        addHeader(X_FORWARDED_FOR, "192.0.2.1, " + CLIENT);
+        addHeader(X_FORWARDED_FOR, "10.0.0.3");
+        addHeader(X_FORWARDED_FOR, "10.0.0.2");
+
+        assertEquals(ip(CLIENT), resolve(PROXY));
+    }
+
+    @Test
+    public void unknownHopStopsAtTheLastTrustedProxy()
+    {
+        addHeader(FORWARDED, "for=" + CLIENT + ", for=_hidden, for=10.0.0.2");
+        assertEquals(ip("10.0.0.2"), resolve(PROXY));
+
+        headers.clear();
+        addHeader(X_FORWARDED_FOR, CLIENT + ", unknown");
+        assertEquals(ip(PROXY), resolve(PROXY));
+
+        headers.clear();
+        addHeader(FORWARDED, "proto=https");
+        assertEquals(ip(PROXY), resolve(PROXY));
+    }
+
+    @Test
+    public void trustedProxiesFollowTheConfiguration()
+    {
+        addHeader(X_FORWARDED_FOR, CLIENT);
+        assertEquals(ip(CLIENT), resolve(PROXY));
+
+        trustedProxies = "none";
+        assertEquals(ip(PROXY), resolve(PROXY));
+
+        trustedProxies = null;
+        assertEquals(ip(PROXY), resolve(PROXY));
+
+        trustedProxies = "10.0.0.1, invalid, 10.0.0.0/x, 192.0.2.0/24";
+        assertEquals(ip(CLIENT), resolve(PROXY));
+        assertEquals(ip("10.0.0.2"), resolve("10.0.0.2"));
+        assertEquals(Arrays.asList("Invalid trusted proxy network [{}] ignored.",
+            "Invalid trusted proxy network [{}] ignored."), warnings);
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.ratelimiter.internal;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+import com.xpn.xwiki.web.XWikiRequest;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Validate {@link RequestClassifier}.
+ *
+ * @version $Id$
+ */
+public class RequestClassifierTest
+{
+    private static final String BOT = "Mozilla/5.0 (compatible; SomeBot/1.0)";
+
+    private static final String BROWSER = "Mozilla/5.0 (X11; Linux x86_64)";
+
+    private static final String SKIN = "skin";
+
+    private static final String VIEW = "view";
+
+    private static XWikiRequest request(final String uri, final String agent)
+    {
+        return (XWikiRequest) Proxy.newProxyInstance(RequestClassifierTest.class.getClassLoader(),
+            new Class<?>[] {XWikiRequest.class}, new InvocationHandler()
+            {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args)
+                {
+                    if (method.getName().equals("getRequestURI")) {
+                        return uri;
+                    }
+                    if (method.getName().equals("getHeader") && "User-Agent".equals(args[0])) {
+                        return agent;
+                    }
+                    return null;
+                }
+            });
+    }
+
+    private static long classify(RequestClassifier classifier, String action, String agent)
+    {
+        return classifier.classify(action, null, request("/xwiki/bin/" + action + "/Main/WebHome", agent));
+    }
+
+    @Test
+    public void skinResourcesAreExemptedByDefault()
+    {
+        RequestClassifier classifier = new RequestClassifier(Collections.<String>emptyList());
+
+        assertEquals(RequestClassifier.EXEMPT, classify(classifier, SKIN, BROWSER));
+        assertEquals(RequestClassifier.EXEMPT, classify(classifier, "jsx", BROWSER));
+        assertEquals(RequestClassifier.EXEMPT, classify(classifier, "ssx", BROWSER));
+        assertEquals(RequestClassifier.CHARGE, classify(classifier, VIEW, BROWSER));
+    }
+
+    @Test
+    public void rulesWithoutActionDoNotChargeSkinResources()
+    {
+        RequestClassifier classifier = new RequestClassifier(Arrays.asList("agent=bot:5"));
+
+        assertEquals(RequestClassifier.EXEMPT, classify(classifier, SKIN, BOT));
+        assertEquals(RequestClassifier.EXEMPT, classify(classifier, "jsx", BOT));
+        assertEquals(5, classify(classifier, VIEW, BOT));
+        assertEquals(RequestClassifier.CHARGE, classify(classifier, VIEW, BROWSER));
+    }
+
+    @Test
+    public void rulesOfSkinActionsOverrideTheExemption()
+    {
+        RequestClassifier classifier =
+            new RequestClassifier(Arrays.asList("agent=bot:5", "action=skin&agent=bot:3", "action=ssx:charge"));
+
+        assertEquals(3, classify(classifier, SKIN, BOT));
+        assertEquals(RequestClassifier.EXEMPT, classify(classifier, SKIN, BROWSER));
+        assertEquals(RequestClassifier.CHARGE, classify(classifier, "ssx", BROWSER));
+        assertEquals(RequestClassifier.EXEMPT, classify(classifier, "jsx", BOT));
+    }
+
+    @Test
+    public void firstMatchingRuleApplies()
+    {
+        RequestClassifier classifier = new RequestClassifier(
+            Arrays.asList("path=/xwiki/bin/view/Sandbox/:exempt", "agent=bot:5", "action=view:2", "action=get:4"));
+
+        assertEquals(RequestClassifier.EXEMPT,
+            classifier.classify(VIEW, null, request("/xwiki/bin/view/Sandbox/WebHome", BOT)));
+        assertEquals(5, classify(classifier, VIEW, BOT));
+        assertEquals(2, classify(classifier, VIEW, BROWSER));
+        assertEquals(5, classify(classifier, "get", BOT));
+        assertEquals(4, classify(classifier, "get", BROWSER));
+        assertEquals(RequestClassifier.CHARGE, classify(classifier, "edit", BROWSER));
+    }
+}